@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.Line2D;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing a graticules csv, both through GraticuleCsvReader and through the String.split reader it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CsvReadBenchmark {
+
+	@Param({"10", "1000", "100000", "1000000"})
+	int graticules;
+
+	byte[] csv;
+	ByteBuffer buf;
+	Path file;
+
+	@Setup
+	public void setup() throws Exception {
+		csv = SheetGenerator.csv(SheetGenerator.graticules(graticules, 1));
+		buf = ByteBuffer.wrap(csv);
+		file = Files.createTempFile("graticules", ".csv");
+		Files.write(file, csv);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(file);
+	}
+
+	/**
+	 * Parsing only, the rows go to a handler which keeps nothing.
+	 */
+	@Benchmark
+	public void handler(final Blackhole bh) throws Exception {
+		GraticuleCsvReader.read(buf.duplicate(), new GraticuleCsvReader.Handler() {
+			@Override
+			public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) {
+				bh.consume(value);
+				bh.consume(x1 + y1 + x2 + y2);
+			}
+		});
+	}
+
+	/**
+	 * Parsing straight into packed arrays, as Main does.
+	 */
+	@Benchmark
+	public PackedGraticules packed() throws Exception {
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		GraticuleCsvReader.read(buf.duplicate(), PackedGraticules.handler(lon, lat));
+		return lat;
+	}
+
+	/**
+	 * Parsing into Graticule lists.
+	 */
+	@Benchmark
+	public ArrayList<Graticule> lists() throws Exception {
+		ArrayList<Graticule> lon = new ArrayList<Graticule>();
+		ArrayList<Graticule> lat = new ArrayList<Graticule>();
+		GraticuleCsvReader.read(buf.duplicate(), GraticuleCsvReader.listHandler(lon, lat));
+		return lat;
+	}
+
+	/**
+	 * Reading the file from disk (or rather the page cache) through the memory mapped path.
+	 */
+	@Benchmark
+	public PackedGraticules mappedFile() throws Exception {
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		GraticuleCsvReader.read(file, PackedGraticules.handler(lon, lat));
+		return lat;
+	}
+
+	/**
+	 * The original Main.readCSV, a BufferedReader with String.split and Float.parseFloat, as a baseline.
+	 */
+	@Benchmark
+	public ArrayList<Graticule> splitBaseline() throws Exception {
+		BufferedReader csvReader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(csv), "US-ASCII"));
+		ArrayList<Graticule> lonGrats = new ArrayList<Graticule>();
+		ArrayList<Graticule> latGrats = new ArrayList<Graticule>();
+
+		String line = csvReader.readLine();
+		if (line == null || !line.equals(GraticuleCsvReader.HEADER))
+			throw new Exception("Source file has bad format. The first line should be the header " + GraticuleCsvReader.HEADER);
+
+		for (line = csvReader.readLine(); line != null; line = csvReader.readLine()) {
+			String[] l = line.split(",");
+			if (l.length != 7)
+				throw new Exception("Source file has bad format. Each line should have 7 columns, but we found a line with " + l.length + "columns.");
+
+			LATLON latlon;
+			if (l[0].equals("lon"))
+				latlon = LATLON.LON;
+			else if (l[0].equals("lat"))
+				latlon = LATLON.LAT;
+			else
+				throw new Exception("Either 'lat' or 'lon' expected, found " + l[0]);
+
+			DIR dir;
+			if (l[1].equals("w"))
+				dir = DIR.W;
+			else if (l[1].equals("e"))
+				dir = DIR.E;
+			else if (l[1].equals("n"))
+				dir = DIR.N;
+			else if (l[1].equals("s"))
+				dir = DIR.S;
+			else if (l[1].equals("v"))
+				dir = DIR.E;
+			else if (l[1].equals("h"))
+				dir = DIR.N;
+			else
+				throw new Exception("Either n,s,e,w,h,v expected, found " + l[1]);
+
+			Graticule graticule = new Graticule(latlon,
+					dir,
+					Integer.parseInt(l[2]),
+					new Line2D.Float(Float.parseFloat(l[3]), Float.parseFloat(l[4]), Float.parseFloat(l[5]), Float.parseFloat(l[6])));
+
+			if (latlon.equals(LATLON.LAT))
+				latGrats.add(graticule);
+			else
+				lonGrats.add(graticule);
+		}
+		return latGrats;
+	}
+}
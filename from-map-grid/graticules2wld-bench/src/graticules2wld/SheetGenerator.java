@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes synthetic sheets of any number of graticules for the benchmarks.
+ *
+ * The graticules are traced from a known world file (a 3 degree rotation at 2 source units a pixel), half LAT
+ * and half LON, at every 10 source units with labels shuffled so the sort has work to do, and with their ends
+ * moved up to a pixel at random as a real tracing would. Coordinates are rounded to 5 decimal places, as in the
+ * csvs made from traced SVGs. The same seed always gives the same sheet.
+ */
+final class SheetGenerator {
+
+	static final WorldFile TRUTH = new WorldFile(
+			2 * Math.cos(Math.toRadians(3)), -2 * Math.sin(Math.toRadians(3)),
+			2 * Math.sin(Math.toRadians(3)), -2 * Math.cos(Math.toRadians(3)),
+			-1000, 1000);
+
+	private SheetGenerator() {
+	}
+
+	/**
+	 * @return n graticules, the first n / 2 LON and the rest LAT, in random value order
+	 */
+	static List<Graticule> graticules(int n, long seed) {
+		Random random = new Random(seed);
+		List<Graticule> grats = new ArrayList<Graticule>(n);
+		double[] p = new double[4];
+		int lons = n / 2;
+		for (int i = 0; i < n; i++) {
+			boolean lon = i < lons;
+			int count = lon ? lons : n - lons;
+			// a random permutation of 0..count-1 would need the whole set, an odd multiplier mod count is close enough
+			int index = (int) ((i * 7919L) % count);
+			int value = 10 * (index - count / 2);
+
+			// two points on the line at the labelled value, found from the inverse of the world file
+			if (lon) {
+				p[0] = value - TRUTH.C; p[1] = -100 - TRUTH.F;
+				p[2] = value - TRUTH.C; p[3] = -10000 - TRUTH.F;
+			}else{
+				p[0] = -100 - TRUTH.C; p[1] = value - TRUTH.F;
+				p[2] = -10000 - TRUTH.C; p[3] = value - TRUTH.F;
+			}
+			double det = TRUTH.A * TRUTH.E - TRUTH.B * TRUTH.D;
+			double x1 = (TRUTH.E * p[0] - TRUTH.B * p[1]) / det + random.nextDouble() - 0.5;
+			double y1 = (TRUTH.A * p[1] - TRUTH.D * p[0]) / det + random.nextDouble() - 0.5;
+			double x2 = (TRUTH.E * p[2] - TRUTH.B * p[3]) / det + random.nextDouble() - 0.5;
+			double y2 = (TRUTH.A * p[3] - TRUTH.D * p[2]) / det + random.nextDouble() - 0.5;
+
+			DIR dir = lon ? (value < 0 ? DIR.W : DIR.E) : (value < 0 ? DIR.S : DIR.N);
+			grats.add(new Graticule(lon ? LATLON.LON : LATLON.LAT, dir, Math.abs(value),
+					new Line2D.Double(round(x1), round(y1), round(x2), round(y2))));
+		}
+		return grats;
+	}
+
+	private static double round(double v) {
+		return Math.round(v * 1e5) / 1e5;
+	}
+
+	/**
+	 * @return the graticules as a graticules csv
+	 */
+	static byte[] csv(List<Graticule> grats) {
+		StringBuilder csv = new StringBuilder(GraticuleCsvReader.HEADER).append('\n');
+		for (Graticule g : grats) {
+			Line2D l = g.l;
+			csv.append(g.latlon.equals(LATLON.LAT) ? "lat," : "lon,")
+				.append(g.dir.toString().toLowerCase()).append(',')
+				.append(g.value).append(',')
+				.append(l.getX1()).append(',').append(l.getY1()).append(',')
+				.append(l.getX2()).append(',').append(l.getY2()).append('\n');
+		}
+		try {
+			return csv.toString().getBytes("US-ASCII");
+		}catch( java.io.UnsupportedEncodingException exp ) {
+			throw new AssertionError(exp);
+		}
+	}
+
+	static PackedGraticules pack(List<Graticule> grats, LATLON latlon) {
+		PackedGraticules packed = new PackedGraticules(latlon, grats.size());
+		for (Graticule g : grats) {
+			if (g.latlon.equals(latlon))
+				packed.add(g);
+		}
+		return packed;
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The per graticule work: angles, sorting by value, and the stages of Solver.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SolveBenchmark {
+
+	@Param({"10", "1000", "100000", "1000000"})
+	int graticules;
+
+	List<Graticule> grats;
+	PackedGraticules lon;
+	PackedGraticules lat;
+	double[] scratch;
+	double latSpacing;
+	Solver solver = new Solver(335100, 6254870, 20.1168);
+
+	@Setup
+	public void setup() {
+		grats = SheetGenerator.graticules(graticules, 1);
+		lon = SheetGenerator.pack(grats, LATLON.LON);
+		lat = SheetGenerator.pack(grats, LATLON.LAT);
+		scratch = new double[Math.max(lon.size(), lat.size())];
+		latSpacing = solver.solve(lon, lat).y;
+	}
+
+	/**
+	 * Graticule.angle() on each graticule object.
+	 */
+	@Benchmark
+	public void angle(Blackhole bh) {
+		for (int i = 0; i < grats.size(); i++)
+			bh.consume(grats.get(i).angle());
+	}
+
+	/**
+	 * The same angles through the packed kernel.
+	 */
+	@Benchmark
+	public double[] anglePacked() {
+		lat.angles(scratch);
+		return scratch;
+	}
+
+	/**
+	 * Collections.sort with Graticule.compareTo, on a fresh copy of the LAT graticules each time.
+	 */
+	@Benchmark
+	public List<Graticule> sort() {
+		List<Graticule> copy = new ArrayList<Graticule>(grats.subList(grats.size() / 2, grats.size()));
+		Collections.sort(copy);
+		return copy;
+	}
+
+	/**
+	 * The spacing stage, pixel spacings measured from the lowest valued graticule.
+	 */
+	@Benchmark
+	public double[] spacings() {
+		lat.spacings(lat.indexOfMinValue(), scratch);
+		return scratch;
+	}
+
+	/**
+	 * The regression stage, the intercept of value on perpendicular distance from the upper left pixel.
+	 */
+	@Benchmark
+	public double regression() {
+		return Solver.intercept(lat, latSpacing, scratch);
+	}
+
+	/**
+	 * The whole solve from packed graticules to world file.
+	 */
+	@Benchmark
+	public Solution solve() {
+		return solver.solve(lon, lat);
+	}
+
+	/**
+	 * The whole solve from Graticule objects, including packing them.
+	 */
+	@Benchmark
+	public Solution solveCollection() {
+		return solver.solve(grats);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing a .wld file, to memory and to disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorldFileBenchmark {
+
+	File wld;
+
+	@Setup
+	public void setup() throws Exception {
+		wld = File.createTempFile("graticules", ".wld");
+	}
+
+	@TearDown
+	public void tearDown() {
+		wld.delete();
+	}
+
+	@Benchmark
+	public StringWriter write() throws Exception {
+		StringWriter writer = new StringWriter(128);
+		SheetGenerator.TRUTH.write(writer);
+		return writer;
+	}
+
+	@Benchmark
+	public void writeFile() throws Exception {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(wld));
+		try {
+			SheetGenerator.TRUTH.write(writer);
+		}finally{
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package graticules2wld;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A file which is written to a temporary file beside it and then moved into place, so it is never seen half
+ * written. The temporary file is created like any other file, with the permissions the umask gives, rather than
+ * the owner only permissions of Files.createTempFile which the moved file would keep.
+ *
+ * <pre>
+ * AtomicFile f = new AtomicFile(target);
+ * try {
+ * 	// write f.temp()
+ * 	f.commit();
+ * }finally{
+ * 	f.close();
+ * }
+ * </pre>
+ */
+final class AtomicFile implements Closeable {
+	private final Path target;
+	private final Path temp;
+	private boolean committed;
+
+	/**
+	 * Creates an empty temporary file in target's directory, which must exist.
+	 */
+	AtomicFile(Path target) throws IOException {
+		this.target = target.toAbsolutePath();
+		temp = createTemp(this.target);
+	}
+
+	private static Path createTemp(Path target) throws IOException {
+		String prefix = "." + target.getFileName() + ".";
+		while (true) {
+			Path p = target.resolveSibling(prefix + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1) + ".tmp");
+			try {
+				Files.newOutputStream(p, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+				return p;
+			}catch( FileAlreadyExistsException exp ) {
+				// try another name
+			}
+		}
+	}
+
+	/**
+	 * @return the temporary file to write
+	 */
+	Path temp() {
+		return temp;
+	}
+
+	/**
+	 * Moves the temporary file over the target, atomically where the file system allows it.
+	 */
+	void commit() throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		}catch( AtomicMoveNotSupportedException exp ) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+		committed = true;
+	}
+
+	/**
+	 * Deletes the temporary file unless it was committed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!committed)
+			Files.deleteIfExists(temp);
+	}
+}
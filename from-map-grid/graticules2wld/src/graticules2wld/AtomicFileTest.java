@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package graticules2wld;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AtomicFileTest {
+
+	/**
+	 * A committed file should have the permissions of any other new file, not the owner only ones of a temp file
+	 */
+	@Test
+	public void test_commit() throws Exception {
+		Path dir = Files.createTempDirectory("atomic");
+		Path target = dir.resolve("tile.png");
+		Files.write(target, new byte[] { 1 });
+
+		AtomicFile f = new AtomicFile(target);
+		try {
+			Files.write(f.temp(), new byte[] { 2, 3 });
+			f.commit();
+		}finally{
+			f.close();
+		}
+		assertArrayEquals(new byte[] { 2, 3 }, Files.readAllBytes(target));
+		assertEquals(1, dir.toFile().list().length);
+
+		Set<PosixFilePermission> normal = Files.getPosixFilePermissions(Files.createFile(dir.resolve("other")));
+		assertEquals(normal, Files.getPosixFilePermissions(target));
+	}
+
+	/**
+	 * Closing without committing should leave the target as it was and no temporary file behind
+	 */
+	@Test
+	public void test_abandon() throws Exception {
+		Path dir = Files.createTempDirectory("atomic");
+		Path target = dir.resolve("sheet.wld");
+		Files.write(target, new byte[] { 1 });
+
+		AtomicFile f = new AtomicFile(target);
+		Files.write(f.temp(), new byte[] { 2 });
+		f.close();
+		assertArrayEquals(new byte[] { 1 }, Files.readAllBytes(target));
+		assertEquals(1, dir.toFile().list().length);
+	}
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/*
+ * Batch mode solves many sheets inside the one JVM. The sheets to solve can be given as,
+ *
+ *  - a directory, in which case every *.csv and *.svg file in it is solved into a .wld file of the same name,
+ *    and where a sheet has both the .svg (the tracing itself) is solved and the .csv is left out,
+ *  - a glob such as "sheets/**.csv", which is treated the same way as a directory, or
+ *  - a manifest file, with one sheet per line like,
+
+csv,wld,originx,originy,tometers
+PMapMN05-14041501.csv,PMapMN05-14041501.wld,335100.5,6254870.2,20.1168
+PMapMN05-14041502.csv,PMapMN05-14041502.wld,336950,6254870.2
+
+ *    where relative paths are relative to the manifest, the header line is optional, blank lines and lines
+ *    starting with # are ignored and any of originx, originy or tometers which are left off fall back to the
+ *    values given on the command line.
+ */
+
+package graticules2wld;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+public class Batch {
+
+	/**
+	 * A single sheet to solve, the source graticules csv and destination world file along with the options to
+	 * solve it with.
+	 */
+	public static class Job {
+		public final File csv;
+		public final File wld;
+		public final double originEasting;
+		public final double originNorthing;
+		public final double unitsToMeters;
+
+		public Job(File csv, File wld, double originEasting, double originNorthing, double unitsToMeters) {
+			this.csv = csv;
+			this.wld = wld;
+			this.originEasting = originEasting;
+			this.originNorthing = originNorthing;
+			this.unitsToMeters = unitsToMeters;
+		}
+
+		@Override
+		public String toString() {
+			return csv.getPath();
+		}
+	}
+
+	/**
+	 * Builds the list of sheets to solve from a directory, glob or manifest file.
+	 * @param spec a directory, a glob or a manifest file
+	 * @param defaultEasting originx to use when the manifest doesn't give one, may be null
+	 * @param defaultNorthing originy to use when the manifest doesn't give one, may be null
+	 * @param defaultUnitsToMeters tometers to use when the manifest doesn't give one
+	 * @return the jobs, in a stable order
+	 * @throws Exception if spec can't be read or a sheet is missing its origin
+	 */
+	public static List<Job> listJobs(String spec, Double defaultEasting, Double defaultNorthing,
+			double defaultUnitsToMeters) throws Exception {
+
+		File specFile = new File(spec);
+
+		if (specFile.isFile())
+			return readManifest(specFile, defaultEasting, defaultNorthing, defaultUnitsToMeters);
+
+		// for a directory or a glob every sheet uses the origin from the command line
+		if (defaultEasting == null || defaultNorthing == null)
+			throw new Exception("--originx and --originy are required when batch solving a directory or glob");
+
+		List<Path> csvs = withoutShadowed(specFile.isDirectory() ? listDirectory(specFile.toPath(), "*.{csv,svg}") : listGlob(spec));
+		if (csvs.isEmpty())
+			throw new Exception("No traced sheets (.csv or .svg files) found for " + spec);
+
+		List<Job> jobs = new ArrayList<Job>(csvs.size());
+		for (Path csv : csvs) {
+			jobs.add(new Job(csv.toFile(), wldFileFor(csv.toFile()),
+					defaultEasting, defaultNorthing, defaultUnitsToMeters));
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return the world file name to go alongside a graticules csv, eg. sheet.csv becomes sheet.wld
+	 */
+	static File wldFileFor(File csv) {
+		String name = csv.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return new File(csv.getParentFile(), name + ".wld");
+	}
+
+	/**
+	 * @return the graticule csvs in a directory or matching a glob, or a single csv file itself
+	 */
+	static List<Path> listCsvs(String spec) throws IOException {
+		File specFile = new File(spec);
+		if (specFile.isFile())
+			return Collections.singletonList(specFile.toPath());
+		return specFile.isDirectory() ? listDirectory(specFile.toPath(), "*.csv") : listGlob(spec);
+	}
+
+	/**
+	 * @return sheets without any .csv which has a .svg of the same name in sheets too, as both make the same world
+	 * file. The .svg is the tracing itself, so it is the one solved.
+	 */
+	static List<Path> withoutShadowed(List<Path> sheets) {
+		Set<Path> svgs = new HashSet<Path>();
+		for (Path p : sheets) {
+			if (p.getFileName().toString().toLowerCase().endsWith(".svg"))
+				svgs.add(wldFileFor(p.toFile()).toPath());
+		}
+		List<Path> kept = new ArrayList<Path>(sheets.size());
+		for (Path p : sheets) {
+			if (p.getFileName().toString().toLowerCase().endsWith(".csv") && svgs.contains(wldFileFor(p.toFile()).toPath()))
+				continue;
+			kept.add(p);
+		}
+		return kept;
+	}
+
+	private static List<Path> listDirectory(Path dir, String glob) throws IOException {
+		List<Path> csvs = new ArrayList<Path>();
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob);
+		try {
+			for (Path p : stream)
+				csvs.add(p);
+		}finally{
+			stream.close();
+		}
+		Collections.sort(csvs);
+		return csvs;
+	}
+
+	private static List<Path> listGlob(String glob) throws IOException {
+		final List<Path> csvs = new ArrayList<Path>();
+
+		// walk from the deepest directory which has no glob characters in it, matching the rest of the glob
+		int meta = indexOfGlobMeta(glob);
+		if (meta < 0)
+			return csvs;
+		int sep = glob.lastIndexOf(File.separatorChar, meta);
+
+		final Path start = Paths.get(sep >= 0 ? glob.substring(0, sep + 1) : "").toAbsolutePath().normalize();
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.substring(sep + 1));
+
+		if (!Files.isDirectory(start))
+			return csvs;
+
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && matcher.matches(start.relativize(file)))
+					csvs.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(csvs);
+		return csvs;
+	}
+
+	private static int indexOfGlobMeta(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			switch (glob.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static List<Job> readManifest(File manifest, Double defaultEasting, Double defaultNorthing,
+			double defaultUnitsToMeters) throws Exception {
+
+		File base = manifest.getAbsoluteFile().getParentFile();
+		List<Job> jobs = new ArrayList<Job>();
+
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			int lineNumber = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+
+				// skip blank lines, comments and the header
+				if (line.isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.startsWith("csv,")))
+					continue;
+
+				String[] l = line.split(",");
+				if (l.length < 2 || l.length > 5)
+					throw new Exception(manifest + ":" + lineNumber + ": expected csv,wld[,originx,originy[,tometers]] but found " + l.length + " columns.");
+
+				Double easting = l.length > 2 && !l[2].trim().isEmpty() ? Double.valueOf(l[2].trim()) : defaultEasting;
+				Double northing = l.length > 3 && !l[3].trim().isEmpty() ? Double.valueOf(l[3].trim()) : defaultNorthing;
+				double unitsToMeters = l.length > 4 && !l[4].trim().isEmpty() ? Double.parseDouble(l[4].trim()) : defaultUnitsToMeters;
+
+				if (easting == null || northing == null)
+					throw new Exception(manifest + ":" + lineNumber + ": no originx/originy given for " + l[0] + " and none given on the command line.");
+
+				jobs.add(new Job(resolve(base, l[0].trim()), resolve(base, l[1].trim()), easting, northing, unitsToMeters));
+			}
+		}finally{
+			reader.close();
+		}
+
+		return jobs;
+	}
+
+	private static File resolve(File base, String path) {
+		File f = new File(path);
+		return f.isAbsolute() ? f : new File(base, path);
+	}
+
+	/**
+	 * Solves one sheet, reading its csv and writing its world file. The world file is written to a temporary file
+	 * beside it and only moved into place once the solve succeeds, so a sheet which fails keeps any world file it
+	 * already had.
+	 * @throws Exception on any problem with this sheet
+	 */
+	static void solve(Job job) throws Exception {
+		Path wld = job.wld.getAbsoluteFile().toPath();
+		AtomicFile f = new AtomicFile(wld);
+		try {
+			BufferedWriter wldWriter = Files.newBufferedWriter(f.temp());
+			try {
+				Main.solve(job.csv, wldWriter, job.originEasting, job.originNorthing, job.unitsToMeters);
+			}finally{
+				wldWriter.close();
+			}
+			f.commit();
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * Solves all the jobs on a work stealing pool. A failure on one sheet is reported to err and doesn't stop the
+	 * others. Once all sheets are done a summary is printed to out.
+	 * @param jobs the sheets to solve
+	 * @param threads the number of worker threads
+	 * @param out where the summary is printed
+	 * @param err where failures are reported as they happen
+	 * @return the number of sheets which failed
+	 * @throws InterruptedException
+	 */
+	public static int run(List<Job> jobs, int threads, PrintStream out, final PrintStream err) throws InterruptedException {
+		long start = System.nanoTime();
+
+		List<Callable<String>> tasks = new ArrayList<Callable<String>>(jobs.size());
+		for (final Job job : jobs) {
+			tasks.add(new Callable<String>() {
+				@Override
+				public String call() {
+					try {
+						solve(job);
+						Metrics.SHEETS_SOLVED.add(1);
+						return null;
+					}catch( Exception exp ) {
+						Metrics.SHEETS_FAILED.add(1);
+						String reason = exp.getMessage() != null ? exp.getMessage() : exp.toString();
+						err.println(job + ": " + reason);
+						return reason;
+					}
+				}
+			});
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		List<Future<String>> results;
+		try {
+			results = pool.invokeAll(tasks);
+		}finally{
+			pool.shutdown();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		List<String> failures = new ArrayList<String>();
+		for (int i = 0; i < results.size(); i++) {
+			String reason;
+			try {
+				reason = results.get(i).get();
+			}catch( Exception exp ) {
+				reason = exp.toString();
+			}
+			if (reason != null)
+				failures.add(jobs.get(i) + ": " + reason);
+		}
+
+		int solved = jobs.size() - failures.size();
+		out.println("Solved " + solved + " of " + jobs.size() + " sheets in " + String.format("%.3f", seconds) + "s ("
+				+ String.format("%.1f", seconds > 0 ? jobs.size() / seconds : 0) + " sheets/s) using " + threads + " threads.");
+		if (!failures.isEmpty()) {
+			out.println(failures.size() + " sheets failed:");
+			for (String failure : failures)
+				out.println("    " + failure);
+		}
+
+		return failures.size();
+	}
+}
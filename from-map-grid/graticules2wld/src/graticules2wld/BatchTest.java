@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+	/**
+	 * A sheet which fails keeps the world file it had, and leaves no temporary file behind. One which solves gets
+	 * a world file with the usual permissions
+	 */
+	@Test
+	public void test_failureKeepsWorldFile() throws Exception {
+		File dir = Files.createTempDirectory("batch").toFile();
+		File csv = new File(dir, "sheet.csv");
+		Files.write(csv.toPath(), "lonlat,dir,value,x1,y1,x2,y2\nlat,n,1,0,0,10,0\n".getBytes(StandardCharsets.UTF_8));
+		File wld = new File(dir, "sheet.wld");
+		Files.write(wld.toPath(), "good\n".getBytes(StandardCharsets.UTF_8));
+
+		PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+		int failures = Batch.run(Arrays.asList(new Batch.Job(csv, wld, 0, 0, 1)), 1, quiet, quiet);
+		assertEquals(1, failures);
+		assertEquals("good\n", new String(Files.readAllBytes(wld.toPath()), StandardCharsets.UTF_8));
+		assertEquals(2, dir.list().length);
+
+		Files.write(csv.toPath(), ServerTest.CSV.getBytes(StandardCharsets.UTF_8));
+		assertEquals(0, Batch.run(Arrays.asList(new Batch.Job(csv, wld, 1000, 2000, 20.1168)), 1, quiet, quiet));
+		PackedGraticules lon = new PackedGraticules(Graticule.LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(Graticule.LATLON.LAT);
+		GraticuleCsvReader.read(csv.toPath(), PackedGraticules.handler(lon, lat));
+		assertEquals(new Solver(1000, 2000, 20.1168).solve(lon, lat).worldFile.toString(), WorldFile.read(wld).toString());
+		assertEquals(2, dir.list().length);
+		// readable like any other new file, not owner only like a temp file
+		File other = Files.createFile(new File(dir, "other").toPath()).toFile();
+		assertEquals(Files.getPosixFilePermissions(other.toPath()), Files.getPosixFilePermissions(wld.toPath()));
+	}
+
+	/**
+	 * A directory gives its csvs and svgs, with the svg of a sheet which has both
+	 */
+	@Test
+	public void test_listDirectory() throws Exception {
+		File dir = Files.createTempDirectory("batch").toFile();
+		for (String name : new String[] {"a.csv", "b.svg", "c.csv", "c.svg", "notes.txt"})
+			assertTrue(new File(dir, name).createNewFile());
+		List<Batch.Job> jobs = Batch.listJobs(dir.getPath(), 0.0, 0.0, 1);
+		assertEquals(3, jobs.size());
+		assertEquals("a.csv", jobs.get(0).csv.getName());
+		assertEquals("b.svg", jobs.get(1).csv.getName());
+		assertEquals("c.svg", jobs.get(2).csv.getName());
+		assertEquals("c.wld", jobs.get(2).wld.getName());
+	}
+}
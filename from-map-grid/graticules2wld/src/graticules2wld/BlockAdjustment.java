@@ -0,0 +1,736 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Adjusts the world files of many sheets together, so that neighbouring sheets which trace the same graticules
+ * meet without a seam.
+ *
+ * Each sheet starts from the world file it is solved to on its own, and gets a full affine world file which stays
+ * as close to that one as it can at the end points of its graticules, by least squares. Where a LAT and a LON
+ * graticule cross, the crossing is at a known map point, and when another sheet has a crossing at the same map
+ * point (after each sheet's origin and units) the two make a tie: both world files should put it in the same
+ * place. The ties join the sheets into one sparse least squares system. Its normal equations have a 3x3 block
+ * for each sheet and one for each pair of sheets sharing ties, and as X and Y share no unknowns they are solved
+ * separately. Each is solved by conjugate gradients, preconditioned with the inverse of each sheet's own block
+ * and started from the sheets' own world files. Groups of sheets with no ties between them are separate
+ * systems, and are solved in parallel. A sheet with no ties keeps its own world file.
+ *
+ * Sheets are added one at a time and only their sums and crossings are kept, so tens of thousands of sheets
+ * take little memory.
+ */
+public final class BlockAdjustment {
+
+	public static final double DEFAULT_TIE_WEIGHT = 10;
+
+	// conjugate gradients stop once the residual is this fraction of where it started
+	static final double TOLERANCE = 1e-10;
+	static final int MAX_ITERATIONS = 1000;
+
+	// crossings are matched on their map coordinates rounded to this many meters
+	static final double TIE_RESOLUTION = 1e-3;
+
+	// the upper triangle of a sheet's 3x3 normal matrix, 00 01 02 11 12 22
+	private static final int NORMAL = 6;
+
+	/**
+	 * The adjusted world files, in the order their sheets were added.
+	 */
+	public static final class Result {
+		public final WorldFile[] worldFiles;
+		public final int components;
+		public final int largestComponent;
+		public final int ties;
+		public final int iterations; // the most taken by any component's X or Y system
+		public final double seamBefore; // rms distance in meters between the two sheets' positions of each tie
+		public final double seamAfter;
+
+		Result(WorldFile[] worldFiles, int components, int largestComponent, int ties, int iterations,
+				double seamBefore, double seamAfter) {
+			this.worldFiles = worldFiles;
+			this.components = components;
+			this.largestComponent = largestComponent;
+			this.ties = ties;
+			this.iterations = iterations;
+			this.seamBefore = seamBefore;
+			this.seamAfter = seamAfter;
+		}
+	}
+
+	/**
+	 * A map point, as a key for matching crossings between sheets.
+	 */
+	private static final class Point {
+		final long x;
+		final long y;
+
+		Point(double x, double y) {
+			this.x = Math.round(x / TIE_RESOLUTION);
+			this.y = Math.round(y / TIE_RESOLUTION);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = x * 0x9E3779B97F4A7C15L + y;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+
+	/**
+	 * Where a crossing was first seen.
+	 */
+	private static final class Crossing {
+		final int sheet;
+		final double x;
+		final double y;
+
+		Crossing(int sheet, double x, double y) {
+			this.sheet = sheet;
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	private final double tieWeight;
+
+	private int sheets;
+	private String[] ids = new String[16];
+	// cx, cy, scale of each sheet, its pixels are centred and scaled so the normals are well conditioned
+	private double[] frames = new double[3 * 16];
+	// for each sheet the normals of its own graticules' end points, LON (X) then LAT (Y)
+	private double[] normals = new double[2 * NORMAL * 16];
+	// for each sheet its own world file
+	private WorldFile[] starts = new WorldFile[16];
+
+	private int ties;
+	private int[] tieSheets = new int[2 * 16];
+	private double[] tiePixels = new double[4 * 16];
+
+	private final Map<Point, Crossing> crossings = new HashMap<Point, Crossing>();
+
+	/**
+	 * @param tieWeight the weight of each tie against that of each graticule end point
+	 */
+	public BlockAdjustment(double tieWeight) {
+		this.tieWeight = tieWeight;
+	}
+
+	public int size() {
+		return sheets;
+	}
+
+	public int ties() {
+		return ties;
+	}
+
+	/**
+	 * Adds a sheet, starting from the world file the Solver gives it on its own.
+	 * @param originEasting x component of projected coordinates of the graticules' zero
+	 * @param originNorthing y component of projected coordinates of the graticules' zero
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 * @return the sheet's number, its index in Result.worldFiles
+	 * @throws IllegalArgumentException if there are less than two LAT or two LON graticules, or they don't fix
+	 * an affine world file
+	 */
+	public int add(String id, PackedGraticules lonGrats, PackedGraticules latGrats,
+			double originEasting, double originNorthing, double unitsToMeters) {
+		WorldFile start = new Solver(originEasting, originNorthing, unitsToMeters).solve(lonGrats, latGrats, false).worldFile;
+		return add(id, lonGrats, latGrats, originEasting, originNorthing, unitsToMeters, start);
+	}
+
+	/**
+	 * Adds a sheet.
+	 * @param originEasting x component of projected coordinates of the graticules' zero
+	 * @param originNorthing y component of projected coordinates of the graticules' zero
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 * @param start the sheet's world file on its own, which it keeps unless it has ties
+	 * @return the sheet's number, its index in Result.worldFiles
+	 * @throws IllegalArgumentException if there are less than two LAT or two LON graticules, or they don't fix
+	 * an affine world file
+	 */
+	public int add(String id, PackedGraticules lonGrats, PackedGraticules latGrats,
+			double originEasting, double originNorthing, double unitsToMeters, WorldFile start) {
+		if (latGrats.size() < 2 || lonGrats.size() < 2)
+			throw new IllegalArgumentException("You need at least two LAT and two LON graticules for creation of a world file, found "
+					+ latGrats.size() + " LAT and " + lonGrats.size() + " LON.");
+
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (PackedGraticules grats : new PackedGraticules[] {lonGrats, latGrats}) {
+			for (int i = 0; i < grats.size(); i++) {
+				minX = Math.min(minX, Math.min(grats.x1[i], grats.x2[i]));
+				maxX = Math.max(maxX, Math.max(grats.x1[i], grats.x2[i]));
+				minY = Math.min(minY, Math.min(grats.y1[i], grats.y2[i]));
+				maxY = Math.max(maxY, Math.max(grats.y1[i], grats.y2[i]));
+			}
+		}
+		double cx = (minX + maxX) / 2, cy = (minY + maxY) / 2;
+		double scale = Math.max(1, Math.max(maxX - minX, maxY - minY) / 2);
+
+		double[] sums = new double[2 * NORMAL];
+		observe(lonGrats, cx, cy, scale, sums, 0);
+		observe(latGrats, cx, cy, scale, sums, NORMAL);
+		double[] inverse = new double[6];
+		if (!invert(sums, 0, inverse, 0) || !invert(sums, NORMAL, inverse, 0))
+			throw new IllegalArgumentException("The graticules' end points all lie on one line, so can't fix a world file.");
+
+		int sheet = sheets++;
+		if (sheets > ids.length) {
+			ids = Arrays.copyOf(ids, 2 * sheets);
+			frames = Arrays.copyOf(frames, 3 * 2 * sheets);
+			normals = Arrays.copyOf(normals, 2 * NORMAL * 2 * sheets);
+			starts = Arrays.copyOf(starts, 2 * sheets);
+		}
+		ids[sheet] = id;
+		frames[3 * sheet] = cx;
+		frames[3 * sheet + 1] = cy;
+		frames[3 * sheet + 2] = scale;
+		System.arraycopy(sums, 0, normals, 2 * NORMAL * sheet, 2 * NORMAL);
+		starts[sheet] = start;
+
+		// tie each crossing to the first sheet it was seen on
+		double[] p = new double[2];
+		for (int i = 0; i < latGrats.size(); i++) {
+			double mapY = originNorthing + latGrats.getValue(i) * unitsToMeters;
+			for (int j = 0; j < lonGrats.size(); j++) {
+				if (!GcpGenerator.intersection(latGrats.x1[i], latGrats.y1[i], latGrats.x2[i], latGrats.y2[i],
+						lonGrats.x1[j], lonGrats.y1[j], lonGrats.x2[j], lonGrats.y2[j], p))
+					continue;
+				Point key = new Point(originEasting + lonGrats.getValue(j) * unitsToMeters, mapY);
+				Crossing first = crossings.get(key);
+				if (first == null)
+					crossings.put(key, new Crossing(sheet, p[0], p[1]));
+				else if (first.sheet != sheet)
+					tie(first.sheet, first.x, first.y, sheet, p[0], p[1]);
+			}
+		}
+		return sheet;
+	}
+
+	/**
+	 * Adds the end points of grats, where the sheet's world file is held to its start, to the normals at
+	 * sums[off].
+	 */
+	private static void observe(PackedGraticules grats, double cx, double cy, double scale, double[] sums, int off) {
+		for (int i = 0; i < grats.size(); i++) {
+			double u = (grats.x1[i] - cx) / scale, v = (grats.y1[i] - cy) / scale;
+			addOuter(sums, off, 1, u, v, 1, u, v, 1);
+			u = (grats.x2[i] - cx) / scale;
+			v = (grats.y2[i] - cy) / scale;
+			addOuter(sums, off, 1, u, v, 1, u, v, 1);
+		}
+	}
+
+	/**
+	 * Records that pixel x1,y1 of sheet1 and x2,y2 of sheet2 are the same map point.
+	 */
+	private void tie(int sheet1, double x1, double y1, int sheet2, double x2, double y2) {
+		if (ties == tieSheets.length / 2) {
+			tieSheets = Arrays.copyOf(tieSheets, 4 * ties);
+			tiePixels = Arrays.copyOf(tiePixels, 8 * ties);
+		}
+		tieSheets[2 * ties] = sheet1;
+		tieSheets[2 * ties + 1] = sheet2;
+		tiePixels[4 * ties] = x1;
+		tiePixels[4 * ties + 1] = y1;
+		tiePixels[4 * ties + 2] = x2;
+		tiePixels[4 * ties + 3] = y2;
+		ties++;
+	}
+
+	/**
+	 * Fills a with the row for pixel x,y of sheet, in the sheet's frame.
+	 */
+	private void row(int sheet, double x, double y, double[] a, int off) {
+		double scale = frames[3 * sheet + 2];
+		a[off] = (x - frames[3 * sheet]) / scale;
+		a[off + 1] = (y - frames[3 * sheet + 1]) / scale;
+		a[off + 2] = 1;
+	}
+
+	/**
+	 * Solves all the sheets added so far.
+	 * @param threads the number of worker threads
+	 */
+	public Result solve(int threads) throws InterruptedException {
+		final int n = sheets;
+
+		// the connected components of the sheets joined by ties
+		int[] parent = new int[n];
+		for (int i = 0; i < n; i++)
+			parent[i] = i;
+		for (int t = 0; t < ties; t++) {
+			int a = find(parent, tieSheets[2 * t]), b = find(parent, tieSheets[2 * t + 1]);
+			if (a != b)
+				parent[Math.max(a, b)] = Math.min(a, b);
+		}
+		final int[] component = new int[n];
+		int components = 0;
+		for (int i = 0; i < n; i++)
+			component[i] = find(parent, i) == i ? components++ : component[find(parent, i)];
+		final int[] memberStart = new int[components + 1];
+		final int[] members = group(component, n, components, memberStart);
+		int largest = 0;
+		for (int c = 0; c < components; c++)
+			largest = Math.max(largest, memberStart[c + 1] - memberStart[c]);
+
+		// the ties' part of the normals, a block on each sheet's diagonal and one for each pair of sheets
+		final double[] tieDiagonal = new double[6 * n];
+		Map<Long, Integer> pairs = new HashMap<Long, Integer>();
+		int[] pairSheets = new int[16];
+		double[] pairBlocks = new double[9 * 8];
+		double[] a = new double[6];
+		for (int t = 0; t < ties; t++) {
+			int s1 = tieSheets[2 * t], s2 = tieSheets[2 * t + 1];
+			if (s1 > s2) {
+				row(s2, tiePixels[4 * t + 2], tiePixels[4 * t + 3], a, 0);
+				row(s1, tiePixels[4 * t], tiePixels[4 * t + 1], a, 3);
+				int swap = s1;
+				s1 = s2;
+				s2 = swap;
+			}else{
+				row(s1, tiePixels[4 * t], tiePixels[4 * t + 1], a, 0);
+				row(s2, tiePixels[4 * t + 2], tiePixels[4 * t + 3], a, 3);
+			}
+			addOuter(tieDiagonal, 6 * s1, tieWeight, a[0], a[1], a[2], a[0], a[1], a[2]);
+			addOuter(tieDiagonal, 6 * s2, tieWeight, a[3], a[4], a[5], a[3], a[4], a[5]);
+
+			Long key = ((long) s1 << 32) | s2;
+			Integer pair = pairs.get(key);
+			if (pair == null) {
+				pair = pairs.size();
+				pairs.put(key, pair);
+				if (2 * pair == pairSheets.length) {
+					pairSheets = Arrays.copyOf(pairSheets, 4 * pair);
+					pairBlocks = Arrays.copyOf(pairBlocks, 18 * pair);
+				}
+				pairSheets[2 * pair] = s1;
+				pairSheets[2 * pair + 1] = s2;
+			}
+			for (int i = 0; i < 3; i++)
+				for (int j = 0; j < 3; j++)
+					pairBlocks[9 * pair + 3 * i + j] -= tieWeight * a[i] * a[3 + j];
+		}
+		final int[] edgeSheets = pairSheets;
+		final double[] edgeBlocks = pairBlocks;
+		int[] edgeComponent = new int[pairs.size()];
+		for (int e = 0; e < edgeComponent.length; e++)
+			edgeComponent[e] = component[edgeSheets[2 * e]];
+		final int[] edgeStart = new int[components + 1];
+		final int[] edges = group(edgeComponent, edgeComponent.length, components, edgeStart);
+
+		// each sheet's own world file, and the preconditioner, the inverse of each sheet's diagonal block
+		final double[][] params = new double[2][3 * n];
+		final double[][] preconditioner = new double[2][6 * n];
+		double[] block = new double[6];
+		for (int i = 0; i < n; i++) {
+			double cx = frames[3 * i], cy = frames[3 * i + 1], scale = frames[3 * i + 2];
+			WorldFile start = starts[i];
+			params[0][3 * i] = start.A * scale;
+			params[0][3 * i + 1] = start.B * scale;
+			params[0][3 * i + 2] = start.C + start.A * cx + start.B * cy;
+			params[1][3 * i] = start.D * scale;
+			params[1][3 * i + 1] = start.E * scale;
+			params[1][3 * i + 2] = start.F + start.D * cx + start.E * cy;
+		}
+		for (int axis = 0; axis < 2; axis++) {
+			for (int i = 0; i < n; i++) {
+				int off = (2 * i + axis) * NORMAL;
+
+				for (int k = 0; k < 6; k++)
+					block[k] = normals[off + k] + tieDiagonal[6 * i + k];
+				if (!invert(block, 0, preconditioner[axis], 6 * i))
+					throw new IllegalStateException("Sheet " + ids[i] + " has a singular block.");
+			}
+		}
+		double seamBefore = seam(params);
+
+		final double[] r = new double[3 * n], z = new double[3 * n], p = new double[3 * n], q = new double[3 * n];
+		final double[] delta = new double[3 * n];
+
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(components);
+		for (int c = 0; c < components; c++) {
+			final int from = memberStart[c], to = memberStart[c + 1];
+			final int edgeFrom = edgeStart[c], edgeTo = edgeStart[c + 1];
+			if (edgeFrom == edgeTo)
+				continue; // a sheet on its own is already solved
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					int iterations = 0;
+					for (int axis = 0; axis < 2; axis++) {
+						Component system = new Component(members, from, to, edges, edgeFrom, edgeTo,
+								edgeSheets, edgeBlocks, tieDiagonal, axis);
+						iterations = Math.max(iterations, system.solve(params[axis], preconditioner[axis], r, z, p, q, delta));
+					}
+					return iterations;
+				}
+			});
+		}
+
+		int iterations = 0;
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			for (Future<Integer> result : pool.invokeAll(tasks)) {
+				try {
+					iterations = Math.max(iterations, result.get());
+				}catch( Exception exp ) {
+					throw new IllegalStateException(exp.getCause());
+				}
+			}
+		}finally{
+			pool.shutdown();
+		}
+
+		WorldFile[] worldFiles = new WorldFile[n];
+		for (int i = 0; i < n; i++) {
+			if (edgeStart[component[i]] == edgeStart[component[i] + 1]) {
+				worldFiles[i] = starts[i]; // not moved
+				continue;
+			}
+			double cx = frames[3 * i], cy = frames[3 * i + 1], scale = frames[3 * i + 2];
+			double[] x = params[0], y = params[1];
+			double A = x[3 * i] / scale, B = x[3 * i + 1] / scale;
+			double D = y[3 * i] / scale, E = y[3 * i + 1] / scale;
+			worldFiles[i] = new WorldFile(A, D, B, E, x[3 * i + 2] - A * cx - B * cy, y[3 * i + 2] - D * cx - E * cy);
+		}
+
+		return new Result(worldFiles, components, largest, ties, iterations, seamBefore, seam(params));
+	}
+
+	/**
+	 * The system of one component and one axis, over the shared vectors, which are only touched at this
+	 * component's sheets.
+	 */
+	private final class Component {
+		final int[] members;
+		final int from, to;
+		final int[] edges;
+		final int edgeFrom, edgeTo;
+		final int[] edgeSheets;
+		final double[] edgeBlocks;
+		final double[] tieDiagonal;
+		final int axis;
+
+		Component(int[] members, int from, int to, int[] edges, int edgeFrom, int edgeTo,
+				int[] edgeSheets, double[] edgeBlocks, double[] tieDiagonal, int axis) {
+			this.members = members;
+			this.from = from;
+			this.to = to;
+			this.edges = edges;
+			this.edgeFrom = edgeFrom;
+			this.edgeTo = edgeTo;
+			this.edgeSheets = edgeSheets;
+			this.edgeBlocks = edgeBlocks;
+			this.tieDiagonal = tieDiagonal;
+			this.axis = axis;
+		}
+
+		/**
+		 * out = N in, or only the ties' part of N.
+		 */
+		void multiply(double[] in, double[] out, boolean observations) {
+			for (int m = from; m < to; m++) {
+				int i = members[m];
+				BlockAdjustment.multiply(tieDiagonal, 6 * i, in, 3 * i, out, 3 * i, false);
+				if (observations)
+					BlockAdjustment.multiply(normals, (2 * i + axis) * NORMAL, in, 3 * i, out, 3 * i, true);
+			}
+			for (int k = edgeFrom; k < edgeTo; k++) {
+				int e = edges[k];
+				int s1 = 3 * edgeSheets[2 * e], s2 = 3 * edgeSheets[2 * e + 1];
+				for (int i = 0; i < 3; i++) {
+					for (int j = 0; j < 3; j++) {
+						double b = edgeBlocks[9 * e + 3 * i + j];
+						out[s1 + i] += b * in[s2 + j];
+						out[s2 + j] += b * in[s1 + i];
+					}
+				}
+			}
+		}
+
+		double dot(double[] u, double[] v) {
+			double sum = 0;
+			for (int m = from; m < to; m++) {
+				int i = 3 * members[m];
+				sum += u[i] * v[i] + u[i + 1] * v[i + 1] + u[i + 2] * v[i + 2];
+			}
+			return sum;
+		}
+
+		void precondition(double[] preconditioner, double[] in, double[] out) {
+			for (int m = from; m < to; m++) {
+				int i = members[m];
+				BlockAdjustment.multiply(preconditioner, 6 * i, in, 3 * i, out, 3 * i, false);
+			}
+		}
+
+		/**
+		 * Moves x, each sheet's own world file, to the solution of the whole system.
+		 * @return the number of iterations taken
+		 */
+		int solve(double[] x, double[] preconditioner, double[] r, double[] z, double[] p, double[] q, double[] delta) {
+			// x is where the observations hold each sheet, so what is left is the ties' residual, solved for a
+			// correction to x from zero
+			multiply(x, r, false);
+			for (int m = from; m < to; m++) {
+				int i = 3 * members[m];
+				for (int k = i; k < i + 3; k++) {
+					r[k] = -r[k];
+					delta[k] = 0;
+				}
+			}
+
+			double stop = TOLERANCE * TOLERANCE * dot(r, r);
+			precondition(preconditioner, r, z);
+			copy(z, p);
+			double rz = dot(r, z);
+			int iterations = 0;
+			while (iterations < MAX_ITERATIONS && dot(r, r) > stop && rz > 0) {
+				multiply(p, q, true);
+				double alpha = rz / dot(p, q);
+				for (int m = from; m < to; m++) {
+					int i = 3 * members[m];
+					for (int k = i; k < i + 3; k++) {
+						delta[k] += alpha * p[k];
+						r[k] -= alpha * q[k];
+					}
+				}
+				precondition(preconditioner, r, z);
+				double rzNext = dot(r, z);
+				double beta = rzNext / rz;
+				rz = rzNext;
+				for (int m = from; m < to; m++) {
+					int i = 3 * members[m];
+					for (int k = i; k < i + 3; k++)
+						p[k] = z[k] + beta * p[k];
+				}
+				iterations++;
+			}
+
+			for (int m = from; m < to; m++) {
+				int i = 3 * members[m];
+				for (int k = i; k < i + 3; k++)
+					x[k] += delta[k];
+			}
+			return iterations;
+		}
+
+		private void copy(double[] from, double[] to) {
+			for (int m = this.from; m < this.to; m++) {
+				int i = 3 * members[m];
+				System.arraycopy(from, i, to, i, 3);
+			}
+		}
+	}
+
+	/**
+	 * @return the rms distance in meters between the two sheets' positions of each tie
+	 */
+	private double seam(double[][] params) {
+		if (ties == 0)
+			return 0;
+		double[] a = new double[6];
+		double sum = 0;
+		for (int t = 0; t < ties; t++) {
+			int s1 = tieSheets[2 * t], s2 = tieSheets[2 * t + 1];
+			row(s1, tiePixels[4 * t], tiePixels[4 * t + 1], a, 0);
+			row(s2, tiePixels[4 * t + 2], tiePixels[4 * t + 3], a, 3);
+			for (double[] x : params) {
+				double d = a[0] * x[3 * s1] + a[1] * x[3 * s1 + 1] + a[2] * x[3 * s1 + 2]
+						- a[3] * x[3 * s2] - a[4] * x[3 * s2 + 1] - a[5] * x[3 * s2 + 2];
+				sum += d * d;
+			}
+		}
+		return Math.sqrt(sum / ties);
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	/**
+	 * Counting sorts 0..n-1 by group.
+	 * @param start gets where each group starts in the result, and groups at the end
+	 */
+	private static int[] group(int[] groupOf, int n, int groups, int[] start) {
+		for (int i = 0; i < n; i++)
+			start[groupOf[i] + 1]++;
+		for (int g = 0; g < groups; g++)
+			start[g + 1] += start[g];
+		int[] next = Arrays.copyOf(start, groups);
+		int[] sorted = new int[n];
+		for (int i = 0; i < n; i++)
+			sorted[next[groupOf[i]]++] = i;
+		return sorted;
+	}
+
+	/**
+	 * Adds w a b^T, for a b^T symmetric, to the upper triangle at sym[off].
+	 */
+	private static void addOuter(double[] sym, int off, double w, double a0, double a1, double a2,
+			double b0, double b1, double b2) {
+		sym[off] += w * a0 * b0;
+		sym[off + 1] += w * a0 * b1;
+		sym[off + 2] += w * a0 * b2;
+		sym[off + 3] += w * a1 * b1;
+		sym[off + 4] += w * a1 * b2;
+		sym[off + 5] += w * a2 * b2;
+	}
+
+	/**
+	 * out = sym in, or out += sym in.
+	 */
+	private static void multiply(double[] sym, int off, double[] in, int inOff, double[] out, int outOff, boolean add) {
+		double x = in[inOff], y = in[inOff + 1], z = in[inOff + 2];
+		double a = sym[off] * x + sym[off + 1] * y + sym[off + 2] * z;
+		double b = sym[off + 1] * x + sym[off + 3] * y + sym[off + 4] * z;
+		double c = sym[off + 2] * x + sym[off + 4] * y + sym[off + 5] * z;
+		if (add) {
+			out[outOff] += a;
+			out[outOff + 1] += b;
+			out[outOff + 2] += c;
+		}else{
+			out[outOff] = a;
+			out[outOff + 1] = b;
+			out[outOff + 2] = c;
+		}
+	}
+
+	/**
+	 * Inverts the symmetric 3x3 at sym[off] into out[outOff].
+	 * @return false if it is singular
+	 */
+	private static boolean invert(double[] sym, int off, double[] out, int outOff) {
+		double a = sym[off], b = sym[off + 1], c = sym[off + 2], d = sym[off + 3], e = sym[off + 4], f = sym[off + 5];
+		double c00 = d * f - e * e, c01 = c * e - b * f, c02 = b * e - c * d;
+		double c11 = a * f - c * c, c12 = b * c - a * e, c22 = a * d - b * b;
+		double det = a * c00 + b * c01 + c * c02;
+		double trace = a + d + f;
+		if (!(Math.abs(det) > 1e-12 * trace * trace * trace))
+			return false;
+		out[outOff] = c00 / det;
+		out[outOff + 1] = c01 / det;
+		out[outOff + 2] = c02 / det;
+		out[outOff + 3] = c11 / det;
+		out[outOff + 4] = c12 / det;
+		out[outOff + 5] = c22 / det;
+		return true;
+	}
+
+	/**
+	 * Adjusts the sheets of a batch together and writes their world files. Each sheet starts from the world file
+	 * it is solved to without --adjust, which it keeps if it has no ties. World files are written to a temporary
+	 * file and moved into place. Sheets which can't be read or solved are reported to err and left out.
+	 * @param jobs the sheets, each with its own origin and units
+	 * @param tieWeight the weight of each tie against that of each graticule end point
+	 * @param threads the number of worker threads
+	 * @param out where the summary is printed
+	 * @param err where failures are reported as they happen
+	 * @return the number of sheets which failed
+	 */
+	public static int run(List<Batch.Job> jobs, double tieWeight, int threads, PrintStream out, PrintStream err)
+			throws InterruptedException {
+		long start = System.nanoTime();
+
+		BlockAdjustment adjustment = new BlockAdjustment(tieWeight);
+		List<Batch.Job> added = new ArrayList<Batch.Job>(jobs.size());
+		List<String> failures = new ArrayList<String>();
+		for (Batch.Job job : jobs) {
+			try {
+				PackedGraticules lonGrats = new PackedGraticules(Graticule.LATLON.LON);
+				PackedGraticules latGrats = new PackedGraticules(Graticule.LATLON.LAT);
+				Main.read(job.csv, PackedGraticules.handler(lonGrats, latGrats));
+				WorldFile own = Main.solve(job.toString(), lonGrats, latGrats, job.originEasting, job.originNorthing, job.unitsToMeters);
+				adjustment.add(job.toString(), lonGrats, latGrats, job.originEasting, job.originNorthing, job.unitsToMeters, own);
+				added.add(job);
+			}catch( Exception exp ) {
+				String failure = job + ": " + (exp.getMessage() != null ? exp.getMessage() : exp.toString());
+				err.println(failure);
+				failures.add(failure);
+			}
+		}
+
+		Result result = adjustment.solve(threads);
+
+		for (int i = 0; i < added.size(); i++) {
+			Batch.Job job = added.get(i);
+			try {
+				AtomicFile wld = new AtomicFile(job.wld.toPath());
+				try {
+					Writer wldWriter = Files.newBufferedWriter(wld.temp());
+					try {
+						result.worldFiles[i].write(wldWriter);
+					}finally{
+						wldWriter.close();
+					}
+					wld.commit();
+				}finally{
+					wld.close();
+				}
+				Metrics.SHEETS_SOLVED.add(1);
+			}catch( Exception exp ) {
+				String failure = job + ": " + (exp.getMessage() != null ? exp.getMessage() : exp.toString());
+				err.println(failure);
+				failures.add(failure);
+			}
+		}
+		Metrics.SHEETS_FAILED.add(failures.size());
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		out.println("Adjusted " + (jobs.size() - failures.size()) + " of " + jobs.size() + " sheets in "
+				+ String.format("%.3f", seconds) + "s using " + threads + " threads.");
+		out.println(result.ties + " ties joined the sheets into " + result.components + " groups, the largest of "
+				+ result.largestComponent + " sheets, solved in at most " + result.iterations + " iterations.");
+		out.println(String.format("rms seam at the ties %.4fm before adjustment, %.4fm after.", result.seamBefore, result.seamAfter));
+		if (!failures.isEmpty()) {
+			out.println(failures.size() + " sheets failed:");
+			for (String failure : failures)
+				out.println("    " + failure);
+		}
+
+		return failures.size();
+	}
+}
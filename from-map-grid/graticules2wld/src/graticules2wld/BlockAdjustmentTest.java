@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.QRDecompositionImpl;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BlockAdjustmentTest {
+
+	/**
+	 * The true world file of sheet i,j of a block of 1000 unit sheets which overlap their neighbours by 100
+	 */
+	static WorldFile truth(int i, int j) {
+		double s = 1 + 0.01 * i, r = 0.01 * (i - j);
+		return new WorldFile(s * Math.cos(r), -s * Math.sin(r), -s * Math.sin(r), -s * Math.cos(r), 900 * i, -900 * j);
+	}
+
+	/**
+	 * Traces a graticule every 100 units across sheet i,j, moving each end point by noise pixels
+	 */
+	static void trace(int i, int j, double noise, Random random, PackedGraticules lon, PackedGraticules lat) throws Exception {
+		AffineTransform toPixel = truth(i, j).getTransform().createInverse();
+		double left = 900 * i, top = -900 * j;
+		for (int v = 0; v <= 1000; v += 100) {
+			Point2D a = toPixel.transform(new Point2D.Double(left + v, top + 10), null);
+			Point2D b = toPixel.transform(new Point2D.Double(left + v, top - 1010), null);
+			lon.add((int) left + v, a.getX() + noise * random.nextGaussian(), a.getY() + noise * random.nextGaussian(),
+					b.getX() + noise * random.nextGaussian(), b.getY() + noise * random.nextGaussian());
+
+			a = toPixel.transform(new Point2D.Double(left - 10, top - v), null);
+			b = toPixel.transform(new Point2D.Double(left + 1010, top - v), null);
+			lat.add((int) top - v, a.getX() + noise * random.nextGaussian(), a.getY() + noise * random.nextGaussian(),
+					b.getX() + noise * random.nextGaussian(), b.getY() + noise * random.nextGaussian());
+		}
+	}
+
+	static List<PackedGraticules[]> block(int columns, int rows, double noise) throws Exception {
+		Random random = new Random(7);
+		List<PackedGraticules[]> sheets = new ArrayList<PackedGraticules[]>();
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < columns; i++) {
+				PackedGraticules lon = new PackedGraticules(LATLON.LON);
+				PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+				trace(i, j, noise, random, lon, lat);
+				sheets.add(new PackedGraticules[] {lon, lat});
+			}
+		}
+		return sheets;
+	}
+
+	static BlockAdjustment adjustment(List<PackedGraticules[]> sheets, double tieWeight) {
+		BlockAdjustment adjustment = new BlockAdjustment(tieWeight);
+		for (int s = 0; s < sheets.size(); s++)
+			adjustment.add("sheet" + s, sheets.get(s)[0], sheets.get(s)[1], 0, 0, 1);
+		return adjustment;
+	}
+
+	/**
+	 * Perfectly traced sheets give back their own world files, with no seams to close
+	 */
+	@Test
+	public void test_perfectTracing() throws Exception {
+		BlockAdjustment.Result result = adjustment(block(3, 3, 0), BlockAdjustment.DEFAULT_TIE_WEIGHT).solve(2);
+		assertEquals(1, result.components);
+		assertEquals(9, result.largestComponent);
+		// neighbours share two LON or two LAT graticules, so 22 crossings, for each of the 12 pairs. The 4
+		// crossings in each of the 4 inner corners are on 4 sheets, and are tied to the first with 3 ties not 4
+		assertEquals(12 * 22 - 4 * 4, result.ties);
+		assertEquals(0, result.seamAfter, 1e-6);
+		for (int j = 0; j < 3; j++)
+			for (int i = 0; i < 3; i++)
+				IncrementalSolverTest.assertWorldFileEquals(truth(i, j), result.worldFiles[3 * j + i], 1e-6);
+	}
+
+	/**
+	 * The conjugate gradient solution is the least squares solution of the whole block, found here directly by
+	 * QR with a column for each world file term of each sheet. Each sheet's end points are held to where the
+	 * Solver's world file for the sheet puts them
+	 */
+	@Test
+	public void test_matchesDirectSolve() throws Exception {
+		List<PackedGraticules[]> sheets = block(3, 2, 1.5);
+		double w = 4;
+		BlockAdjustment.Result result = adjustment(sheets, w).solve(3);
+		// the crossings themselves are traced with noise, so the seams can only close so far
+		assertTrue(result.seamAfter < result.seamBefore);
+		assertTrue(adjustment(sheets, 100 * w).solve(1).seamAfter < result.seamAfter);
+
+		List<double[]> rows = new ArrayList<double[]>();
+		List<Double> values = new ArrayList<Double>();
+		Map<String, double[]> crossings = new HashMap<String, double[]>();
+		int unknowns = 6 * sheets.size();
+		double[] p = new double[2];
+		for (int s = 0; s < sheets.size(); s++) {
+			PackedGraticules lon = sheets.get(s)[0], lat = sheets.get(s)[1];
+			WorldFile own = new Solver(0, 0, 1).solve(lon, lat).worldFile;
+			for (PackedGraticules grats : sheets.get(s)) {
+				int col = 6 * s + (grats == lon ? 0 : 3);
+				for (int g = 0; g < grats.size(); g++) {
+					for (int end = 0; end < 2; end++) {
+						double[] row = new double[unknowns];
+						row[col] = end == 0 ? grats.x1[g] : grats.x2[g];
+						row[col + 1] = end == 0 ? grats.y1[g] : grats.y2[g];
+						row[col + 2] = 1;
+						rows.add(row);
+						values.add(grats == lon ? own.A * row[col] + own.B * row[col + 1] + own.C
+								: own.D * row[col] + own.E * row[col + 1] + own.F);
+					}
+				}
+			}
+			for (int a = 0; a < lat.size(); a++) {
+				for (int b = 0; b < lon.size(); b++) {
+					if (!GcpGenerator.intersection(lat.x1[a], lat.y1[a], lat.x2[a], lat.y2[a],
+							lon.x1[b], lon.y1[b], lon.x2[b], lon.y2[b], p))
+						continue;
+					String key = lon.getValue(b) + "," + lat.getValue(a);
+					double[] first = crossings.get(key);
+					if (first == null) {
+						crossings.put(key, new double[] {s, p[0], p[1]});
+						continue;
+					}
+					for (int axis = 0; axis < 6; axis += 3) {
+						double[] row = new double[unknowns];
+						int c1 = 6 * (int) first[0] + axis, c2 = 6 * s + axis;
+						row[c1] = Math.sqrt(w) * first[1];
+						row[c1 + 1] = Math.sqrt(w) * first[2];
+						row[c1 + 2] = Math.sqrt(w);
+						row[c2] = -Math.sqrt(w) * p[0];
+						row[c2 + 1] = -Math.sqrt(w) * p[1];
+						row[c2 + 2] = -Math.sqrt(w);
+						rows.add(row);
+						values.add(0.0);
+					}
+				}
+			}
+		}
+		double[] b = new double[values.size()];
+		for (int r = 0; r < b.length; r++)
+			b[r] = values.get(r);
+		double[] x = new QRDecompositionImpl(new Array2DRowRealMatrix(rows.toArray(new double[0][]), false))
+				.getSolver().solve(b);
+
+		for (int s = 0; s < sheets.size(); s++) {
+			WorldFile expected = new WorldFile(x[6 * s], x[6 * s + 3], x[6 * s + 1], x[6 * s + 4], x[6 * s + 2], x[6 * s + 5]);
+			IncrementalSolverTest.assertWorldFileEquals(expected, result.worldFiles[s], 1e-6);
+		}
+	}
+
+	/**
+	 * Sheets with no crossings in common are solved as separate groups, and without ties each sheet keeps the
+	 * world file it has on its own
+	 */
+	@Test
+	public void test_components() throws Exception {
+		List<PackedGraticules[]> left = block(2, 1, 1);
+		BlockAdjustment adjustment = adjustment(left, 1);
+		// the same two sheets again, far to the east
+		for (PackedGraticules[] sheet : block(2, 1, 1))
+			adjustment.add("east", sheet[0], sheet[1], 1e6, 0, 1);
+		BlockAdjustment.Result result = adjustment.solve(2);
+		assertEquals(2, result.components);
+		assertEquals(2, result.largestComponent);
+		assertEquals(2 * 22, result.ties);
+		for (int s = 0; s < 2; s++) {
+			assertEquals(result.worldFiles[s].A, result.worldFiles[s + 2].A, 1e-9);
+			assertEquals(result.worldFiles[s].C + 1e6, result.worldFiles[s + 2].C, 1e-6);
+		}
+
+		BlockAdjustment.Result untied = adjustment(left, 0).solve(1);
+		assertEquals(untied.seamBefore, untied.seamAfter, 0);
+		assertEquals(0, untied.iterations);
+	}
+
+	/**
+	 * A sheet with no ties keeps the world file the Solver gives it, not a fit of its end points
+	 */
+	@Test
+	public void test_untiedKeepsSolver() throws Exception {
+		List<PackedGraticules[]> sheets = block(2, 1, 2);
+		BlockAdjustment adjustment = adjustment(sheets, 1);
+		PackedGraticules[] far = block(1, 1, 3).get(0);
+		int alone = adjustment.add("far", far[0], far[1], 1e6, 0, 1);
+		BlockAdjustment.Result result = adjustment.solve(1);
+		assertEquals(2, result.components);
+		assertEquals(new Solver(1e6, 0, 1).solve(far[0], far[1]).worldFile.toString(), result.worldFiles[alone].toString());
+		// the tied sheets are moved from theirs
+		assertFalse(new Solver(0, 0, 1).solve(sheets.get(0)[0], sheets.get(0)[1]).worldFile.toString()
+				.equals(result.worldFiles[0].toString()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_tooFewGraticules() {
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		lon.add(0, 0, 0, 0, 100);
+		lat.add(0, 0, 0, 100, 0);
+		lat.add(10, 0, 10, 100, 10);
+		new BlockAdjustment(1).add("sheet", lon, lat, 0, 0, 1);
+	}
+}
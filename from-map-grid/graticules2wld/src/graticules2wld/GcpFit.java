@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Fits a world file straight to the ground control points of a .points file, as made by GcpGenerator,
+ * svg-coord2gcps.pl or the QGIS georeferencer,
+
+mapX,mapY,pixelX,pixelY,enable
+335100.0,6254870.0,216.58816,484.36838,1
+335200.0,6254870.0,496.32155,474.26515,1,0.5
+
+ * with an optional sixth column weighting each point. Points with enable 0 are skipped. QGIS writes pixelY
+ * negated, so when every pixelY is zero or less they are taken to be negated rows. gdal_translate -gcp (which
+ * gcp2gdalscript.pl passes them to) and the georeferencer read pixel coordinates as pixel corners, so 0,0 is
+ * the upper left corner of the upper left pixel, and so they are read the same way here unless the points are
+ * said to be of pixel centers, as in the rest of graticules2wld. Either way C and F are of the center of the
+ * upper left pixel, as a world file's always are.
+ *
+ * The six terms are found by weighted least squares, mapX and mapY each a plane over pixelX and pixelY. The
+ * file is read once, updating running means and co-moments of the points as it goes (the one pass form of
+ * the normal equations, which doesn't lose precision to map coordinates in the millions), so only a handful of
+ * numbers are held however many points there are. Listing each point's residual takes a second pass.
+ */
+public final class GcpFit {
+
+	public static final String RESIDUALS_HEADER = "line,mapX,mapY,pixelX,pixelY,dx,dy,residual";
+
+	/**
+	 * Running weighted means and co-moments of the points added so far.
+	 */
+	static final class Accumulator {
+		long count;
+		double weight;
+		double minPixelY = Double.POSITIVE_INFINITY, maxPixelY = Double.NEGATIVE_INFINITY;
+
+		// means
+		double px, py, mx, my;
+		// co-moments, the weighted sums of products of the differences from the means
+		double pxpx, pxpy, pypy, pxmx, pymx, pxmy, pymy, mxmx, mymy;
+
+		void add(double pixelX, double pixelY, double mapX, double mapY, double w) {
+			if (w <= 0)
+				return;
+			count++;
+			minPixelY = Math.min(minPixelY, pixelY);
+			maxPixelY = Math.max(maxPixelY, pixelY);
+
+			// West's weighted update: the differences from the old means times those from the new
+			weight += w;
+			double r = w / weight;
+			double dpx = pixelX - px, dpy = pixelY - py, dmx = mapX - mx, dmy = mapY - my;
+			px += dpx * r;
+			py += dpy * r;
+			mx += dmx * r;
+			my += dmy * r;
+			double f = w * (1 - r);
+			pxpx += f * dpx * dpx;
+			pxpy += f * dpx * dpy;
+			pypy += f * dpy * dpy;
+			pxmx += f * dpx * dmx;
+			pymx += f * dpy * dmx;
+			pxmy += f * dpx * dmy;
+			pymy += f * dpy * dmy;
+			mxmx += f * dmx * dmx;
+			mymy += f * dmy * dmy;
+		}
+
+		/**
+		 * @return whether the pixel rows are QGIS's negated ones
+		 */
+		boolean negatedRows() {
+			return count > 0 && maxPixelY <= 0 && minPixelY < 0;
+		}
+
+		/**
+		 * @return the least squares world file, in terms of the pixel coordinates as they were added
+		 * @throws IllegalArgumentException if there are less than three points, or they are all in a line
+		 */
+		WorldFile solve() {
+			if (count < 3)
+				throw new IllegalArgumentException("You need at least three enabled ground control points to fit a world file, found " + count + ".");
+			double det = pxpx * pypy - pxpy * pxpy;
+			if (!(Math.abs(det) > 1e-12 * pxpx * pypy))
+				throw new IllegalArgumentException("The ground control points are all in a line, so can't fix a world file.");
+			double A = (pxmx * pypy - pymx * pxpy) / det;
+			double B = (pymx * pxpx - pxmx * pxpy) / det;
+			double D = (pxmy * pypy - pymy * pxpy) / det;
+			double E = (pymy * pxpx - pxmy * pxpy) / det;
+			return new WorldFile(A, D, B, E, mx - A * px - B * py, my - D * px - E * py);
+		}
+
+		/**
+		 * @return the weighted rms distance of the points from where wld (from solve()) puts them
+		 */
+		double rms(WorldFile wld) {
+			// what the planes leave unexplained of each map coordinate's co-moment
+			double sse = mxmx - wld.A * pxmx - wld.B * pymx + mymy - wld.D * pxmy - wld.E * pymy;
+			return Math.sqrt(Math.max(0, sse) / weight);
+		}
+	}
+
+	/**
+	 * The fitted world file with a summary of the fit.
+	 */
+	public static final class Result {
+		public final WorldFile worldFile;
+		public final long points; // the number of enabled points fitted
+		public final double rms; // weighted rms residual, in map units
+		public final boolean negatedRows; // whether pixelY was taken as QGIS's negated rows
+		public final boolean centers; // whether the pixel coordinates were taken as pixel centers
+
+		Result(WorldFile worldFile, long points, double rms, boolean negatedRows, boolean centers) {
+			this.worldFile = worldFile;
+			this.points = points;
+			this.rms = rms;
+			this.negatedRows = negatedRows;
+			this.centers = centers;
+		}
+
+		/**
+		 * @return how far a pixel coordinate of the points is from the same place in pixel center coordinates
+		 */
+		double offset() {
+			return centers ? 0 : 0.5;
+		}
+	}
+
+	/**
+	 * Fits a world file to the enabled points of a .points file, reading their pixel coordinates as GDAL does.
+	 * @see #fit(Path, boolean)
+	 */
+	public static Result fit(Path points) throws IOException, GraticuleFormatException {
+		return fit(points, false);
+	}
+
+	/**
+	 * Fits a world file to the enabled points of a .points file, in one pass.
+	 * @param centers true if the pixel coordinates are of pixel centers, false if of pixel corners as GDAL reads them
+	 * @throws GraticuleFormatException if a line isn't a ground control point
+	 * @throws IllegalArgumentException if the points can't fix a world file
+	 */
+	public static Result fit(Path points, boolean centers) throws IOException, GraticuleFormatException {
+		final Accumulator acc = new Accumulator();
+		read(points, new PointHandler() {
+			@Override
+			public void point(long line, double mapX, double mapY, double pixelX, double pixelY, double weight) {
+				acc.add(pixelX, pixelY, mapX, mapY, weight);
+			}
+		});
+		WorldFile wld = acc.solve();
+		double rms = acc.rms(wld);
+		if (acc.negatedRows())
+			wld = new WorldFile(wld.A, wld.D, -wld.B, -wld.E, wld.C, wld.F);
+		if (!centers) {
+			// the center of the upper left pixel is half a pixel in from the corner the points count from
+			wld = new WorldFile(wld.A, wld.D, wld.B, wld.E, wld.C + 0.5 * wld.A + 0.5 * wld.B,
+					wld.F + 0.5 * wld.D + 0.5 * wld.E);
+		}
+		return new Result(wld, acc.count, rms, acc.negatedRows(), centers);
+	}
+
+	/**
+	 * Writes the residual of every enabled point against a fitted world file, in a second pass over the file.
+	 * @return the largest residual, in map units
+	 */
+	public static double residuals(Path points, final Result fit, final Writer out) throws IOException, GraticuleFormatException {
+		out.write(RESIDUALS_HEADER + "\n");
+		final WorldFile wld = fit.worldFile;
+		final double offset = fit.offset();
+		final double[] max = new double[1];
+		read(points, new PointHandler() {
+			@Override
+			public void point(long line, double mapX, double mapY, double pixelX, double pixelY, double weight) throws IOException {
+				double column = pixelX - offset;
+				double row = (fit.negatedRows ? -pixelY : pixelY) - offset;
+				double dx = mapX - (wld.A * column + wld.B * row + wld.C);
+				double dy = mapY - (wld.D * column + wld.E * row + wld.F);
+				double residual = Math.sqrt(dx * dx + dy * dy);
+				max[0] = Math.max(max[0], residual);
+				out.write(line + "," + mapX + "," + mapY + "," + pixelX + "," + pixelY + "," + dx + "," + dy + "," + residual + "\n");
+			}
+		});
+		return max[0];
+	}
+
+	interface PointHandler {
+		void point(long line, double mapX, double mapY, double pixelX, double pixelY, double weight) throws IOException;
+	}
+
+	/**
+	 * Streams the enabled points of a .points file to handler.
+	 */
+	static void read(Path points, PointHandler handler) throws IOException, GraticuleFormatException {
+		BufferedReader reader = Files.newBufferedReader(points, StandardCharsets.UTF_8);
+		try {
+			double[] v = new double[6];
+			long lineNumber = 0;
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				line = line.trim();
+				// skip blank lines, comments and the header
+				if (line.isEmpty() || line.startsWith("#") || (lineNumber == 1 && line.startsWith("mapX")))
+					continue;
+
+				int n = 0, start = 0;
+				try {
+					while (start <= line.length()) {
+						int comma = line.indexOf(',', start);
+						int end = comma < 0 ? line.length() : comma;
+						if (n == v.length)
+							throw new GraticuleFormatException(lineNumber, "expected mapX,mapY,pixelX,pixelY,enable[,weight] but found more columns");
+						v[n++] = Double.parseDouble(line.substring(start, end).trim());
+						start = end + 1;
+					}
+				}catch( NumberFormatException exp ) {
+					throw new GraticuleFormatException(lineNumber, "not a number, " + exp.getMessage());
+				}
+				if (n < 5)
+					throw new GraticuleFormatException(lineNumber, "expected mapX,mapY,pixelX,pixelY,enable[,weight] but found " + n + " columns");
+				double weight = n > 5 ? v[5] : 1;
+				if (weight < 0 || Double.isNaN(weight))
+					throw new GraticuleFormatException(lineNumber, "the weight can't be negative");
+				if (v[4] != 0)
+					handler.point(lineNumber, v[0], v[1], v[2], v[3], weight);
+			}
+		}finally{
+			reader.close();
+		}
+	}
+}
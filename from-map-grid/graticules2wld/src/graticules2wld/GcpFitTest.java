@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GcpFitTest {
+
+	private static File points(String contents) throws Exception {
+		File file = File.createTempFile("gcps", ".points");
+		file.deleteOnExit();
+		Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * The points GcpGenerator makes from a perfect tracing should fit back to the solved world file
+	 */
+	@Test
+	public void test_fitGeneratedPoints() throws Exception {
+		double s = 0.5, a = Math.toRadians(3);
+		WorldFile truth = new WorldFile(s * Math.cos(a), -s * Math.sin(a), s * Math.sin(a), -s * Math.cos(a), -450, 420);
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		RobustSolverTest.pack(SolverTest.trace(truth), lon, lat);
+		WorldFile expected = new Solver(335100, 6254870, 20.1168).solve(lon, lat).worldFile;
+
+		StringWriter out = new StringWriter();
+		new GcpGenerator(335100, 6254870, 20.1168).write(lon, lat, out);
+		File file = points(out.toString());
+		GcpFit.Result fit = GcpFit.fit(file.toPath(), true);
+
+		assertEquals(49, fit.points);
+		assertFalse(fit.negatedRows);
+		assertEquals(0, fit.rms, 1e-6);
+		IncrementalSolverTest.assertWorldFileEquals(expected, fit.worldFile, 1e-6);
+
+		// read as GDAL reads them, the same points are half a pixel further down and right of the upper left
+		// corner, so the upper left pixel's center is half a pixel up and left of where the solver puts it
+		GcpFit.Result corners = GcpFit.fit(file.toPath());
+		assertFalse(corners.centers);
+		IncrementalSolverTest.assertWorldFileEquals(new WorldFile(expected.A, expected.D, expected.B, expected.E,
+				expected.C + 0.5 * expected.A + 0.5 * expected.B, expected.F + 0.5 * expected.D + 0.5 * expected.E),
+				corners.worldFile, 1e-6);
+	}
+
+	/**
+	 * A point at pixel corner 0,0 is half a pixel up and left of the center of the upper left pixel, which is
+	 * what a world file's C and F give
+	 */
+	@Test
+	public void test_pixelCorners() throws Exception {
+		String rows = "mapX,mapY,pixelX,pixelY,enable\n100,200,0,0,1\n120,200,10,0,1\n100,180,0,10,1\n";
+		IncrementalSolverTest.assertWorldFileEquals(new WorldFile(2, 0, 0, -2, 101, 199),
+				GcpFit.fit(points(rows).toPath()).worldFile, 1e-9);
+		IncrementalSolverTest.assertWorldFileEquals(new WorldFile(2, 0, 0, -2, 100, 200),
+				GcpFit.fit(points(rows).toPath(), true).worldFile, 1e-9);
+	}
+
+	/**
+	 * Disabled and zero weight points are left out, QGIS's negated rows are turned back into rows, and the
+	 * residuals are listed for every enabled point
+	 */
+	@Test
+	public void test_enableAndNegatedRows() throws Exception {
+		File file = points("mapX,mapY,pixelX,pixelY,enable\n"
+				+ "100,200,0,0,1\n"
+				+ "120,200,10,0,1\n"
+				+ "105,180,0,-10,1\n"
+				+ "\n"
+				+ "999,999,5,-5,0\n"
+				+ "555,555,7,-3,1,0\n"
+				+ "125,180,10,-10,1,2\n");
+		GcpFit.Result fit = GcpFit.fit(file.toPath());
+		assertEquals(4, fit.points);
+		assertTrue(fit.negatedRows);
+		IncrementalSolverTest.assertWorldFileEquals(new WorldFile(2, 0, 0.5, -2, 101.25, 199), fit.worldFile, 1e-9);
+
+		StringWriter residuals = new StringWriter();
+		double max = GcpFit.residuals(file.toPath(), fit, residuals);
+		String[] lines = residuals.toString().split("\n");
+		assertEquals(GcpFit.RESIDUALS_HEADER, lines[0]);
+		assertEquals(6, lines.length);
+		assertTrue(lines[3].startsWith("4,105.0,180.0,0.0,-10.0,"));
+		assertTrue(lines[4].startsWith("7,555.0,555.0,7.0,-3.0,"));
+		assertEquals(555 - (2 * 7 + 0.5 * 3 + 100), Double.parseDouble(lines[4].split(",")[5]), 1e-9);
+		assertTrue(max > 400);
+	}
+
+	/**
+	 * A point with a weight of 2 should count as much as the same point given twice
+	 */
+	@Test
+	public void test_weights() throws Exception {
+		String rows = "0,0,0,0,1\n10,1,10,0,1\n1,10,0,10,1\n";
+		GcpFit.Result weighted = GcpFit.fit(points(rows + "12,13,10,10,1,2\n").toPath());
+		GcpFit.Result twice = GcpFit.fit(points(rows + "12,13,10,10,1\n12,13,10,10,1\n").toPath());
+		GcpFit.Result once = GcpFit.fit(points(rows + "12,13,10,10,1\n").toPath());
+		IncrementalSolverTest.assertWorldFileEquals(twice.worldFile, weighted.worldFile, 1e-12);
+		assertEquals(twice.rms, weighted.rms, 1e-12);
+		assertTrue(Math.abs(once.worldFile.A - weighted.worldFile.A) > 1e-3);
+	}
+
+	/**
+	 * A million noisy points at real map coordinates should fit to within the noise, in one pass
+	 */
+	@Test
+	public void test_manyPoints() throws Exception {
+		WorldFile truth = new WorldFile(3.6816, -0.6078, -0.6243, -3.7518, 335100.5, 6254870.2);
+		File file = File.createTempFile("gcps", ".points");
+		file.deleteOnExit();
+		Random random = new Random(23);
+		int n = 1000000;
+		Writer out = new BufferedWriter(new FileWriter(file), 1 << 16);
+		out.write(GcpGenerator.HEADER + "\n");
+		for (int i = 0; i < n; i++) {
+			double px = random.nextDouble() * 8000, py = random.nextDouble() * 6000;
+			double mx = truth.A * px + truth.B * py + truth.C + random.nextGaussian() * 0.5;
+			double my = truth.D * px + truth.E * py + truth.F + random.nextGaussian() * 0.5;
+			out.write(mx + "," + my + "," + px + "," + py + ",1\n");
+		}
+		out.close();
+
+		GcpFit.Result fit = GcpFit.fit(file.toPath(), true);
+		assertEquals(n, fit.points);
+		assertEquals(0.5 * Math.sqrt(2), fit.rms, 0.01);
+		IncrementalSolverTest.assertWorldFileEquals(truth, fit.worldFile, 0.01);
+		assertEquals(truth.A, fit.worldFile.A, 1e-5);
+		assertEquals(truth.E, fit.worldFile.E, 1e-5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_collinear() throws Exception {
+		GcpFit.fit(points("0,0,0,0,1\n1,1,1,1,1\n2,2,2,2,1\n").toPath());
+	}
+
+	@Test(expected = GraticuleFormatException.class)
+	public void test_badLine() throws Exception {
+		GcpFit.fit(points("mapX,mapY,pixelX,pixelY,enable\n1,2,3,4\n").toPath());
+	}
+}
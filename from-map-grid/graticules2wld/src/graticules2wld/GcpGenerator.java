@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Makes ground control points for GDAL from the intersections of the LAT and LON graticules, as
+ * pmapgrid2gcps.pl does, writing a .points file like,
+
+mapX,mapY,pixelX,pixelY,enable
+335100.0,6254870.0,216.58816,484.36838,1
+
+ * where the map coordinates are the origin plus the graticule values in meters.
+ *
+ * Every LAT graticule is intersected with every LON graticule. As in the perl script only pairs whose traced
+ * segments actually cross give a point, and pairs which are close to parallel (so the intersection would be
+ * poorly defined) are skipped. The LAT graticules are split between fork join tasks, each of which formats its
+ * own rows, and the rows are written in LAT then LON order.
+ */
+public final class GcpGenerator {
+
+	public static final String HEADER = "mapX,mapY,pixelX,pixelY,enable";
+
+	// pairs crossing at less than about 5.7 degrees are skipped
+	static final double MIN_SIN_ANGLE = 0.1;
+
+	// LAT graticules per task
+	static final int LEAF = 16;
+
+	private final double originEasting;
+	private final double originNorthing;
+	private final double unitsToMeters;
+
+	/**
+	 * @param originEasting x component of projected coordinates of the graticules' zero
+	 * @param originNorthing y component of projected coordinates of the graticules' zero
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 */
+	public GcpGenerator(double originEasting, double originNorthing, double unitsToMeters) {
+		this.originEasting = originEasting;
+		this.originNorthing = originNorthing;
+		this.unitsToMeters = unitsToMeters;
+	}
+
+	/**
+	 * Finds where line 1 and line 2 cross.
+	 * @param out gets the pixel x, y of the intersection
+	 * @return false if the segments don't cross or cross at too shallow an angle
+	 */
+	static boolean intersection(double x1, double y1, double x2, double y2,
+			double x3, double y3, double x4, double y4, double[] out) {
+		double dx1 = x2 - x1, dy1 = y2 - y1;
+		double dx2 = x4 - x3, dy2 = y4 - y3;
+		double cross = dx1 * dy2 - dy1 * dx2;
+		double lengths = Math.sqrt((dx1 * dx1 + dy1 * dy1) * (dx2 * dx2 + dy2 * dy2));
+		if (!(Math.abs(cross) >= MIN_SIN_ANGLE * lengths))
+			return false; // near parallel, or a zero length line
+
+		// parameters along each segment, each segment runs from 0 to 1
+		double ex = x3 - x1, ey = y3 - y1;
+		double t = (ex * dy2 - ey * dx2) / cross;
+		double u = (ex * dy1 - ey * dx1) / cross;
+		if (t < 0 || t > 1 || u < 0 || u > 1)
+			return false;
+
+		out[0] = x1 + t * dx1;
+		out[1] = y1 + t * dy1;
+		return true;
+	}
+
+	/**
+	 * Writes the header and a row for each intersection.
+	 * @return the number of ground control points written
+	 */
+	public int write(PackedGraticules lonGrats, PackedGraticules latGrats, Writer out) throws IOException {
+		List<Rows> tasks = new ArrayList<Rows>();
+		for (int from = 0; from < latGrats.size(); from += LEAF)
+			tasks.add(new Rows(lonGrats, latGrats, from, Math.min(latGrats.size(), from + LEAF)));
+		ForkJoinTask.invokeAll(tasks);
+
+		out.write(HEADER);
+		out.write('\n');
+		int count = 0;
+		for (Rows task : tasks) {
+			out.append(task.rows);
+			count += task.count;
+		}
+		return count;
+	}
+
+	/**
+	 * The rows for LAT graticules [from, to).
+	 */
+	private final class Rows extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final PackedGraticules lonGrats;
+		private final PackedGraticules latGrats;
+		private final int from;
+		private final int to;
+
+		StringBuilder rows;
+		int count;
+
+		Rows(PackedGraticules lonGrats, PackedGraticules latGrats, int from, int to) {
+			this.lonGrats = lonGrats;
+			this.latGrats = latGrats;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Void compute() {
+			rows = new StringBuilder((to - from) * Math.min(lonGrats.size(), 256) * 64);
+			double[] p = new double[2];
+			for (int i = from; i < to; i++) {
+				double mapY = originNorthing + latGrats.getValue(i) * unitsToMeters;
+				for (int j = 0; j < lonGrats.size(); j++) {
+					if (!intersection(latGrats.x1[i], latGrats.y1[i], latGrats.x2[i], latGrats.y2[i],
+							lonGrats.x1[j], lonGrats.y1[j], lonGrats.x2[j], lonGrats.y2[j], p))
+						continue;
+					double mapX = originEasting + lonGrats.getValue(j) * unitsToMeters;
+					rows.append(mapX).append(',').append(mapY).append(',')
+						.append(p[0]).append(',').append(p[1]).append(",1\n");
+					count++;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.io.StringWriter;
+import java.util.List;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GcpGeneratorTest {
+
+	@Test
+	public void test_intersection() {
+		double[] p = new double[2];
+		assertTrue(GcpGenerator.intersection(0, 0, 10, 0, 5, -5, 5, 5, p));
+		assertEquals(5, p[0], 1e-12);
+		assertEquals(0, p[1], 1e-12);
+
+		// vertical lines, which the perl script's range test couldn't handle
+		assertTrue(GcpGenerator.intersection(3, -1, 3, 9, 0, 2, 10, 2, p));
+		assertEquals(3, p[0], 1e-12);
+		assertEquals(2, p[1], 1e-12);
+
+		assertFalse(GcpGenerator.intersection(0, 0, 10, 0, 20, -5, 20, 5, p)); // lines cross, segments don't
+		assertFalse(GcpGenerator.intersection(0, 0, 100, 0, 0, 1, 100, 2, p)); // near parallel
+		assertFalse(GcpGenerator.intersection(0, 0, 0, 0, 5, -5, 5, 5, p)); // zero length
+	}
+
+	/**
+	 * Every pair of a traced grid should give a point, which the world file maps back to its map coordinates
+	 */
+	@Test
+	public void test_write() throws Exception {
+		double s = 0.5, a = Math.toRadians(3);
+		WorldFile truth = new WorldFile(s * Math.cos(a), -s * Math.sin(a), s * Math.sin(a), -s * Math.cos(a), -450, 420);
+		List<Graticule> grats = SolverTest.trace(truth);
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		RobustSolverTest.pack(grats, lon, lat);
+
+		StringWriter out = new StringWriter();
+		int count = new GcpGenerator(1000, 2000, 2).write(lon, lat, out);
+		assertEquals(lon.size() * lat.size(), count);
+
+		String[] rows = out.toString().split("\n");
+		assertEquals(GcpGenerator.HEADER, rows[0]);
+		assertEquals(count + 1, rows.length);
+
+		AffineTransform toMap = truth.getTransform();
+		for (int i = 1; i < rows.length; i++) {
+			String[] r = rows[i].split(",");
+			assertEquals("1", r[4]);
+			Point2D map = toMap.transform(new Point2D.Double(Double.parseDouble(r[2]), Double.parseDouble(r[3])), null);
+			assertEquals(1000 + map.getX() * 2, Double.parseDouble(r[0]), 1e-6);
+			assertEquals(2000 + map.getY() * 2, Double.parseDouble(r[1]), 1e-6);
+		}
+	}
+}
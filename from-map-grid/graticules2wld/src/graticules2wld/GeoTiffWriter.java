@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Writes a north up, uncompressed, tiled RGBA GeoTIFF one tile at a time.
+ *
+ * As the tiles are uncompressed each one is the same size, so where each goes in the file is known up front. The
+ * header is written when the file is created and after that tiles can be written by any number of threads in
+ * any order with positional writes. Tiles which are never written read back as zeros, ie. transparent, so
+ * tiles outside the warped image can be skipped.
+ *
+ * A file which would be over 4GB is written as a BigTIFF, which has 8 byte offsets.
+ */
+final class GeoTiffWriter implements Closeable {
+
+	private static final short SHORT = 3, LONG = 4, DOUBLE = 12, LONG8 = 16;
+	private static final int ENTRIES = 15;
+
+	private final int tileSize;
+	private final int tilesAcross;
+	private final long dataStart;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+
+	/**
+	 * @param target the world file of the output, which must be north up
+	 * @param epsg the EPSG code of the coordinate system, or 0 if it isn't known
+	 */
+	GeoTiffWriter(Path path, int width, int height, int tileSize, WorldFile target, int epsg) throws IOException {
+		this(path, width, height, tileSize, target, epsg, false);
+	}
+
+	/**
+	 * @param bigTiff to write a BigTIFF even if the file would fit in a TIFF
+	 */
+	GeoTiffWriter(Path path, int width, int height, int tileSize, WorldFile target, int epsg, boolean bigTiff) throws IOException {
+		if (target.B != 0 || target.D != 0)
+			throw new IllegalArgumentException("A GeoTIFF can only be written north up");
+		if (tileSize % 16 != 0)
+			throw new IllegalArgumentException("The tile size must be a multiple of 16, not " + tileSize);
+
+		this.tileSize = tileSize;
+		this.tilesAcross = (width + tileSize - 1) / tileSize;
+		int tiles = tilesAcross * ((height + tileSize - 1) / tileSize);
+
+		// model type projected or geographic, raster type pixel is area, and the coordinate system if known
+		short[] geoKeys;
+		if (epsg == 0) {
+			geoKeys = new short[] {1, 1, 0, 2, 1024, 0, 1, 1, 1025, 0, 1, 1};
+		}else if (epsg == 4326) {
+			geoKeys = new short[] {1, 1, 0, 3, 1024, 0, 1, 2, 1025, 0, 1, 1, 2048, 0, 1, 4326};
+		}else{
+			geoKeys = new short[] {1, 1, 0, 3, 1024, 0, 1, 1, 1025, 0, 1, 1, 3072, 0, 1, (short) epsg};
+		}
+
+		long tileBytes = 4L * tileSize * tileSize;
+		boolean big = bigTiff || dataStart(false, tiles, geoKeys.length) + tileBytes * tiles > 0xffffffffL;
+		int offsetBytes = big ? 8 : 4;
+		short offsetType = big ? LONG8 : LONG;
+		long bitsAt = ifdEnd(big);
+		// a BigTIFF entry has room for the bits per sample itself
+		long offsetsAt = bitsAt + (big ? 0 : 8);
+		long countsAt = offsetsAt + (long) offsetBytes * tiles;
+		long scaleAt = countsAt + (long) offsetBytes * tiles;
+		long tiepointAt = scaleAt + 8 * 3;
+		long geoKeysAt = tiepointAt + 8 * 6;
+		long headerEnd = geoKeysAt + 2 * geoKeys.length;
+		dataStart = dataStart(big, tiles, geoKeys.length);
+		long length = dataStart + tileBytes * tiles;
+		if (headerEnd > Integer.MAX_VALUE)
+			throw new IOException("The warped image would have " + tiles + " tiles, too many to write");
+
+		ByteBuffer b = ByteBuffer.allocate((int) headerEnd).order(ByteOrder.LITTLE_ENDIAN);
+		b.put((byte) 'I').put((byte) 'I');
+		if (big)
+			b.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(16).putLong(ENTRIES);
+		else
+			b.putShort((short) 42).putInt(8).putShort((short) ENTRIES);
+		entry(b, big, 256, LONG, 1, width); // ImageWidth
+		entry(b, big, 257, LONG, 1, height); // ImageLength
+		if (big)
+			b.putShort((short) 258).putShort(SHORT).putLong(4).putShort((short) 8).putShort((short) 8).putShort((short) 8).putShort((short) 8); // BitsPerSample
+		else
+			entry(b, big, 258, SHORT, 4, bitsAt); // BitsPerSample
+		entry(b, big, 259, SHORT, 1, 1); // Compression, none
+		entry(b, big, 262, SHORT, 1, 2); // PhotometricInterpretation, RGB
+		entry(b, big, 277, SHORT, 1, 4); // SamplesPerPixel
+		entry(b, big, 284, SHORT, 1, 1); // PlanarConfiguration, chunky
+		entry(b, big, 322, LONG, 1, tileSize); // TileWidth
+		entry(b, big, 323, LONG, 1, tileSize); // TileLength
+		entry(b, big, 324, offsetType, tiles, tiles == 1 ? dataStart : offsetsAt); // TileOffsets
+		entry(b, big, 325, offsetType, tiles, tiles == 1 ? tileBytes : countsAt); // TileByteCounts
+		entry(b, big, 338, SHORT, 1, 2); // ExtraSamples, unassociated alpha
+		entry(b, big, 33550, DOUBLE, 3, scaleAt); // ModelPixelScale
+		entry(b, big, 33922, DOUBLE, 6, tiepointAt); // ModelTiepoint
+		entry(b, big, 34735, SHORT, geoKeys.length, geoKeysAt); // GeoKeyDirectory
+		if (big)
+			b.putLong(0); // no more IFDs
+		else
+			b.putInt(0);
+
+		if (!big)
+			b.putShort((short) 8).putShort((short) 8).putShort((short) 8).putShort((short) 8);
+		for (int i = 0; i < tiles; i++)
+			putOffset(b, big, dataStart + i * tileBytes);
+		for (int i = 0; i < tiles; i++)
+			putOffset(b, big, tileBytes);
+		b.putDouble(target.A).putDouble(-target.E).putDouble(0);
+		// the tie point is the outside corner of the upper left pixel, the world file has its center
+		b.putDouble(0).putDouble(0).putDouble(0);
+		b.putDouble(target.C - target.A / 2).putDouble(target.F - target.E / 2).putDouble(0);
+		for (short k : geoKeys)
+			b.putShort(k);
+		b.flip();
+
+		file = new RandomAccessFile(path.toFile(), "rw");
+		channel = file.getChannel();
+		try {
+			file.setLength(length);
+			while (b.hasRemaining())
+				channel.write(b, b.position());
+		}catch( IOException exp ) {
+			file.close();
+			throw exp;
+		}
+	}
+
+	/**
+	 * @return where the IFD ends, the IFD being straight after the header
+	 */
+	private static long ifdEnd(boolean big) {
+		return big ? 16 + 8 + 20 * ENTRIES + 8 : 8 + 2 + 12 * ENTRIES + 4;
+	}
+
+	/**
+	 * @return where the first tile goes, on a page boundary after the IFD and the values it points to
+	 */
+	private static long dataStart(boolean big, int tiles, int geoKeys) {
+		long headerEnd = ifdEnd(big) + (big ? 0 : 8) + 2L * (big ? 8 : 4) * tiles + 8 * 3 + 8 * 6 + 2 * geoKeys;
+		return (headerEnd + 4095) & ~4095L;
+	}
+
+	/**
+	 * Puts an IFD entry, its value if it fits in the entry and otherwise the offset of its values.
+	 */
+	private static void entry(ByteBuffer b, boolean big, int tag, short type, int count, long value) {
+		b.putShort((short) tag).putShort(type);
+		if (big)
+			b.putLong(count);
+		else
+			b.putInt(count);
+		int end = b.position() + (big ? 8 : 4);
+		if (type == SHORT && count == 1)
+			b.putShort((short) value);
+		else if (type == LONG && count == 1)
+			b.putInt((int) value);
+		else
+			putOffset(b, big, value);
+		while (b.position() < end)
+			b.put((byte) 0);
+	}
+
+	private static void putOffset(ByteBuffer b, boolean big, long offset) {
+		if (big)
+			b.putLong(offset);
+		else
+			b.putInt((int) offset);
+	}
+
+	int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Writes the tile at tile column tx, tile row ty. Safe to call from many threads at once.
+	 * @param rgba tileSize * tileSize pixels, 4 bytes each, in rows
+	 */
+	void writeTile(int tx, int ty, ByteBuffer rgba) throws IOException {
+		long position = dataStart + (long) (ty * tilesAcross + tx) * 4 * tileSize * tileSize;
+		while (rgba.hasRemaining())
+			position += channel.write(rgba, position);
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+package graticules2wld;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GeoTiffWriterTest {
+
+	/**
+	 * A BigTIFF should have the 16 byte header, 20 byte entries with 8 byte counts and values, and LONG8 tile
+	 * offsets pointing at where the tiles were written
+	 */
+	@Test
+	public void test_bigTiff() throws Exception {
+		Path path = Files.createTempFile("big", ".tif");
+		GeoTiffWriter writer = new GeoTiffWriter(path, 40, 20, 16, new WorldFile(2, 0, 0, -2, 1000, 2000), 28356, true);
+		try {
+			ByteBuffer tile = ByteBuffer.allocate(4 * 16 * 16);
+			for (int i = 0; i < tile.capacity(); i++)
+				tile.put(i, (byte) i);
+			writer.writeTile(1, 1, tile);
+		}finally{
+			writer.close();
+		}
+
+		ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals('I', b.get(0));
+		assertEquals('I', b.get(1));
+		assertEquals(43, b.getShort(2));
+		assertEquals(8, b.getShort(4));
+		assertEquals(0, b.getShort(6));
+		assertEquals(16, b.getLong(8));
+		long entries = b.getLong(16);
+		assertEquals(15, entries);
+
+		// tag to the offset of its entry
+		Map<Integer, Integer> tags = new HashMap<Integer, Integer>();
+		int last = 0;
+		for (int i = 0; i < entries; i++) {
+			int at = 24 + 20 * i;
+			int tag = b.getShort(at) & 0xffff;
+			assertTrue("tags in order", tag > last);
+			last = tag;
+			tags.put(tag, at);
+		}
+		assertEquals("no more IFDs", 0, b.getLong(24 + 20 * (int) entries));
+
+		int width = tags.get(256);
+		assertEquals(4, b.getShort(width + 2));
+		assertEquals(1, b.getLong(width + 4));
+		assertEquals(40, b.getInt(width + 12));
+
+		// the bits per sample fit in the entry
+		int bits = tags.get(258);
+		assertEquals(4, b.getLong(bits + 4));
+		for (int i = 0; i < 4; i++)
+			assertEquals(8, b.getShort(bits + 12 + 2 * i));
+
+		int offsets = tags.get(324), counts = tags.get(325);
+		assertEquals(16, b.getShort(offsets + 2));
+		assertEquals(16, b.getShort(counts + 2));
+		assertEquals(6, b.getLong(offsets + 4));
+		assertEquals(6, b.getLong(counts + 4));
+		long offsetsAt = b.getLong(offsets + 12), countsAt = b.getLong(counts + 12);
+		long first = b.getLong((int) offsetsAt);
+		assertEquals(0, first % 4096);
+		for (int i = 0; i < 6; i++) {
+			assertEquals(first + 1024L * i, b.getLong((int) offsetsAt + 8 * i));
+			assertEquals(1024, b.getLong((int) countsAt + 8 * i));
+		}
+		assertEquals(first + 6 * 1024, b.capacity());
+
+		// tile 1, 1 is the fifth, and the ones not written are transparent
+		int fifth = (int) b.getLong((int) offsetsAt + 8 * 4);
+		for (int i = 0; i < 1024; i++)
+			assertEquals((byte) i, b.get(fifth + i));
+		assertEquals(0, b.get((int) first));
+
+		int scale = tags.get(33550);
+		assertEquals(12, b.getShort(scale + 2));
+		assertEquals(2, b.getDouble((int) b.getLong(scale + 12)), 0);
+		Files.delete(path);
+	}
+}
@@ -61,55 +61,67 @@ public class Graticule implements Comparable<Graticule> {
 	 */
 	public double angle() {
 		// convert the line segment to a vector
-		Line2D vec = new Line2D.Double(0,0,l.getX2() - l.getX1(), l.getY2() - l.getY1());
-		
-		double angle;
-		
-		if (latlon.equals(LATLON.LAT)) {
-			// find the angle with the horizontal, as an angle between pi/2 and -pi/2
-			
-			// push the vector into quadrant 1 and 4
-			if (vec.getX2() < 0)
-				vec.setLine(0, 0, -vec.getX2(), -vec.getY2());
-				
-			
-			/*
-			 *           |
-			 *           |  /|
-			 *           | / |
-			 *           |/ a|           +
-			 * ----------+---------- +x  A
-			 *           |               -
-			 *           |
-			 *           |
-			 *           |
-			 *           +y
-			 */
-			angle = Math.atan2(-vec.getY2(), vec.getX2());
-		}else {
-			// find the angle with the vertical, as an angle between pi/2 and -pi/2
-			
-			// push the vector into quadrant 1 and 2
-			if (vec.getY2() > 0)
-				vec.setLine(0, 0, -vec.getX2(), -vec.getY2());
-				
-			
-			/*         - A +
-			 *           |__
-			 *           |  /
-			 *           |a/
-			 *           |/
-			 * ----------+---------- +x
-			 *           |
-			 *           |
-			 *           |
-			 *           |
-			 *           +y
-			 */
-			angle = Math.atan2(vec.getX2(), -vec.getY2());
+		double dx = l.getX2() - l.getX1();
+		double dy = l.getY2() - l.getY1();
+
+		if (latlon.equals(LATLON.LAT))
+			return latAngle(dx, dy);
+		else
+			return lonAngle(dx, dy);
+	}
+
+	/**
+	 * @return The angle the vector dx,dy makes with the horizontal, as for angle() of a LAT graticule.
+	 */
+	static double latAngle(double dx, double dy) {
+		// find the angle with the horizontal, as an angle between pi/2 and -pi/2
+
+		// push the vector into quadrant 1 and 4
+		if (dx < 0) {
+			dx = -dx;
+			dy = -dy;
+		}
+
+		/*
+		 *           |
+		 *           |  /|
+		 *           | / |
+		 *           |/ a|           +
+		 * ----------+---------- +x  A
+		 *           |               -
+		 *           |
+		 *           |
+		 *           |
+		 *           +y
+		 */
+		return Math.atan2(-dy, dx);
+	}
+
+	/**
+	 * @return The angle the vector dx,dy makes with the vertical, as for angle() of a LON graticule.
+	 */
+	static double lonAngle(double dx, double dy) {
+		// find the angle with the vertical, as an angle between pi/2 and -pi/2
+
+		// push the vector into quadrant 1 and 2
+		if (dy > 0) {
+			dx = -dx;
+			dy = -dy;
 		}
 
-		return angle;
+		/*         - A +
+		 *           |__
+		 *           |  /
+		 *           |a/
+		 *           |/
+		 * ----------+---------- +x
+		 *           |
+		 *           |
+		 *           |
+		 *           |
+		 *           +y
+		 */
+		return Math.atan2(dx, -dy);
 	}
 	
 	/**
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A binary file holding the graticules of many sheets, which can be read a sheet at a time without parsing.
+ *
+ * <pre>
+ * header   magic, version, sheet count, where the index starts and its length
+ * sheets   for each sheet its LON then its LAT graticules, each set as columns of x1, y1, x2, y2 doubles
+ *          followed by a column of int real values, padded to 8 bytes
+ * index    an entry per sheet in the order they were added, its offset, LON and LAT counts and id, then the
+ *          entries' numbers sorted by id, then the UTF-8 ids
+ * </pre>
+ *
+ * All numbers are little endian. The file is memory mapped in segments of up to SEGMENT bytes, which no sheet
+ * crosses, so reading a sheet is a bulk copy of its columns out of the mapping and looking one up by id is a
+ * binary search of the index.
+ */
+public final class GraticuleArchive {
+
+	private static final long MAGIC = 0x0141574432544147L; // GAT2DWA\1
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int ENTRY_BYTES = 24;
+
+	static final long SEGMENT = 1L << 30;
+
+	private final ByteBuffer[] segments;
+	private final ByteBuffer index;
+	private final int sheets;
+	private final int sortedAt;
+	private final int idsAt;
+
+	private GraticuleArchive(ByteBuffer[] segments, ByteBuffer index, int sheets) {
+		this.segments = segments;
+		this.index = index;
+		this.sheets = sheets;
+		this.sortedAt = ENTRY_BYTES * sheets;
+		this.idsAt = sortedAt + 4 * sheets;
+	}
+
+	/**
+	 * @return whether the file starts like an archive
+	 */
+	public static boolean isArchive(Path file) throws IOException {
+		if (!Files.isRegularFile(file) || Files.size(file) < HEADER_BYTES)
+			return false;
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) >= 0)
+				;
+			return header.getLong(0) == MAGIC;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Memory maps an archive.
+	 * @throws IOException if the file isn't an archive
+	 */
+	public static GraticuleArchive open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER_BYTES, raf.length()))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.capacity() < HEADER_BYTES || header.getLong(0) != MAGIC)
+				throw new IOException(file + " is not a graticule archive");
+			if (header.getInt(8) != VERSION)
+				throw new IOException(file + " is a version " + header.getInt(8) + " graticule archive, only version " + VERSION + " can be read");
+			int sheets = header.getInt(12);
+			long indexAt = header.getLong(16);
+			long indexLength = header.getLong(24);
+			if (indexAt + indexLength > raf.length() || indexLength > Integer.MAX_VALUE)
+				throw new IOException(file + " is truncated");
+
+			ByteBuffer[] segments = new ByteBuffer[(int) ((indexAt + SEGMENT - 1) / SEGMENT)];
+			for (int s = 0; s < segments.length; s++) {
+				long start = s * SEGMENT;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, indexAt - start))
+						.order(ByteOrder.LITTLE_ENDIAN);
+			}
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexAt, indexLength).order(ByteOrder.LITTLE_ENDIAN);
+			return new GraticuleArchive(segments, index, sheets);
+		}finally{
+			raf.close(); // the mappings stay valid
+		}
+	}
+
+	/**
+	 * @return the number of sheets in the archive
+	 */
+	public int size() {
+		return sheets;
+	}
+
+	/**
+	 * @return the id of sheet i, numbered in the order they were added
+	 */
+	public String id(int i) {
+		return new String(idBytes(i), StandardCharsets.UTF_8);
+	}
+
+	private byte[] idBytes(int i) {
+		int e = ENTRY_BYTES * i;
+		byte[] id = new byte[index.getInt(e + 20)];
+		ByteBuffer ids = index.duplicate();
+		ids.position(idsAt + index.getInt(e + 16));
+		ids.get(id);
+		return id;
+	}
+
+	/**
+	 * @return the number of the sheet with this id, or -1 if there isn't one
+	 */
+	public int indexOf(String id) {
+		byte[] key = id.getBytes(StandardCharsets.UTF_8);
+		int low = 0, high = sheets - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int i = index.getInt(sortedAt + 4 * mid);
+			int c = compare(idBytes(i), key);
+			if (c < 0)
+				low = mid + 1;
+			else if (c > 0)
+				high = mid - 1;
+			else
+				return i;
+		}
+		return -1;
+	}
+
+	private static int compare(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = (a[i] & 0xff) - (b[i] & 0xff);
+			if (c != 0)
+				return c;
+		}
+		return a.length - b.length;
+	}
+
+	/**
+	 * Copies the graticules of sheet i into lon and lat, replacing what they held. This is safe to call from
+	 * many threads at once, with their own lon and lat.
+	 */
+	public void read(int i, PackedGraticules lon, PackedGraticules lat) {
+		int e = ENTRY_BYTES * i;
+		long offset = index.getLong(e);
+		ByteBuffer segment = segments[(int) (offset / SEGMENT)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		segment.position((int) (offset % SEGMENT));
+		readColumns(segment, index.getInt(e + 8), lon);
+		readColumns(segment, index.getInt(e + 12), lat);
+	}
+
+	private static void readColumns(ByteBuffer b, int n, PackedGraticules grats) {
+		grats.clear();
+		grats.ensureCapacity(n);
+		int at = b.position();
+		b.asDoubleBuffer().get(grats.x1, 0, n).get(grats.y1, 0, n).get(grats.x2, 0, n).get(grats.y2, 0, n);
+		at += 32 * n;
+		b.position(at);
+		b.asIntBuffer().get(grats.value, 0, n);
+		b.position(at + align(4 * n));
+		grats.size = n;
+	}
+
+	private static int align(int bytes) {
+		return (bytes + 7) & ~7;
+	}
+
+	/**
+	 * Writes every sheet as a multiple sheet graticules csv, in the order they were added.
+	 */
+	public void writeCsv(Writer out) throws IOException {
+		out.write(GraticuleCsvReader.SHEETS_HEADER + "\n");
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		for (int i = 0; i < sheets; i++) {
+			read(i, lon, lat);
+			String id = id(i);
+			writeRows(out, id + ",", lon);
+			writeRows(out, id + ",", lat);
+		}
+	}
+
+	/**
+	 * Writes one sheet as a single sheet graticules csv.
+	 */
+	public void writeCsv(int i, Writer out) throws IOException {
+		out.write(GraticuleCsvReader.HEADER + "\n");
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		read(i, lon, lat);
+		writeRows(out, "", lon);
+		writeRows(out, "", lat);
+	}
+
+	private static void writeRows(Writer out, String prefix, PackedGraticules grats) throws IOException {
+		String latlon = grats.latlon.toString().toLowerCase();
+		for (int i = 0; i < grats.size(); i++) {
+			int v = grats.value[i];
+			DIR dir = grats.latlon == LATLON.LAT ? (v < 0 ? DIR.S : DIR.N) : (v < 0 ? DIR.W : DIR.E);
+			out.write(prefix + latlon + "," + dir.toString().toLowerCase() + "," + Math.abs(v) + ","
+					+ grats.x1[i] + "," + grats.y1[i] + "," + grats.x2[i] + "," + grats.y2[i] + "\n");
+		}
+	}
+
+	/**
+	 * Writes a new archive a sheet at a time, to a temporary file which is renamed into place by close().
+	 */
+	public static final class Builder implements GraticuleCsvReader.SheetHandler {
+		private final File file;
+		private final AtomicFile tmp;
+		private final FileChannel channel;
+		private ByteBuffer block = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = HEADER_BYTES;
+
+		private final List<byte[]> ids = new ArrayList<byte[]>();
+		private final Set<String> seen = new HashSet<String>();
+		private long[] offsets = new long[64];
+		private int[] counts = new int[128];
+
+		// the sheet being imported from a csv
+		private String sheetId;
+		private String defaultId;
+		private PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		private PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		private GraticuleCsvReader.Handler packer = PackedGraticules.handler(lon, lat);
+
+		public Builder(File file) throws IOException {
+			this.file = file;
+			tmp = new AtomicFile(file.toPath());
+			channel = FileChannel.open(tmp.temp(), StandardOpenOption.WRITE);
+		}
+
+		/**
+		 * @return the number of sheets added so far
+		 */
+		public int size() {
+			return ids.size();
+		}
+
+		/**
+		 * Adds a sheet.
+		 * @throws IllegalArgumentException if a sheet with this id has already been added
+		 */
+		public void add(String id, PackedGraticules lon, PackedGraticules lat) throws IOException {
+			if (!seen.add(id))
+				throw new IllegalArgumentException("Sheet " + id + " is already in the archive");
+
+			int length = columnsLength(lon.size()) + columnsLength(lat.size());
+			if (length > SEGMENT)
+				throw new IllegalArgumentException("Sheet " + id + " has too many graticules for an archive");
+			// keep every sheet within one segment
+			if (position / SEGMENT != (position + length - 1) / SEGMENT)
+				position = (position / SEGMENT + 1) * SEGMENT;
+
+			if (block.capacity() < length)
+				block = ByteBuffer.allocateDirect(Integer.highestOneBit(length) * 2).order(ByteOrder.LITTLE_ENDIAN);
+			block.clear();
+			putColumns(lon);
+			putColumns(lat);
+			block.flip();
+			long at = position;
+			while (block.hasRemaining())
+				at += channel.write(block, at);
+
+			int n = ids.size();
+			if (n == offsets.length) {
+				offsets = Arrays.copyOf(offsets, 2 * n);
+				counts = Arrays.copyOf(counts, 4 * n);
+			}
+			offsets[n] = position;
+			counts[2 * n] = lon.size();
+			counts[2 * n + 1] = lat.size();
+			ids.add(id.getBytes(StandardCharsets.UTF_8));
+			position += length;
+		}
+
+		private static int columnsLength(int n) {
+			return 32 * n + align(4 * n);
+		}
+
+		private void putColumns(PackedGraticules grats) {
+			int n = grats.size();
+			block.asDoubleBuffer().put(grats.x1, 0, n).put(grats.y1, 0, n).put(grats.x2, 0, n).put(grats.y2, 0, n);
+			block.position(block.position() + 32 * n);
+			block.asIntBuffer().put(grats.value, 0, n);
+			block.position(block.position() + align(4 * n));
+		}
+
+		/**
+		 * Adds every sheet in a graticules csv. A single sheet csv is added with the given id.
+		 * @param id the id for a single sheet csv, eg. its file name without the .csv
+		 */
+		public void addCsv(Path csv, String id) throws Exception {
+			defaultId = id;
+			GraticuleCsvReader.read(csv, this);
+		}
+
+		@Override
+		public void startSheet(String sheetId) {
+			this.sheetId = sheetId != null ? sheetId : defaultId;
+			lon.clear();
+			lat.clear();
+		}
+
+		@Override
+		public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) throws Exception {
+			packer.graticule(latlon, dir, value, x1, y1, x2, y2);
+		}
+
+		@Override
+		public void endSheet() throws IOException {
+			add(sheetId, lon, lat);
+		}
+
+		/**
+		 * Writes the index and moves the archive into place.
+		 */
+		public void close() throws IOException {
+			try {
+				int n = ids.size();
+				Integer[] sorted = new Integer[n];
+				int idsLength = 0;
+				for (int i = 0; i < n; i++) {
+					sorted[i] = i;
+					idsLength += ids.get(i).length;
+				}
+				Arrays.sort(sorted, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer a, Integer b) {
+						return GraticuleArchive.compare(ids.get(a), ids.get(b));
+					}
+				});
+
+				ByteBuffer index = ByteBuffer.allocate((ENTRY_BYTES + 4) * n + idsLength).order(ByteOrder.LITTLE_ENDIAN);
+				int idAt = 0;
+				for (int i = 0; i < n; i++) {
+					index.putLong(offsets[i]).putInt(counts[2 * i]).putInt(counts[2 * i + 1]);
+					index.putInt(idAt).putInt(ids.get(i).length);
+					idAt += ids.get(i).length;
+				}
+				for (Integer i : sorted)
+					index.putInt(i);
+				for (byte[] id : ids)
+					index.put(id);
+				index.flip();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				header.putLong(MAGIC).putInt(VERSION).putInt(n).putLong(position).putLong(index.remaining());
+				header.flip();
+
+				long at = position;
+				while (index.hasRemaining())
+					at += channel.write(index, at);
+				at = 0;
+				while (header.hasRemaining())
+					at += channel.write(header, at);
+				channel.force(false);
+				channel.close();
+				tmp.commit();
+			}finally{
+				channel.close();
+				tmp.close();
+			}
+		}
+
+		/**
+		 * Gives up on the archive, deleting what was written.
+		 */
+		public void abort() throws IOException {
+			channel.close();
+			tmp.close();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GraticuleArchiveTest {
+
+	private static File tempFile(String suffix) throws Exception {
+		File file = File.createTempFile("archive", suffix);
+		file.deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Sheets should come back exactly as they were added, found by id in any order
+	 */
+	@Test
+	public void test_roundTrip() throws Exception {
+		File file = tempFile(".g2wa");
+		Random random = new Random(11);
+		int sheets = 300;
+		GraticuleArchive.Builder builder = new GraticuleArchive.Builder(file);
+		PackedGraticules[] lons = new PackedGraticules[sheets], lats = new PackedGraticules[sheets];
+		for (int s = 0; s < sheets; s++) {
+			lons[s] = new PackedGraticules(LATLON.LON);
+			lats[s] = new PackedGraticules(LATLON.LAT);
+			// some sheets have no graticules of one kind, and odd counts leave the int columns padded
+			for (int i = random.nextInt(9); i > 0; i--)
+				lons[s].add(random.nextInt(2001) - 1000, random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble());
+			for (int i = random.nextInt(9); i > 0; i--)
+				lats[s].add(random.nextInt(2001) - 1000, random.nextDouble(), random.nextDouble(), random.nextDouble(), random.nextDouble());
+			builder.add("sheet-" + (sheets - s), lons[s], lats[s]);
+		}
+		builder.close();
+
+		GraticuleArchive archive = GraticuleArchive.open(file);
+		assertEquals(sheets, archive.size());
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		for (int s = 0; s < sheets; s++) {
+			int i = archive.indexOf("sheet-" + (sheets - s));
+			assertEquals(s, i);
+			assertEquals("sheet-" + (sheets - s), archive.id(i));
+			archive.read(i, lon, lat);
+			assertSame(lons[s], lon);
+			assertSame(lats[s], lat);
+		}
+		assertEquals(-1, archive.indexOf("sheet-0"));
+		assertEquals(-1, archive.indexOf("sheet-3000"));
+	}
+
+	private static void assertSame(PackedGraticules expected, PackedGraticules actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.value[i], actual.value[i]);
+			assertEquals(expected.x1[i], actual.x1[i], 0);
+			assertEquals(expected.y1[i], actual.y1[i], 0);
+			assertEquals(expected.x2[i], actual.x2[i], 0);
+			assertEquals(expected.y2[i], actual.y2[i], 0);
+		}
+	}
+
+	/**
+	 * A csv imported then exported should read back the same, and solving the archive should give the same
+	 * world file as solving the csv
+	 */
+	@Test
+	public void test_csv() throws Exception {
+		File csv = tempFile(".csv");
+		Files.write(csv.toPath(), ServerTest.CSV.getBytes(StandardCharsets.UTF_8));
+		File file = tempFile(".g2wa");
+		GraticuleArchive.Builder builder = new GraticuleArchive.Builder(file);
+		builder.addCsv(csv.toPath(), "PMapMN05-14041501");
+		builder.close();
+		assertTrue(GraticuleArchive.isArchive(file.toPath()));
+		assertFalse(GraticuleArchive.isArchive(csv.toPath()));
+
+		GraticuleArchive archive = GraticuleArchive.open(file);
+		StringWriter out = new StringWriter();
+		archive.writeCsv(0, out);
+		assertEquals(ServerTest.CSV.replace(",v,", ",e,").replace(",h,", ",n,"), out.toString());
+		out = new StringWriter();
+		archive.writeCsv(out);
+		assertTrue(out.toString().startsWith(GraticuleCsvReader.SHEETS_HEADER + "\nPMapMN05-14041501,lon,w,500,"));
+
+		File table = tempFile(".csv");
+		PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+		assertEquals(0, SheetStreamSolver.run(file, table, new Solver(0, 0, 1), 1, quiet, quiet));
+
+		StringWriter wld = new StringWriter();
+		java.io.BufferedWriter writer = new java.io.BufferedWriter(wld);
+		Main.solve(csv, writer, 0, 0, 1);
+		writer.close();
+		String[] expected = wld.toString().trim().split("\\s+");
+		String[] row = new String(Files.readAllBytes(table.toPath()), StandardCharsets.UTF_8).split("\n")[1].split(",");
+		assertEquals("PMapMN05-14041501", row[0]);
+		for (int i = 0; i < 6; i++)
+			assertEquals(Double.parseDouble(expected[i]), Double.parseDouble(row[i + 1]), 1e-9);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_duplicateId() throws Exception {
+		GraticuleArchive.Builder builder = new GraticuleArchive.Builder(tempFile(".g2wa"));
+		try {
+			builder.add("a", new PackedGraticules(LATLON.LON), new PackedGraticules(LATLON.LAT));
+			builder.add("a", new PackedGraticules(LATLON.LON), new PackedGraticules(LATLON.LAT));
+		}finally{
+			builder.abort();
+		}
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void test_notAnArchive() throws Exception {
+		File csv = tempFile(".csv");
+		FileWriter writer = new FileWriter(csv);
+		writer.write(ServerTest.CSV);
+		writer.close();
+		GraticuleArchive.open(csv);
+	}
+}
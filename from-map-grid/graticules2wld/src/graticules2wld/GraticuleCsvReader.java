@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.Line2D;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streaming reader for the graticules csv format,
+
+lonlat,dir,value,x1,y1,x2,y2
+lon,w,500,619.32204,221.18643,1348.0085,4434.7881
+lat,h,0,125.33898,1128.0508,4235.4131,427.62711
+
+ * or the same with a leading sheet id column, for files which hold the graticules of many sheets,
+
+sheet,lonlat,dir,value,x1,y1,x2,y2
+PMapMN05-14041501,lon,w,500,619.32204,221.18643,1348.0085,4434.7881
+PMapMN05-14041501,lat,h,0,125.33898,1128.0508,4235.4131,427.62711
+PMapMN05-14041502,lon,w,500,601.2,230.3,1339.4,4421.0
+
+ * where all the rows of a sheet must be together.
+ *
+ * Files are memory mapped a window at a time and each row is parsed straight from the bytes, without building
+ * a String or any other object for it, then passed to a Handler. Only numbers which can't be converted exactly
+ * with a single double multiply or divide (more than 15 significant digits, or large exponents) fall back to
+ * Double.parseDouble.
+ */
+public class GraticuleCsvReader {
+
+	public static final String HEADER = "lonlat,dir,value,x1,y1,x2,y2";
+	public static final String SHEETS_HEADER = "sheet," + HEADER;
+
+	/**
+	 * Receives each row of the csv as it is parsed.
+	 */
+	public interface Handler {
+		void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) throws Exception;
+	}
+
+	/**
+	 * A Handler which is also told where each sheet starts and ends. Multiple sheet files can only be read with a
+	 * SheetHandler. For a single sheet file there is one sheet, with a null id.
+	 */
+	public interface SheetHandler extends Handler {
+		/**
+		 * Called before the first row of each sheet.
+		 */
+		void startSheet(String sheetId) throws Exception;
+
+		/**
+		 * Called once all the rows of the current sheet have been passed to graticule().
+		 */
+		void endSheet() throws Exception;
+	}
+
+	// how much of the file to map at once, any single line must fit within this
+	static final int WINDOW = 64 * 1024 * 1024;
+
+	// powers of ten which are exactly representable as doubles
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i = 1; i < POW10.length; i++)
+			POW10[i] = POW10[i - 1] * 10;
+	}
+
+	private ByteBuffer buf;
+	private int pos; // start of the next unparsed byte in buf
+	private int eol; // end of the current line, exclusive of the line terminator
+	private long lineNumber;
+
+	private boolean sheets; // whether the file has a sheet id column
+	private byte[] sheetId = new byte[64]; // id of the current sheet
+	private int sheetIdLength = -1; // -1 before the first sheet
+	private Set<String> finishedSheets;
+
+	private GraticuleCsvReader() {
+	}
+
+	/**
+	 * Reads a graticules csv file, calling handler for each row.
+	 * @throws GraticuleFormatException if the file isn't a graticules csv
+	 */
+	public static void read(Path csv, Handler handler) throws Exception {
+		FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ);
+		try {
+			new GraticuleCsvReader().read(channel, handler);
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a graticules csv held in buf, from its position to its limit, calling handler for each row.
+	 * @throws GraticuleFormatException if the buffer doesn't hold a graticules csv
+	 */
+	public static void read(ByteBuffer buf, Handler handler) throws Exception {
+		GraticuleCsvReader reader = new GraticuleCsvReader();
+		reader.buf = buf;
+		reader.pos = buf.position();
+		reader.readHeader(handler);
+		while (reader.nextLine(true))
+			reader.readRow(handler);
+		reader.finish(handler);
+	}
+
+	/**
+	 * @return whether the csv file has the sheet id column of a multiple sheet file
+	 */
+	public static boolean isMultiSheet(Path csv) throws IOException {
+		FileChannel channel = FileChannel.open(csv, StandardOpenOption.READ);
+		try {
+			ByteBuffer start = ByteBuffer.allocate(SHEETS_HEADER.length() + 2);
+			while (start.hasRemaining() && channel.read(start) >= 0);
+			start.flip();
+
+			GraticuleCsvReader reader = new GraticuleCsvReader();
+			reader.buf = start;
+			return reader.nextLine(true) && reader.matches(SHEETS_HEADER);
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads a graticules csv file into lists of lon and lat graticules.
+	 */
+	public static void read(Path csv, final List<Graticule> lonGrats, final List<Graticule> latGrats) throws Exception {
+		read(csv, listHandler(lonGrats, latGrats));
+	}
+
+	/**
+	 * @return a Handler which builds a Graticule for each row, adding it to lonGrats or latGrats
+	 */
+	public static Handler listHandler(final List<Graticule> lonGrats, final List<Graticule> latGrats) {
+		return new Handler() {
+			@Override
+			public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) {
+				Graticule graticule = new Graticule(latlon, dir, value,
+						new Line2D.Double(x1, y1, x2, y2));
+
+				if (latlon.equals(LATLON.LAT))
+					latGrats.add(graticule);
+				else
+					lonGrats.add(graticule);
+			}
+		};
+	}
+
+	private void read(FileChannel channel, Handler handler) throws Exception {
+		long size = channel.size();
+		long base = 0;
+		boolean header = true;
+
+		while (base < size) {
+			long length = Math.min(WINDOW, size - base);
+			boolean last = base + length == size;
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+			pos = 0;
+
+			if (header) {
+				readHeader(handler);
+				header = false;
+			}
+
+			while (nextLine(last))
+				readRow(handler);
+
+			if (last) {
+				finish(handler);
+				return;
+			}
+
+			// the window ended part way through a line, remap from the start of that line
+			if (pos == 0)
+				throw new GraticuleFormatException(lineNumber + 1, "line is longer than " + WINDOW + " bytes");
+			base += pos;
+		}
+
+		if (header)
+			throw new GraticuleFormatException(1, "file is empty, expected the header " + HEADER);
+	}
+
+	/**
+	 * Finds the next non empty line starting at pos, setting eol to its end.
+	 * @param last whether buf holds the end of the file, if not a final line with no terminator is left for the next window
+	 * @return false if there are no more complete lines in buf
+	 */
+	private boolean nextLine(boolean last) {
+		int limit = buf.limit();
+		while (pos < limit) {
+			int end = pos;
+			while (end < limit && buf.get(end) != '\n')
+				end++;
+
+			if (end == limit && !last)
+				return false;
+
+			lineNumber++;
+			eol = end;
+			if (eol > pos && buf.get(eol - 1) == '\r')
+				eol--;
+
+			if (eol > pos)
+				return true;
+
+			// skip empty lines
+			pos = Math.min(end + 1, limit);
+		}
+		return false;
+	}
+
+	private void readHeader(Handler handler) throws Exception {
+		if (!nextLine(true) || lineNumber != 1)
+			throw new GraticuleFormatException(1, "the first line should be the header " + HEADER);
+
+		if (matches(SHEETS_HEADER)) {
+			if (!(handler instanceof SheetHandler))
+				throw new GraticuleFormatException(1, "this file holds the graticules of many sheets, but only one sheet was expected");
+			sheets = true;
+			finishedSheets = new HashSet<String>();
+		}else if (!matches(HEADER)) {
+			throw new GraticuleFormatException(1, "the first line should be the header " + HEADER + " or " + SHEETS_HEADER);
+		}
+		endLine();
+
+		if (!sheets && handler instanceof SheetHandler)
+			((SheetHandler) handler).startSheet(null);
+	}
+
+	private void finish(Handler handler) throws Exception {
+		if (handler instanceof SheetHandler && (!sheets || sheetIdLength >= 0))
+			((SheetHandler) handler).endSheet();
+	}
+
+	/**
+	 * Reads the sheet id column, telling handler when it moves onto a new sheet.
+	 */
+	private void readSheetId(SheetHandler handler) throws Exception {
+		int start = pos;
+		while (pos < eol && buf.get(pos) != ',')
+			pos++;
+		int length = pos - start;
+		if (length == 0)
+			throw error("the sheet id is empty");
+
+		// most rows are for the same sheet as the row before
+		if (length == sheetIdLength) {
+			int i = 0;
+			while (i < length && buf.get(start + i) == sheetId[i])
+				i++;
+			if (i == length)
+				return;
+		}
+
+		if (sheetIdLength >= 0) {
+			handler.endSheet();
+			finishedSheets.add(new String(sheetId, 0, sheetIdLength, StandardCharsets.UTF_8));
+		}
+
+		if (length > sheetId.length)
+			sheetId = new byte[Math.max(length, sheetId.length * 2)];
+		for (int i = 0; i < length; i++)
+			sheetId[i] = buf.get(start + i);
+		sheetIdLength = length;
+
+		String id = new String(sheetId, 0, length, StandardCharsets.UTF_8);
+		if (finishedSheets.contains(id))
+			throw error("the rows for sheet " + id + " should all be together, but more were found after other sheets");
+		handler.startSheet(id);
+	}
+
+	/**
+	 * @return whether the current line is exactly s
+	 */
+	private boolean matches(String s) {
+		if (eol - pos != s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (buf.get(pos + i) != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private void readRow(Handler handler) throws Exception {
+		if (sheets) {
+			readSheetId((SheetHandler) handler);
+			expectComma();
+		}
+		LATLON latlon = readLatLon();
+		expectComma();
+		DIR dir = readDir();
+		expectComma();
+		int value = readInt();
+		expectComma();
+		double x1 = readDouble();
+		expectComma();
+		double y1 = readDouble();
+		expectComma();
+		double x2 = readDouble();
+		expectComma();
+		double y2 = readDouble();
+		if (pos != eol)
+			throw error("each line should have " + columns() + " columns, but found extra data after the last");
+		endLine();
+
+		handler.graticule(latlon, dir, value, x1, y1, x2, y2);
+	}
+
+	private void endLine() {
+		pos = Math.min(eol + 1, buf.limit());
+		if (pos < buf.limit() && buf.get(pos - 1) == '\r')
+			pos++; // step over the \n of a \r\n
+	}
+
+	private int columns() {
+		return sheets ? 8 : 7;
+	}
+
+	private GraticuleFormatException error(String message) {
+		return new GraticuleFormatException(lineNumber, message);
+	}
+
+	private void expectComma() throws GraticuleFormatException {
+		if (pos >= eol)
+			throw error("each line should have " + columns() + " columns, but found fewer");
+		if (buf.get(pos) != ',')
+			throw error("expected ',' but found '" + (char) buf.get(pos) + "'");
+		pos++;
+	}
+
+	private LATLON readLatLon() throws GraticuleFormatException {
+		if (eol - pos >= 3 && buf.get(pos) == 'l') {
+			byte b1 = buf.get(pos + 1), b2 = buf.get(pos + 2);
+			if (b1 == 'o' && b2 == 'n') {
+				pos += 3;
+				return LATLON.LON;
+			}
+			if (b1 == 'a' && b2 == 't') {
+				pos += 3;
+				return LATLON.LAT;
+			}
+		}
+		throw error("either 'lat' or 'lon' expected, found " + field());
+	}
+
+	private DIR readDir() throws GraticuleFormatException {
+		if (pos < eol) {
+			DIR dir = null;
+			switch (buf.get(pos)) {
+			case 'n': case 'N': case 'h': case 'H': dir = DIR.N; break;
+			case 's': case 'S': dir = DIR.S; break;
+			case 'e': case 'E': case 'v': case 'V': dir = DIR.E; break;
+			case 'w': case 'W': dir = DIR.W; break;
+			}
+			if (dir != null && (pos + 1 == eol || buf.get(pos + 1) == ',')) {
+				pos++;
+				return dir;
+			}
+		}
+		throw error("either n,s,e,w,h,v expected, found " + field());
+	}
+
+	private void skipBlanks() {
+		while (pos < eol && (buf.get(pos) == ' ' || buf.get(pos) == '\t'))
+			pos++;
+	}
+
+	private int readInt() throws GraticuleFormatException {
+		skipBlanks();
+		int start = pos;
+		boolean negative = false;
+		if (pos < eol && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+			negative = buf.get(pos++) == '-';
+
+		long value = 0;
+		int digitsStart = pos;
+		while (pos < eol) {
+			int d = buf.get(pos) - '0';
+			if (d < 0 || d > 9)
+				break;
+			value = value * 10 + d;
+			if (value > Integer.MAX_VALUE + 1L)
+				throw error("value out of range " + text(start, pos + 1));
+			pos++;
+		}
+		if (pos == digitsStart)
+			throw error("expected an integer value, found " + field());
+		skipBlanks();
+
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE)
+			throw error("value out of range " + text(start, pos));
+		return (int) value;
+	}
+
+	private double readDouble() throws GraticuleFormatException {
+		skipBlanks();
+		int start = pos;
+		boolean negative = false;
+		if (pos < eol && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+			negative = buf.get(pos++) == '-';
+
+		long mantissa = 0;
+		int digits = 0; // significant digits in mantissa
+		int exponent = 0;
+		boolean any = false;
+
+		while (pos < eol) {
+			int d = buf.get(pos) - '0';
+			if (d < 0 || d > 9)
+				break;
+			if (digits < 18) {
+				mantissa = mantissa * 10 + d;
+				if (mantissa != 0)
+					digits++;
+			}else{
+				exponent++;
+			}
+			any = true;
+			pos++;
+		}
+
+		if (pos < eol && buf.get(pos) == '.') {
+			pos++;
+			while (pos < eol) {
+				int d = buf.get(pos) - '0';
+				if (d < 0 || d > 9)
+					break;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + d;
+					if (mantissa != 0)
+						digits++;
+					exponent--;
+				}
+				any = true;
+				pos++;
+			}
+		}
+
+		if (!any)
+			throw error("expected a number, found " + field());
+
+		if (pos < eol && (buf.get(pos) == 'e' || buf.get(pos) == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < eol && (buf.get(pos) == '-' || buf.get(pos) == '+'))
+				negativeExponent = buf.get(pos++) == '-';
+			int e = 0;
+			int exponentStart = pos;
+			while (pos < eol) {
+				int d = buf.get(pos) - '0';
+				if (d < 0 || d > 9)
+					break;
+				if (e < 100000)
+					e = e * 10 + d;
+				pos++;
+			}
+			if (pos == exponentStart)
+				throw error("expected a number, found " + text(start, pos));
+			exponent += negativeExponent ? -e : e;
+		}
+		int end = pos;
+		skipBlanks();
+
+		double value;
+		if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+			// the mantissa and power of ten are both exact, so a single operation gives a correctly rounded result
+			value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+		}else{
+			return Double.parseDouble(text(start, end));
+		}
+
+		return negative ? -value : value;
+	}
+
+	/**
+	 * @return the rest of the current column as a String, for error messages
+	 */
+	private String field() {
+		int end = pos;
+		while (end < eol && buf.get(end) != ',')
+			end++;
+		return "'" + text(pos, end) + "'";
+	}
+
+	private String text(int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buf.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GraticuleCsvReaderTest {
+
+	static ByteBuffer csv(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Collects each row as its fields so they can be checked.
+	 */
+	static class Rows implements GraticuleCsvReader.Handler {
+		List<Object[]> rows = new ArrayList<Object[]>();
+
+		@Override
+		public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) {
+			rows.add(new Object[] {latlon, dir, value, x1, y1, x2, y2});
+		}
+	}
+
+	/**
+	 * Testing the rows of a csv are passed on as they appear
+	 */
+	@Test
+	public void test_read() throws Exception {
+		Rows rows = new Rows();
+		GraticuleCsvReader.read(csv("lonlat,dir,value,x1,y1,x2,y2\r\n"
+				+ "lon,w,500,619.32204,221.18643,1348.0085,4434.7881\r\n"
+				+ "lat,h,0,125.33898,1128.0508,4235.4131,427.62711\r\n"
+				+ "\r\n"
+				+ "lon,v,0, -1e3 ,2.5E-2,+7,.5"), rows);
+
+		assertEquals(3, rows.rows.size());
+		assertArrayEquals(new Object[] {LATLON.LON, DIR.W, 500, 619.32204, 221.18643, 1348.0085, 4434.7881}, rows.rows.get(0));
+		assertArrayEquals(new Object[] {LATLON.LAT, DIR.N, 0, 125.33898, 1128.0508, 4235.4131, 427.62711}, rows.rows.get(1));
+		assertArrayEquals(new Object[] {LATLON.LON, DIR.E, 0, -1000.0, 0.025, 7.0, 0.5}, rows.rows.get(2));
+	}
+
+	/**
+	 * Testing numbers parsed from bytes come out the same as Double.parseDouble
+	 */
+	@Test
+	public void test_numbers() throws Exception {
+		Random random = new Random(42);
+		StringBuilder s = new StringBuilder(GraticuleCsvReader.HEADER + "\n");
+		List<String> numbers = new ArrayList<String>();
+		for (int i = 0; i < 10000; i++) {
+			String n;
+			switch (i % 4) {
+			case 0: n = Double.toString(random.nextDouble() * 10000); break; // up to 17 significant digits
+			case 1: n = String.format("%.5f", random.nextDouble() * 10000); break;
+			case 2: n = Double.toString(random.nextGaussian() * 1e-30); break;
+			default: n = Long.toString(random.nextInt()); break;
+			}
+			numbers.add(n);
+			s.append("lat,n,1,").append(n).append(",0,0,0\n");
+		}
+
+		Rows rows = new Rows();
+		GraticuleCsvReader.read(csv(s.toString()), rows);
+
+		for (int i = 0; i < numbers.size(); i++)
+			assertEquals(numbers.get(i), Double.parseDouble(numbers.get(i)), (Double) rows.rows.get(i)[3], 0);
+	}
+
+	/**
+	 * Testing problems are reported along with the line they were found on
+	 */
+	@Test
+	public void test_errors() throws Exception {
+		assertErrorOnLine(1, "lonlat,dir,value\nlon,w,500,1,2,3,4\n");
+		assertErrorOnLine(3, GraticuleCsvReader.HEADER + "\nlon,w,500,1,2,3,4\nlon,x,500,1,2,3,4\n");
+		assertErrorOnLine(2, GraticuleCsvReader.HEADER + "\nlonlat,w,500,1,2,3,4\n");
+		assertErrorOnLine(2, GraticuleCsvReader.HEADER + "\nlon,w,500,1,2,3\n");
+		assertErrorOnLine(2, GraticuleCsvReader.HEADER + "\nlon,w,500,1,2,3,4,5\n");
+		assertErrorOnLine(2, GraticuleCsvReader.HEADER + "\nlon,w,5.5,1,2,3,4\n");
+		assertErrorOnLine(4, GraticuleCsvReader.HEADER + "\nlon,w,500,1,2,3,4\n\nlat,n,1,1,2,three,4\n");
+	}
+
+	/**
+	 * Collects the sheets of a multiple sheet csv as "id:rows".
+	 */
+	static class Sheets extends Rows implements GraticuleCsvReader.SheetHandler {
+		List<String> sheets = new ArrayList<String>();
+		String current;
+
+		@Override
+		public void startSheet(String sheetId) {
+			current = sheetId;
+			rows.clear();
+		}
+
+		@Override
+		public void endSheet() {
+			sheets.add(current + ":" + rows.size());
+		}
+	}
+
+	/**
+	 * Testing sheets are split up as the sheet id changes
+	 */
+	@Test
+	public void test_sheets() throws Exception {
+		Sheets sheets = new Sheets();
+		GraticuleCsvReader.read(csv(GraticuleCsvReader.SHEETS_HEADER + "\n"
+				+ "a,lon,w,500,1,2,3,4\n"
+				+ "a,lat,n,500,1,2,3,4\n"
+				+ "bb,lat,n,500,1,2,3,4\n"
+				+ "a2,lat,n,500,1,2,3,4\n"), sheets);
+		assertEquals(Arrays.asList("a:2", "bb:1", "a2:1"), sheets.sheets);
+
+		// a single sheet file is one sheet with no id
+		sheets = new Sheets();
+		GraticuleCsvReader.read(csv(GraticuleCsvReader.HEADER + "\nlon,w,500,1,2,3,4\n"), sheets);
+		assertEquals(Arrays.asList("null:1"), sheets.sheets);
+
+		// the rows of a sheet have to be together
+		try {
+			GraticuleCsvReader.read(csv(GraticuleCsvReader.SHEETS_HEADER + "\n"
+					+ "a,lon,w,500,1,2,3,4\n"
+					+ "b,lat,n,500,1,2,3,4\n"
+					+ "a,lat,n,500,1,2,3,4\n"), new Sheets());
+			fail("expected an error for a sheet split in two");
+		}catch( GraticuleFormatException exp ) {
+			assertEquals(4, exp.getLineNumber());
+		}
+
+		// and a plain Handler can't read many sheets
+		assertErrorOnLine(1, GraticuleCsvReader.SHEETS_HEADER + "\na,lon,w,500,1,2,3,4\n");
+	}
+
+	static void assertErrorOnLine(long line, String s) throws Exception {
+		try {
+			GraticuleCsvReader.read(csv(s), new Rows());
+			fail("expected an error on line " + line);
+		}catch( GraticuleFormatException exp ) {
+			assertEquals(exp.getMessage(), line, exp.getLineNumber());
+		}
+	}
+}
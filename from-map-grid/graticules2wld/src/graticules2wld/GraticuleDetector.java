@@ -0,0 +1,580 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageReader;
+
+/**
+ * Finds the long straight lines of a scanned sheet's graticules, so they don't have to be traced by hand. The
+ * lines are written in the graticules csv format with their values left blank,
+
+lonlat,dir,value,x1,y1,x2,y2
+lat,h,,125.33898,1128.0508,4235.4131,427.62711
+lon,v,,619.32204,221.18643,1348.0085,4434.7881
+
+ * ready for the value (and n, s, e or w for h or v) of each to be filled in.
+ *
+ * The scan is decoded a band of tiles at a time, by one thread a band ahead of the workers. Each TILE square
+ * tile is searched on its own with a Hough transform. Only ink which is thin across the line votes, that is
+ * dark pixels with paper THIN pixels to either side, so text and filled areas add little. Each strong peak is
+ * followed across the tile to a segment, which is fitted to the middle of its ink, strongest first. The ink a
+ * segment is fitted to is claimed, and weaker peaks only follow ink which isn't, so a thick line or border which
+ * gives several peaks still gives one segment. The graticules are close to the scan's rows and columns, so only
+ * angles within maxSkew of them are searched.
+ *
+ * The segments of all the tiles are then merged, left to right (or top to bottom), into lines: a segment
+ * joins a line if both its ends are within JOIN pixels of the line fitted to the segments joined so far, which
+ * bridges labels and other gaps in a graticule. Lines whose fits are still within JOIN pixels of each other
+ * where they overlap are then merged too. Lines shorter than minLength, or with less than MIN_COVERAGE of their
+ * length inked, are dropped.
+ */
+public final class GraticuleDetector {
+
+	public static final int TILE = 256;
+	static final int THIN = 4; // pixels either side of a line's ink which must be paper
+	static final double ANGLE_STEP = Math.toRadians(0.25);
+	static final int MIN_SEGMENT = 40; // shortest run of ink kept from a tile, in pixels
+	static final int MAX_GAP = 6; // longest break in a run of ink, in pixels
+	static final double MIN_FILL = 0.6; // least part of a segment which must be inked
+	static final int MAX_PEAKS = 24; // strongest peaks followed in each tile, for each of rows and columns
+	static final double JOIN = 2.5; // pixels
+	static final double MIN_COVERAGE = 0.4;
+	// how far past the tile, across it, a followed line can look for ink
+	private static final int CLAIM_MARGIN = 3;
+
+	/**
+	 * The lines found, in pixel coordinates. LAT lines run across the scan, top to bottom, and LON lines down
+	 * it, left to right.
+	 */
+	public static final class Result {
+		public final List<Line2D.Double> lat;
+		public final List<Line2D.Double> lon;
+
+		Result(List<Line2D.Double> lat, List<Line2D.Double> lon) {
+			this.lat = Collections.unmodifiableList(lat);
+			this.lon = Collections.unmodifiableList(lon);
+		}
+
+		/**
+		 * Writes the lines as a graticules csv with blank values.
+		 */
+		public void writeCsv(Writer out) throws IOException {
+			out.write(GraticuleCsvReader.HEADER + "\n");
+			for (Line2D.Double l : lat)
+				out.write("lat,h,," + l.x1 + "," + l.y1 + "," + l.x2 + "," + l.y2 + "\n");
+			for (Line2D.Double l : lon)
+				out.write("lon,v,," + l.x1 + "," + l.y1 + "," + l.x2 + "," + l.y2 + "\n");
+		}
+	}
+
+	private final int threshold;
+	private final double minLength;
+
+	// the angles searched, as sin and cos
+	private final double[] sin;
+	private final double[] cos;
+
+	/**
+	 * @param threshold the brightest (0 to 255) a pixel can be and still count as ink
+	 * @param maxSkew the furthest, in degrees, a graticule may be turned from the scan's rows or columns
+	 * @param minLength the shortest line kept in pixels, or 0 for a quarter of the scan's smaller side
+	 */
+	public GraticuleDetector(int threshold, double maxSkew, double minLength) {
+		this.threshold = threshold;
+		this.minLength = minLength;
+		int n = (int) Math.round(Math.toRadians(maxSkew) / ANGLE_STEP);
+		sin = new double[2 * n + 1];
+		cos = new double[2 * n + 1];
+		for (int a = -n; a <= n; a++) {
+			sin[a + n] = Math.sin(a * ANGLE_STEP);
+			cos[a + n] = Math.cos(a * ANGLE_STEP);
+		}
+	}
+
+	/**
+	 * Finds the graticule lines of a scan.
+	 * @param threads the number of worker threads searching tiles
+	 */
+	public Result detect(File image, int threads) throws IOException, InterruptedException {
+		final ImageReader reader = Warper.open(image);
+		final int width = reader.getWidth(0), height = reader.getHeight(0);
+		final List<Segment> rows = new ArrayList<Segment>(), columns = new ArrayList<Segment>();
+
+		ExecutorService decoder = Executors.newSingleThreadExecutor();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			Future<Band> next = decoder.submit(readBand(reader, 0, width, height));
+			for (int y = 0; y < height; y += TILE) {
+				final Band band = get(next);
+				if (y + TILE < height)
+					next = decoder.submit(readBand(reader, y + TILE, width, height));
+
+				List<Future<List<Segment>>> tiles = new ArrayList<Future<List<Segment>>>();
+				for (int x = 0; x < width; x += TILE) {
+					final Rectangle tile = new Rectangle(x, y, Math.min(TILE, width - x), Math.min(TILE, height - y));
+					tiles.add(pool.submit(new Callable<List<Segment>>() {
+						@Override
+						public List<Segment> call() {
+							return search(band, tile);
+						}
+					}));
+				}
+				for (Future<List<Segment>> f : tiles) {
+					for (Segment s : get(f))
+						(s.columns ? columns : rows).add(s);
+				}
+			}
+		}finally{
+			decoder.shutdownNow();
+			pool.shutdownNow();
+			decoder.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			Warper.close(reader);
+		}
+
+		double shortest = minLength > 0 ? minLength : Math.min(width, height) / 4.0;
+		return new Result(merge(rows, shortest, false), merge(columns, shortest, true));
+	}
+
+	private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		}catch( ExecutionException exp ) {
+			if (exp.getCause() instanceof IOException)
+				throw (IOException) exp.getCause();
+			throw new IOException(exp.getCause());
+		}
+	}
+
+	/**
+	 * The luminance of a band of whole rows of the scan, a tile high with THIN rows more above and below.
+	 */
+	static final class Band {
+		final byte[] lum;
+		final int width;
+		final int y0; // the scan row of lum's first row
+		final int rows;
+
+		Band(byte[] lum, int width, int y0, int rows) {
+			this.lum = lum;
+			this.width = width;
+			this.y0 = y0;
+			this.rows = rows;
+		}
+	}
+
+	private Callable<Band> readBand(final ImageReader reader, final int y, final int width, final int height) {
+		return new Callable<Band>() {
+			@Override
+			public Band call() throws IOException {
+				int y0 = Math.max(0, y - THIN), y1 = Math.min(height, y + TILE + THIN);
+				int[] argb = Warper.read(reader, new Rectangle(0, y0, width, y1 - y0));
+				return new Band(luminance(argb), width, y0, y1 - y0);
+			}
+		};
+	}
+
+	static byte[] luminance(int[] argb) {
+		byte[] lum = new byte[argb.length];
+		for (int i = 0; i < argb.length; i++) {
+			int p = argb[i];
+			lum[i] = (byte) ((((p >> 16) & 0xff) * 77 + ((p >> 8) & 0xff) * 150 + (p & 0xff) * 29) >> 8);
+		}
+		return lum;
+	}
+
+	/**
+	 * A straight run of ink found in a tile, as v = slope * u + intercept from u1 to u2, where u, v are x, y for
+	 * rows and y, x for columns.
+	 */
+	static final class Segment {
+		final boolean columns;
+		final double u1, u2;
+		final double slope, intercept;
+
+		Segment(boolean columns, double u1, double u2, double slope, double intercept) {
+			this.columns = columns;
+			this.u1 = u1;
+			this.u2 = u2;
+			this.slope = slope;
+			this.intercept = intercept;
+		}
+
+		double v(double u) {
+			return slope * u + intercept;
+		}
+	}
+
+	/**
+	 * Looks up thin ink in a band, in u, v coordinates. Pixels off the scan are paper.
+	 */
+	private final class Ink {
+		final Band band;
+		final boolean columns;
+
+		Ink(Band band, boolean columns) {
+			this.band = band;
+			this.columns = columns;
+		}
+
+		boolean dark(int x, int y) {
+			int row = y - band.y0;
+			if (x < 0 || x >= band.width || row < 0 || row >= band.rows)
+				return false;
+			return (band.lum[row * band.width + x] & 0xff) <= threshold;
+		}
+
+		/**
+		 * @return whether u, v is ink with paper THIN pixels either side of it across the line
+		 */
+		boolean thin(int u, int v) {
+			if (columns)
+				return dark(v, u) && !dark(v - THIN, u) && !dark(v + THIN, u);
+			return dark(u, v) && !dark(u, v - THIN) && !dark(u, v + THIN);
+		}
+	}
+
+	/**
+	 * Finds the segments of rows and of columns in one tile.
+	 */
+	List<Segment> search(Band band, Rectangle tile) {
+		List<Segment> segments = new ArrayList<Segment>();
+		search(new Ink(band, false), tile.x, tile.width, tile.y, tile.height, segments);
+		search(new Ink(band, true), tile.y, tile.height, tile.x, tile.width, segments);
+		return segments;
+	}
+
+	/**
+	 * Finds the segments of one direction in a tile, which is u0 to u0 + uw along them and v0 to v0 + vw across.
+	 */
+	private void search(Ink ink, int u0, int uw, int v0, int vw, List<Segment> segments) {
+		double cu = u0 + uw / 2.0, cv = v0 + vw / 2.0;
+		int angles = sin.length;
+		int rhoOffset = (int) Math.ceil(Math.hypot(uw, vw) / 2) + 1;
+		int rhos = 2 * rhoOffset + 1;
+		int[] votes = new int[angles * rhos];
+
+		// every thin ink pixel votes for the lines through it, rho being its distance across the line from the
+		// tile's center
+		for (int v = v0; v < v0 + vw; v++) {
+			for (int u = u0; u < u0 + uw; u++) {
+				if (!ink.thin(u, v))
+					continue;
+				double du = u - cu, dv = v - cv;
+				for (int a = 0; a < angles; a++)
+					votes[a * rhos + (int) Math.round(dv * cos[a] - du * sin[a]) + rhoOffset]++;
+			}
+		}
+
+		// the strongest local maxima
+		List<int[]> peaks = new ArrayList<int[]>();
+		for (int a = 0; a < angles; a++) {
+			for (int r = 1; r < rhos - 1; r++) {
+				int n = votes[a * rhos + r];
+				if (n < MIN_SEGMENT * MIN_FILL || !isPeak(votes, angles, rhos, a, r))
+					continue;
+				peaks.add(new int[] {n, a, r});
+			}
+		}
+		Collections.sort(peaks, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] p, int[] q) {
+				return q[0] - p[0];
+			}
+		});
+
+		double[] centers = new double[uw];
+		boolean[] hit = new boolean[uw];
+		boolean[] claimed = new boolean[uw * (vw + 2 * CLAIM_MARGIN)];
+		for (int p = 0; p < Math.min(MAX_PEAKS, peaks.size()); p++) {
+			int a = peaks.get(p)[1];
+			double rho = peaks.get(p)[2] - rhoOffset;
+			// v = cv + (rho + (u - cu) sin) / cos
+			double slope = sin[a] / cos[a], intercept = cv + rho / cos[a] - cu * slope;
+			follow(ink, u0, uw, v0, vw, slope, intercept, centers, hit, claimed, segments);
+		}
+	}
+
+	private static boolean isPeak(int[] votes, int angles, int rhos, int a, int r) {
+		int n = votes[a * rhos + r];
+		for (int da = -1; da <= 1; da++) {
+			if (a + da < 0 || a + da >= angles)
+				continue;
+			for (int dr = -1; dr <= 1; dr++) {
+				int m = votes[(a + da) * rhos + r + dr];
+				// ties go to the first
+				if (m > n || (m == n && (da < 0 || (da == 0 && dr < 0))))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Follows a line across the tile, adding the runs of ink along it which are long and solid enough, each
+	 * fitted to the middle of its ink. Ink claimed by an earlier run is passed over, and the ink of each run
+	 * added is claimed.
+	 * @param claimed for each pixel of the tile, and CLAIM_MARGIN more either side across it, whether its ink is
+	 * already part of a segment
+	 */
+	private void follow(Ink ink, int u0, int uw, int v0, int vw, double slope, double intercept,
+			double[] centers, boolean[] hit, boolean[] claimed, List<Segment> segments) {
+		for (int i = 0; i < uw; i++) {
+			int u = u0 + i;
+			int v = (int) Math.round(slope * u + intercept);
+			hit[i] = false;
+			if (v < v0 - 1 || v > v0 + vw)
+				continue;
+			// the middle of the unclaimed thin ink within a pixel or two of the line
+			double sum = 0;
+			int n = 0;
+			for (int dv = -2; dv <= 2; dv++) {
+				if (!claimed[claim(uw, v0, i, v + dv)] && ink.thin(u, v + dv)) {
+					sum += v + dv;
+					n++;
+				}
+			}
+			if (n > 0) {
+				hit[i] = true;
+				centers[i] = sum / n;
+			}
+		}
+
+		int start = -1, last = -1, hits = 0;
+		for (int i = 0; i <= uw; i++) {
+			if (i < uw && hit[i]) {
+				if (start < 0 || i - last > MAX_GAP) {
+					if (run(ink.columns, u0, start, last, hits, centers, hit, segments))
+						claim(ink, u0, uw, v0, start, last, slope, intercept, hit, claimed);
+					start = i;
+					hits = 0;
+				}
+				last = i;
+				hits++;
+			}
+		}
+		if (run(ink.columns, u0, start, last, hits, centers, hit, segments))
+			claim(ink, u0, uw, v0, start, last, slope, intercept, hit, claimed);
+	}
+
+	/**
+	 * @return the index in claimed of the pixel i along the tile and v across it
+	 */
+	private static int claim(int uw, int v0, int i, int v) {
+		return (v - v0 + CLAIM_MARGIN) * uw + i;
+	}
+
+	/**
+	 * Claims the ink within a pixel or two of the line from start to last, that the run just added was fitted to.
+	 */
+	private static void claim(Ink ink, int u0, int uw, int v0, int start, int last, double slope, double intercept,
+			boolean[] hit, boolean[] claimed) {
+		for (int i = start; i <= last; i++) {
+			if (!hit[i])
+				continue;
+			int u = u0 + i;
+			int v = (int) Math.round(slope * u + intercept);
+			for (int dv = -2; dv <= 2; dv++) {
+				if (ink.thin(u, v + dv))
+					claimed[claim(uw, v0, i, v + dv)] = true;
+			}
+		}
+	}
+
+	/**
+	 * Adds the run from start to last as a segment if it is long and solid enough.
+	 * @return whether it was added
+	 */
+	private static boolean run(boolean columns, int u0, int start, int last, int hits, double[] centers, boolean[] hit,
+			List<Segment> segments) {
+		if (start < 0 || last - start + 1 < MIN_SEGMENT || hits < MIN_FILL * (last - start + 1))
+			return false;
+		// least squares line through the middles of the ink
+		double su = 0, sv = 0, suu = 0, suv = 0;
+		int n = 0;
+		for (int i = start; i <= last; i++) {
+			if (!hit[i])
+				continue;
+			double u = i - start, v = centers[i];
+			su += u;
+			sv += v;
+			suu += u * u;
+			suv += u * v;
+			n++;
+		}
+		double slope = (n * suv - su * sv) / (n * suu - su * su);
+		double intercept = (sv - slope * su) / n - slope * (u0 + start);
+		segments.add(new Segment(columns, u0 + start, u0 + last, slope, intercept));
+		return true;
+	}
+
+	/**
+	 * A line being built from segments, with the sums for a least squares fit through their ends.
+	 */
+	private static final class Line {
+		final List<Segment> segments = new ArrayList<Segment>();
+		double minU, maxU;
+		double w, su, sv, suu, suv;
+		double slope, intercept;
+
+		Line(Segment s) {
+			minU = s.u1;
+			maxU = s.u2;
+			add(s);
+		}
+
+		void add(Segment s) {
+			segments.add(s);
+			minU = Math.min(minU, s.u1);
+			maxU = Math.max(maxU, s.u2);
+			double length = s.u2 - s.u1;
+			// each segment counts as its two ends, weighted by its length
+			for (double u : new double[] {s.u1, s.u2}) {
+				double v = s.v(u);
+				w += length;
+				su += length * u;
+				sv += length * v;
+				suu += length * u * u;
+				suv += length * u * v;
+			}
+			double det = w * suu - su * su;
+			if (det > 0) {
+				slope = (w * suv - su * sv) / det;
+				intercept = (sv - slope * su) / w;
+			}else{
+				slope = s.slope;
+				intercept = s.intercept;
+			}
+		}
+
+		double v(double u) {
+			return slope * u + intercept;
+		}
+
+		/**
+		 * @return how much of the line's length its segments cover, counting where they overlap once
+		 */
+		double inked() {
+			List<Segment> sorted = new ArrayList<Segment>(segments);
+			Collections.sort(sorted, BY_START);
+			double inked = 0, end = Double.NEGATIVE_INFINITY;
+			for (Segment s : sorted) {
+				if (s.u2 > end) {
+					inked += s.u2 - Math.max(s.u1, end);
+					end = s.u2;
+				}
+			}
+			return inked;
+		}
+
+		/**
+		 * @return whether this and l are within JOIN pixels of each other over the part of the scan they share
+		 */
+		boolean agrees(Line l) {
+			double from = Math.max(minU, l.minU), to = Math.min(maxU, l.maxU);
+			return from <= to && Math.abs(v(from) - l.v(from)) <= JOIN && Math.abs(v(to) - l.v(to)) <= JOIN;
+		}
+	}
+
+	private static final Comparator<Segment> BY_START = new Comparator<Segment>() {
+		@Override
+		public int compare(Segment a, Segment b) {
+			return Double.compare(a.u1, b.u1);
+		}
+	};
+
+	/**
+	 * Joins the segments of one direction into lines.
+	 */
+	private List<Line2D.Double> merge(List<Segment> segments, double shortest, boolean columns) {
+		Collections.sort(segments, BY_START);
+
+		double maxSlopeDifference = Math.tan(Math.toRadians(2));
+		List<Line> lines = new ArrayList<Line>();
+		for (Segment s : segments) {
+			Line best = null;
+			double bestDistance = JOIN;
+			for (Line l : lines) {
+				if (Math.abs(l.slope - s.slope) > maxSlopeDifference)
+					continue;
+				double d = Math.max(Math.abs(l.v(s.u1) - s.v(s.u1)), Math.abs(l.v(s.u2) - s.v(s.u2)));
+				if (d <= bestDistance) {
+					best = l;
+					bestDistance = d;
+				}
+			}
+			if (best != null)
+				best.add(s);
+			else
+				lines.add(new Line(s));
+		}
+
+		// lines started from stray segments of the same ink, which the line fitted so far didn't reach
+		for (int i = 0; i < lines.size(); i++) {
+			for (int j = i + 1; j < lines.size(); j++) {
+				if (!lines.get(i).agrees(lines.get(j)))
+					continue;
+				for (Segment s : lines.remove(j).segments)
+					lines.get(i).add(s);
+				j = i; // look again, as the merged line has moved
+			}
+		}
+
+		List<Line> kept = new ArrayList<Line>();
+		for (Line l : lines) {
+			double extent = l.maxU - l.minU;
+			if (extent * Math.hypot(1, l.slope) >= shortest && l.inked() >= MIN_COVERAGE * extent)
+				kept.add(l);
+		}
+		// top to bottom, or left to right
+		Collections.sort(kept, new Comparator<Line>() {
+			@Override
+			public int compare(Line a, Line b) {
+				return Double.compare(a.v((a.minU + a.maxU) / 2), b.v((b.minU + b.maxU) / 2));
+			}
+		});
+
+		List<Line2D.Double> result = new ArrayList<Line2D.Double>();
+		for (Line l : kept) {
+			double v1 = l.v(l.minU), v2 = l.v(l.maxU);
+			result.add(columns ? new Line2D.Double(v1, l.minU, v2, l.maxU) : new Line2D.Double(l.minU, v1, l.maxU, v2));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GraticuleDetectorTest {
+
+	static final int WIDTH = 1500, HEIGHT = 1100;
+	static final double TURN = Math.toRadians(2);
+
+	/**
+	 * Draws a scan with a grid turned by TURN, every 250 pixels, over filled areas and under text and a label.
+	 * @param lat gets the grid's LAT lines, top to bottom
+	 * @param lon gets the grid's LON lines, left to right
+	 * @param border whether the scan's edges are dark, and the grid has a thick frame
+	 */
+	private static File scan(List<Line2D.Double> lat, List<Line2D.Double> lon, boolean border) throws Exception {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setColor(new Color(240, 230, 200));
+		g.fillRect(0, 0, WIDTH, HEIGHT);
+
+		Random random = new Random(29);
+		// filled areas, a dark one which hides the grid and light ones it shows through
+		g.setColor(new Color(20, 20, 20));
+		g.fillRect(900, 600, 180, 140);
+		for (int i = 0; i < 6; i++) {
+			g.setColor(new Color(200 + random.nextInt(40), 150 + random.nextInt(60), 150 + random.nextInt(60)));
+			g.fillOval(random.nextInt(WIDTH), random.nextInt(HEIGHT), 300, 200);
+		}
+
+		AffineTransform turn = AffineTransform.getRotateInstance(TURN, WIDTH / 2.0, HEIGHT / 2.0);
+		g.setColor(new Color(40, 40, 40));
+		g.setStroke(new BasicStroke(2));
+		for (int y = 150; y < HEIGHT; y += 250)
+			lat.add(draw(g, turn, 60, y, WIDTH - 60, y));
+		for (int x = 125; x < WIDTH; x += 250)
+			lon.add(draw(g, turn, x, 60, x, HEIGHT - 60));
+		if (border) {
+			g.setStroke(new BasicStroke(4));
+			lat.add(0, draw(g, turn, 40, 40, WIDTH - 40, 40));
+			lat.add(draw(g, turn, 40, HEIGHT - 40, WIDTH - 40, HEIGHT - 40));
+			lon.add(0, draw(g, turn, 40, 40, 40, HEIGHT - 40));
+			lon.add(draw(g, turn, WIDTH - 40, 40, WIDTH - 40, HEIGHT - 40));
+			g.fillRect(0, 0, WIDTH, 3);
+			g.fillRect(0, HEIGHT - 3, WIDTH, 3);
+			g.fillRect(0, 0, 3, HEIGHT);
+			g.fillRect(WIDTH - 3, 0, 3, HEIGHT);
+			lat.add(0, new Line2D.Double(0, 1, WIDTH, 1));
+			lat.add(new Line2D.Double(0, HEIGHT - 2, WIDTH, HEIGHT - 2));
+			lon.add(0, new Line2D.Double(1, 0, 1, HEIGHT));
+			lon.add(new Line2D.Double(WIDTH - 2, 0, WIDTH - 2, HEIGHT));
+		}
+
+		// place names, and a label box across a line
+		g.setFont(new Font(Font.SERIF, Font.BOLD, 28));
+		for (int i = 0; i < 40; i++)
+			g.drawString("Wagga " + i, random.nextInt(WIDTH - 100), random.nextInt(HEIGHT));
+		g.setColor(new Color(240, 230, 200));
+		g.fillRect(400, 380, 160, 50);
+		g.dispose();
+
+		File file = File.createTempFile("scan", ".png");
+		file.deleteOnExit();
+		ImageIO.write(image, "png", file);
+		return file;
+	}
+
+	private static Line2D.Double draw(Graphics2D g, AffineTransform turn, double x1, double y1, double x2, double y2) {
+		double[] p = {x1, y1, x2, y2};
+		turn.transform(p, 0, p, 0, 2);
+		Line2D.Double l = new Line2D.Double(p[0], p[1], p[2], p[3]);
+		g.draw(l);
+		return l;
+	}
+
+	/**
+	 * Every grid line should be found, once, along nearly all its length and to within a pixel
+	 */
+	@Test
+	public void test_detect() throws Exception {
+		List<Line2D.Double> lat = new ArrayList<Line2D.Double>(), lon = new ArrayList<Line2D.Double>();
+		File scan = scan(lat, lon, false);
+
+		for (int threads : new int[] {1, 3}) {
+			GraticuleDetector.Result result = new GraticuleDetector(128, 5, 0).detect(scan, threads);
+			assertLines(lat, result.lat);
+			assertLines(lon, result.lon);
+		}
+	}
+
+	/**
+	 * A thick frame, and the dark edges of the scan, which each give several Hough peaks in a tile, should still
+	 * be found once each
+	 */
+	@Test
+	public void test_thickBorder() throws Exception {
+		List<Line2D.Double> lat = new ArrayList<Line2D.Double>(), lon = new ArrayList<Line2D.Double>();
+		GraticuleDetector.Result result = new GraticuleDetector(128, 5, 0).detect(scan(lat, lon, true), 2);
+		assertLines(lat, result.lat);
+		assertLines(lon, result.lon);
+	}
+
+	private static void assertLines(List<Line2D.Double> expected, List<Line2D.Double> found) {
+		assertEquals(expected.size(), found.size());
+		for (int i = 0; i < expected.size(); i++) {
+			Line2D.Double e = expected.get(i), f = found.get(i);
+			assertEquals(0, e.ptLineDist(f.getP1()), 1);
+			assertEquals(0, e.ptLineDist(f.getP2()), 1);
+			assertTrue(f.getP1().distance(f.getP2()) > 0.9 * e.getP1().distance(e.getP2()));
+		}
+	}
+
+	/**
+	 * The csv should be a graticules csv, lacking only the values
+	 */
+	@Test
+	public void test_csv() throws Exception {
+		List<Line2D.Double> lat = new ArrayList<Line2D.Double>(), lon = new ArrayList<Line2D.Double>();
+		GraticuleDetector.Result result = new GraticuleDetector(128, 5, 0).detect(scan(lat, lon, false), 2);
+		StringWriter out = new StringWriter();
+		result.writeCsv(out);
+		String[] lines = out.toString().split("\n");
+		assertEquals(GraticuleCsvReader.HEADER, lines[0]);
+		assertEquals(1 + lat.size() + lon.size(), lines.length);
+		assertTrue(lines[1].startsWith("lat,h,,"));
+		assertTrue(lines[lines.length - 1].startsWith("lon,v,,"));
+		assertEquals(7, lines[1].split(",").length);
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+/**
+ * Thrown when a graticules source file doesn't follow the expected format.
+ */
+public class GraticuleFormatException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private final long lineNumber;
+
+	/**
+	 * @param lineNumber the line of the source file the problem was found on, counting from 1
+	 * @param message what was wrong with the line
+	 */
+	public GraticuleFormatException(long lineNumber, String message) {
+		super("line " + lineNumber + ": " + message);
+		this.lineNumber = lineNumber;
+	}
+
+	public long getLineNumber() {
+		return lineNumber;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.Line2D;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps a world file up to date as graticules are added, removed and moved, for interactive tracing where the
+ * world file is wanted again after every edit, giving the same world file as Solver.
+ *
+ * theta and phi are the mean graticule angles, and the translation terms the intercepts of the regression of
+ * graticule value on perpendicular pixel distance from the upper left pixel, all kept as running sums. The
+ * pixel spacing is Solver's, the mean of the spacings measured from the lowest valued graticule, and their sum
+ * is kept too. So each edit is constant time, except one which adds a new lowest valued graticule or removes or
+ * moves the lowest, when the spacings are measured again from the new lowest. getWorldFile() is constant time.
+ * Where graticules share the lowest value the first added is the one measured from, as Solver takes the first
+ * in the order it is given them.
+ *
+ * An IncrementalSolver is not thread safe.
+ */
+public final class IncrementalSolver {
+
+	/**
+	 * Running sums for one family of graticules.
+	 */
+	private static final class Sums {
+		// in the order they were added
+		final Set<Graticule> grats = new LinkedHashSet<Graticule>();
+		Graticule lowest;
+		double spacings; // sum of the map units per pixel from lowest to each other graticule
+
+		int n;
+		double angle; // sum of angles
+		double meanD; // mean perpendicular pixel distance from the upper left pixel
+		double meanV; // mean real value
+		double dd; // sum of squared deviations of the distances from their mean
+		double dv; // sum of products of the deviations of the distances and values from their means
+
+		void add(Graticule g) {
+			grats.add(g);
+			include(g);
+			if (lowest == null || g.realValue() < lowest.realValue())
+				respace();
+			else
+				spacings += spacing(g);
+		}
+
+		void remove(Graticule g) {
+			if (!grats.remove(g))
+				throw new IllegalArgumentException("The graticule " + g + " was never added.");
+			exclude(g);
+			if (g == lowest)
+				respace();
+			else
+				spacings -= spacing(g);
+		}
+
+		void move(Graticule g, Line2D line) {
+			exclude(g);
+			double before = g == lowest ? 0 : spacing(g);
+			g.l = line;
+			include(g);
+			if (g == lowest)
+				respace();
+			else
+				spacings += spacing(g) - before;
+		}
+
+		/**
+		 * Adds g to the angle and regression sums, updating the means and deviations as Welford does so they
+		 * don't lose precision to sums of squares far from zero.
+		 */
+		private void include(Graticule g) {
+			double d = g.l.ptLineDist(0, 0), v = g.realValue();
+			n++;
+			angle += g.angle();
+			double fromMeanD = d - meanD;
+			meanD += fromMeanD / n;
+			meanV += (v - meanV) / n;
+			dd += fromMeanD * (d - meanD);
+			dv += fromMeanD * (v - meanV);
+		}
+
+		/**
+		 * Takes g out of the angle and regression sums, include() in reverse.
+		 */
+		private void exclude(Graticule g) {
+			double d = g.l.ptLineDist(0, 0), v = g.realValue();
+			n--;
+			if (n == 0) {
+				// drop any rounding error left in the sums
+				angle = meanD = meanV = dd = dv = 0;
+				return;
+			}
+			angle -= g.angle();
+			double withMeanD = meanD, withMeanV = meanV;
+			meanD -= (d - meanD) / n;
+			meanV -= (v - meanV) / n;
+			dd -= (d - meanD) * (d - withMeanD);
+			dv -= (d - meanD) * (v - withMeanV);
+		}
+
+		/**
+		 * Finds the lowest valued graticule again and measures every spacing from it.
+		 */
+		private void respace() {
+			lowest = null;
+			for (Graticule g : grats) {
+				if (lowest == null || g.realValue() < lowest.realValue())
+					lowest = g;
+			}
+			spacings = 0;
+			for (Graticule g : grats) {
+				if (g != lowest)
+					spacings += spacing(g);
+			}
+		}
+
+		/**
+		 * @return the map units per pixel between lowest and g, measured as PackedGraticules.spacings does
+		 */
+		private double spacing(Graticule g) {
+			Line2D ref = lowest.l;
+			int deltaMapValue = Math.abs(g.realValue() - lowest.realValue());
+			double deltaPixelValue = (Line2D.ptLineDist(g.l.getX1(), g.l.getY1(), g.l.getX2(), g.l.getY2(), ref.getX1(), ref.getY1())
+					+ Line2D.ptLineDist(g.l.getX1(), g.l.getY1(), g.l.getX2(), g.l.getY2(), ref.getX2(), ref.getY2())) / 2;
+			return deltaMapValue / deltaPixelValue;
+		}
+
+		double meanAngle() {
+			return angle / n;
+		}
+
+		/**
+		 * @return map units per pixel, the mean spacing from the lowest valued graticule
+		 */
+		double spacing() {
+			return spacings / (n - 1);
+		}
+
+		/**
+		 * @return the value at zero pixel distance
+		 */
+		double intercept() {
+			return meanV - dv / dd * meanD;
+		}
+
+		boolean solvable() {
+			// needs two graticules, and the graticules can't all be the same distance from the upper left pixel
+			return n >= 2 && dd > 1e-9 * Math.max(1, dd + n * meanD * meanD);
+		}
+	}
+
+	private final double originEasting;
+	private final double originNorthing;
+	private final double unitsToMeters;
+
+	private final Sums lat = new Sums();
+	private final Sums lon = new Sums();
+
+	/**
+	 * @param originEasting x component of projected coordinates of upper left pixel
+	 * @param originNorthing y component of projected coordinates of upper left pixel
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 */
+	public IncrementalSolver(double originEasting, double originNorthing, double unitsToMeters) {
+		this.originEasting = originEasting;
+		this.originNorthing = originNorthing;
+		this.unitsToMeters = unitsToMeters;
+	}
+
+	private Sums sums(Graticule g) {
+		return g.latlon.equals(LATLON.LAT) ? lat : lon;
+	}
+
+	/**
+	 * Adds a graticule.
+	 */
+	public void add(Graticule g) {
+		sums(g).add(g);
+	}
+
+	/**
+	 * Removes a graticule which was previously added. Its latlon, value and line must not have been changed
+	 * since it was added, other than through move().
+	 */
+	public void remove(Graticule g) {
+		sums(g).remove(g);
+	}
+
+	/**
+	 * Moves a previously added graticule to a new line, updating g.l.
+	 */
+	public void move(Graticule g, Line2D line) {
+		sums(g).move(g, line);
+	}
+
+	/**
+	 * @return the number of graticules of the given family
+	 */
+	public int size(LATLON latlon) {
+		return latlon.equals(LATLON.LAT) ? lat.n : lon.n;
+	}
+
+	/**
+	 * @return whether there are enough graticules to find a world file
+	 */
+	public boolean isSolvable() {
+		return lat.solvable() && lon.solvable();
+	}
+
+	/**
+	 * @return the world file for the current graticules
+	 * @throws IllegalStateException if there aren't at least two distinct LAT and two distinct LON graticules
+	 */
+	public WorldFile getWorldFile() {
+		if (!isSolvable())
+			throw new IllegalStateException("You need at least two LAT and two LON graticules for creation of a world file, found "
+					+ lat.n + " LAT and " + lon.n + " LON.");
+
+		double theta = lat.meanAngle();
+		double phi = lon.meanAngle();
+		double x = lon.spacing();
+		double y = lat.spacing();
+
+		double C = originEasting + lon.intercept() * unitsToMeters;
+		double F = originNorthing + lat.intercept() * unitsToMeters;
+
+		double D = -1 * x * unitsToMeters * Math.sin(theta);
+		double A = x * unitsToMeters * Math.cos(theta);
+		double B = y * unitsToMeters * Math.sin(phi);
+		double E = -1 * y * unitsToMeters * Math.cos(phi);
+
+		return new WorldFile(A, D, B, E, C, F);
+	}
+}
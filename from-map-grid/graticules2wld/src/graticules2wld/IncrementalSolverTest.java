@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class IncrementalSolverTest {
+
+	// PMapMN05-14041501 as traced by hand
+	static final String[] TRACED = {
+		"lat,s,600,3917.0983,5266.9812,1344.5505,5685.9629",
+		"lat,s,400,67.871577,4826.4991,3925.2395,4200.0337",
+		"lat,s,300,3927.9329,3653.8291,68.948904,4288.3745",
+		"lat,s,200,74.8742,3754.5591,3931.1648,3114.0884",
+		"lat,s,100,3932.2422,2577.0411,75.816861,3215.8958",
+		"lat,s,0,78.644843,2679.6565,3936.0128,2040.5325",
+		"lat,n,100,3939.2448,1505.1011,79.72217,2146.1105",
+		"lat,n,200,81.33816,1607.9858,3944.0928,965.36049",
+		"lat,n,300,3946.7861,429.92916,80.260833,1073.0932",
+		"lon,w,900,3718.3928,84.107316,3941.0945,1393.3047",
+		"lon,w,1000,3174.3579,83.796327,3920.9072,4596.9913",
+		"lon,w,1200,3010.1933,5690.5336,2084.6245,83.034542",
+		"lon,w,1300,1538.8056,82.272757,2460.1845,5682.5349",
+		"lon,w,1400,988.79688,81.510973,1917.0319,5684.8202",
+		"lon,w,1500,442.59706,83.415435,1372.5141,5685.1284",
+		"lon,w,1600,830.34949,5684.5898,81.33816,1227.1509"
+	};
+
+	static List<Graticule> traced() {
+		List<Graticule> grats = new ArrayList<Graticule>();
+		for (String row : TRACED) {
+			String[] f = row.split(",");
+			grats.add(new Graticule(LATLON.valueOf(f[0].toUpperCase()), DIR.valueOf(f[1].toUpperCase()), Integer.parseInt(f[2]),
+					new Line2D.Double(Double.parseDouble(f[3]), Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]))));
+		}
+		return grats;
+	}
+
+	static void assertWorldFileEquals(WorldFile expected, WorldFile actual, double delta) {
+		assertEquals(expected.A, actual.A, delta);
+		assertEquals(expected.D, actual.D, delta);
+		assertEquals(expected.B, actual.B, delta);
+		assertEquals(expected.E, actual.E, delta);
+		assertEquals(expected.C, actual.C, delta);
+		assertEquals(expected.F, actual.F, delta);
+	}
+
+	/**
+	 * For a perfect tracing the incremental solver should agree with Solver
+	 */
+	@Test
+	public void test_matchesSolver() throws Exception {
+		double s = 0.5, a = Math.toRadians(3);
+		List<Graticule> grats = SolverTest.trace(new WorldFile(s * Math.cos(a), -s * Math.sin(a), s * Math.sin(a), -s * Math.cos(a), -450, 420));
+
+		IncrementalSolver incremental = new IncrementalSolver(1000, 2000, 20.1168);
+		for (Graticule g : grats)
+			incremental.add(g);
+
+		assertWorldFileEquals(new Solver(1000, 2000, 20.1168).solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+	}
+
+	/**
+	 * For a hand traced sheet, whose spacings disagree, the incremental solver should still agree with Solver
+	 */
+	@Test
+	public void test_matchesSolverTraced() throws Exception {
+		List<Graticule> grats = traced();
+		IncrementalSolver incremental = new IncrementalSolver(335100, 6254870, 20.1168);
+		for (Graticule g : grats)
+			incremental.add(g);
+		assertWorldFileEquals(new Solver(335100, 6254870, 20.1168).solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+	}
+
+	/**
+	 * After each edit, including ones to the lowest valued graticule the spacings are measured from, the world
+	 * file should be Solver's for the graticules left
+	 */
+	@Test
+	public void test_editsMatchSolver() throws Exception {
+		List<Graticule> grats = traced();
+		Solver solver = new Solver(335100, 6254870, 20.1168);
+		IncrementalSolver incremental = new IncrementalSolver(335100, 6254870, 20.1168);
+		for (Graticule g : grats)
+			incremental.add(g);
+
+		// a new lowest LAT, then moving it, moving the one which was lowest before it and removing it
+		Graticule low = new Graticule(LATLON.LAT, DIR.S, 700, new Line2D.Double(60, 5800, 3900, 5200));
+		grats.add(low);
+		incremental.add(low);
+		assertWorldFileEquals(solver.solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+		incremental.move(low, new Line2D.Double(60, 5810, 3900, 5190));
+		assertWorldFileEquals(solver.solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+		Graticule next = grats.get(0);
+		incremental.move(next, new Line2D.Double(3917, 5270, 1344, 5680));
+		assertWorldFileEquals(solver.solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+		grats.remove(low);
+		incremental.remove(low);
+		assertWorldFileEquals(solver.solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+
+		// and removing the lowest of what was traced
+		for (int i = 0; i < grats.size(); i++) {
+			if (grats.get(i).latlon == LATLON.LON && grats.get(i).realValue() == -1600) {
+				incremental.remove(grats.remove(i));
+				break;
+			}
+		}
+		assertWorldFileEquals(solver.solve(grats).worldFile, incremental.getWorldFile(), 1e-6);
+	}
+
+	/**
+	 * Adding, moving then removing a graticule should leave the world file as it was
+	 */
+	@Test
+	public void test_addMoveRemove() throws Exception {
+		List<Graticule> grats = SolverTest.trace(new WorldFile(0.5, 0, 0, -0.5, -450, 420));
+
+		IncrementalSolver incremental = new IncrementalSolver(0, 0, 1);
+		assertFalse(incremental.isSolvable());
+		for (Graticule g : grats)
+			incremental.add(g);
+		assertTrue(incremental.isSolvable());
+		WorldFile before = incremental.getWorldFile();
+
+		Graticule bad = new Graticule(LATLON.LAT, DIR.N, 500, new Line2D.Double(0, 100, 1000, 150));
+		incremental.add(bad);
+		assertEquals(8, incremental.size(LATLON.LAT));
+		assertTrue(Math.abs(before.F - incremental.getWorldFile().F) > 1);
+
+		incremental.move(bad, new Line2D.Double(10, 20, 900, 30));
+		incremental.remove(bad);
+		assertEquals(7, incremental.size(LATLON.LAT));
+		assertWorldFileEquals(before, incremental.getWorldFile(), 1e-9);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void test_tooFewGraticules() {
+		IncrementalSolver incremental = new IncrementalSolver(0, 0, 1);
+		incremental.add(new Graticule(LATLON.LAT, DIR.N, 0, new Line2D.Double(0, 0, 1, 0)));
+		incremental.add(new Graticule(LATLON.LAT, DIR.N, 100, new Line2D.Double(0, 1, 1, 1)));
+		incremental.add(new Graticule(LATLON.LON, DIR.E, 0, new Line2D.Double(0, 0, 0, 1)));
+		incremental.getWorldFile();
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for the server's requests and responses. Objects parse to a LinkedHashMap, arrays to an
+ * ArrayList, numbers to Double, and true, false and null to Boolean and null.
+ */
+final class Json {
+
+	// deepest nesting of objects and arrays accepted, well inside the stack a request thread has
+	static final int MAX_DEPTH = 64;
+
+	private final String s;
+	private int pos;
+	private int depth;
+
+	private Json(String s) {
+		this.s = s;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if s isn't a single JSON value
+	 */
+	static Object parse(String s) {
+		Json json = new Json(s);
+		Object value = json.value();
+		json.skipWhitespace();
+		if (json.pos != s.length())
+			throw json.error("unexpected text after the JSON value");
+		return value;
+	}
+
+	/**
+	 * @return s as a JSON string, with quotes
+	 */
+	static String quote(String s) {
+		StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/**
+	 * @return d as a JSON number, or null for NaN and the infinities which JSON can't hold
+	 */
+	static String number(double d) {
+		return (Double.isNaN(d) || Double.isInfinite(d)) ? "null" : Double.toString(d);
+	}
+
+	private IllegalArgumentException error(String message) {
+		return new IllegalArgumentException("JSON at character " + pos + ": " + message);
+	}
+
+	private void skipWhitespace() {
+		while (pos < s.length() && Character.isWhitespace(s.charAt(pos)))
+			pos++;
+	}
+
+	private Object value() {
+		skipWhitespace();
+		if (pos == s.length())
+			throw error("expected a value");
+		char c = s.charAt(pos);
+		switch (c) {
+		case '{':
+		case '[':
+			if (depth == MAX_DEPTH)
+				throw error("nested more than " + MAX_DEPTH + " deep");
+			depth++;
+			Object nested = c == '{' ? object() : array();
+			depth--;
+			return nested;
+		case '"': return string();
+		case 't': return literal("true", Boolean.TRUE);
+		case 'f': return literal("false", Boolean.FALSE);
+		case 'n': return literal("null", null);
+		default: return number();
+		}
+	}
+
+	private Object literal(String word, Object value) {
+		if (!s.startsWith(word, pos))
+			throw error("unexpected character '" + s.charAt(pos) + "'");
+		pos += word.length();
+		return value;
+	}
+
+	private Map<String, Object> object() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (pos < s.length() && s.charAt(pos) == '}') {
+			pos++;
+			return map;
+		}
+		while (true) {
+			skipWhitespace();
+			if (pos == s.length() || s.charAt(pos) != '"')
+				throw error("expected a string key");
+			String key = string();
+			skipWhitespace();
+			expect(':');
+			map.put(key, value());
+			skipWhitespace();
+			if (pos < s.length() && s.charAt(pos) == ',') {
+				pos++;
+				continue;
+			}
+			expect('}');
+			return map;
+		}
+	}
+
+	private List<Object> array() {
+		List<Object> list = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (pos < s.length() && s.charAt(pos) == ']') {
+			pos++;
+			return list;
+		}
+		while (true) {
+			list.add(value());
+			skipWhitespace();
+			if (pos < s.length() && s.charAt(pos) == ',') {
+				pos++;
+				continue;
+			}
+			expect(']');
+			return list;
+		}
+	}
+
+	private void expect(char c) {
+		if (pos == s.length() || s.charAt(pos) != c)
+			throw error("expected '" + c + "'");
+		pos++;
+	}
+
+	private String string() {
+		pos++;
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (pos >= s.length())
+				throw error("unterminated string");
+			char c = s.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (pos >= s.length())
+				throw error("unterminated string");
+			c = s.charAt(pos++);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if (pos + 4 > s.length())
+					throw error("bad unicode escape");
+				try {
+					sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+				}catch( NumberFormatException exp ) {
+					throw error("bad unicode escape");
+				}
+				pos += 4;
+				break;
+			default: sb.append(c);
+			}
+		}
+	}
+
+	private Double number() {
+		int start = pos;
+		while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) >= 0)
+			pos++;
+		try {
+			return Double.valueOf(s.substring(start, pos));
+		}catch( NumberFormatException exp ) {
+			pos = start;
+			throw error("expected a value");
+		}
+	}
+}
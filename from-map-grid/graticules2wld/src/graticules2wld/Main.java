@@ -40,27 +40,38 @@ lon,w,700,248.50609,4448.8415,138.15548,3790.2134
 
 package graticules2wld;
 
-import graticules2wld.Graticule.LATLON;
 import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
 
-import java.awt.geom.*;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
 
 import org.apache.commons.cli.*;
-import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
-import org.apache.commons.math.stat.regression.SimpleRegression;
 
 public class Main {
 
-	static double unitsToMeters = 1; // use 1/20.1168 for chains
 	static boolean debug = false;
+	static boolean gcps = false; // write a .points file rather than a world file
+	static ResultCache cache = null; // when set, single sheets are looked up before solving
+	static RobustSolver robust = null; // when set, single sheets are solved robustly
+	static Writer uncertainty = null; // when set, an Uncertainty table row is written for each sheet solved
+	static int resamples = Uncertainty.DEFAULT_RESAMPLES;
 
 	/**
 	 * @param args
@@ -76,12 +87,54 @@ public class Main {
 		Options options = new Options();
 		options.addOption("x", "originx", true, "x component of projected coordinates of upper left pixel");
 		options.addOption("y", "originy", true, "y component of projected coordinates of upper left pixel");
+		options.addOption("L", "origin-lonlat", true, "longitude,latitude of the upper left pixel, projected with --epsg, instead of --originx and --originy");
 		options.addOption("u", "tometers", true, "multiplication factor to get source units into meters");
 		options.addOption("h", "help", false, "prints this usage page");
 		options.addOption("d", "debug", false, "prints debugging information to stdout");
+		options.addOption("b", "batch", true, "solve every sheet in a directory, glob or manifest file");
+		options.addOption("O", "adjust", false, "with --batch, adjust all the sheets together so neighbours sharing graticules meet without seams");
+		options.addOption("F", "tie-weight", true, "with --adjust, the weight of each tie between sheets against a graticule end point (default 10)");
+		options.addOption("j", "threads", true, "number of worker threads to use for batches and multiple sheet csvs");
+		options.addOption("r", "robust", true, "reject mis-traced graticules using ransac or lmeds");
+		options.addOption("t", "threshold", true, "largest residual in source units for a graticule to be kept by --robust");
+		options.addOption("i", "iterations", true, "number of hypotheses tried by --robust");
+		options.addOption("g", "gcps", false, "write ground control points at the graticule intersections instead of a world file");
+		options.addOption("m", "metrics", true, "write stage timings and counters to a .json or Prometheus text file at the end of the run");
+		options.addOption("s", "serve", true, "serve solves over HTTP on [host:]port, loopback unless a host is given");
+		options.addOption("l", "limit", true, "with --serve, the most requests solved at once (default twice --threads)");
+		options.addOption("w", "watch", true, "keep the world files in a directory of traced sheets up to date as they change");
+		options.addOption("D", "debounce", true, "with --watch, milliseconds a sheet must go unchanged before it is solved (default 500)");
+		options.addOption("U", "uncertainty", true, "write jackknife and bootstrap standard errors of each sheet's world file to a csv, or - for stdout");
+		options.addOption("B", "bootstrap", true, "with --uncertainty, the number of bootstrap resamples (default 1000)");
+		options.addOption("C", "cache", true, "reuse world files from a cache directory for sheets which haven't changed");
+		options.addOption("S", "cache-size", true, "the most megabytes the --cache may take up (default 256)");
+		options.addOption("W", "warp", true, "warp a scan into a north up GeoTIFF with its world file");
+		options.addOption("k", "kernel", true, "with --warp, nearest or bilinear resampling (default bilinear)");
+		options.addOption("R", "resolution", true, "with --warp, the output pixel size in map units (default the scan's)");
+		options.addOption("E", "epsg", true, "the EPSG code of the map coordinates, recorded by --warp and needed by --tiles and --origin-lonlat");
+		options.addOption("P", "tiles", true, "render sheets with world files into a directory of web mercator tiles");
+		options.addOption("z", "zoom", true, "with --tiles, the zooms to render as min-max (default 0 to the sheets' resolution)");
+		options.addOption("M", "tms", false, "with --tiles, name tiles with TMS rather than XYZ y numbering");
+		options.addOption("n", "index", true, "build or update a spatial index of the sheets with world files given, and query or export it");
+		options.addOption("q", "query", true, "with --index, list the sheets covering x,y or touching minx,miny,maxx,maxy");
+		options.addOption("e", "export", true, "with --index, write the sheet footprints to a .geojson or .kml file, with --archive write its sheets as csv");
+		options.addOption("A", "archive", true, "pack the graticule csvs given into a binary archive, or with --export unpack it");
+		options.addOption("f", "residuals", true, "when fitting a .points file, write each point's residual to a csv");
+		options.addOption("X", "pixel-centers", false, "when fitting a .points file, take its pixel coordinates as pixel centers rather than GDAL's corners");
+		options.addOption("G", "detect", true, "find the graticule lines of a scan, writing them to a csv with blank values for labelling");
+		options.addOption("K", "ink", true, "with --detect, the brightest a pixel can be, 0 to 255, and count as ink (default 128)");
+		options.addOption("a", "skew", true, "with --detect, the most in degrees a graticule is turned from the scan's rows or columns (default 10)");
+		options.addOption("N", "min-length", true, "with --detect, the shortest line in pixels (default a quarter of the scan's smaller side)");
+		options.addOption("o", "order", true, "fit a 1, 2 or 3 order polynomial or tps thin plate spline to the graticule crossings, writing a lookup grid over the scan");
+		options.addOption("p", "precision", true, "with --order, the largest error in map units the grid may add (default a tenth of a scan pixel)");
+		options.addOption("T", "transform", true, "transform points from pixel to projected coordinates with a world file");
+		options.addOption("I", "inverse", false, "with --transform, go from projected to pixel coordinates");
+		options.addOption("c", "columns", true, "with --transform, the x,y columns of csv points counting from 1");
 
 		double originNorthing = 0;
 		double originEasting = 0;
+		double unitsToMeters = 1; // use 1/20.1168 for chains
+		int threads = Runtime.getRuntime().availableProcessors();
 
 		String inputFileName = null;
 		String outputFileName = null;
@@ -96,22 +149,316 @@ public class Main {
 			if (line.hasOption("debug"))
 				debug = true;
 
+			if (line.hasOption("gcps"))
+				gcps = true;
+
+			// the origin is given either in projected coordinates or as a longitude, latitude to project
+			Double optionEasting = line.hasOption("originx") ? Double.valueOf(line.getOptionValue("originx")) : null;
+			Double optionNorthing = line.hasOption("originy") ? Double.valueOf(line.getOptionValue("originy")) : null;
+			if (line.hasOption("origin-lonlat")) {
+				String[] lonLat = line.getOptionValue("origin-lonlat").split(",");
+				if (!line.hasOption("epsg") || lonLat.length != 2) {
+					System.err.println("--origin-lonlat needs a longitude,latitude and an --epsg code to project it with");
+					System.exit(1);
+				}
+				double[] xy = {Double.parseDouble(lonLat[0].trim()), Double.parseDouble(lonLat[1].trim())};
+				try {
+					Projections.forCode(line.getOptionValue("epsg")).forward(xy, 0, 1);
+				}catch( IllegalArgumentException exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				optionEasting = xy[0];
+				optionNorthing = xy[1];
+				if (debug)
+					System.out.println("origin " + optionEasting + ", " + optionNorthing);
+			}
+
+			if (line.hasOption("metrics")) {
+				// written however the run ends, as most modes finish with System.exit
+				final File metricsFile = new File(line.getOptionValue("metrics"));
+				Metrics.enable();
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							Metrics.write(metricsFile);
+						}catch( IOException exp ) {
+							System.err.println("Could not write metrics: " + exp.getMessage());
+						}
+					}
+				});
+			}
+
+			if (line.hasOption("threads"))
+				threads = Integer.parseInt(line.getOptionValue("threads"));
+
+			if (line.hasOption("robust")) {
+				RobustSolver.Method method = null;
+				try {
+					method = RobustSolver.Method.valueOf(line.getOptionValue("robust").toUpperCase());
+				}catch( IllegalArgumentException exp ) {
+					System.err.println("Unknown robust method: " + line.getOptionValue("robust"));
+					System.exit(1);
+				}
+				double threshold = line.hasOption("threshold") ? Double.parseDouble(line.getOptionValue("threshold")) : 0;
+				int iterations = line.hasOption("iterations") ? Integer.parseInt(line.getOptionValue("iterations")) : 1000;
+				robust = new RobustSolver(method, iterations, threshold, 1);
+			}
+
+			if (line.hasOption("uncertainty")) {
+				String table = line.getOptionValue("uncertainty");
+				final Writer writer = table.equals("-") ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8)
+						: new BufferedWriter(new FileWriter(table));
+				writer.write(Uncertainty.TABLE_HEADER + "\n");
+				if (line.hasOption("bootstrap"))
+					resamples = Integer.parseInt(line.getOptionValue("bootstrap"));
+				uncertainty = writer;
+				// flushed however the run ends, as most modes finish with System.exit
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						try {
+							synchronized (writer) {
+								writer.flush();
+							}
+						}catch( IOException exp ) {
+							System.err.println("Could not write uncertainty table: " + exp.getMessage());
+						}
+					}
+				});
+			}
+
+			if (line.hasOption("cache")) {
+				long megabytes = line.hasOption("cache-size") ? Long.parseLong(line.getOptionValue("cache-size")) : 256;
+				cache = new ResultCache(new File(line.getOptionValue("cache")).toPath(), megabytes << 20);
+			}
+
+			if (line.hasOption("batch")) {
+				// in batch mode the origin options are defaults, which a manifest may override per sheet
+				Double defaultEasting = optionEasting;
+				Double defaultNorthing = optionNorthing;
+				if (line.hasOption("tometers"))
+					unitsToMeters = Double.parseDouble(line.getOptionValue("tometers"));
+
+				List<Batch.Job> jobs = null;
+				try {
+					jobs = Batch.listJobs(line.getOptionValue("batch"), defaultEasting, defaultNorthing, unitsToMeters);
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+
+				int failures;
+				if (line.hasOption("adjust")) {
+					double tieWeight = line.hasOption("tie-weight") ? Double.parseDouble(line.getOptionValue("tie-weight"))
+							: BlockAdjustment.DEFAULT_TIE_WEIGHT;
+					failures = BlockAdjustment.run(jobs, tieWeight, threads, System.out, System.err);
+				}else{
+					failures = Batch.run(jobs, threads, System.out, System.err);
+				}
+				System.exit(failures == 0 ? 0 : 1);
+			}
+
+			if (line.hasOption("watch")) {
+				if (optionEasting == null || optionNorthing == null)
+					printUsage(1);
+				long debounce = line.hasOption("debounce") ? Long.parseLong(line.getOptionValue("debounce")) : Watcher.DEFAULT_DEBOUNCE_MILLIS;
+				Watcher watcher = new Watcher(new File(line.getOptionValue("watch")).toPath(),
+						optionEasting, optionNorthing,
+						line.hasOption("tometers") ? Double.parseDouble(line.getOptionValue("tometers")) : 1,
+						debounce, threads, System.out, System.err);
+				System.out.println("Watching " + line.getOptionValue("watch") + " for changed sheets.");
+				watcher.run();
+				return;
+			}
+
+			if (line.hasOption("serve")) {
+				String serve = line.getOptionValue("serve");
+				int colon = serve.lastIndexOf(':');
+				String host = colon < 0 ? "127.0.0.1" : serve.substring(0, colon);
+				int port = Integer.parseInt(serve.substring(colon + 1));
+				int limit = line.hasOption("limit") ? Integer.parseInt(line.getOptionValue("limit")) : 2 * threads;
+				Server server = Server.start(new InetSocketAddress(host, port), limit,
+						optionEasting != null ? optionEasting : 0,
+						optionNorthing != null ? optionNorthing : 0,
+						line.hasOption("tometers") ? Double.parseDouble(line.getOptionValue("tometers")) : 1);
+				System.out.println("Listening on http://" + server.getAddress().getHostString() + ":"
+						+ server.getAddress().getPort() + "/solve");
+				return; // the server's threads keep running
+			}
+
+			if (line.hasOption("warp")) {
+				String[] iofiles = line.getArgs();
+				if (iofiles.length < 2)
+					printUsage(1);
+				try {
+					Warper.Kernel kernel = Warper.Kernel.valueOf(line.getOptionValue("kernel", "bilinear").toUpperCase());
+					double resolution = line.hasOption("resolution") ? Double.parseDouble(line.getOptionValue("resolution")) : 0;
+					int epsg = line.hasOption("epsg") ? Integer.parseInt(line.getOptionValue("epsg").replaceFirst("(?i)^epsg:", "")) : 0;
+					long start = System.nanoTime();
+					File source = new File(line.getOptionValue("warp"));
+					Warper warper;
+					if (WarpGrid.isGrid(source))
+						warper = Warper.warp(WarpGrid.read(source), new File(iofiles[0]), new File(iofiles[1]), resolution, kernel, epsg, threads);
+					else
+						warper = Warper.warp(WorldFile.read(source), new File(iofiles[0]), new File(iofiles[1]), resolution, kernel, epsg, threads);
+					System.out.println("Warped to " + warper.getWidth() + "x" + warper.getHeight() + " in "
+							+ String.format("%.3f", (System.nanoTime() - start) / 1e9) + "s.");
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			if (line.hasOption("tiles")) {
+				if (!line.hasOption("epsg") || line.getArgs().length == 0)
+					printUsage(1);
+				try {
+					Projection projection = Projections.forCode(line.getOptionValue("epsg"));
+					int minZoom = 0, maxZoom = -1;
+					if (line.hasOption("zoom")) {
+						String[] zoom = line.getOptionValue("zoom").split("-");
+						minZoom = Integer.parseInt(zoom[0].trim());
+						maxZoom = zoom.length > 1 ? Integer.parseInt(zoom[1].trim()) : minZoom;
+					}
+					List<TilePyramid.Sheet> sheets = new ArrayList<TilePyramid.Sheet>();
+					for (String arg : line.getArgs()) {
+						for (File image : TilePyramid.images(new File(arg)))
+							sheets.add(new TilePyramid.Sheet(image, projection));
+					}
+					Warper.Kernel kernel = Warper.Kernel.valueOf(line.getOptionValue("kernel", "bilinear").toUpperCase());
+					new TilePyramid(new File(line.getOptionValue("tiles")), minZoom, maxZoom, line.hasOption("tms"),
+							kernel, threads).run(sheets, System.out);
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			if (line.hasOption("index")) {
+				try {
+					index(new File(line.getOptionValue("index")), line.getArgs(), line.getOptionValue("query"),
+							line.getOptionValue("export"), line.getOptionValue("epsg"));
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			if (line.hasOption("detect")) {
+				if (line.getArgs().length < 1)
+					printUsage(1);
+				try {
+					int ink = line.hasOption("ink") ? Integer.parseInt(line.getOptionValue("ink")) : 128;
+					double skew = line.hasOption("skew") ? Double.parseDouble(line.getOptionValue("skew")) : 10;
+					double minLength = line.hasOption("min-length") ? Double.parseDouble(line.getOptionValue("min-length")) : 0;
+					long start = System.nanoTime();
+					GraticuleDetector.Result result = new GraticuleDetector(ink, skew, minLength)
+							.detect(new File(line.getOptionValue("detect")), threads);
+					Writer writer = new BufferedWriter(new FileWriter(line.getArgs()[0]));
+					try {
+						result.writeCsv(writer);
+					}finally{
+						writer.close();
+					}
+					System.out.println("Found " + result.lat.size() + " LAT and " + result.lon.size() + " LON lines in "
+							+ String.format("%.3f", (System.nanoTime() - start) / 1e9) + "s.");
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			if (line.hasOption("archive")) {
+				try {
+					archive(new File(line.getOptionValue("archive")), line.getArgs(), line.getOptionValue("export"));
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			if (line.hasOption("transform")) {
+				String[] iofiles = line.getArgs();
+				if (iofiles.length < 2)
+					printUsage(1);
+				int xColumn = 0, yColumn = 1;
+				if (line.hasOption("columns")) {
+					String[] columns = line.getOptionValue("columns").split(",");
+					if (columns.length != 2)
+						printUsage(1);
+					try {
+						xColumn = Integer.parseInt(columns[0].trim()) - 1;
+						yColumn = Integer.parseInt(columns[1].trim()) - 1;
+					}catch( NumberFormatException exp ) {
+						xColumn = yColumn = -1;
+					}
+					if (xColumn < 0 || yColumn < 0 || xColumn == yColumn) {
+						System.err.println("--columns needs the x,y columns as two different numbers counting from 1, found "
+								+ line.getOptionValue("columns"));
+						printUsage(1);
+					}
+				}
+				try {
+					transform(new File(line.getOptionValue("transform")), line.hasOption("inverse"),
+							iofiles[0], iofiles[1], xColumn, yColumn, threads);
+				}catch( Exception exp ) {
+					System.err.println(exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
+			// a .points file is fitted straight to its map coordinates, no origin is needed
+			if (line.getArgs().length >= 2 && line.getArgs()[0].toLowerCase().endsWith(".points")) {
+				try {
+					fitGcps(new File(line.getArgs()[0]), new File(line.getArgs()[1]), line.getOptionValue("residuals"),
+							line.hasOption("pixel-centers"));
+				}catch( Exception exp ) {
+					System.err.println(line.getArgs()[0] + ": " + exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
 			// these arguments are required
-			if (!line.hasOption("originy") || !line.hasOption("originx"))
+			if (optionEasting == null || optionNorthing == null)
 				printUsage(1);
 
-			originNorthing = Double.parseDouble(line.getOptionValue("originy"));
-			originEasting = Double.parseDouble(line.getOptionValue("originx"));
+			originNorthing = optionNorthing;
+			originEasting = optionEasting;
 
 			if (line.hasOption("tometers"))
 				unitsToMeters = Double.parseDouble(line.getOptionValue("tometers"));
 
-			// two args should be left. the input csv file name and the output wld file name.
+			// two args should be left. the input csv file name and the output wld file name (or for a multiple
+			// sheet csv, the output directory or results table).
 			String[] iofiles = line.getArgs();
 			if (iofiles.length < 2) {
 				printUsage(1);
 			}
 
+			// a higher order model is written as a lookup grid over the scan, in place of a world file
+			if (line.hasOption("order")) {
+				if (iofiles.length < 3)
+					printUsage(1);
+				try {
+					writeGrid(new File(iofiles[0]), new File(iofiles[1]), new File(iofiles[2]), line.getOptionValue("order"),
+							line.hasOption("precision") ? Double.parseDouble(line.getOptionValue("precision")) : 0,
+							originEasting, originNorthing, unitsToMeters, threads);
+				}catch( Exception exp ) {
+					System.err.println(iofiles[0] + ": " + exp.getMessage());
+					System.exit(1);
+				}
+				System.exit(0);
+			}
+
 			inputFileName = iofiles[0];
 			outputFileName = iofiles[1];
 		}
@@ -121,20 +468,39 @@ public class Main {
 		}
 
 		// try to open the input file for reading and the output file for writing
-		File graticulesCsvFile;
-		BufferedReader csvReader = null;
+		File graticulesCsvFile = new File(inputFileName);
 
 		File wldFile;
 		BufferedWriter wldWriter = null;
 
-		try {
-			graticulesCsvFile = new File(inputFileName);
-			csvReader = new BufferedReader(new FileReader(graticulesCsvFile));
-		}catch( IOException exp ) {
+		if (!graticulesCsvFile.isFile() || !graticulesCsvFile.canRead()) {
 			System.err.println("Could not open input file for reading: " + inputFileName);
 			System.exit(1);
 		}
 
+		if (gcps) {
+			try {
+				writeGcps(graticulesCsvFile, new File(outputFileName), originEasting, originNorthing, unitsToMeters);
+			}catch( Exception exp ) {
+				System.err.println(inputFileName + ": " + exp.getMessage());
+				System.exit(1);
+			}
+			System.exit(0);
+		}
+
+		if (GraticuleArchive.isArchive(graticulesCsvFile.toPath()) || (!SvgGraticuleReader.isSvg(graticulesCsvFile.toPath())
+				&& GraticuleCsvReader.isMultiSheet(graticulesCsvFile.toPath()))) {
+			int failures = 0;
+			try {
+				failures = SheetStreamSolver.run(graticulesCsvFile, new File(outputFileName),
+						new Solver(originEasting, originNorthing, unitsToMeters), threads, System.out, System.err);
+			}catch( Exception exp ) {
+				System.err.println(inputFileName + ": " + exp.getMessage());
+				System.exit(1);
+			}
+			System.exit(failures == 0 ? 0 : 1);
+		}
+
 		try {
 			wldFile = new File(outputFileName);
 			wldWriter = new BufferedWriter(new FileWriter(wldFile));
@@ -143,248 +509,464 @@ public class Main {
 			System.exit(1);
 		}
 
-		// list of lon graticules and lat graticules
-		ArrayList<Graticule> lonGrats = new ArrayList<Graticule>();
-		ArrayList<Graticule> latGrats = new ArrayList<Graticule>();
-
-		// read the source CSV and convert its information into the two ArrayList<Graticule> data structures
-		readCSV(csvReader, lonGrats, latGrats);
-
-		// we now need to start finding the world file paramaters
-		DescriptiveStatistics stats = new DescriptiveStatistics();
-
-		// find theta and phi
-		for (Graticule g : latGrats) {
-			stats.addValue(g.angle());
-		}
-
-		double theta = stats.getMean(); // we use the mean of the lat angles as theta
-		if (debug)
-			System.out.println("theta range = " +  Math.toDegrees(stats.getMax() - stats.getMin()));
-		stats.clear();
-
-		for (Graticule g : lonGrats) {
-			stats.addValue(g.angle());
+		try {
+			solve(graticulesCsvFile, wldWriter, originEasting, originNorthing, unitsToMeters);
+			Metrics.SHEETS_SOLVED.add(1);
+		}catch( GraticuleFormatException | IOException | IllegalArgumentException exp ) {
+			Metrics.SHEETS_FAILED.add(1);
+			System.err.println(inputFileName + ": " + exp.getMessage());
+			System.exit(1);
 		}
 
-		double phi = stats.getMean(); // ... and the mean of the lon angles for phi
-		if (debug)
-			System.out.println("phi range = " +  Math.toDegrees(stats.getMax() - stats.getMin()));
-		stats.clear();
+		wldWriter.close();
+	}
 
-		// print these if in debug mode
-		if (debug) {
-			System.out.println("theta = " + Math.toDegrees(theta) + "deg");
-			System.out.println("phi = " + Math.toDegrees(phi) + "deg");
-		}
+	/**
+	 * Reads the graticules of a single sheet, finds the world file parameters for them with a Solver and writes
+	 * the world file. This has no side effects other than reading csvFile and writing wldWriter, so it is safe
+	 * to call for many sheets at once.
+	 * @param csvFile the source graticules csv, or traced SVG
+	 * @param wldWriter where to write the world file, left open for the caller to close
+	 * @param originEasting x component of projected coordinates of upper left pixel
+	 * @param originNorthing y component of projected coordinates of upper left pixel
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 * @throws Exception
+	 */
+	static void solve(File csvFile, BufferedWriter wldWriter,
+			double originEasting, double originNorthing, double unitsToMeters) throws Exception {
 
+		// sets of lon graticules and lat graticules
+		PackedGraticules lonGrats = new PackedGraticules(LATLON.LON);
+		PackedGraticules latGrats = new PackedGraticules(LATLON.LAT);
 
-		// find x and y (distance beteen pixels in map units)
-		Collections.sort(latGrats);
-		Collections.sort(lonGrats);
-		int prevMapValue = 0; //fixme: how to stop warning about not being initilised?
-		Line2D prevGratPixelSys = new Line2D.Double();
+		// read the source CSV (or SVG) straight into the two packed sets
+		read(csvFile, PackedGraticules.handler(lonGrats, latGrats));
 
-		boolean first = true;
-		for (Graticule g : latGrats) {
-			if (!first) {
-				int deltaMapValue = Math.abs(g.realValue() - prevMapValue);
-				double deltaPixelValue = (g.l.ptLineDist(prevGratPixelSys.getP1()) + (g.l.ptLineDist(prevGratPixelSys.getP2()))) / 2;
+		long start = Metrics.start();
+		solve(csvFile.getPath(), lonGrats, latGrats, originEasting, originNorthing, unitsToMeters).write(wldWriter);
+		Metrics.stop(Metrics.Stage.WRITE, start);
+	}
 
-				double delta = deltaMapValue / deltaPixelValue;
-				stats.addValue(delta);
-			}else{
-				first = false;
-				prevMapValue = g.realValue();
-				prevGratPixelSys = (Line2D) g.l.clone();
+	/**
+	 * Solves the graticules of one sheet as the command line asks, using the cache, --robust and --uncertainty
+	 * when given. Safe to call for many sheets at once.
+	 * @param sheet the sheet's file or id, for messages and the uncertainty table
+	 * @return the world file
+	 */
+	static WorldFile solve(String sheet, PackedGraticules lonGrats, PackedGraticules latGrats,
+			double originEasting, double originNorthing, double unitsToMeters) throws Exception {
+		String key = null;
+		// a cached world file doesn't say which graticules it was solved from, so is only used without --uncertainty
+		if (cache != null && uncertainty == null) {
+			key = ResultCache.key(lonGrats, latGrats, originEasting, originNorthing, unitsToMeters,
+					robust == null ? null : robust.toString());
+			String cached = cache.get(key);
+			if (cached != null) {
+				if (debug)
+					System.out.println(sheet + ": world file from cache " + key);
+				return WorldFile.parse(cached);
 			}
 		}
 
-		double y = stats.getMean();
-		if (debug)
-			System.out.println("y range = " + (stats.getMax() - stats.getMin()));
-		stats.clear();
+		Solver solver = new Solver(originEasting, originNorthing, unitsToMeters);
+		Solution solution;
+		PackedGraticules lonUsed = lonGrats, latUsed = latGrats;
+		if (robust != null) {
+			RobustSolver.Result result = robust.solve(solver, lonGrats, latGrats);
+			for (int i = 0; i < result.rejected.size(); i++)
+				System.err.println(sheet + ": WARNING: rejected graticule " + result.rejected.get(i)
+						+ " with residual " + String.format("%.3f", result.rejectedResiduals.get(i))
+						+ " (threshold " + String.format("%.3f", result.threshold) + ")");
+			solution = result.solution;
+			lonUsed = result.lonInliers;
+			latUsed = result.latInliers;
+		}else{
+			solution = solver.solve(lonGrats, latGrats);
+		}
 
-		first = true;
-		for (Graticule g : lonGrats) {
-			if (!first) {
-				int deltaMapValue = g.realValue() - prevMapValue;
-				double deltaPixelValue = (g.l.ptLineDist(prevGratPixelSys.getP1()) + (g.l.ptLineDist(prevGratPixelSys.getP2()))) / 2;
+		if (debug) {
+			// one sheet's lines together when many are solved at once
+			synchronized (System.out) {
+				System.out.println(sheet + ":");
+				solution.printDebug(System.out);
+			}
+		}
 
-				double delta = deltaMapValue / deltaPixelValue;
-				stats.addValue(delta);
-			}else{
-				first = false;
-				prevMapValue = g.realValue();
-				prevGratPixelSys = (Line2D) g.l.clone();
+		if (uncertainty != null) {
+			Uncertainty u = Uncertainty.estimate(solver, lonUsed, latUsed, resamples, 1);
+			synchronized (uncertainty) {
+				u.jackknife.write(sheet, uncertainty);
+				u.bootstrap.write(sheet, uncertainty);
 			}
 		}
 
-		double x = stats.getMean();
-		if (debug)
-			System.out.println("x range = " + (stats.getMax() - stats.getMin()));
-		stats.clear();
+		if (key != null)
+			cache.put(key, solution.worldFile.toString());
+		return solution.worldFile;
+	}
 
-		if (debug) {
-			System.out.println("x = " + x);
-			System.out.println("y = " + y);
+	/**
+	 * Reads the graticules of a single sheet, from a traced SVG if the file name ends in .svg or else from a
+	 * graticules csv. Skipped SVG paths are reported on stderr.
+	 */
+	static void read(File input, GraticuleCsvReader.Handler handler) throws Exception {
+		long start = Metrics.start();
+		final int[] count = new int[1];
+		if (Metrics.isEnabled()) {
+			final GraticuleCsvReader.Handler inner = handler;
+			handler = new GraticuleCsvReader.Handler() {
+				@Override
+				public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) throws Exception {
+					count[0]++;
+					inner.graticule(latlon, dir, value, x1, y1, x2, y2);
+				}
+			};
 		}
 
-		SimpleRegression regression = new SimpleRegression();
+		if (SvgGraticuleReader.isSvg(input.toPath())) {
+			SvgGraticuleReader.read(input.toPath(), handler, System.err);
+		}else{
+			GraticuleCsvReader.read(input.toPath(), handler);
+		}
 
-		// C, F are translation terms: x, y map coordinates of the center of the upper-left pixel
-		for (Graticule g : latGrats) {
-			// find perp dist to pixel space 0,0
-			Double perpPixelDist = g.l.ptLineDist(new Point2D.Double(0,0));
+		Metrics.GRATICULES_PARSED.add(count[0]);
+		Metrics.stop(Metrics.Stage.READ, start);
+	}
 
-			// find the map space distance from this graticule to the center of the 0,0 pixel
-			Double perpMapDist = perpPixelDist * y; // perpMapDist / perpPixelDist = y
+	/**
+	 * Writes a GDAL .points file of ground control points at the graticule intersections of a single sheet.
+	 */
+	static void writeGcps(File csvFile, File pointsFile,
+			double originEasting, double originNorthing, double unitsToMeters) throws Exception {
+		PackedGraticules lonGrats = new PackedGraticules(LATLON.LON);
+		PackedGraticules latGrats = new PackedGraticules(LATLON.LAT);
+		read(csvFile, PackedGraticules.handler(lonGrats, latGrats));
 
-			regression.addData(perpMapDist, g.realValue());
+		BufferedWriter writer = new BufferedWriter(new FileWriter(pointsFile), 1 << 16);
+		try {
+			long start = Metrics.start();
+			int count = new GcpGenerator(originEasting, originNorthing, unitsToMeters).write(lonGrats, latGrats, writer);
+			Metrics.stop(Metrics.Stage.WRITE, start);
+			if (debug)
+				System.out.println("Wrote " + count + " ground control points from " + latGrats.size() + " LAT and "
+						+ lonGrats.size() + " LON graticules.");
+		}finally{
+			writer.close();
 		}
+	}
 
-		double F = regression.getIntercept();
-		regression.clear();
-
-		for (Graticule g : lonGrats) {
-			// find perp dist to pixel space 0,0
-			Double perpPixelDist = g.l.ptLineDist(new Point2D.Double(0,0));
+	/**
+	 * Fits a polynomial or thin plate spline to the crossings of a sheet's graticules, and writes it as a lookup
+	 * grid over the scan.
+	 * @param scan the scan the graticules were traced on, for its size
+	 * @param order 1, 2 or 3 for a polynomial of that order, or tps for a thin plate spline
+	 * @param precision the largest error the grid may add to the model in map units, or 0 for a tenth of the
+	 * scan's pixel size
+	 */
+	static WarpGrid writeGrid(File csvFile, File scan, File gridFile, String order, double precision,
+			double originEasting, double originNorthing, double unitsToMeters, int threads) throws Exception {
+		PackedGraticules lonGrats = new PackedGraticules(LATLON.LON);
+		PackedGraticules latGrats = new PackedGraticules(LATLON.LAT);
+		read(csvFile, PackedGraticules.handler(lonGrats, latGrats));
+		WarpGrid.Model model = WarpGrid.fit(order, lonGrats, latGrats, originEasting, originNorthing, unitsToMeters);
+
+		int[] size = Warper.size(scan);
+		if (precision <= 0) {
+			double[] p = new double[6];
+			model.transform(size[0] / 2, size[1] / 2, p, 0);
+			model.transform(size[0] / 2 + 1, size[1] / 2, p, 2);
+			model.transform(size[0] / 2, size[1] / 2 + 1, p, 4);
+			precision = Math.sqrt(Math.abs((p[2] - p[0]) * (p[5] - p[1]) - (p[4] - p[0]) * (p[3] - p[1]))) / 10;
+		}
 
-			// find the map space distance from this graticule to the center of the 0,0 pixel
-			Double perpMapDist = perpPixelDist * x; // perpMapDist / perpPixelDist = x
+		long start = System.nanoTime();
+		WarpGrid grid = WarpGrid.fit(model, size[0], size[1], precision, threads);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(gridFile), 1 << 16);
+		try {
+			grid.write(writer);
+		}finally{
+			writer.close();
+		}
+		System.out.println("Fitted a " + model + " to " + model.getPoints() + " graticule crossings, rms residual "
+				+ String.format("%.4f", model.getRms()) + ". Grid of " + grid.columns + "x" + grid.rows + " nodes every "
+				+ grid.step + " pixels, within " + String.format("%.4f", grid.getError()) + " of the model, in "
+				+ String.format("%.3f", (System.nanoTime() - start) / 1e9) + "s.");
+		return grid;
+	}
 
-			regression.addData(perpMapDist, g.realValue());
+	/**
+	 * Updates an index with the sheets given, if any, then answers a query or exports it.
+	 * @param query x,y or minx,miny,maxx,maxy, may be null
+	 * @param export a .geojson or .kml file, may be null
+	 * @param epsg the projection of the world files, may be null
+	 */
+	static void index(File indexFile, String[] args, String query, String export, String epsg) throws Exception {
+		SheetIndex index;
+		if (args.length > 0) {
+			List<File> images = new ArrayList<File>();
+			for (String arg : args)
+				images.addAll(TilePyramid.images(new File(arg)));
+			index = SheetIndex.update(indexFile, images, System.out);
+		}else{
+			index = SheetIndex.open(indexFile);
 		}
 
-		double C = regression.getIntercept();
-		regression.clear();
-		
-		if (debug) {
-			System.out.println("Upper Left pixel has coordinates " + C + ", " + F);
+		if (query != null) {
+			String[] q = query.split(",");
+			if (q.length != 2 && q.length != 4)
+				throw new Exception("--query takes x,y or minx,miny,maxx,maxy");
+			double[] v = new double[q.length];
+			for (int i = 0; i < q.length; i++)
+				v[i] = Double.parseDouble(q[i].trim());
+			SheetIndex.IntList hits = new SheetIndex.IntList();
+			long start = System.nanoTime();
+			if (v.length == 2) {
+				index.at(v[0], v[1], hits);
+			}else{
+				index.search(Math.min(v[0], v[2]), Math.min(v[1], v[3]), Math.max(v[0], v[2]), Math.max(v[1], v[3]), hits);
+			}
+			long nanos = System.nanoTime() - start;
+			for (int i = 0; i < hits.size(); i++)
+				System.out.println(index.sheet(hits.get(i)).path);
+			if (debug)
+				System.out.println(hits.size() + " of " + index.size() + " sheets found in " + nanos / 1000 + "us.");
 		}
 
-		// convert to meters
-		C *= unitsToMeters;
-		F *= unitsToMeters;
-
-		// C,F store the projected (in map units) coordinates of the upper left pixel.
-		// originNorthing,originEasting is the offset we need to apply to 0,0 to push the offsets into our global coordinate system 
-		C = originEasting + C;
-		F = originNorthing + F;
-
-
-		// calculate the affine transformation matrix elements
-		double D = -1 * x * unitsToMeters * Math.sin(theta);
-		double A = x * unitsToMeters * Math.cos(theta);
-		double B = y * unitsToMeters * Math.sin(phi); // if should be negative, it'll formed by negative sin
-		double E = -1 * y * unitsToMeters * Math.cos(phi);
-
-		/*
-		 * Line 1: A: pixel size in the x-direction in map units/pixel
-		 * Line 2: D: rotation about y-axis
-		 * Line 3: B: rotation about x-axis
-		 * Line 4: E: pixel size in the y-direction in map units, almost always negative[3]
-		 * Line 5: C: x-coordinate of the center of the upper left pixel
-		 * Line 6: F: y-coordinate of the center of the upper left pixel
-		 */
-		if (debug) {
-			System.out.println("A = " + A);
-			System.out.println("D = " + D);
-			System.out.println("B = " + B);
-			System.out.println("E = " + E);
-			System.out.println("C = " + C);
-			System.out.println("F = " + F);
-
-			// write the world file
-			System.out.println();
-			System.out.println("World File:");
-			System.out.println(A);
-			System.out.println(D);
-			System.out.println(B);
-			System.out.println(E);
-			System.out.println(C);
-			System.out.println(F);
+		if (export != null) {
+			Projection projection = epsg != null ? Projections.forCode(epsg) : null;
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(export), StandardCharsets.UTF_8));
+			try {
+				if (export.toLowerCase().endsWith(".kml")) {
+					if (projection == null)
+						throw new Exception("--epsg is needed to export KML, which is in longitude, latitude");
+					index.writeKml(writer, projection);
+				}else{
+					index.writeGeoJson(writer, projection);
+				}
+			}finally{
+				writer.close();
+			}
 		}
+	}
 
-		// write to the .wld file
-		wldWriter.write(A + "\n");
-		wldWriter.write(D + "\n");
-		wldWriter.write(B + "\n");
-		wldWriter.write(E + "\n");
-		wldWriter.write(C + "\n");
-		wldWriter.write(F + "\n");
+	/**
+	 * Fits a world file to the ground control points of a .points file.
+	 * @param residuals a csv to list each point's residual in, may be null
+	 * @param centers whether the pixel coordinates are of pixel centers rather than GDAL's corners
+	 */
+	static void fitGcps(File points, File wldFile, String residuals, boolean centers) throws Exception {
+		long start = Metrics.start();
+		GcpFit.Result fit = GcpFit.fit(points.toPath(), centers);
+		Metrics.stop(Metrics.Stage.READ, start);
 
-		wldWriter.close();
+		Writer writer = new BufferedWriter(new FileWriter(wldFile));
+		try {
+			fit.worldFile.write(writer);
+		}finally{
+			writer.close();
+		}
+
+		if (debug)
+			System.out.println("Fitted " + fit.points + " ground control points with an rms residual of "
+					+ String.format("%.6f", fit.rms) + (fit.negatedRows ? ", taking pixelY as negated rows." : "."));
+
+		if (residuals != null) {
+			writer = new BufferedWriter(new FileWriter(residuals), 1 << 16);
+			try {
+				double max = GcpFit.residuals(points.toPath(), fit, writer);
+				if (debug)
+					System.out.println("Largest residual " + String.format("%.6f", max) + ".");
+			}finally{
+				writer.close();
+			}
+		}
 	}
 
 	/**
-	 * Abstracts the source CSV file format, and exposes the data as two ArrayList<Graticule> for the rest of the program.
-	 * @param csvReader
-	 * @param lonGrats
-	 * @param latGrats
-	 * @throws Exception
+	 * Packs graticule csvs into an archive, or if there are none exports an archive's sheets.
+	 * @param args csv files, directories or globs, each single sheet csv is added with its file name as the id
+	 * @param export a .csv file to write all the sheets to, or else a directory to write a csv per sheet into
 	 */
-	private static void readCSV(BufferedReader csvReader,
-			ArrayList<Graticule> lonGrats, ArrayList<Graticule> latGrats) throws Exception {
+	static void archive(File archiveFile, String[] args, String export) throws Exception {
+		if (args.length > 0) {
+			long start = System.nanoTime();
+			GraticuleArchive.Builder builder = new GraticuleArchive.Builder(archiveFile);
+			try {
+				for (String arg : args) {
+					List<Path> csvs = Batch.listCsvs(arg);
+					if (csvs.isEmpty())
+						throw new Exception("No graticule csv files found for " + arg);
+					for (Path csv : csvs) {
+						String id = csv.getFileName().toString();
+						if (id.lastIndexOf('.') > 0)
+							id = id.substring(0, id.lastIndexOf('.'));
+						try {
+							builder.addCsv(csv, id);
+						}catch( GraticuleFormatException exp ) {
+							throw new Exception(csv + ": " + exp.getMessage());
+						}
+					}
+				}
+				builder.close();
+			}catch( Exception exp ) {
+				builder.abort();
+				throw exp;
+			}
+			System.out.println("Archived " + builder.size() + " sheets in "
+					+ String.format("%.3f", (System.nanoTime() - start) / 1e9) + "s.");
+		}
 
-		// chew the header line and check it is what we expect
-		String line = csvReader.readLine();
+		if (export != null) {
+			GraticuleArchive archive = GraticuleArchive.open(archiveFile);
+			if (export.toLowerCase().endsWith(".csv")) {
+				Writer writer = new BufferedWriter(new FileWriter(export), 1 << 16);
+				try {
+					archive.writeCsv(writer);
+				}finally{
+					writer.close();
+				}
+			}else{
+				File dir = new File(export);
+				if (!dir.isDirectory() && !dir.mkdirs())
+					throw new IOException("Could not create output directory " + dir);
+				for (int i = 0; i < archive.size(); i++) {
+					Writer writer = new BufferedWriter(new FileWriter(new File(dir, SheetStreamSolver.fileName(archive.id(i)) + ".csv")));
+					try {
+						archive.writeCsv(i, writer);
+					}finally{
+						writer.close();
+					}
+				}
+			}
+		}
+	}
 
-		if (!line.equals("lonlat,dir,value,x1,y1,x2,y2"))
-			System.exit(1);
+	/**
+	 * Transforms a csv or binary (if the input ends in .bin) file of points with a world file. Either file name
+	 * can be - for stdin or stdout.
+	 */
+	static void transform(File wld, boolean inverse, String input, String output,
+			int xColumn, int yColumn, int threads) throws Exception {
+		PointTransformer transformer = new PointTransformer(WorldFile.read(wld), inverse);
 
-		// read each line of the CSV file and build our internal data structures
-		for (line = csvReader.readLine(); line != null; line = csvReader.readLine()) {
-			String[] l = line.split(",");
-			if (l.length != 7)
-				throw new Exception("Source file has bad format. Each line should have 7 columns, but we found a line with " + l.length + "columns.");
-
-			LATLON latlon;
-			if (l[0].equals("lon"))
-				latlon = LATLON.LON;
-			else if (l[0].equals("lat"))
-				latlon = LATLON.LAT;
-			else
-				throw new Exception("Either 'lat' or 'lon' expected, found " + l[0]);
-
-			DIR dir;
-			if (l[1].equals("w"))
-				dir = DIR.W;
-			else if (l[1].equals("e"))
-				dir = DIR.E;
-			else if (l[1].equals("n"))
-				dir = DIR.N;
-			else if (l[1].equals("s"))
-				dir = DIR.S;
-			else if (l[1].equals("v"))
-				dir = DIR.E;
-			else if (l[1].equals("h"))
-				dir = DIR.N;
-			else
-				throw new Exception("Either n,s,e,w,h,v expected, found " + l[1]);
-
-			Graticule graticule = new Graticule(latlon,
-					dir,
-					Integer.parseInt(l[2]),
-					new Line2D.Float(Float.parseFloat(l[3]), Float.parseFloat(l[4]), Float.parseFloat(l[5]), Float.parseFloat(l[6])));
-
-			if (latlon.equals(LATLON.LAT))
-				latGrats.add(graticule);
-			else
-				lonGrats.add(graticule);
+		InputStream in = input.equals("-") ? System.in : new FileInputStream(input);
+		OutputStream out = output.equals("-") ? System.out : new FileOutputStream(output);
+		try {
+			if (input.endsWith(".bin")) {
+				TransformStream.binary(Channels.newChannel(in), Channels.newChannel(out), transformer, threads);
+			}else{
+				BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+				TransformStream.csv(reader, writer, transformer, xColumn, yColumn, threads);
+				writer.flush();
+			}
+		}finally{
+			in.close();
+			out.flush();
+			if (out != System.out)
+				out.close();
 		}
-
 	}
 
 	private static void printUsage(int status) {
 		//                  <----                               80 chars                               ---->		
-		System.out.println("graticules2wld [options] input.csv output.wld");
+		System.out.println("graticules2wld [options] input.csv|input.svg output.wld");
+		System.out.println("graticules2wld [options] sheets.csv output-directory|results.csv");
+		System.out.println("graticules2wld [options] --batch directory|glob|manifest");
+		System.out.println("graticules2wld [options] --gcps input.csv output.points");
+		System.out.println("graticules2wld [--residuals residuals.csv] [--pixel-centers] input.points output.wld");
+		System.out.println("graticules2wld [options] --serve [host:]port");
+		System.out.println("graticules2wld [options] --watch directory");
+		System.out.println("graticules2wld [options] --order 2|3|tps input.csv scan.jpg grid.csv");
+		System.out.println("graticules2wld [options] --warp file.wld|grid.csv scan.jpg output.tif");
+		System.out.println("graticules2wld [options] --epsg code --tiles output-directory scan.jpg|directory ...");
+		System.out.println("graticules2wld [options] --index sheets.idx [scan.jpg|directory ...]");
+		System.out.println("graticules2wld [options] --detect scan.jpg lines.csv");
+		System.out.println("graticules2wld --archive sheets.g2wa sheet.csv|directory|glob ...");
+		System.out.println("graticules2wld --archive sheets.g2wa --export sheets.csv|directory");
+		System.out.println("graticules2wld [--inverse] --transform file.wld points.csv|points.bin output");
 		System.out.println();
 		System.out.println("    Options:");
 		System.out.println("    -h, --help        prints this message");
 		System.out.println("    -x, --originx     x component of projected coordinates of upper left pixel");
 		System.out.println("    -y, --originy     y component of projected coordinates of upper left pixel");
+		System.out.println("    -L, --origin-lonlat");
+		System.out.println("                      longitude,latitude of the upper left pixel, projected with");
+		System.out.println("                      --epsg, in place of --originx and --originy");
 		System.out.println("    -u, --tometers    multiplication factor to get source units into meters");
+		System.out.println("    -d, --debug       prints debugging information to stdout");
+		System.out.println("    -b, --batch       solve every sheet in a directory, glob or manifest file");
+		System.out.println("    -O, --adjust      with --batch, adjust all the sheets together, tying the crossings");
+		System.out.println("                      neighbouring sheets share so they meet without seams");
+		System.out.println("    -F, --tie-weight  with --adjust, the weight of each tie against a graticule end");
+		System.out.println("                      point (default 10)");
+		System.out.println("    -j, --threads     number of worker threads to use for batches and multiple sheet csvs");
+		System.out.println("    -r, --robust      reject mis-traced graticules using ransac or lmeds");
+		System.out.println("    -t, --threshold   largest residual in source units for a graticule to be kept");
+		System.out.println("    -i, --iterations  number of hypotheses tried by --robust (default 1000)");
+		System.out.println("    -g, --gcps        write ground control points at the graticule intersections");
+		System.out.println("                      as a GDAL .points file instead of a world file");
+		System.out.println("    -f, --residuals   when fitting a world file to a .points file, list each point's");
+		System.out.println("                      residual in this csv");
+		System.out.println("    -X, --pixel-centers");
+		System.out.println("                      when fitting a .points file, its pixel coordinates are of");
+		System.out.println("                      pixel centers, not the pixel corners GDAL takes them as");
+		System.out.println("    -m, --metrics     write stage timings, counters and histograms at the end of the");
+		System.out.println("                      run, as JSON for a .json file or else Prometheus text");
+		System.out.println("    -s, --serve       serve solves over HTTP, POST a csv or JSON body to /solve.");
+		System.out.println("                      --originx, --originy and --tometers become defaults");
+		System.out.println("    -l, --limit       with --serve, the most requests solved at once");
+		System.out.println("    -w, --watch       keep a world file next to each sheet in a directory up to date,");
+		System.out.println("                      re-solving sheets as they are saved");
+		System.out.println("    -D, --debounce    with --watch, milliseconds a sheet must be left unchanged");
+		System.out.println("                      before it is solved (default 500)");
+		System.out.println("    -U, --uncertainty write a table of each sheet's jackknife and bootstrap standard");
+		System.out.println("                      errors of A-F, and the positional error in meters at the");
+		System.out.println("                      corners of its graticules, to a csv or - for stdout");
+		System.out.println("    -B, --bootstrap   with --uncertainty, the number of bootstrap resamples");
+		System.out.println("                      (default 1000)");
+		System.out.println("    -C, --cache       reuse world files from this cache directory for sheets which");
+		System.out.println("                      haven't changed, and add new ones to it");
+		System.out.println("    -S, --cache-size  the most megabytes the cache may take up (default 256)");
+		System.out.println("    -o, --order       fit a 1, 2 or 3 order polynomial, or tps for a thin plate");
+		System.out.println("                      spline, to the graticule crossings and write it as a lookup");
+		System.out.println("                      grid of map coordinates every few pixels of the scan");
+		System.out.println("    -p, --precision   with --order, the largest error in map units the grid may add");
+		System.out.println("                      to the model (default a tenth of a scan pixel)");
+		System.out.println("    -W, --warp        warp a scan into a north up, tiled GeoTIFF (and .tfw) with");
+		System.out.println("                      the scan's world file, or a lookup grid from --order");
+		System.out.println("    -k, --kernel      with --warp, nearest or bilinear resampling (default bilinear)");
+		System.out.println("    -R, --resolution  with --warp, output pixel size in map units (default the scan's)");
+		System.out.println("    -E, --epsg        the EPSG code of the map coordinates, eg. 28356 for MGA zone 56,");
+		System.out.println("                      32756 for UTM 56S, 3857 or 4326. Recorded by --warp and");
+		System.out.println("                      needed by --tiles and --origin-lonlat");
+		System.out.println("    -P, --tiles       render scans, each with a world file beside it, into a pyramid");
+		System.out.println("                      of web mercator z/x/y.png tiles. --epsg gives their projection");
+		System.out.println("    -z, --zoom        with --tiles, the zooms to render as min-max (default 0 to the");
+		System.out.println("                      scans' resolution)");
+		System.out.println("    -M, --tms         with --tiles, number tile rows up from the south as TMS does");
+		System.out.println("    -n, --index       build a spatial index of scans with world files, or update it");
+		System.out.println("                      reading only the scans which have changed");
+		System.out.println("    -q, --query       with --index, list the scans covering x,y or touching the box");
+		System.out.println("                      minx,miny,maxx,maxy");
+		System.out.println("    -e, --export      with --index, write the scans' footprints as .geojson or .kml,");
+		System.out.println("                      in longitude, latitude if --epsg is given (needed for KML).");
+		System.out.println("                      With --archive, write its sheets to a multiple sheet .csv or");
+		System.out.println("                      a csv per sheet into a directory");
+		System.out.println("    -G, --detect      find the graticule lines in a scan and write them as a csv with");
+		System.out.println("                      blank values, ready to be labelled");
+		System.out.println("    -K, --ink         with --detect, the brightest (0 to 255) a pixel can be and");
+		System.out.println("                      count as ink (default 128)");
+		System.out.println("    -a, --skew        with --detect, the most in degrees the graticules are turned");
+		System.out.println("                      from the scan's rows and columns (default 10)");
+		System.out.println("    -N, --min-length  with --detect, the shortest line kept in pixels (default a");
+		System.out.println("                      quarter of the scan's smaller side)");
+		System.out.println("    -A, --archive     pack graticule csvs into a binary archive, which can be solved");
+		System.out.println("                      like a multiple sheet csv without parsing any text");
+		System.out.println("    -T, --transform   transform points from pixel to projected coordinates with a");
+		System.out.println("                      world file, csv or (for .bin) little endian x,y doubles");
+		System.out.println("    -I, --inverse     with --transform, go from projected to pixel coordinates");
+		System.out.println("    -c, --columns     with --transform, the x,y columns of csv points (default 1,2)");
 
 		System.exit(status);
 	}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.Timespan;
+
+/**
+ * Timers, counters and histograms for the solve pipeline, dumped as JSON or Prometheus text at the end of a
+ * run with --metrics, and JFR events for each stage and each solve whenever a flight recording is running.
+ *
+ * Everything is recorded per stage or per sheet, never per graticule, and with --metrics off and no flight
+ * recording running a stage costs two System.nanoTime() calls and two flag tests and allocates nothing, so
+ * leaving the calls in costs nothing measurable. All of the recording methods are thread safe.
+ */
+public final class Metrics {
+
+	public enum Stage {
+		READ, // parsing a csv or svg into packed graticules
+		ANGLES, // theta and phi
+		SPACINGS, // x and y
+		REGRESSION, // the C and F intercepts
+		ROBUST, // hypothesis search and refit with --robust
+		WRITE; // writing the world file or other output
+
+		final String label = name().toLowerCase(Locale.ROOT);
+		final Histogram seconds = new Histogram(1e-7, 2, 32);
+	}
+
+	// set before any work is started, volatile so that a worker thread started earlier still sees it
+	private static volatile boolean enabled = false;
+
+	// whether a flight recording is running, kept up to date by the recorder so that no JFR event is made when
+	// none could be committed
+	private static volatile boolean recording = false;
+	private static final Set<Recording> running = new HashSet<Recording>();
+
+	static {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recorderInitialized(FlightRecorder recorder) {
+				for (Recording r : recorder.getRecordings())
+					recordingStateChanged(r);
+			}
+
+			@Override
+			public void recordingStateChanged(Recording r) {
+				synchronized (running) {
+					if (r.getState() == RecordingState.RUNNING)
+						running.add(r);
+					else
+						running.remove(r);
+					recording = !running.isEmpty();
+				}
+			}
+		});
+	}
+
+	public static final Counter GRATICULES_PARSED = new Counter("graticules_parsed_total", "graticules read from csv or svg input");
+	public static final Counter GRATICULES_REJECTED = new Counter("graticules_rejected_total", "graticules rejected by --robust");
+	public static final Counter SHEETS_SOLVED = new Counter("sheets_solved_total", "sheets solved");
+	public static final Counter SHEETS_FAILED = new Counter("sheets_failed_total", "sheets which could not be solved");
+	public static final Counter CACHE_HITS = new Counter("cache_hits_total", "sheets whose world file came from --cache");
+	public static final Counter CACHE_MISSES = new Counter("cache_misses_total", "sheets which had to be solved with --cache");
+
+	public static final Histogram SOLVE_SECONDS = new Histogram(1e-6, 2, 32);
+	public static final Histogram RESIDUAL_RMS = new Histogram(1e-4, 2, 32);
+
+	static final String PREFIX = "graticules2wld_";
+
+	private Metrics() {
+	}
+
+	/**
+	 * Turns on recording for --metrics. Call before any sheets are read.
+	 */
+	public static void enable() {
+		enabled = true;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return whether a flight recording is running, so JFR events are worth making
+	 */
+	static boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * @return a start time for stop()
+	 */
+	static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the time since start against the stage.
+	 */
+	static void stop(Stage stage, long start) {
+		if (!enabled && !recording)
+			return;
+		long nanos = System.nanoTime() - start;
+		if (enabled)
+			stage.seconds.record(nanos / 1e9);
+
+		if (recording) {
+			StageEvent event = new StageEvent();
+			if (event.isEnabled()) {
+				event.stage = stage.label;
+				event.elapsed = nanos;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * A count which only goes up.
+	 */
+	public static final class Counter {
+		final String name;
+		final String help;
+		private final LongAdder count = new LongAdder();
+
+		Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void add(long n) {
+			if (enabled)
+				count.add(n);
+		}
+
+		public long get() {
+			return count.sum();
+		}
+	}
+
+	/**
+	 * A histogram with exponentially growing buckets, the first bucket holding values up to min and each after
+	 * it factor times as wide, plus a last bucket for anything larger.
+	 */
+	public static final class Histogram {
+		private final double[] bounds;
+		private final AtomicLongArray counts;
+		private final LongAdder count = new LongAdder();
+		private final DoubleAdder sum = new DoubleAdder();
+		private final AtomicLong maxBits = new AtomicLong(Double.doubleToLongBits(0));
+
+		Histogram(double min, double factor, int buckets) {
+			bounds = new double[buckets];
+			bounds[0] = min;
+			for (int i = 1; i < buckets; i++)
+				bounds[i] = bounds[i - 1] * factor;
+			counts = new AtomicLongArray(buckets + 1);
+		}
+
+		public void record(double value) {
+			if (!enabled || Double.isNaN(value))
+				return;
+			int i = 0;
+			while (i < bounds.length && value > bounds[i])
+				i++;
+			counts.incrementAndGet(i);
+			count.increment();
+			sum.add(value);
+			long bits;
+			while (value > Double.longBitsToDouble(bits = maxBits.get())
+					&& !maxBits.compareAndSet(bits, Double.doubleToLongBits(value)))
+				;
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getSum() {
+			return sum.sum();
+		}
+
+		public double getMax() {
+			return Double.longBitsToDouble(maxBits.get());
+		}
+
+		/**
+		 * @return an upper bound for the value at quantile q (0 to 1), the upper bound of the bucket it falls in
+		 */
+		public double quantile(double q) {
+			long total = 0;
+			for (int i = 0; i < counts.length(); i++)
+				total += counts.get(i);
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				seen += counts.get(i);
+				if (seen >= Math.max(1, rank))
+					return Math.min(bounds[i], getMax());
+			}
+			return getMax();
+		}
+
+		void writePrometheus(Writer out, String name, String labels, String help) throws IOException {
+			String sep = labels.isEmpty() ? "" : ",";
+			if (help != null) {
+				out.write("# HELP " + name + " " + help + "\n");
+				out.write("# TYPE " + name + " histogram\n");
+			}
+			long cumulative = 0;
+			for (int i = 0; i < bounds.length; i++) {
+				cumulative += counts.get(i);
+				out.write(name + "_bucket{" + labels + sep + "le=\"" + bounds[i] + "\"} " + cumulative + "\n");
+			}
+			cumulative += counts.get(bounds.length);
+			out.write(name + "_bucket{" + labels + sep + "le=\"+Inf\"} " + cumulative + "\n");
+			String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.write(name + "_sum" + braces + " " + getSum() + "\n");
+			out.write(name + "_count" + braces + " " + getCount() + "\n");
+		}
+
+		void writeJson(Writer out) throws IOException {
+			out.write("{\"count\": " + getCount() + ", \"sum\": " + getSum() + ", \"max\": " + getMax()
+					+ ", \"p50\": " + quantile(0.5) + ", \"p90\": " + quantile(0.9) + ", \"p99\": " + quantile(0.99) + "}");
+		}
+	}
+
+	/**
+	 * Writes all metrics to file, as JSON if the name ends in .json or else in the Prometheus text format.
+	 */
+	public static void write(File file) throws IOException {
+		Writer out = new BufferedWriter(new FileWriter(file));
+		try {
+			if (file.getName().toLowerCase(Locale.ROOT).endsWith(".json"))
+				writeJson(out);
+			else
+				writePrometheus(out);
+		}finally{
+			out.close();
+		}
+	}
+
+	public static void writePrometheus(Writer out) throws IOException {
+		for (Counter c : counters()) {
+			out.write("# HELP " + PREFIX + c.name + " " + c.help + "\n");
+			out.write("# TYPE " + PREFIX + c.name + " counter\n");
+			out.write(PREFIX + c.name + " " + c.get() + "\n");
+		}
+
+		String name = PREFIX + "stage_seconds";
+		String help = "time spent in each stage of the pipeline";
+		for (Stage stage : Stage.values()) {
+			stage.seconds.writePrometheus(out, name, "stage=\"" + stage.label + "\"", help);
+			help = null;
+		}
+		SOLVE_SECONDS.writePrometheus(out, PREFIX + "solve_seconds", "", "time to solve each sheet");
+		RESIDUAL_RMS.writePrometheus(out, PREFIX + "residual_rms", "",
+				"rms distance, in source units, of each sheet's graticules from their values under its world file");
+	}
+
+	public static void writeJson(Writer out) throws IOException {
+		out.write("{\n  \"counters\": {");
+		String sep = "\n";
+		for (Counter c : counters()) {
+			out.write(sep + "    \"" + c.name + "\": " + c.get());
+			sep = ",\n";
+		}
+		out.write("\n  },\n  \"stage_seconds\": {");
+		sep = "\n";
+		for (Stage stage : Stage.values()) {
+			out.write(sep + "    \"" + stage.label + "\": ");
+			stage.seconds.writeJson(out);
+			sep = ",\n";
+		}
+		out.write("\n  },\n  \"solve_seconds\": ");
+		SOLVE_SECONDS.writeJson(out);
+		out.write(",\n  \"residual_rms\": ");
+		RESIDUAL_RMS.writeJson(out);
+		out.write("\n}\n");
+	}
+
+	private static Counter[] counters() {
+		return new Counter[] {GRATICULES_PARSED, GRATICULES_REJECTED, SHEETS_SOLVED, SHEETS_FAILED, CACHE_HITS, CACHE_MISSES};
+	}
+
+	@Name("graticules2wld.Stage")
+	@Label("Pipeline Stage")
+	@Category("graticules2wld")
+	@Description("One stage of reading, solving or writing a sheet")
+	static final class StageEvent extends Event {
+		@Label("Stage")
+		String stage;
+
+		@Label("Elapsed")
+		@Timespan(Timespan.NANOSECONDS)
+		long elapsed;
+	}
+
+	@Name("graticules2wld.Solve")
+	@Label("Sheet Solve")
+	@Category("graticules2wld")
+	@Description("Solving the world file of one sheet")
+	static final class SolveEvent extends Event {
+		@Label("LAT graticules")
+		int lat;
+
+		@Label("LON graticules")
+		int lon;
+
+		@Label("Residual RMS")
+		@Description("rms distance, in source units, of the graticules from their values under the world file")
+		double residualRms;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+	@Test
+	public void test_histogram() {
+		Metrics.enable();
+		Metrics.Histogram h = new Metrics.Histogram(1, 2, 10);
+		for (int i = 1; i <= 100; i++)
+			h.record(i);
+
+		assertEquals(100, h.getCount());
+		assertEquals(5050, h.getSum(), 1e-9);
+		assertEquals(100, h.getMax(), 0);
+		assertEquals(64, h.quantile(0.5), 0); // 50 is in the (32, 64] bucket
+		assertEquals(100, h.quantile(0.99), 0); // capped at the max
+
+		StringWriter out = new StringWriter();
+		try {
+			h.writePrometheus(out, "x", "", "help");
+		}catch( java.io.IOException exp ) {
+			fail();
+		}
+		assertTrue(out.toString(), out.toString().contains("x_bucket{le=\"+Inf\"} 100\n"));
+		assertTrue(out.toString(), out.toString().contains("x_count 100\n"));
+	}
+
+	/**
+	 * A solve should record its stages and residuals
+	 */
+	@Test
+	public void test_solveRecords() throws Exception {
+		Metrics.enable();
+		long before = Metrics.SOLVE_SECONDS.getCount();
+		long regressions = Metrics.Stage.REGRESSION.seconds.getCount();
+
+		new Solver(0, 0, 1).solve(SolverTest.trace(new WorldFile(0.5, 0, 0, -0.5, -450, 420)));
+
+		assertEquals(before + 1, Metrics.SOLVE_SECONDS.getCount());
+		assertEquals(regressions + 1, Metrics.Stage.REGRESSION.seconds.getCount());
+
+		StringWriter json = new StringWriter();
+		Metrics.writeJson(json);
+		assertTrue(json.toString(), json.toString().contains("\"regression\": {\"count\": "));
+	}
+
+	/**
+	 * JFR events should only be made while a flight recording is running
+	 */
+	@Test
+	public void test_recording() throws Exception {
+		assertFalse(Metrics.isRecording());
+		jdk.jfr.Recording recording = new jdk.jfr.Recording();
+		try {
+			recording.start();
+			assertTrue(Metrics.isRecording());
+		}finally{
+			recording.close();
+		}
+		assertFalse(Metrics.isRecording());
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.awt.geom.Line2D;
+import java.util.Arrays;
+
+/**
+ * A set of graticules, all LAT or all LON, stored as parallel arrays rather than as Graticule objects. The line
+ * end points are held as doubles and the values as real (signed) values.
+ *
+ * The bulk kernels below work straight over the arrays and allocate nothing, so large sets can be processed at
+ * close to memory bandwidth. A PackedGraticules isn't safe to add to from many threads, but once built the
+ * kernels can be run on it from any number of threads.
+ */
+public final class PackedGraticules {
+	public final LATLON latlon;
+
+	// graticule i is the line (x1[i],y1[i]) to (x2[i],y2[i]) with real value value[i]
+	double[] x1;
+	double[] y1;
+	double[] x2;
+	double[] y2;
+	int[] value;
+	int size;
+
+	public PackedGraticules(LATLON latlon) {
+		this(latlon, 16);
+	}
+
+	public PackedGraticules(LATLON latlon, int capacity) {
+		this.latlon = latlon;
+		capacity = Math.max(1, capacity);
+		x1 = new double[capacity];
+		y1 = new double[capacity];
+		x2 = new double[capacity];
+		y2 = new double[capacity];
+		value = new int[capacity];
+	}
+
+	/**
+	 * Adds a graticule.
+	 * @param realValue the value of the graticule, negative if south or west
+	 */
+	public void add(int realValue, double x1, double y1, double x2, double y2) {
+		if (size == value.length) {
+			int capacity = size * 2;
+			this.x1 = Arrays.copyOf(this.x1, capacity);
+			this.y1 = Arrays.copyOf(this.y1, capacity);
+			this.x2 = Arrays.copyOf(this.x2, capacity);
+			this.y2 = Arrays.copyOf(this.y2, capacity);
+			this.value = Arrays.copyOf(this.value, capacity);
+		}
+		this.x1[size] = x1;
+		this.y1[size] = y1;
+		this.x2[size] = x2;
+		this.y2[size] = y2;
+		this.value[size] = realValue;
+		size++;
+	}
+
+	/**
+	 * Grows the arrays, if need be, to hold at least capacity graticules.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity > value.length) {
+			x1 = Arrays.copyOf(x1, capacity);
+			y1 = Arrays.copyOf(y1, capacity);
+			x2 = Arrays.copyOf(x2, capacity);
+			y2 = Arrays.copyOf(y2, capacity);
+			value = Arrays.copyOf(value, capacity);
+		}
+	}
+
+	public void add(Graticule g) {
+		if (!g.latlon.equals(latlon))
+			throw new IllegalArgumentException("Cannot add a " + g.latlon + " graticule to a set of " + latlon + " graticules.");
+		add(g.realValue(), g.l.getX1(), g.l.getY1(), g.l.getX2(), g.l.getY2());
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int getValue(int i) {
+		return value[i];
+	}
+
+	/**
+	 * @return graticule i as a Graticule object
+	 */
+	public Graticule get(int i) {
+		int v = value[i];
+		DIR dir;
+		if (latlon.equals(LATLON.LAT))
+			dir = v < 0 ? DIR.S : DIR.N;
+		else
+			dir = v < 0 ? DIR.W : DIR.E;
+		return new Graticule(latlon, dir, Math.abs(v), new Line2D.Double(x1[i], y1[i], x2[i], y2[i]));
+	}
+
+	/**
+	 * Fills out with the angle of each graticule, as Graticule.angle() gives.
+	 * @param out at least size() long
+	 */
+	public void angles(double[] out) {
+		if (latlon.equals(LATLON.LAT)) {
+			for (int i = 0; i < size; i++)
+				out[i] = Graticule.latAngle(x2[i] - x1[i], y2[i] - y1[i]);
+		}else{
+			for (int i = 0; i < size; i++)
+				out[i] = Graticule.lonAngle(x2[i] - x1[i], y2[i] - y1[i]);
+		}
+	}
+
+	/**
+	 * Fills out with the perpendicular distance from the point px,py to the (infinitely extended) line of each
+	 * graticule.
+	 * @param out at least size() long
+	 */
+	public void distancesTo(double px, double py, double[] out) {
+		for (int i = 0; i < size; i++)
+			out[i] = Line2D.ptLineDist(x1[i], y1[i], x2[i], y2[i], px, py);
+	}
+
+	/**
+	 * @return the index of the graticule with the lowest value, the first one if there is a tie, or -1 if empty
+	 */
+	public int indexOfMinValue() {
+		int min = -1;
+		for (int i = 0; i < size; i++) {
+			if (min < 0 || value[i] < value[min])
+				min = i;
+		}
+		return min;
+	}
+
+	/**
+	 * Fills out with the map units per pixel between graticule ref and each of the other graticules. The pixel
+	 * distance is taken as the mean distance of the end points of ref from the other line.
+	 * @param ref the index of the graticule to measure from
+	 * @param out at least size() - 1 long, the spacings are packed in leaving out ref
+	 * @return the number of spacings, size() - 1
+	 */
+	public int spacings(int ref, double[] out) {
+		double rx1 = x1[ref], ry1 = y1[ref], rx2 = x2[ref], ry2 = y2[ref];
+		int refValue = value[ref];
+		int n = 0;
+		for (int i = 0; i < size; i++) {
+			if (i == ref)
+				continue;
+			int deltaMapValue = Math.abs(value[i] - refValue);
+			double deltaPixelValue = (Line2D.ptLineDist(x1[i], y1[i], x2[i], y2[i], rx1, ry1)
+					+ Line2D.ptLineDist(x1[i], y1[i], x2[i], y2[i], rx2, ry2)) / 2;
+			out[n++] = deltaMapValue / deltaPixelValue;
+		}
+		return n;
+	}
+
+	/**
+	 * @return A Handler for GraticuleCsvReader which adds each row to lon or lat
+	 */
+	public static GraticuleCsvReader.Handler handler(final PackedGraticules lon, final PackedGraticules lat) {
+		return new GraticuleCsvReader.Handler() {
+			@Override
+			public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) {
+				int realValue = (dir == DIR.S || dir == DIR.W) ? -value : value;
+				if (latlon == LATLON.LAT)
+					lat.add(realValue, x1, y1, x2, y2);
+				else
+					lon.add(realValue, x1, y1, x2, y2);
+			}
+		};
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PackedGraticulesTest {
+
+	static List<Graticule> randomGraticules(LATLON latlon, int n) {
+		Random random = new Random(7);
+		List<Graticule> grats = new ArrayList<Graticule>();
+		for (int i = 0; i < n; i++) {
+			int value = random.nextInt(2000) - 1000;
+			DIR dir = latlon.equals(LATLON.LAT) ? (value < 0 ? DIR.S : DIR.N) : (value < 0 ? DIR.W : DIR.E);
+			grats.add(new Graticule(latlon, dir, Math.abs(value), new Line2D.Double(
+					random.nextDouble() * 5000, random.nextDouble() * 5000, random.nextDouble() * 5000, random.nextDouble() * 5000)));
+		}
+		return grats;
+	}
+
+	/**
+	 * Testing the bulk kernels give the same as the per Graticule methods
+	 */
+	@Test
+	public void test_kernels() {
+		for (LATLON latlon : LATLON.values()) {
+			List<Graticule> grats = randomGraticules(latlon, 100);
+			PackedGraticules packed = new PackedGraticules(latlon, 1);
+			for (Graticule g : grats)
+				packed.add(g);
+			assertEquals(grats.size(), packed.size());
+
+			double[] out = new double[packed.size()];
+			packed.angles(out);
+			for (int i = 0; i < grats.size(); i++)
+				assertEquals(grats.get(i).angle(), out[i], 0);
+
+			packed.distancesTo(0, 0, out);
+			for (int i = 0; i < grats.size(); i++)
+				assertEquals(grats.get(i).l.ptLineDist(0, 0), out[i], 0);
+
+			int min = packed.indexOfMinValue();
+			for (int i = 0; i < grats.size(); i++) {
+				assertEquals(grats.get(i).realValue(), packed.getValue(i));
+				assertTrue(packed.getValue(min) <= packed.getValue(i));
+				assertEquals(grats.get(i).toString(), packed.get(i).toString());
+			}
+
+			assertEquals(grats.size() - 1, packed.spacings(min, out));
+		}
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+/**
+ * Reads and writes RGBA png tiles as packed ARGB ints.
+ *
+ * ImageIO's png reader hands back bytes which then go through the colour model a pixel and a band at a time to
+ * become ints, which costs more than the inflating. The pngs the tiles are written as (8 bit RGBA, not
+ * interlaced) are instead inflated and unfiltered straight into ints here.
+ */
+final class PngTile {
+
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	private PngTile() {
+	}
+
+	/**
+	 * @return the pixels of a png as ARGB ints in rows
+	 */
+	static int[] read(File file, int width, int height) throws IOException {
+		byte[] png = Files.readAllBytes(file.toPath());
+		int[] argb = decode(png, width, height);
+		if (argb != null)
+			return argb;
+
+		// not one of ours, so let ImageIO deal with it
+		ImageReader reader = Warper.open(file);
+		try {
+			return Warper.read(reader, new Rectangle(0, 0, width, height));
+		}finally{
+			Warper.close(reader);
+		}
+	}
+
+	/**
+	 * Decodes an 8 bit RGBA, non interlaced png, as this class writes.
+	 * @return the pixels or null if the png is some other kind
+	 */
+	static int[] decode(byte[] png, int width, int height) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap(png);
+		for (byte s : SIGNATURE) {
+			if (!b.hasRemaining() || b.get() != s)
+				return null;
+		}
+		Inflater inflater = new Inflater();
+		int stride = 1 + 4 * width;
+		byte[] rows = new byte[stride * height];
+		int inflated = 0;
+		try {
+			while (b.remaining() >= 12) {
+				int length = b.getInt();
+				int type = b.getInt();
+				if (length < 0 || length > b.remaining() - 4)
+					throw new IOException("Truncated png");
+				if (type == 0x49484452) { // IHDR
+					if (b.getInt(b.position()) != width || b.getInt(b.position() + 4) != height
+							|| png[b.position() + 8] != 8 || png[b.position() + 9] != 6 || png[b.position() + 12] != 0)
+						return null;
+				}else if (type == 0x49444154) { // IDAT
+					inflater.setInput(png, b.position(), length);
+					while (!inflater.needsInput() && inflated < rows.length) {
+						int n = inflater.inflate(rows, inflated, rows.length - inflated);
+						if (n == 0 && (inflater.finished() || inflater.needsDictionary()))
+							break;
+						inflated += n;
+					}
+				}else if (type == 0x49454e44) { // IEND
+					break;
+				}
+				b.position(b.position() + length + 4); // skip the crc
+			}
+		}catch( DataFormatException exp ) {
+			throw new IOException("Corrupt png: " + exp.getMessage());
+		}finally{
+			inflater.end();
+		}
+		if (inflated < rows.length)
+			throw new IOException("Truncated png");
+
+		int[] argb = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			int o = y * stride;
+			int filter = rows[o];
+			for (int i = 1; i < stride; i++) {
+				int a = i > 4 ? rows[o + i - 4] & 0xff : 0;
+				int up = y > 0 ? rows[o - stride + i] & 0xff : 0;
+				int c = i > 4 && y > 0 ? rows[o - stride + i - 4] & 0xff : 0;
+				int v = rows[o + i] & 0xff;
+				switch (filter) {
+				case 0:
+					break;
+				case 1:
+					v += a;
+					break;
+				case 2:
+					v += up;
+					break;
+				case 3:
+					v += (a + up) >> 1;
+					break;
+				case 4:
+					v += paeth(a, up, c);
+					break;
+				default:
+					throw new IOException("Unknown png filter " + filter);
+				}
+				rows[o + i] = (byte) v;
+			}
+			for (int x = 0, i = o + 1; x < width; x++, i += 4)
+				argb[y * width + x] = (rows[i + 3] & 0xff) << 24 | (rows[i] & 0xff) << 16 | (rows[i + 1] & 0xff) << 8 | (rows[i + 2] & 0xff);
+		}
+		return argb;
+	}
+
+	/**
+	 * Writes width by height ARGB pixels, in rows, as an 8 bit RGBA png.
+	 */
+	static void write(int[] argb, int width, int height, OutputStream out) throws IOException {
+		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		System.arraycopy(argb, 0, ((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0, argb.length);
+		if (!ImageIO.write(img, "png", out))
+			throw new IOException("No png writer");
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+		return pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+/**
+ * Applies a world file to many points at once, either forward from pixel to projected coordinates or inverse
+ * from projected to pixel coordinates.
+ *
+ * Points are held interleaved, x0 y0 x1 y1 ..., in a plain double[], and transformed in place by a loop with no
+ * calls or branches in it so the JIT can unroll and vectorise it. A PointTransformer is immutable and can be
+ * shared between threads.
+ */
+public final class PointTransformer {
+
+	// x' = m00 x + m01 y + m02, y' = m10 x + m11 y + m12
+	private final double m00, m10, m01, m11, m02, m12;
+
+	/**
+	 * @param wld the world file to apply
+	 * @param inverse whether to go from projected to pixel coordinates
+	 * @throws IllegalArgumentException if inverse and the world file can't be inverted
+	 */
+	public PointTransformer(WorldFile wld, boolean inverse) {
+		if (!inverse) {
+			m00 = wld.A; m10 = wld.D; m01 = wld.B; m11 = wld.E; m02 = wld.C; m12 = wld.F;
+		}else{
+			double det = wld.A * wld.E - wld.B * wld.D;
+			if (det == 0 || Double.isNaN(det) || Double.isInfinite(det))
+				throw new IllegalArgumentException("The world file can't be inverted, its determinant is " + det);
+			m00 = wld.E / det;
+			m10 = -wld.D / det;
+			m01 = -wld.B / det;
+			m11 = wld.A / det;
+			m02 = (wld.B * wld.F - wld.E * wld.C) / det;
+			m12 = (wld.D * wld.C - wld.A * wld.F) / det;
+		}
+	}
+
+	/**
+	 * Transforms count points in place, starting at point offset of the interleaved array xy.
+	 */
+	public void transform(double[] xy, int offset, int count) {
+		int end = 2 * (offset + count);
+		for (int i = 2 * offset; i < end; i += 2) {
+			double x = xy[i];
+			double y = xy[i + 1];
+			xy[i] = m00 * x + m01 * y + m02;
+			xy[i + 1] = m10 * x + m11 * y + m12;
+		}
+	}
+
+	/**
+	 * Transforms count points from the separate arrays x and y in place.
+	 */
+	public void transform(double[] x, double[] y, int count) {
+		for (int i = 0; i < count; i++) {
+			double px = x[i];
+			double py = y[i];
+			x[i] = m00 * px + m01 * py + m02;
+			y[i] = m10 * px + m11 * py + m12;
+		}
+	}
+}
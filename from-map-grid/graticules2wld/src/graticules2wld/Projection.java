@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+/**
+ * A map projection between longitude, latitude in degrees and projected map coordinates.
+ *
+ * Like PointTransformer, points are held interleaved, x0 y0 x1 y1 ... (longitude first), and transformed in place
+ * in bulk, so large numbers of points can be reprojected without an object per point. Implementations are
+ * immutable and can be shared between threads.
+ */
+public interface Projection {
+
+	/**
+	 * Projects count longitude, latitude pairs in place, starting at point offset.
+	 */
+	void forward(double[] xy, int offset, int count);
+
+	/**
+	 * Takes count projected x, y pairs in place back to longitude, latitude, starting at point offset.
+	 */
+	void inverse(double[] xy, int offset, int count);
+
+	/**
+	 * @return the EPSG code of the coordinate system
+	 */
+	int getEpsg();
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Looks up projections by EPSG code. Those known are
+ *
+ * <pre>
+ * 4326           WGS84 longitude, latitude
+ * 3857           web mercator
+ * 32601 - 32660  WGS84 UTM zones 1N - 60N
+ * 32701 - 32760  WGS84 UTM zones 1S - 60S
+ * 28348 - 28358  GDA94 MGA zones 48 - 58
+ * 7846 - 7859    GDA2020 MGA zones 46 - 59
+ * </pre>
+ *
+ * No datum shifts are made, so longitudes and latitudes are on the projection's own datum. GDA94 and GDA2020
+ * are both within a couple of metres of WGS84.
+ *
+ * Each projection is made once, with its constants worked out, and then shared.
+ */
+public final class Projections {
+
+	/** WGS84 longitude, latitude, which needs no projecting */
+	public static final Projection WGS84 = new Projection() {
+		@Override
+		public void forward(double[] xy, int offset, int count) {
+		}
+
+		@Override
+		public void inverse(double[] xy, int offset, int count) {
+		}
+
+		@Override
+		public int getEpsg() {
+			return 4326;
+		}
+	};
+
+	public static final Projection WEB_MERCATOR = new WebMercator();
+
+	private Projections() {
+	}
+
+	/**
+	 * @param code an EPSG code, eg. 3857, optionally written EPSG:3857
+	 * @throws IllegalArgumentException if the code isn't a projection we know
+	 */
+	public static Projection forCode(String code) {
+		String c = code.trim();
+		if (c.regionMatches(true, 0, "EPSG:", 0, 5))
+			c = c.substring(5);
+		try {
+			return forEpsg(Integer.parseInt(c.trim()));
+		}catch( NumberFormatException exp ) {
+			throw new IllegalArgumentException("Not an EPSG code: " + code);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the code isn't a projection we know
+	 */
+	public static Projection forEpsg(int epsg) {
+		switch (epsg) {
+		case 4326:
+			return WGS84;
+		case 3857:
+		case 900913:
+			return WEB_MERCATOR;
+		}
+		Projection projection = projections.get(epsg);
+		if (projection == null) {
+			projection = make(epsg);
+			Projection raced = projections.putIfAbsent(epsg, projection);
+			if (raced != null)
+				projection = raced;
+		}
+		return projection;
+	}
+
+	private static final ConcurrentMap<Integer, Projection> projections = new ConcurrentHashMap<Integer, Projection>();
+
+	private static Projection make(int epsg) {
+		if (epsg >= 32601 && epsg <= 32660)
+			return TransverseMercator.utm(epsg, TransverseMercator.WGS84_A, TransverseMercator.WGS84_F, epsg - 32600, false);
+		if (epsg >= 32701 && epsg <= 32760)
+			return TransverseMercator.utm(epsg, TransverseMercator.WGS84_A, TransverseMercator.WGS84_F, epsg - 32700, true);
+		if (epsg >= 28348 && epsg <= 28358)
+			return TransverseMercator.utm(epsg, TransverseMercator.GRS80_A, TransverseMercator.GRS80_F, epsg - 28300, true);
+		if (epsg >= 7846 && epsg <= 7859)
+			return TransverseMercator.utm(epsg, TransverseMercator.GRS80_A, TransverseMercator.GRS80_F, epsg - 7800, true);
+		throw new IllegalArgumentException("Unsupported projection EPSG:" + epsg);
+	}
+}
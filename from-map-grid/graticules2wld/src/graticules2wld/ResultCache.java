@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on disk cache of world files, so re-running a batch only solves the sheets which have changed.
+ *
+ * Entries are keyed by the SHA-256 of the parsed graticules (so a csv which only differs in spacing, case or line
+ * endings still hits), the solve options and Solver.VERSION, and are stored as dir/ab/abcd...wld. An entry is
+ * written to a temporary file and renamed into place, so a reader never sees a partial entry, and entries are
+ * never changed once written, so any number of threads and processes can share a cache. A hit touches the
+ * entry's modified time, and once the entries written by this process add up to an eighth of the size bound the
+ * least recently used entries are removed until the cache is under it again. Only one process evicts at once,
+ * holding a lock on dir/lock. Entries are much smaller than a file system block, so each is counted as the
+ * whole blocks it takes up on disk rather than its length.
+ */
+public final class ResultCache {
+
+	static final String SUFFIX = ".wld";
+	// the usual file system block size, the least a file takes up on disk
+	static final long BLOCK_BYTES = 4096;
+
+	private final Path dir;
+	private final long maxBytes;
+	private final AtomicLong writtenSinceEviction = new AtomicLong();
+	private final Object evictLock = new Object();
+
+	/**
+	 * @param dir the cache directory, created if needed
+	 * @param maxBytes the most the entries should take up on disk
+	 */
+	public ResultCache(Path dir, long maxBytes) throws IOException {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(dir);
+	}
+
+	/**
+	 * @param options everything else which changes the result, eg. the robust solve options
+	 * @return the key for solving these graticules with these options
+	 */
+	public static String key(PackedGraticules lonGrats, PackedGraticules latGrats,
+			double originEasting, double originNorthing, double unitsToMeters, String options) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		}catch( NoSuchAlgorithmException exp ) {
+			throw new AssertionError(exp); // every JVM has SHA-256
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		buf.putInt(Solver.VERSION);
+		buf.putDouble(originEasting).putDouble(originNorthing).putDouble(unitsToMeters);
+		byte[] o = (options == null ? "" : options).getBytes(StandardCharsets.UTF_8);
+		buf.putInt(o.length);
+		sha.update(buf.array(), 0, buf.position());
+		sha.update(o);
+
+		for (PackedGraticules grats : new PackedGraticules[] {latGrats, lonGrats}) {
+			buf.clear();
+			buf.putInt(grats.size());
+			for (int i = 0; i < grats.size(); i++) {
+				if (buf.remaining() < 36) {
+					sha.update(buf.array(), 0, buf.position());
+					buf.clear();
+				}
+				buf.putInt(grats.value[i]).putDouble(grats.x1[i]).putDouble(grats.y1[i])
+					.putDouble(grats.x2[i]).putDouble(grats.y2[i]);
+			}
+			sha.update(buf.array(), 0, buf.position());
+		}
+
+		StringBuilder hex = new StringBuilder(64);
+		for (byte b : sha.digest())
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return hex.toString();
+	}
+
+	private Path path(String key) {
+		return dir.resolve(key.substring(0, 2)).resolve(key + SUFFIX);
+	}
+
+	/**
+	 * @return the cached world file text, or null on a miss
+	 */
+	public String get(String key) {
+		Path entry = path(key);
+		try {
+			byte[] bytes = Files.readAllBytes(entry);
+			try {
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+			}catch( IOException exp ) {
+				// only affects which entries are evicted first
+			}
+			Metrics.CACHE_HITS.add(1);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}catch( IOException exp ) {
+			// missing, or evicted while we were reading it
+			Metrics.CACHE_MISSES.add(1);
+			return null;
+		}
+	}
+
+	/**
+	 * Stores a world file's text, evicting old entries if the cache has grown too big. A failure to write is
+	 * ignored, as the cache is only an optimisation.
+	 */
+	public void put(String key, String wld) {
+		Path entry = path(key);
+		byte[] bytes = wld.getBytes(StandardCharsets.UTF_8);
+		AtomicFile f = null;
+		try {
+			Files.createDirectories(entry.getParent());
+			f = new AtomicFile(entry);
+			Files.write(f.temp(), bytes);
+			// another worker may have stored the same sheet first, its entry is the same as ours
+			f.commit();
+		}catch( IOException exp ) {
+			// leave it uncached
+		}finally{
+			if (f != null) {
+				try {
+					f.close();
+				}catch( IOException exp ) {
+					// nothing more we can do
+				}
+			}
+		}
+
+		if (writtenSinceEviction.addAndGet(onDisk(bytes.length)) > maxBytes / 8)
+			evict();
+	}
+
+	/**
+	 * @return the space a file of size bytes takes up on disk, in whole blocks
+	 */
+	static long onDisk(long size) {
+		return Math.max(1, (size + BLOCK_BYTES - 1) / BLOCK_BYTES) * BLOCK_BYTES;
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is within its size bound.
+	 * @return the number of entries removed
+	 */
+	public int evict() {
+		synchronized (evictLock) {
+			writtenSinceEviction.set(0);
+			FileChannel lockChannel = null;
+			try {
+				lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				FileLock lock;
+				try {
+					lock = lockChannel.tryLock();
+				}catch( OverlappingFileLockException exp ) {
+					lock = null;
+				}
+				if (lock == null)
+					return 0; // another process is evicting
+				try {
+					return evictLocked();
+				}finally{
+					lock.release();
+				}
+			}catch( IOException exp ) {
+				return 0;
+			}finally{
+				if (lockChannel != null) {
+					try {
+						lockChannel.close();
+					}catch( IOException exp ) {
+						// nothing more we can do
+					}
+				}
+			}
+		}
+	}
+
+	private static final class Entry {
+		final Path path;
+		final long size;
+		final long lastUsed;
+
+		Entry(Path path, long size, long lastUsed) {
+			this.path = path;
+			this.size = size;
+			this.lastUsed = lastUsed;
+		}
+	}
+
+	private int evictLocked() throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		long total = 0;
+		DirectoryStream<Path> shards = Files.newDirectoryStream(dir);
+		try {
+			for (Path shard : shards) {
+				if (!Files.isDirectory(shard))
+					continue;
+				DirectoryStream<Path> files = Files.newDirectoryStream(shard, "*" + SUFFIX);
+				try {
+					for (Path file : files) {
+						try {
+							BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+							long size = onDisk(attrs.size());
+							entries.add(new Entry(file, size, attrs.lastModifiedTime().toMillis()));
+							total += size;
+						}catch( NoSuchFileException exp ) {
+							// removed as we looked
+						}
+					}
+				}finally{
+					files.close();
+				}
+			}
+		}finally{
+			shards.close();
+		}
+
+		if (total <= maxBytes)
+			return 0;
+
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Long.compare(a.lastUsed, b.lastUsed);
+			}
+		});
+
+		// go a little under the bound so the next eviction isn't straight away
+		long target = maxBytes - maxBytes / 8;
+		int removed = 0;
+		for (Entry e : entries) {
+			if (total <= target)
+				break;
+			Files.deleteIfExists(e.path);
+			total -= e.size;
+			removed++;
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResultCacheTest {
+
+	static PackedGraticules grats(LATLON latlon, double shift) {
+		PackedGraticules g = new PackedGraticules(latlon);
+		g.add(100, 0 + shift, 0, 10, 500);
+		g.add(101, 500, 0, 510, 500);
+		return g;
+	}
+
+	/**
+	 * The key should change with the graticules and every option
+	 */
+	@Test
+	public void test_key() {
+		String k = ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 1000, 2000, 20.1168, null);
+		assertEquals(64, k.length());
+		assertEquals(k, ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 1000, 2000, 20.1168, null));
+		assertFalse(k.equals(ResultCache.key(grats(LATLON.LON, 1e-9), grats(LATLON.LAT, 0), 1000, 2000, 20.1168, null)));
+		assertFalse(k.equals(ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 1000, 2001, 20.1168, null)));
+		assertFalse(k.equals(ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 1000, 2000, 1, null)));
+		assertFalse(k.equals(ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 1000, 2000, 20.1168, "ransac")));
+		// swapping which set is which changes the sheet
+		String shifted = ResultCache.key(grats(LATLON.LON, 5), grats(LATLON.LAT, 0), 1000, 2000, 20.1168, null);
+		assertFalse(shifted.equals(ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 5), 1000, 2000, 20.1168, null)));
+	}
+
+	@Test
+	public void test_getPut() throws Exception {
+		Path dir = Files.createTempDirectory("cache");
+		ResultCache cache = new ResultCache(dir, 1 << 20);
+		String key = ResultCache.key(grats(LATLON.LON, 0), grats(LATLON.LAT, 0), 0, 0, 1, null);
+
+		assertNull(cache.get(key));
+		String wld = new WorldFile(1, 0, 0, -1, 10, 20).toString();
+		cache.put(key, wld);
+		assertEquals(wld, cache.get(key));
+		// a second put of the same key is harmless
+		cache.put(key, wld);
+		assertEquals(wld, new ResultCache(dir, 1 << 20).get(key));
+	}
+
+	/**
+	 * The least recently used entries should go first, and concurrent puts should all land
+	 */
+	@Test
+	public void test_evict() throws Exception {
+		Path dir = Files.createTempDirectory("cache");
+		final ResultCache cache = new ResultCache(dir, 100 * ResultCache.BLOCK_BYTES);
+		final String body = new String(new char[1000]).replace('\0', 'x');
+
+		Thread[] threads = new Thread[4];
+		final AtomicInteger next = new AtomicInteger();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = next.getAndIncrement(); i < 80; i = next.getAndIncrement())
+						cache.put(String.format("%064x", i), body);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		for (int i = 0; i < 80; i++)
+			assertEquals(body, cache.get(String.format("%064x", i)));
+		assertEquals(0, cache.evict()); // still under the bound
+
+		// make entry i last used at time i, then add enough to go over
+		for (int i = 0; i < 80; i++) {
+			String key = String.format("%064x", i);
+			Files.setLastModifiedTime(dir.resolve(key.substring(0, 2)).resolve(key + ResultCache.SUFFIX),
+					FileTime.fromMillis(1000000L * (i + 1)));
+		}
+		ResultCache bigger = new ResultCache(dir, 60 * ResultCache.BLOCK_BYTES);
+		int removed = bigger.evict();
+		assertEquals(80 - 52, removed); // down to 7/8 of the bound
+		assertNull(bigger.get(String.format("%064x", 0)));
+		assertNull(bigger.get(String.format("%064x", 27)));
+		assertEquals(body, bigger.get(String.format("%064x", 28)));
+
+		// a world file is far smaller than a block, but each still takes up a whole one
+		assertEquals(ResultCache.BLOCK_BYTES, ResultCache.onDisk(120));
+		assertEquals(2 * ResultCache.BLOCK_BYTES, ResultCache.onDisk(ResultCache.BLOCK_BYTES + 1));
+		ResultCache small = new ResultCache(dir, 40 * ResultCache.BLOCK_BYTES);
+		assertEquals(52 - 35, small.evict());
+	}
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Finds a world file while ignoring mis-traced or mislabelled graticules.
+ *
+ * Many hypotheses are made, each from a minimal sample of two LAT and two LON graticules. Every graticule is
+ * then scored against each hypothesis by its residual, how far (in source units) the hypothesis puts the
+ * graticule's end points from its labelled value. With RANSAC the hypothesis with the most graticules within the
+ * threshold wins, with LMedS the one with the least median squared residual wins. The winning hypothesis's
+ * inliers are then solved again with the plain Solver, and the rest are reported as rejected.
+ *
+ * The hypotheses are evaluated in parallel as a fork join task, in the pool of the calling thread if it is a
+ * fork join worker (as in batch mode) or else the common pool. Samples are drawn from a seeded generator per
+ * hypothesis, so the result doesn't depend on how the work was split up. A RobustSolver holds only its options
+ * and can be shared between threads.
+ */
+public final class RobustSolver {
+
+	public enum Method {RANSAC, LMEDS};
+
+	// hypotheses evaluated by each leaf task
+	static final int LEAF = 32;
+
+	/**
+	 * The result of a robust solve.
+	 */
+	public static final class Result {
+		public final Solution solution; // solved from the inliers only
+		public final List<Graticule> rejected;
+		public final List<Double> rejectedResiduals; // in source units, in the same order as rejected
+		public final double threshold; // the inlier threshold that was used, in source units
+		final PackedGraticules lonInliers; // the graticules solution was solved from
+		final PackedGraticules latInliers;
+
+		Result(Solution solution, List<Graticule> rejected, List<Double> rejectedResiduals, double threshold,
+				PackedGraticules lonInliers, PackedGraticules latInliers) {
+			this.solution = solution;
+			this.lonInliers = lonInliers;
+			this.latInliers = latInliers;
+			this.rejected = Collections.unmodifiableList(rejected);
+			this.rejectedResiduals = Collections.unmodifiableList(rejectedResiduals);
+			this.threshold = threshold;
+		}
+	}
+
+	private final Method method;
+	private final int iterations;
+	private final double threshold; // 0 to pick one from the graticule values
+	private final long seed;
+
+	/**
+	 * @param method RANSAC or LMEDS
+	 * @param iterations the number of hypotheses to try
+	 * @param threshold the largest residual, in source units, for a graticule to count as an inlier. 0 picks a
+	 * tenth of the smallest step between graticule values for RANSAC, or scales the median residual for LMEDS.
+	 * @param seed for the random samples
+	 */
+	public RobustSolver(Method method, int iterations, double threshold, long seed) {
+		if (iterations < 1)
+			throw new IllegalArgumentException("iterations must be at least 1");
+		this.method = method;
+		this.iterations = iterations;
+		this.threshold = threshold;
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the options, for cache keys
+	 */
+	@Override
+	public String toString() {
+		return method.toString().toLowerCase() + "," + iterations + "," + threshold + "," + seed;
+	}
+
+	/**
+	 * @param solver the solver for the final fit, which also gives the origin and tometers
+	 * @throws IllegalArgumentException if there are too few graticules, or too few inliers
+	 */
+	public Result solve(Solver solver, PackedGraticules lonGrats, PackedGraticules latGrats) {
+		if (latGrats.size() < 2 || lonGrats.size() < 2)
+			throw new IllegalArgumentException("You need at least two LAT and two LON graticules for creation of a world file, found "
+					+ latGrats.size() + " LAT and " + lonGrats.size() + " LON.");
+
+		long start = Metrics.start();
+		Hypotheses all = new Hypotheses(lonGrats, latGrats, 0, iterations);
+		Best best = all.invoke();
+		if (best.worldFile == null)
+			throw new IllegalArgumentException("Could not make any hypothesis, each of LAT and LON need at least two different values.");
+
+		int n = latGrats.size() + lonGrats.size();
+		double[] residuals = new double[n];
+		residuals(best.worldFile, latGrats, residuals, 0);
+		residuals(best.worldFile, lonGrats, residuals, latGrats.size());
+
+		double cutoff = threshold;
+		if (cutoff <= 0) {
+			if (method == Method.LMEDS) {
+				// Rousseeuw's robust standard deviation estimate from the median, with the small sample correction
+				double[] squared = new double[n];
+				for (int i = 0; i < n; i++)
+					squared[i] = residuals[i] * residuals[i];
+				double sigma = 1.4826 * (1 + 5.0 / Math.max(1, n - 4)) * Math.sqrt(median(squared, n));
+				cutoff = Math.max(2.5 * sigma, 1e-9);
+			}else{
+				cutoff = defaultThreshold(lonGrats, latGrats);
+			}
+		}
+
+		PackedGraticules lonInliers = new PackedGraticules(LATLON.LON, lonGrats.size());
+		PackedGraticules latInliers = new PackedGraticules(LATLON.LAT, latGrats.size());
+		List<Graticule> rejected = new ArrayList<Graticule>();
+		List<Double> rejectedResiduals = new ArrayList<Double>();
+		split(latGrats, residuals, 0, cutoff, latInliers, rejected, rejectedResiduals);
+		split(lonGrats, residuals, latGrats.size(), cutoff, lonInliers, rejected, rejectedResiduals);
+
+		Metrics.stop(Metrics.Stage.ROBUST, start);
+		Metrics.GRATICULES_REJECTED.add(rejected.size());
+
+		return new Result(solver.solve(lonInliers, latInliers), rejected, rejectedResiduals, cutoff, lonInliers, latInliers);
+	}
+
+	private static void split(PackedGraticules grats, double[] residuals, int offset, double cutoff,
+			PackedGraticules inliers, List<Graticule> rejected, List<Double> rejectedResiduals) {
+		for (int i = 0; i < grats.size(); i++) {
+			if (residuals[offset + i] <= cutoff) {
+				inliers.add(grats.getValue(i), grats.x1[i], grats.y1[i], grats.x2[i], grats.y2[i]);
+			}else{
+				rejected.add(grats.get(i));
+				rejectedResiduals.add(residuals[offset + i]);
+			}
+		}
+	}
+
+	/**
+	 * @return a tenth of the smallest non zero step between the values of either family
+	 */
+	static double defaultThreshold(PackedGraticules lonGrats, PackedGraticules latGrats) {
+		int step = Math.min(smallestStep(lonGrats), smallestStep(latGrats));
+		return step == Integer.MAX_VALUE ? 1 : step / 10.0;
+	}
+
+	private static int smallestStep(PackedGraticules grats) {
+		int[] values = Arrays.copyOf(grats.value, grats.size());
+		Arrays.sort(values);
+		int step = Integer.MAX_VALUE;
+		for (int i = 1; i < values.length; i++) {
+			if (values[i] != values[i - 1])
+				step = Math.min(step, values[i] - values[i - 1]);
+		}
+		return step;
+	}
+
+	/**
+	 * Fills out, from offset, with the residual of each graticule against the world file wld, the larger of how
+	 * far each end point of the graticule is put from the graticule's value.
+	 */
+	static void residuals(WorldFile wld, PackedGraticules grats, double[] out, int offset) {
+		if (grats.latlon.equals(LATLON.LAT)) {
+			for (int i = 0; i < grats.size; i++) {
+				double r1 = wld.D * grats.x1[i] + wld.E * grats.y1[i] + wld.F - grats.value[i];
+				double r2 = wld.D * grats.x2[i] + wld.E * grats.y2[i] + wld.F - grats.value[i];
+				out[offset + i] = Math.max(Math.abs(r1), Math.abs(r2));
+			}
+		}else{
+			for (int i = 0; i < grats.size; i++) {
+				double r1 = wld.A * grats.x1[i] + wld.B * grats.y1[i] + wld.C - grats.value[i];
+				double r2 = wld.A * grats.x2[i] + wld.B * grats.y2[i] + wld.C - grats.value[i];
+				out[offset + i] = Math.max(Math.abs(r1), Math.abs(r2));
+			}
+		}
+	}
+
+	/**
+	 * @return the median of the first n values, reordering them
+	 */
+	static double median(double[] values, int n) {
+		Arrays.sort(values, 0, n);
+		return (n % 2 == 1) ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+	}
+
+	/**
+	 * @return a well mixed 64 bit value for z (the SplitMix64 finaliser)
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * @return an index below n from the high 32 bits of random, without the bias of taking a remainder
+	 */
+	static int bounded(long random, int n) {
+		return (int) (((random >>> 32) * n) >>> 32);
+	}
+
+	/**
+	 * The best hypothesis found by a task. For RANSAC lower scores are better as the score is the negated inlier
+	 * count, with the summed inlier residual breaking ties.
+	 */
+	static final class Best {
+		WorldFile worldFile;
+		double score = Double.POSITIVE_INFINITY;
+		double tieBreak = Double.POSITIVE_INFINITY;
+		int iteration = Integer.MAX_VALUE;
+
+		boolean betterThan(Best o) {
+			if (score != o.score)
+				return score < o.score;
+			if (tieBreak != o.tieBreak)
+				return tieBreak < o.tieBreak;
+			return iteration < o.iteration;
+		}
+	}
+
+	/**
+	 * Evaluates hypotheses [from, to), splitting the range in half until it is small enough.
+	 */
+	final class Hypotheses extends RecursiveTask<Best> {
+		private static final long serialVersionUID = 1L;
+
+		private final PackedGraticules lonGrats;
+		private final PackedGraticules latGrats;
+		private final int from;
+		private final int to;
+
+		Hypotheses(PackedGraticules lonGrats, PackedGraticules latGrats, int from, int to) {
+			this.lonGrats = lonGrats;
+			this.latGrats = latGrats;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Best compute() {
+			if (to - from > LEAF) {
+				int mid = (from + to) >>> 1;
+				Hypotheses left = new Hypotheses(lonGrats, latGrats, from, mid);
+				left.fork();
+				Best right = new Hypotheses(lonGrats, latGrats, mid, to).compute();
+				Best l = left.join();
+				return l.betterThan(right) ? l : right;
+			}
+
+			// scratch space reused by every hypothesis of this leaf
+			Solver local = new Solver(0, 0, 1);
+			PackedGraticules lonSample = new PackedGraticules(LATLON.LON, 2);
+			PackedGraticules latSample = new PackedGraticules(LATLON.LAT, 2);
+			int n = latGrats.size() + lonGrats.size();
+			double[] residuals = new double[n];
+			double cutoff = threshold > 0 ? threshold : defaultThreshold(lonGrats, latGrats);
+
+			Best best = new Best();
+			for (int i = from; i < to; i++) {
+				long random = mix(seed + i * 0x9e3779b97f4a7c15L);
+				if (!sample(latGrats, latSample, random) || !sample(lonGrats, lonSample, mix(random)))
+					continue;
+
+				WorldFile hypothesis = local.solve(lonSample, latSample, false).worldFile;
+
+				residuals(hypothesis, latGrats, residuals, 0);
+				residuals(hypothesis, lonGrats, residuals, latGrats.size());
+
+				double score, tieBreak;
+				if (method == Method.LMEDS) {
+					for (int j = 0; j < n; j++)
+						residuals[j] *= residuals[j];
+					score = median(residuals, n);
+					tieBreak = 0;
+				}else{
+					int inliers = 0;
+					double sum = 0;
+					for (int j = 0; j < n; j++) {
+						if (residuals[j] <= cutoff) {
+							inliers++;
+							sum += residuals[j];
+						}
+					}
+					score = -inliers;
+					tieBreak = sum;
+				}
+
+				if (Double.isNaN(score) || Double.isNaN(tieBreak))
+					continue;
+
+				if (score < best.score || (score == best.score && tieBreak < best.tieBreak)) {
+					best.worldFile = hypothesis;
+					best.score = score;
+					best.tieBreak = tieBreak;
+					best.iteration = i;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Fills sample with two graticules of different value picked from grats, the first by random and the second
+		 * by a further SplitMix step from it.
+		 * @return false if the two picked have the same value
+		 */
+		private boolean sample(PackedGraticules grats, PackedGraticules sample, long random) {
+			int n = grats.size();
+			int a = bounded(random, n);
+			int b = bounded(mix(random + 0x9e3779b97f4a7c15L), n - 1);
+			if (b >= a)
+				b++;
+			if (grats.value[a] == grats.value[b])
+				return false;
+
+			sample.clear();
+			sample.add(grats.value[a], grats.x1[a], grats.y1[a], grats.x2[a], grats.y2[a]);
+			sample.add(grats.value[b], grats.x1[b], grats.y1[b], grats.x2[b], grats.y2[b]);
+			return true;
+		}
+	}
+}
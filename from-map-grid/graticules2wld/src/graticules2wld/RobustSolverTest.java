@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.awt.geom.Line2D;
+import java.util.List;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class RobustSolverTest {
+
+	static void pack(List<Graticule> grats, PackedGraticules lon, PackedGraticules lat) {
+		for (Graticule g : grats) {
+			if (g.latlon.equals(LATLON.LAT))
+				lat.add(g);
+			else
+				lon.add(g);
+		}
+	}
+
+	/**
+	 * A mislabelled graticule should be rejected, leaving the same world file as without it
+	 */
+	@Test
+	public void test_rejectsMislabelled() throws Exception {
+		double s = 0.5, a = Math.toRadians(3);
+		WorldFile truth = new WorldFile(s * Math.cos(a), -s * Math.sin(a), s * Math.sin(a), -s * Math.cos(a), -450, 420);
+		List<Graticule> grats = SolverTest.trace(truth);
+		Solver solver = new Solver(1000, 2000, 20.1168);
+		WorldFile expected = solver.solve(grats).worldFile;
+
+		// the line for N 300 labelled as N 200
+		Graticule bad = null;
+		for (Graticule g : grats) {
+			if (g.latlon.equals(LATLON.LAT) && g.realValue() == 300) {
+				bad = new Graticule(LATLON.LAT, DIR.N, 200, new Line2D.Double(g.l.getP1(), g.l.getP2()));
+				break;
+			}
+		}
+		grats.add(bad);
+
+		for (RobustSolver.Method method : RobustSolver.Method.values()) {
+			PackedGraticules lon = new PackedGraticules(LATLON.LON);
+			PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+			pack(grats, lon, lat);
+
+			RobustSolver.Result result = new RobustSolver(method, 200, 0, 1).solve(solver, lon, lat);
+			assertEquals(method.toString(), 1, result.rejected.size());
+			assertEquals(bad.toString(), result.rejected.get(0).toString());
+			IncrementalSolverTest.assertWorldFileEquals(expected, result.solution.worldFile, 1e-6);
+		}
+	}
+
+	/**
+	 * The result shouldn't depend on how the hypotheses were split between tasks
+	 */
+	@Test
+	public void test_deterministic() {
+		List<Graticule> grats = PackedGraticulesTest.randomGraticules(LATLON.LAT, 20);
+		grats.addAll(PackedGraticulesTest.randomGraticules(LATLON.LON, 20));
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		pack(grats, lon, lat);
+
+		Solver solver = new Solver(0, 0, 1);
+		RobustSolver robust = new RobustSolver(RobustSolver.Method.LMEDS, 500, 0, 42);
+		WorldFile first = robust.solve(solver, lon, lat).solution.worldFile;
+		for (int i = 0; i < 3; i++)
+			IncrementalSolverTest.assertWorldFileEquals(first, robust.solve(solver, lon, lat).solution.worldFile, 0);
+	}
+
+	/**
+	 * Sample indices should cover all of a large sheet evenly, not just the first 65536
+	 */
+	@Test
+	public void test_bounded() {
+		assertEquals(0, RobustSolver.bounded(0, 100000));
+		assertEquals(99999, RobustSolver.bounded(-1L, 100000));
+		int n = 100000;
+		int[] counts = new int[4];
+		for (int i = 0; i < 40000; i++) {
+			int index = RobustSolver.bounded(RobustSolver.mix(i * 0x9e3779b97f4a7c15L), n);
+			assertTrue(index >= 0 && index < n);
+			counts[index * 4 / n]++;
+		}
+		for (int count : counts)
+			assertEquals(10000, count, 500);
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves solves over HTTP from a warm JVM, so a front end can get a world file in a few milliseconds rather than
+ * starting the command line tool for each one.
+ *
+ * POST /solve with a graticules csv body, or a JSON body like
+ *
+{"originx": 335100, "originy": 6254870, "tometers": 20.1168,
+ "graticules": [{"lonlat": "lat", "dir": "s", "value": 600, "x1": 3917.1, "y1": 5266.9, "x2": 1344.5, "y2": 5685.9}, ...]}
+ *
+ * (each graticule may also be an array in csv column order), and get back the world file terms and the
+ * solution's diagnostics as JSON. The options can also be given in the query string, ?originx=..&originy=..
+ * &tometers=..&robust=ransac|lmeds&threshold=..&iterations=.., and default to those the server was started with.
+ * GET /health answers ok and GET /metrics gives the Prometheus metrics when the server was started with
+ * --metrics.
+ *
+ * Requests are handled on virtual threads when the JVM has them and on a cached thread pool otherwise. At most
+ * concurrency requests are solved at once, a request waits briefly for a slot and then gets 503 with Retry-After,
+ * so an overloaded server sheds load rather than letting latency grow without bound. The server only listens on
+ * the address given, which by default is loopback.
+ */
+public final class Server {
+
+	public static final int DEFAULT_PORT = 8314;
+
+	static final int MAX_BODY = 64 << 20;
+	// connections waiting to be accepted, large so bursts get a 503 rather than a refused connection
+	static final int BACKLOG = 1024;
+	static final long SLOT_WAIT_MILLIS = 100;
+
+	private final HttpServer http;
+	private final ExecutorService executor;
+	private final Semaphore slots;
+	private final double originEasting;
+	private final double originNorthing;
+	private final double unitsToMeters;
+
+	private Server(HttpServer http, ExecutorService executor, int concurrency,
+			double originEasting, double originNorthing, double unitsToMeters) {
+		this.http = http;
+		this.executor = executor;
+		this.slots = new Semaphore(concurrency);
+		this.originEasting = originEasting;
+		this.originNorthing = originNorthing;
+		this.unitsToMeters = unitsToMeters;
+	}
+
+	/**
+	 * Starts a server, which keeps the JVM running until stop() is called.
+	 * @param address where to listen, port 0 picks a free port
+	 * @param concurrency the most requests to solve at once
+	 * @param originEasting default x component of projected coordinates of upper left pixel
+	 * @param originNorthing default y component of projected coordinates of upper left pixel
+	 * @param unitsToMeters default multiplication factor to get source units into meters
+	 */
+	public static Server start(InetSocketAddress address, int concurrency,
+			double originEasting, double originNorthing, double unitsToMeters) throws IOException {
+		// the JDK server writes the headers and body separately, which without TCP_NODELAY waits on a delayed ack
+		// for every response. This is read once, when the first server is made.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null)
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+
+		HttpServer http = HttpServer.create(address, BACKLOG);
+		ExecutorService executor = newExecutor();
+		final Server server = new Server(http, executor, Math.max(1, concurrency), originEasting, originNorthing, unitsToMeters);
+
+		http.setExecutor(executor);
+		http.createContext("/solve", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				server.solve(exchange);
+			}
+		});
+		http.createContext("/health", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, "text/plain", "ok\n");
+			}
+		});
+		http.createContext("/metrics", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!Metrics.isEnabled()) {
+					respond(exchange, 404, "text/plain", "start the server with --metrics to collect metrics\n");
+					return;
+				}
+				StringWriter out = new StringWriter();
+				Metrics.writePrometheus(out);
+				respond(exchange, 200, "text/plain; version=0.0.4", out.toString());
+			}
+		});
+		http.start();
+		return server;
+	}
+
+	/**
+	 * @return an executor running each task on a new virtual thread if the JVM has them, or a cached pool
+	 */
+	static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch( Exception exp ) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public InetSocketAddress getAddress() {
+		return http.getAddress();
+	}
+
+	/**
+	 * Stops accepting requests, waiting up to delay seconds for those in progress.
+	 */
+	public void stop(int delay) {
+		http.stop(delay);
+		executor.shutdown();
+	}
+
+	private void solve(HttpExchange exchange) throws IOException {
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, "application/json", error("use POST"));
+				return;
+			}
+
+			boolean acquired = false;
+			try {
+				acquired = slots.tryAcquire(SLOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			}catch( InterruptedException exp ) {
+				Thread.currentThread().interrupt();
+			}
+			if (!acquired) {
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, 503, "application/json", error("too many requests in progress, try again"));
+				return;
+			}
+
+			try {
+				byte[] body = readBody(exchange.getRequestBody());
+				if (body == null) {
+					respond(exchange, 413, "application/json", error("request body is larger than " + MAX_BODY + " bytes"));
+					return;
+				}
+				respond(exchange, 200, "application/json", solve(body, query(exchange.getRequestURI().getRawQuery())));
+				Metrics.SHEETS_SOLVED.add(1);
+			}catch( GraticuleFormatException | IllegalArgumentException exp ) {
+				Metrics.SHEETS_FAILED.add(1);
+				respond(exchange, 400, "application/json", error(exp.getMessage()));
+			}catch( Exception exp ) {
+				Metrics.SHEETS_FAILED.add(1);
+				respond(exchange, 500, "application/json", error(exp.toString()));
+			}finally{
+				slots.release();
+			}
+		}finally{
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Solves a request body with the given query parameters.
+	 * @return the JSON response
+	 */
+	String solve(byte[] body, Map<String, String> params) throws Exception {
+		PackedGraticules lonGrats = new PackedGraticules(LATLON.LON);
+		PackedGraticules latGrats = new PackedGraticules(LATLON.LAT);
+		GraticuleCsvReader.Handler handler = PackedGraticules.handler(lonGrats, latGrats);
+
+		int first = 0;
+		while (first < body.length && Character.isWhitespace(body[first]))
+			first++;
+		if (first < body.length && body[first] == '{') {
+			Object json = Json.parse(new String(body, StandardCharsets.UTF_8));
+			if (!(json instanceof Map))
+				throw new IllegalArgumentException("expected a JSON object");
+			Map<?, ?> request = (Map<?, ?>) json;
+			for (String key : new String[] {"originx", "originy", "tometers", "robust", "threshold", "iterations"}) {
+				if (request.containsKey(key) && !params.containsKey(key))
+					params.put(key, String.valueOf(request.get(key)));
+			}
+			Object graticules = request.get("graticules");
+			if (!(graticules instanceof List))
+				throw new IllegalArgumentException("expected a graticules array");
+			readJson((List<?>) graticules, handler);
+		}else{
+			GraticuleCsvReader.read(ByteBuffer.wrap(body), handler);
+		}
+		Metrics.GRATICULES_PARSED.add(lonGrats.size() + latGrats.size());
+
+		Solver solver = new Solver(doubleParam(params, "originx", originEasting),
+				doubleParam(params, "originy", originNorthing), doubleParam(params, "tometers", unitsToMeters));
+
+		StringBuilder json = new StringBuilder(512);
+		Solution solution;
+		String robust = params.get("robust");
+		if (robust != null) {
+			RobustSolver.Method method;
+			try {
+				method = RobustSolver.Method.valueOf(robust.toUpperCase());
+			}catch( IllegalArgumentException exp ) {
+				throw new IllegalArgumentException("unknown robust method " + robust);
+			}
+			RobustSolver.Result result = new RobustSolver(method, (int) doubleParam(params, "iterations", 1000),
+					doubleParam(params, "threshold", 0), 1).solve(solver, lonGrats, latGrats);
+			solution = result.solution;
+			json.append("\"rejected\": [");
+			for (int i = 0; i < result.rejected.size(); i++) {
+				Graticule g = result.rejected.get(i);
+				json.append(i == 0 ? "" : ", ").append("{\"lonlat\": \"").append(g.latlon.toString().toLowerCase())
+					.append("\", \"dir\": \"").append(g.dir.toString().toLowerCase())
+					.append("\", \"value\": ").append(g.value)
+					.append(", \"residual\": ").append(Json.number(result.rejectedResiduals.get(i))).append('}');
+			}
+			json.append("], \"threshold\": ").append(Json.number(result.threshold)).append(", ");
+		}else{
+			solution = solver.solve(lonGrats, latGrats);
+		}
+
+		WorldFile wld = solution.worldFile;
+		StringWriter wldText = new StringWriter();
+		wld.write(wldText);
+		return "{\"A\": " + Json.number(wld.A) + ", \"D\": " + Json.number(wld.D) + ", \"B\": " + Json.number(wld.B)
+				+ ", \"E\": " + Json.number(wld.E) + ", \"C\": " + Json.number(wld.C) + ", \"F\": " + Json.number(wld.F)
+				+ ", \"wld\": " + Json.quote(wldText.toString())
+				+ ", \"lat\": " + latGrats.size() + ", \"lon\": " + lonGrats.size() + ", "
+				+ json
+				+ "\"theta\": " + Json.number(solution.theta) + ", \"phi\": " + Json.number(solution.phi)
+				+ ", \"x\": " + Json.number(solution.x) + ", \"y\": " + Json.number(solution.y)
+				+ ", \"thetaRange\": " + Json.number(solution.thetaRange) + ", \"phiRange\": " + Json.number(solution.phiRange)
+				+ ", \"xRange\": " + Json.number(solution.xRange) + ", \"yRange\": " + Json.number(solution.yRange)
+				+ ", \"upperLeftX\": " + Json.number(solution.upperLeftX) + ", \"upperLeftY\": " + Json.number(solution.upperLeftY)
+				+ "}\n";
+	}
+
+	/**
+	 * Feeds graticules given as JSON objects or csv column order arrays to handler.
+	 */
+	static void readJson(List<?> graticules, GraticuleCsvReader.Handler handler) throws Exception {
+		String[] columns = GraticuleCsvReader.HEADER.split(",");
+		Object[] row = new Object[columns.length];
+		for (int i = 0; i < graticules.size(); i++) {
+			Object g = graticules.get(i);
+			if (g instanceof Map) {
+				for (int c = 0; c < columns.length; c++)
+					row[c] = ((Map<?, ?>) g).get(columns[c]);
+			}else if (g instanceof List && ((List<?>) g).size() == columns.length) {
+				row = ((List<?>) g).toArray(row);
+			}else{
+				throw new IllegalArgumentException("graticule " + i + ": expected an object or an array of " + columns.length);
+			}
+
+			LATLON latlon;
+			if ("lat".equals(row[0]))
+				latlon = LATLON.LAT;
+			else if ("lon".equals(row[0]))
+				latlon = LATLON.LON;
+			else
+				throw new IllegalArgumentException("graticule " + i + ": either 'lat' or 'lon' expected, found " + row[0]);
+
+			DIR dir;
+			String d = String.valueOf(row[1]).toLowerCase();
+			if (d.equals("n") || d.equals("h"))
+				dir = DIR.N;
+			else if (d.equals("s"))
+				dir = DIR.S;
+			else if (d.equals("e") || d.equals("v"))
+				dir = DIR.E;
+			else if (d.equals("w"))
+				dir = DIR.W;
+			else
+				throw new IllegalArgumentException("graticule " + i + ": either n,s,e,w,h,v expected, found " + row[1]);
+
+			double[] numbers = new double[5];
+			for (int c = 2; c < columns.length; c++) {
+				if (!(row[c] instanceof Double))
+					throw new IllegalArgumentException("graticule " + i + ": expected a number for " + columns[c]);
+				numbers[c - 2] = (Double) row[c];
+			}
+			if (numbers[0] != Math.rint(numbers[0]) || Math.abs(numbers[0]) > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("graticule " + i + ": expected an integer value, found " + numbers[0]);
+
+			handler.graticule(latlon, dir, (int) numbers[0], numbers[1], numbers[2], numbers[3], numbers[4]);
+		}
+	}
+
+	private static double doubleParam(Map<String, String> params, String name, double defaultValue) {
+		String value = params.get(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(value);
+		}catch( NumberFormatException exp ) {
+			throw new IllegalArgumentException(name + " should be a number, found " + value);
+		}
+	}
+
+	static Map<String, String> query(String rawQuery) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (rawQuery == null)
+			return params;
+		for (String pair : rawQuery.split("&")) {
+			if (pair.isEmpty())
+				continue;
+			int eq = pair.indexOf('=');
+			String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+			String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+			params.put(key, value);
+		}
+		return params;
+	}
+
+	/**
+	 * @return the body, or null if it is longer than MAX_BODY
+	 */
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+		byte[] buf = new byte[8192];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+			body.write(buf, 0, n);
+			if (body.size() > MAX_BODY)
+				return null;
+		}
+		return body.toByteArray();
+	}
+
+	private static String error(String message) {
+		return "{\"error\": " + Json.quote(message == null ? "" : message) + "}\n";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		}finally{
+			out.close();
+		}
+	}
+}
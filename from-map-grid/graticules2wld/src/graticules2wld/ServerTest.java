@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ServerTest {
+
+	static final String CSV = "lonlat,dir,value,x1,y1,x2,y2\n"
+		+ "lon,w,500,619.32204,221.18643,1348.0085,4434.7881\n"
+		+ "lon,v,0,3370.0212,202.13982,4112.2246,4406.5254\n"
+		+ "lat,h,0,125.33898,1128.0508,4235.4131,427.62711\n"
+		+ "lat,s,100,128.71822,1673.6441,4239.3748,970.1907\n";
+
+	static Object[] post(InetSocketAddress address, String path, String body) throws Exception {
+		HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + address.getPort() + path).openConnection();
+		c.setRequestMethod("POST");
+		c.setDoOutput(true);
+		OutputStream out = c.getOutputStream();
+		out.write(body.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		int status = c.getResponseCode();
+		InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream();
+		ByteArrayOutputStream response = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf))
+			response.write(buf, 0, n);
+		in.close();
+		return new Object[] {status, Json.parse(response.toString("UTF-8"))};
+	}
+
+	@Test
+	public void test_solve() throws Exception {
+		Server server = Server.start(new InetSocketAddress("127.0.0.1", 0), 2, 0, 0, 1);
+		try {
+			PackedGraticules lon = new PackedGraticules(Graticule.LATLON.LON);
+			PackedGraticules lat = new PackedGraticules(Graticule.LATLON.LAT);
+			GraticuleCsvReader.read(GraticuleCsvReaderTest.csv(CSV), PackedGraticules.handler(lon, lat));
+			WorldFile expected = new Solver(1000, 2000, 20.1168).solve(lon, lat).worldFile;
+
+			Object[] r = post(server.getAddress(), "/solve?originx=1000&originy=2000&tometers=20.1168", CSV);
+			assertEquals(200, r[0]);
+			Map<?, ?> json = (Map<?, ?>) r[1];
+			assertEquals(expected.A, (Double) json.get("A"), 0);
+			assertEquals(expected.F, (Double) json.get("F"), 0);
+			assertEquals(expected.toString(), json.get("wld"));
+
+			// the same as JSON, with the options in the body and the graticules as objects and arrays
+			String body = "{\"originx\": 1000, \"originy\": 2000, \"tometers\": 20.1168, \"graticules\": ["
+				+ "{\"lonlat\": \"lon\", \"dir\": \"w\", \"value\": 500, \"x1\": 619.32204, \"y1\": 221.18643, \"x2\": 1348.0085, \"y2\": 4434.7881},"
+				+ "[\"lon\", \"v\", 0, 3370.0212, 202.13982, 4112.2246, 4406.5254],"
+				+ "[\"lat\", \"h\", 0, 125.33898, 1128.0508, 4235.4131, 427.62711],"
+				+ "[\"lat\", \"s\", 100, 128.71822, 1673.6441, 4239.3748, 970.1907]]}";
+			r = post(server.getAddress(), "/solve", body);
+			assertEquals(200, r[0]);
+			assertEquals(expected.C, (Double) ((Map<?, ?>) r[1]).get("C"), 0);
+
+			r = post(server.getAddress(), "/solve", "lonlat,dir,value,x1,y1,x2,y2\nlat,x,1,2,3,4,5\n");
+			assertEquals(400, r[0]);
+			assertTrue(((Map<?, ?>) r[1]).get("error").toString().contains("line 2"));
+
+			// nesting deep enough to overflow a recursive parser is refused, not left unanswered
+			StringBuilder deep = new StringBuilder("{\"graticules\": ");
+			for (int i = 0; i < 100000; i++)
+				deep.append('[');
+			r = post(server.getAddress(), "/solve", deep.toString());
+			assertEquals(400, r[0]);
+			assertTrue(((Map<?, ?>) r[1]).get("error").toString().contains("nested"));
+		}finally{
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void test_json() {
+		Map<?, ?> m = (Map<?, ?>) Json.parse(" {\"a\": [1, -2.5e1, true, null], \"b\\n\": \"\\u0041\\\"\"} ");
+		assertEquals(-25.0, ((List<?>) m.get("a")).get(1));
+		assertNull(((List<?>) m.get("a")).get(3));
+		assertEquals("A\"", m.get("b\n"));
+		assertEquals("\"a\\\"\\n\"", Json.quote("a\"\n"));
+
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < Json.MAX_DEPTH; i++)
+			deep.insert(0, '[').append(']');
+		assertTrue(Json.parse(deep.toString()) instanceof List);
+		try {
+			Json.parse("[" + deep + "]");
+			fail("parsed JSON nested deeper than MAX_DEPTH");
+		}catch( IllegalArgumentException exp ) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A spatial index of the footprints of georeferenced sheets, for finding which sheets cover a point or box.
+ *
+ * The index is a packed Hilbert R-tree: the sheets' bounding boxes are sorted along a Hilbert curve through
+ * their centers, packed NODE_SIZE to a node, and each level of nodes packed again up to a single root. As the
+ * tree is never changed in place it is stored as flat arrays, which are used straight from a memory mapped
+ * file, so opening even a very big index costs nothing and a query only touches the pages it needs.
+ *
+ * <pre>
+ * header   magic, version, sheet count, node count, level count
+ * levels   int per level, the index of the first box after that level
+ * boxes    minX, minY, maxX, maxY doubles per node, sheets in Hilbert order first and the root last
+ * indices  int per node, the sheet of a leaf or the first child of a node
+ * sheets   a record per sheet, its world file, size, modified times and name
+ * names    UTF-8 paths
+ * </pre>
+ *
+ * Along with the tree the index keeps each sheet's world file, image size and the modified times they were
+ * read at, so updating it only reads the sheets which are new or have been solved again since.
+ */
+public final class SheetIndex {
+
+	public static final int NODE_SIZE = 16;
+
+	private static final long MAGIC = 0x5844495744573247L; // G2WDWIDX
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 32;
+	private static final int RECORD_BYTES = 6 * 8 + 2 * 4 + 2 * 8 + 2 * 4;
+
+	/**
+	 * A sheet as it is stored in the index.
+	 */
+	public static final class Sheet {
+		public final String path;
+		public final WorldFile wld;
+		public final int width;
+		public final int height;
+		final long wldModified;
+		final long imageModified;
+
+		Sheet(String path, WorldFile wld, int width, int height, long wldModified, long imageModified) {
+			this.path = path;
+			this.wld = wld;
+			this.width = width;
+			this.height = height;
+			this.wldModified = wldModified;
+			this.imageModified = imageModified;
+		}
+
+		/**
+		 * @return the corners of the image's outside edge in map coordinates, interleaved, going round
+		 */
+		public double[] footprint() {
+			double[] xy = {-0.5, -0.5, width - 0.5, -0.5, width - 0.5, height - 0.5, -0.5, height - 0.5};
+			new PointTransformer(wld, false).transform(xy, 0, 4);
+			return xy;
+		}
+
+		@Override
+		public String toString() {
+			return path;
+		}
+	}
+
+	private final ByteBuffer buf;
+	private final int sheets;
+	private final int nodes;
+	private final int[] levelBounds;
+	private final int boxesAt;
+	private final int indicesAt;
+	private final int recordsAt;
+	private final int namesAt;
+
+	private SheetIndex(ByteBuffer buf) throws IOException {
+		this.buf = buf.order(ByteOrder.LITTLE_ENDIAN);
+		if (buf.capacity() < HEADER_BYTES || buf.getLong(0) != MAGIC || buf.getInt(8) != VERSION)
+			throw new IOException("Not a sheet index");
+		sheets = buf.getInt(12);
+		nodes = buf.getInt(16);
+		int levels = buf.getInt(20);
+		levelBounds = new int[levels];
+		for (int i = 0; i < levels; i++)
+			levelBounds[i] = buf.getInt(HEADER_BYTES + 4 * i);
+		boxesAt = align(HEADER_BYTES + 4 * levels);
+		indicesAt = boxesAt + 32 * nodes;
+		recordsAt = align(indicesAt + 4 * nodes);
+		namesAt = recordsAt + RECORD_BYTES * sheets;
+	}
+
+	private static int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	/**
+	 * Memory maps an index file.
+	 */
+	public static SheetIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new SheetIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}finally{
+			raf.close(); // the mapping stays valid
+		}
+	}
+
+	/**
+	 * @return the number of sheets in the index
+	 */
+	public int size() {
+		return sheets;
+	}
+
+	/**
+	 * @return sheet i, in the index's own order
+	 */
+	public Sheet sheet(int i) {
+		int r = recordsAt + RECORD_BYTES * i;
+		WorldFile wld = new WorldFile(buf.getDouble(r), buf.getDouble(r + 8), buf.getDouble(r + 16),
+				buf.getDouble(r + 24), buf.getDouble(r + 32), buf.getDouble(r + 40));
+		int width = buf.getInt(r + 48);
+		int height = buf.getInt(r + 52);
+		long wldModified = buf.getLong(r + 56);
+		long imageModified = buf.getLong(r + 64);
+		int nameAt = buf.getInt(r + 72);
+		int nameLength = buf.getInt(r + 76);
+		byte[] name = new byte[nameLength];
+		ByteBuffer names = buf.duplicate();
+		names.position(namesAt + nameAt);
+		names.get(name);
+		return new Sheet(new String(name, StandardCharsets.UTF_8), wld, width, height, wldModified, imageModified);
+	}
+
+	/**
+	 * Finds the sheets whose bounding boxes touch a box.
+	 * @param hits filled with the sheet numbers, in no particular order
+	 * @return the number of sheets found
+	 */
+	public int search(double minX, double minY, double maxX, double maxY, IntList hits) {
+		hits.clear();
+		if (nodes == 0)
+			return 0;
+		IntList stack = new IntList();
+		int node = nodes - 1; // the root
+		while (true) {
+			int end = Math.min(node + NODE_SIZE, upperBound(node));
+			// node is the first of a run of siblings, the children of one parent
+			for (int pos = node; pos < end; pos++) {
+				int b = boxesAt + 32 * pos;
+				if (maxX < buf.getDouble(b) || maxY < buf.getDouble(b + 8) || minX > buf.getDouble(b + 16) || minY > buf.getDouble(b + 24))
+					continue;
+				int index = buf.getInt(indicesAt + 4 * pos);
+				if (pos < sheets) {
+					hits.add(index);
+				}else{
+					stack.add(index);
+				}
+			}
+			if (stack.size() == 0)
+				break;
+			node = stack.pop();
+		}
+		return hits.size();
+	}
+
+	/**
+	 * @return the index of the first box after the level box pos is in
+	 */
+	private int upperBound(int pos) {
+		for (int bound : levelBounds) {
+			if (pos < bound)
+				return bound;
+		}
+		return nodes;
+	}
+
+	/**
+	 * Finds the sheets whose image covers a point, not just their bounding box.
+	 * @param hits filled with the sheet numbers
+	 * @return the number of sheets found
+	 */
+	public int at(double x, double y, IntList hits) {
+		IntList candidates = new IntList();
+		search(x, y, x, y, candidates);
+		hits.clear();
+		double[] p = new double[2];
+		for (int i = 0; i < candidates.size(); i++) {
+			int s = candidates.get(i);
+			int r = recordsAt + RECORD_BYTES * s;
+			// take the point back into the sheet's pixels and see if it lands on the image
+			WorldFile wld = new WorldFile(buf.getDouble(r), buf.getDouble(r + 8), buf.getDouble(r + 16),
+					buf.getDouble(r + 24), buf.getDouble(r + 32), buf.getDouble(r + 40));
+			p[0] = x;
+			p[1] = y;
+			new PointTransformer(wld, true).transform(p, 0, 1);
+			if (p[0] >= -0.5 && p[0] < buf.getInt(r + 48) - 0.5 && p[1] >= -0.5 && p[1] < buf.getInt(r + 52) - 0.5)
+				hits.add(s);
+		}
+		return hits.size();
+	}
+
+	/**
+	 * A growable list of ints, so queries don't box every result.
+	 */
+	public static final class IntList {
+		private int[] values = new int[16];
+		private int size = 0;
+
+		public void add(int v) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, 2 * size);
+			values[size++] = v;
+		}
+
+		int pop() {
+			return values[--size];
+		}
+
+		public int get(int i) {
+			return values[i];
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+	}
+
+	/**
+	 * Builds or updates an index of sheets, each an image with its world file beside it. Sheets already in the
+	 * index whose image and world file haven't changed aren't read again, and sheets no longer given are
+	 * dropped.
+	 * @return the index
+	 */
+	public static SheetIndex update(File indexFile, List<File> images, PrintStream out) throws IOException {
+		Map<String, Sheet> existing = new HashMap<String, Sheet>();
+		if (indexFile.isFile()) {
+			try {
+				SheetIndex old = open(indexFile);
+				for (int i = 0; i < old.size(); i++) {
+					Sheet s = old.sheet(i);
+					existing.put(s.path, s);
+				}
+			}catch( IOException exp ) {
+				out.println(indexFile + ": " + exp.getMessage() + ", rebuilding it");
+			}
+		}
+
+		List<Sheet> sheets = new ArrayList<Sheet>(images.size());
+		int read = 0;
+		for (File image : images) {
+			String path = image.getAbsolutePath();
+			File wldFile = Batch.wldFileFor(image);
+			Sheet s = existing.get(path);
+			if (s == null || s.wldModified != wldFile.lastModified() || s.imageModified != image.lastModified()) {
+				s = read(image, wldFile);
+				read++;
+			}
+			sheets.add(s);
+		}
+
+		write(indexFile, sheets);
+		out.println("Indexed " + sheets.size() + " sheets, " + read + " of them read again.");
+		return open(indexFile);
+	}
+
+	private static Sheet read(File image, File wldFile) throws IOException {
+		long wldModified = wldFile.lastModified();
+		long imageModified = image.lastModified();
+		WorldFile wld = WorldFile.read(wldFile);
+		javax.imageio.ImageReader reader = Warper.open(image);
+		try {
+			return new Sheet(image.getAbsolutePath(), wld, reader.getWidth(0), reader.getHeight(0), wldModified, imageModified);
+		}finally{
+			Warper.close(reader);
+		}
+	}
+
+	/**
+	 * Packs the sheets into a tree and writes it, to a temporary file which is renamed over any old index.
+	 */
+	static void write(File indexFile, List<Sheet> sheets) throws IOException {
+		int n = sheets.size();
+		double[] boxes = new double[4 * n];
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			double[] f = sheets.get(i).footprint();
+			boxes[4 * i] = Math.min(Math.min(f[0], f[2]), Math.min(f[4], f[6]));
+			boxes[4 * i + 1] = Math.min(Math.min(f[1], f[3]), Math.min(f[5], f[7]));
+			boxes[4 * i + 2] = Math.max(Math.max(f[0], f[2]), Math.max(f[4], f[6]));
+			boxes[4 * i + 3] = Math.max(Math.max(f[1], f[3]), Math.max(f[5], f[7]));
+			minX = Math.min(minX, boxes[4 * i]);
+			minY = Math.min(minY, boxes[4 * i + 1]);
+			maxX = Math.max(maxX, boxes[4 * i + 2]);
+			maxY = Math.max(maxY, boxes[4 * i + 3]);
+		}
+
+		// sort the sheets along a Hilbert curve through their centers, so neighbouring sheets share nodes
+		long[] order = new long[n];
+		double w = maxX - minX, h = maxY - minY;
+		for (int i = 0; i < n; i++) {
+			int hx = w > 0 ? (int) (65535 * ((boxes[4 * i] + boxes[4 * i + 2]) / 2 - minX) / w) : 0;
+			int hy = h > 0 ? (int) (65535 * ((boxes[4 * i + 1] + boxes[4 * i + 3]) / 2 - minY) / h) : 0;
+			order[i] = sortKey(hilbert(hx, hy), i);
+		}
+		Arrays.sort(order);
+
+		// the number of nodes at each level, leaves first
+		List<Integer> levelBounds = new ArrayList<Integer>();
+		int count = n, total = n;
+		levelBounds.add(total);
+		while (count > 1) {
+			count = (count + NODE_SIZE - 1) / NODE_SIZE;
+			total += count;
+			levelBounds.add(total);
+		}
+		if (n == 0)
+			levelBounds.clear();
+
+		double[] nodeBoxes = new double[4 * total];
+		int[] indices = new int[total];
+		for (int i = 0; i < n; i++) {
+			int s = (int) (order[i] & Integer.MAX_VALUE);
+			System.arraycopy(boxes, 4 * s, nodeBoxes, 4 * i, 4);
+			indices[i] = s;
+		}
+		int pos = 0;
+		int next = n;
+		for (int l = 0; l < levelBounds.size() - 1; l++) {
+			int end = levelBounds.get(l);
+			while (pos < end) {
+				double nMinX = Double.POSITIVE_INFINITY, nMinY = Double.POSITIVE_INFINITY;
+				double nMaxX = Double.NEGATIVE_INFINITY, nMaxY = Double.NEGATIVE_INFINITY;
+				indices[next] = pos;
+				for (int j = 0; j < NODE_SIZE && pos < end; j++, pos++) {
+					nMinX = Math.min(nMinX, nodeBoxes[4 * pos]);
+					nMinY = Math.min(nMinY, nodeBoxes[4 * pos + 1]);
+					nMaxX = Math.max(nMaxX, nodeBoxes[4 * pos + 2]);
+					nMaxY = Math.max(nMaxY, nodeBoxes[4 * pos + 3]);
+				}
+				nodeBoxes[4 * next] = nMinX;
+				nodeBoxes[4 * next + 1] = nMinY;
+				nodeBoxes[4 * next + 2] = nMaxX;
+				nodeBoxes[4 * next + 3] = nMaxY;
+				next++;
+			}
+		}
+
+		List<byte[]> names = new ArrayList<byte[]>(n);
+		int namesLength = 0;
+		for (Sheet s : sheets) {
+			byte[] name = s.path.getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			namesLength += name.length;
+		}
+
+		int boxesAt = align(HEADER_BYTES + 4 * levelBounds.size());
+		int indicesAt = boxesAt + 32 * total;
+		int recordsAt = align(indicesAt + 4 * total);
+		int namesAt = recordsAt + RECORD_BYTES * n;
+		ByteBuffer b = ByteBuffer.allocate(namesAt + namesLength).order(ByteOrder.LITTLE_ENDIAN);
+		b.putLong(MAGIC).putInt(VERSION).putInt(n).putInt(total).putInt(levelBounds.size());
+		b.position(HEADER_BYTES);
+		for (int bound : levelBounds)
+			b.putInt(bound);
+		b.position(boxesAt);
+		for (double d : nodeBoxes)
+			b.putDouble(d);
+		for (int index : indices)
+			b.putInt(index);
+		b.position(recordsAt);
+		int nameAt = 0;
+		for (int i = 0; i < n; i++) {
+			Sheet s = sheets.get(i);
+			b.putDouble(s.wld.A).putDouble(s.wld.D).putDouble(s.wld.B).putDouble(s.wld.E).putDouble(s.wld.C).putDouble(s.wld.F);
+			b.putInt(s.width).putInt(s.height).putLong(s.wldModified).putLong(s.imageModified);
+			b.putInt(nameAt).putInt(names.get(i).length);
+			nameAt += names.get(i).length;
+		}
+		for (byte[] name : names)
+			b.put(name);
+		b.flip();
+
+		AtomicFile f = new AtomicFile(indexFile.toPath());
+		try {
+			FileChannel channel = FileChannel.open(f.temp(), java.nio.file.StandardOpenOption.WRITE);
+			try {
+				while (b.hasRemaining())
+					channel.write(b);
+			}finally{
+				channel.close();
+			}
+			f.commit();
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * @return a key which sorts by the Hilbert distance d, taken as unsigned since the far half of the curve
+	 * overflows an int, with the sheet's index i in the low 31 bits. d is shifted by 31 rather than 32 so the
+	 * far half doesn't turn the key negative instead.
+	 */
+	static long sortKey(int d, int i) {
+		return (d & 0xffffffffL) << 31 | i;
+	}
+
+	/**
+	 * @return the distance along a Hilbert curve filling a 65536 square of the point x, y, as an unsigned int
+	 */
+	static int hilbert(int x, int y) {
+		int d = 0;
+		for (int s = 1 << 15; s > 0; s >>= 1) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant so the curve carries on from where it entered
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - x;
+					y = s - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+
+	/**
+	 * Writes the footprints as a GeoJSON FeatureCollection of polygons with the sheet's path as a property.
+	 * @param projection the projection of the world files, to give longitudes and latitudes, or null to leave
+	 * the coordinates as they are
+	 */
+	public void writeGeoJson(Writer out, Projection projection) throws IOException {
+		out.write("{\"type\":\"FeatureCollection\",\"features\":[");
+		for (int i = 0; i < sheets; i++) {
+			Sheet s = sheet(i);
+			double[] f = ring(s, projection);
+			out.write(i == 0 ? "\n" : ",\n");
+			out.write("{\"type\":\"Feature\",\"properties\":{\"path\":" + Json.quote(s.path) + "},"
+					+ "\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[");
+			for (int j = 0; j < f.length; j += 2)
+				out.write((j == 0 ? "" : ",") + "[" + Json.number(f[j]) + "," + Json.number(f[j + 1]) + "]");
+			out.write("]]}}");
+		}
+		out.write("\n]}\n");
+	}
+
+	/**
+	 * Writes the footprints as KML polygons named by the sheet's file name.
+	 * @param projection the projection of the world files, as KML is in longitude, latitude
+	 */
+	public void writeKml(Writer out, Projection projection) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n");
+		for (int i = 0; i < sheets; i++) {
+			Sheet s = sheet(i);
+			double[] f = ring(s, projection);
+			out.write("<Placemark><name>" + xml(new File(s.path).getName()) + "</name><description>" + xml(s.path)
+					+ "</description><Polygon><outerBoundaryIs><LinearRing><coordinates>");
+			for (int j = 0; j < f.length; j += 2)
+				out.write((j == 0 ? "" : " ") + f[j] + "," + f[j + 1]);
+			out.write("</coordinates></LinearRing></outerBoundaryIs></Polygon></Placemark>\n");
+		}
+		out.write("</Document>\n</kml>\n");
+	}
+
+	/**
+	 * @return the footprint as a closed ring, anticlockwise as GeoJSON prefers, in longitude, latitude if a
+	 * projection is given
+	 */
+	private static double[] ring(Sheet s, Projection projection) {
+		double[] f = s.footprint();
+		double[] ring = new double[10];
+		// the image corners go clockwise on the ground when y is up, so walk them backwards
+		for (int k = 0; k < 5; k++) {
+			int c = (4 - k) % 4;
+			ring[2 * k] = f[2 * c];
+			ring[2 * k + 1] = f[2 * c + 1];
+		}
+		if (projection != null)
+			projection.inverse(ring, 0, 5);
+		return ring;
+	}
+
+	private static String xml(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+}
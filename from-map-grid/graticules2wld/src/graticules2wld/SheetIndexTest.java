@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SheetIndexTest {
+
+	/**
+	 * A grid of 1000x800 pixel sheets at 2 map units a pixel, each a little rotated
+	 */
+	private static List<SheetIndex.Sheet> grid(int columns, int rows) {
+		List<SheetIndex.Sheet> sheets = new ArrayList<SheetIndex.Sheet>();
+		Random random = new Random(5);
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				double angle = (random.nextDouble() - 0.5) * 0.1;
+				double cos = 2 * Math.cos(angle), sin = 2 * Math.sin(angle);
+				WorldFile wld = new WorldFile(cos, -sin, -sin, -cos, 300000 + 1900 * c, 6200000 - 1500 * r);
+				sheets.add(new SheetIndex.Sheet("sheet" + r + "_" + c + ".jpg", wld, 1000, 800, 0, 0));
+			}
+		}
+		return sheets;
+	}
+
+	private static File write(List<SheetIndex.Sheet> sheets) throws Exception {
+		File file = File.createTempFile("sheets", ".idx");
+		file.deleteOnExit();
+		SheetIndex.write(file, sheets);
+		return file;
+	}
+
+	/**
+	 * Box searches should find exactly the sheets a scan of every bounding box finds
+	 */
+	@Test
+	public void test_search() throws Exception {
+		List<SheetIndex.Sheet> sheets = grid(60, 50);
+		SheetIndex index = SheetIndex.open(write(sheets));
+		assertEquals(sheets.size(), index.size());
+
+		Random random = new Random(7);
+		SheetIndex.IntList hits = new SheetIndex.IntList();
+		for (int q = 0; q < 500; q++) {
+			double x = 299000 + random.nextDouble() * 1900 * 62, y = 6201000 - random.nextDouble() * 1500 * 52;
+			double w = random.nextDouble() * 5000, h = random.nextDouble() * 5000;
+
+			List<String> expected = new ArrayList<String>();
+			for (SheetIndex.Sheet s : sheets) {
+				double[] f = s.footprint();
+				double minX = Math.min(Math.min(f[0], f[2]), Math.min(f[4], f[6]));
+				double maxX = Math.max(Math.max(f[0], f[2]), Math.max(f[4], f[6]));
+				double minY = Math.min(Math.min(f[1], f[3]), Math.min(f[5], f[7]));
+				double maxY = Math.max(Math.max(f[1], f[3]), Math.max(f[5], f[7]));
+				if (minX <= x + w && maxX >= x && minY <= y + h && maxY >= y)
+					expected.add(s.path);
+			}
+
+			index.search(x, y, x + w, y + h, hits);
+			List<String> found = new ArrayList<String>();
+			for (int i = 0; i < hits.size(); i++)
+				found.add(index.sheet(hits.get(i)).path);
+			String[] e = expected.toArray(new String[0]), f = found.toArray(new String[0]);
+			Arrays.sort(e);
+			Arrays.sort(f);
+			assertArrayEquals(e, f);
+		}
+	}
+
+	/**
+	 * A point in a rotated sheet's bounding box but off the image shouldn't be found
+	 */
+	@Test
+	public void test_at() throws Exception {
+		double a = Math.toRadians(30);
+		WorldFile wld = new WorldFile(Math.cos(a), -Math.sin(a), -Math.sin(a), -Math.cos(a), 1000, 2000);
+		List<SheetIndex.Sheet> sheets = new ArrayList<SheetIndex.Sheet>();
+		sheets.add(new SheetIndex.Sheet("rotated.jpg", wld, 100, 100, 0, 0));
+		SheetIndex index = SheetIndex.open(write(sheets));
+
+		SheetIndex.IntList hits = new SheetIndex.IntList();
+		// the middle of the image
+		double[] middle = {49.5, 49.5};
+		new PointTransformer(wld, false).transform(middle, 0, 1);
+		assertEquals(1, index.at(middle[0], middle[1], hits));
+		// the upper left corner of the bounding box is well off the rotated image
+		double[] f = sheets.get(0).footprint();
+		double minX = Math.min(Math.min(f[0], f[2]), Math.min(f[4], f[6]));
+		double maxY = Math.max(Math.max(f[1], f[3]), Math.max(f[5], f[7]));
+		assertEquals(1, index.search(minX + 1, maxY - 1, minX + 1, maxY - 1, hits));
+		assertEquals(0, index.at(minX + 1, maxY - 1, hits));
+
+		assertEquals(0, SheetIndex.open(write(new ArrayList<SheetIndex.Sheet>())).at(0, 0, hits));
+	}
+
+	/**
+	 * Updating only reads the sheets which changed, and drops sheets which are gone
+	 */
+	@Test
+	public void test_update() throws Exception {
+		File dir = Files.createTempDirectory("index").toFile();
+		List<File> images = new ArrayList<File>();
+		for (int i = 0; i < 3; i++) {
+			File image = new File(dir, "s" + i + ".png");
+			ImageIO.write(new BufferedImage(40 + i, 30, BufferedImage.TYPE_INT_RGB), "png", image);
+			FileWriter wld = new FileWriter(Batch.wldFileFor(image));
+			new WorldFile(1, 0, 0, -1, 100 * i, 0).write(wld);
+			wld.close();
+			images.add(image);
+		}
+		File indexFile = new File(dir, "sheets.idx");
+		PrintStream quiet = new PrintStream(new java.io.ByteArrayOutputStream());
+
+		SheetIndex index = SheetIndex.update(indexFile, images, quiet);
+		assertEquals(3, index.size());
+
+		// re-solve one sheet somewhere else
+		File moved = Batch.wldFileFor(images.get(1));
+		FileWriter wld = new FileWriter(moved);
+		new WorldFile(1, 0, 0, -1, 5000, 0).write(wld);
+		wld.close();
+		moved.setLastModified(moved.lastModified() + 2000);
+		images.remove(2);
+
+		java.io.ByteArrayOutputStream log = new java.io.ByteArrayOutputStream();
+		index = SheetIndex.update(indexFile, images, new PrintStream(log));
+		assertEquals("Indexed 2 sheets, 1 of them read again.", log.toString().trim());
+		SheetIndex.IntList hits = new SheetIndex.IntList();
+		assertEquals(1, index.at(5020, -10, hits));
+		assertEquals(images.get(1).getAbsolutePath(), index.sheet(hits.get(0)).path);
+		assertEquals(41, index.sheet(hits.get(0)).width);
+		assertEquals(0, index.at(120, -10, hits));
+		assertEquals(1, index.at(20, -10, hits));
+
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void test_geoJson() throws Exception {
+		SheetIndex index = SheetIndex.open(write(grid(3, 2)));
+		StringWriter out = new StringWriter();
+		index.writeGeoJson(out, null);
+		Map<String, Object> json = (Map<String, Object>) Json.parse(out.toString());
+		List<Object> features = (List<Object>) json.get("features");
+		assertEquals(6, features.size());
+		Map<String, Object> geometry = (Map<String, Object>) ((Map<String, Object>) features.get(0)).get("geometry");
+		List<Object> ring = (List<Object>) ((List<Object>) geometry.get("coordinates")).get(0);
+		assertEquals(5, ring.size());
+		assertEquals(ring.get(0), ring.get(4));
+	}
+
+	/**
+	 * The corner block of the curve should be walked one neighbouring cell at a time
+	 */
+	@Test
+	public void test_hilbert() {
+		int[] x = new int[256], y = new int[256];
+		Arrays.fill(x, -1);
+		for (int i = 0; i < 16; i++) {
+			for (int j = 0; j < 16; j++) {
+				int d = SheetIndex.hilbert(i, j);
+				assertTrue(d < 256 && x[d] == -1);
+				x[d] = i;
+				y[d] = j;
+			}
+		}
+		for (int d = 1; d < 256; d++)
+			assertEquals(1, Math.abs(x[d] - x[d - 1]) + Math.abs(y[d] - y[d - 1]));
+	}
+
+	/**
+	 * The far half of the curve, whose distances don't fit a signed int, should still sort after the near half
+	 */
+	@Test
+	public void test_hilbertSortKey() {
+		int near = SheetIndex.hilbert(0, 0), middle = SheetIndex.hilbert(32767, 65535), far = SheetIndex.hilbert(65535, 0);
+		assertTrue(far < 0);
+		assertTrue(SheetIndex.sortKey(near, 2) < SheetIndex.sortKey(middle, 1));
+		assertTrue(SheetIndex.sortKey(middle, 1) < SheetIndex.sortKey(far, 0));
+		assertTrue(SheetIndex.sortKey(far, 0) > 0);
+		assertEquals(7, SheetIndex.sortKey(far, 7) & Integer.MAX_VALUE);
+	}
+}
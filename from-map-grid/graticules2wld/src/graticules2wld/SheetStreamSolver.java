@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Solves each sheet of a multiple sheet graticules csv as the file is streamed in. Once the last row of a sheet
+ * has been read the sheet is handed to a worker thread while the main thread carries on parsing, so at most a
+ * few sheets worth of graticules are held in memory at once.
+ *
+ * The world files are either written one per sheet, as sheetid.wld in a directory, or as rows of a single
+ * results table,
+
+sheet,A,D,B,E,C,F
+PMapMN05-14041501,3.6816291923557007,-0.6078489488147966,-0.6243024013979902,-3.7518162012100755,-31110.616341292134,12112.368471602518
+
+ * which lists the sheets in the order they appear in the source file.
+ *
+ * The source can also be a GraticuleArchive, whose sheets are read straight into packed sets.
+ */
+public class SheetStreamSolver implements GraticuleCsvReader.SheetHandler {
+
+	public static final String TABLE_HEADER = "sheet,A,D,B,E,C,F";
+
+	private final Solver solver;
+	private final File wldDirectory; // null when writing a results table
+	private final Writer table; // null when writing world files
+	private final PrintStream err;
+
+	private final ForkJoinPool pool;
+	private final Semaphore inFlight; // bounds the number of parsed sheets waiting to be solved or written
+
+	// the sheet currently being read
+	private String sheetId;
+	private PackedGraticules lonGrats;
+	private PackedGraticules latGrats;
+	private GraticuleCsvReader.Handler packer;
+	private long sheetNumber = 0;
+
+	// the world file names given out so far, lower cased as some file systems ignore case
+	private final Set<String> usedNames = new HashSet<String>();
+
+	// results which have been solved but not written, as the table is written in source order
+	private final Map<Long, String> pending = new HashMap<Long, String>();
+	private long nextToWrite = 0;
+
+	private int solved = 0;
+	private final List<String> failures = new ArrayList<String>();
+
+	private SheetStreamSolver(Solver solver, File wldDirectory, Writer table, int threads, PrintStream err) {
+		this.solver = solver;
+		this.wldDirectory = wldDirectory;
+		this.table = table;
+		this.err = err;
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+		this.inFlight = new Semaphore(2 * Math.max(1, threads));
+	}
+
+	/**
+	 * Solves every sheet in a multiple sheet graticules csv.
+	 * @param csv the source csv, with a sheet id column, or a GraticuleArchive
+	 * @param output a directory to write a world file per sheet into, or if it ends in .csv a results table
+	 * @param solver the solver to use for every sheet
+	 * @param threads the number of worker threads
+	 * @param out where the summary is printed
+	 * @param err where failures are reported as they happen
+	 * @return the number of sheets which failed
+	 * @throws Exception if the csv can't be read or the output can't be written
+	 */
+	public static int run(File csv, File output, Solver solver, int threads, PrintStream out, PrintStream err) throws Exception {
+		long start = System.nanoTime();
+
+		SheetStreamSolver sheets;
+		Writer table = null;
+		if (output.getName().toLowerCase().endsWith(".csv")) {
+			table = new BufferedWriter(new FileWriter(output));
+			table.write(TABLE_HEADER + "\n");
+			sheets = new SheetStreamSolver(solver, null, table, threads, err);
+		}else{
+			if (!output.isDirectory() && !output.mkdirs())
+				throw new IOException("Could not create output directory " + output);
+			sheets = new SheetStreamSolver(solver, output, null, threads, err);
+		}
+
+		try {
+			if (GraticuleArchive.isArchive(csv.toPath())) {
+				GraticuleArchive archive = GraticuleArchive.open(csv);
+				for (int i = 0; i < archive.size(); i++) {
+					PackedGraticules lon = new PackedGraticules(LATLON.LON, 0);
+					PackedGraticules lat = new PackedGraticules(LATLON.LAT, 0);
+					archive.read(i, lon, lat);
+					sheets.solve(archive.id(i), lon, lat);
+				}
+			}else{
+				GraticuleCsvReader.read(csv.toPath(), sheets);
+			}
+		}finally{
+			sheets.pool.shutdown();
+			sheets.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			if (table != null)
+				table.close();
+		}
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		int total = sheets.solved + sheets.failures.size();
+		out.println("Solved " + sheets.solved + " of " + total + " sheets in " + String.format("%.3f", seconds) + "s ("
+				+ String.format("%.1f", seconds > 0 ? total / seconds : 0) + " sheets/s) using " + threads + " threads.");
+		if (!sheets.failures.isEmpty()) {
+			out.println(sheets.failures.size() + " sheets failed:");
+			for (String failure : sheets.failures)
+				out.println("    " + failure);
+		}
+
+		return sheets.failures.size();
+	}
+
+	@Override
+	public void startSheet(String sheetId) {
+		this.sheetId = sheetId;
+		lonGrats = new PackedGraticules(LATLON.LON);
+		latGrats = new PackedGraticules(LATLON.LAT);
+		packer = PackedGraticules.handler(lonGrats, latGrats);
+	}
+
+	@Override
+	public void graticule(LATLON latlon, DIR dir, int value, double x1, double y1, double x2, double y2) throws Exception {
+		packer.graticule(latlon, dir, value, x1, y1, x2, y2);
+	}
+
+	@Override
+	public void endSheet() throws InterruptedException {
+		PackedGraticules lon = lonGrats;
+		PackedGraticules lat = latGrats;
+		lonGrats = null;
+		latGrats = null;
+		packer = null;
+		Metrics.GRATICULES_PARSED.add(lon.size() + lat.size());
+		solve(sheetId, lon, lat);
+	}
+
+	/**
+	 * Hands a sheet to a worker to solve and write.
+	 */
+	private void solve(final String id, final PackedGraticules lon, final PackedGraticules lat) throws InterruptedException {
+		final long number = sheetNumber++;
+		final File wldFile = wldDirectory == null ? null : new File(wldDirectory, uniqueFileName(id) + ".wld");
+
+		// wait for a worker to catch up if we are parsing faster than sheets can be solved
+		inFlight.acquire();
+
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				String row = null;
+				String failure = null;
+				boolean done = false;
+				try {
+					// through Main, for the cache, --robust and --uncertainty
+					WorldFile wld = Main.solve(id, lon, lat, solver.getOriginEasting(), solver.getOriginNorthing(),
+							solver.getUnitsToMeters());
+					long start = Metrics.start();
+					if (table != null) {
+						row = id + "," + wld.A + "," + wld.D + "," + wld.B + "," + wld.E + "," + wld.C + "," + wld.F + "\n";
+					}else{
+						Writer wldWriter = new BufferedWriter(new FileWriter(wldFile));
+						try {
+							wld.write(wldWriter);
+						}finally{
+							wldWriter.close();
+						}
+					}
+					Metrics.stop(Metrics.Stage.WRITE, start);
+					done = true;
+				}catch( Exception exp ) {
+					failure = id + ": " + (exp.getMessage() != null ? exp.getMessage() : exp.toString());
+					err.println(failure);
+					done = true;
+				}finally{
+					// even an Error must give back the permit, or the reader waits forever
+					if (!done)
+						failure = id + ": failed unexpectedly";
+					completed(number, row, failure);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Records the outcome of a sheet, writing any table rows which are now next in source order.
+	 */
+	private synchronized void completed(long number, String row, String failure) {
+		if (failure != null) {
+			failures.add(failure);
+			Metrics.SHEETS_FAILED.add(1);
+		}else{
+			solved++;
+			Metrics.SHEETS_SOLVED.add(1);
+		}
+
+		pending.put(number, row);
+		while (pending.containsKey(nextToWrite)) {
+			String next = pending.remove(nextToWrite++);
+			if (next != null && table != null) {
+				try {
+					table.write(next);
+				}catch( IOException exp ) {
+					err.println("Could not write results table: " + exp.getMessage());
+				}
+			}
+			inFlight.release();
+		}
+	}
+
+	/**
+	 * @return fileName(sheetId), with -2, -3 and so on added if an earlier sheet already has that name
+	 */
+	private String uniqueFileName(String sheetId) {
+		String name = fileName(sheetId);
+		if (usedNames.add(name.toLowerCase()))
+			return name;
+		for (int n = 2; ; n++) {
+			String numbered = name + "-" + n;
+			if (usedNames.add(numbered.toLowerCase())) {
+				err.println(sheetId + ": another sheet is already written as " + name + ".wld, writing " + numbered + ".wld");
+				return numbered;
+			}
+		}
+	}
+
+	/**
+	 * @return the sheet id with any characters which may not be safe in a file name replaced with _
+	 */
+	static String fileName(String sheetId) {
+		StringBuilder name = new StringBuilder(sheetId.length());
+		for (int i = 0; i < sheetId.length(); i++) {
+			char c = sheetId.charAt(i);
+			boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+					|| (c == '.' && i > 0);
+			name.append(safe ? c : '_');
+		}
+		return name.toString();
+	}
+}
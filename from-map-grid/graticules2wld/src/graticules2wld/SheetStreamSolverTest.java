@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SheetStreamSolverTest {
+
+	/**
+	 * @return ServerTest.CSV as the rows of each sheet of a multiple sheet csv
+	 */
+	static File sheets(String... ids) throws Exception {
+		StringBuilder csv = new StringBuilder(GraticuleCsvReader.SHEETS_HEADER + "\n");
+		for (String id : ids) {
+			String[] rows = ServerTest.CSV.split("\n");
+			for (int i = 1; i < rows.length; i++)
+				csv.append(id).append(',').append(rows[i]).append('\n');
+		}
+		File file = File.createTempFile("sheets", ".csv");
+		file.deleteOnExit();
+		Files.write(file.toPath(), csv.toString().getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	/**
+	 * Sheet ids which make the same file name each get their own world file
+	 */
+	@Test
+	public void test_fileNameCollisions() throws Exception {
+		File dir = Files.createTempDirectory("wld").toFile();
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+		assertEquals(0, SheetStreamSolver.run(sheets("a/b", "a_b", "A_B"), dir, new Solver(0, 0, 1), 2, quiet,
+				new PrintStream(errors)));
+
+		String[] names = dir.list();
+		Arrays.sort(names);
+		assertArrayEquals(new String[] {"A_B-3.wld", "a_b-2.wld", "a_b.wld"}, names);
+		assertTrue(errors.toString().contains("a_b: another sheet is already written as a_b.wld, writing a_b-2.wld"));
+	}
+
+	/**
+	 * Each sheet goes through Main's solve, so gets a row in the uncertainty table as a single sheet does
+	 */
+	@Test
+	public void test_uncertainty() throws Exception {
+		StringWriter table = new StringWriter();
+		Main.uncertainty = table;
+		Main.resamples = 50;
+		try {
+			File out = File.createTempFile("results", ".csv");
+			out.deleteOnExit();
+			PrintStream quiet = new PrintStream(new ByteArrayOutputStream());
+			assertEquals(0, SheetStreamSolver.run(sheets("one", "two"), out, new Solver(0, 0, 1), 2, quiet, quiet));
+		}finally{
+			Main.uncertainty = null;
+			Main.resamples = Uncertainty.DEFAULT_RESAMPLES;
+		}
+		// two graticules of each kind leave too few to solve many resamples, so only the rows are checked
+		String[] rows = table.toString().split("\n");
+		assertEquals(4, rows.length);
+		Arrays.sort(rows);
+		assertTrue(rows[0], rows[0].startsWith("one,bootstrap,"));
+		assertTrue(rows[1], rows[1].startsWith("one,jackknife,"));
+		assertTrue(rows[2], rows[2].startsWith("two,bootstrap,"));
+		assertTrue(rows[3], rows[3].startsWith("two,jackknife,"));
+	}
+}
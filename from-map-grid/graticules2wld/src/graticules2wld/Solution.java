@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.io.PrintStream;
+
+/**
+ * The result of solving a set of graticules. Holds the world file along with the intermediate values it was
+ * built from, which are useful for diagnosing a bad set of graticules. Instances are immutable.
+ */
+public final class Solution {
+	public final WorldFile worldFile;
+
+	public final double theta; // mean angle of the LAT graticules, in radians
+	public final double phi; // mean angle of the LON graticules, in radians
+	public final double x; // distance between pixels along the x axis, in source units
+	public final double y; // distance between pixels along the y axis, in source units
+
+	// the spread (max - min) of the values each of the above means was taken over
+	public final double thetaRange;
+	public final double phiRange;
+	public final double xRange;
+	public final double yRange;
+
+	// coordinates of the upper left pixel in source units, before the origin and tometers are applied
+	public final double upperLeftX;
+	public final double upperLeftY;
+
+	Solution(WorldFile worldFile, double theta, double phi, double x, double y,
+			double thetaRange, double phiRange, double xRange, double yRange,
+			double upperLeftX, double upperLeftY) {
+		this.worldFile = worldFile;
+		this.theta = theta;
+		this.phi = phi;
+		this.x = x;
+		this.y = y;
+		this.thetaRange = thetaRange;
+		this.phiRange = phiRange;
+		this.xRange = xRange;
+		this.yRange = yRange;
+		this.upperLeftX = upperLeftX;
+		this.upperLeftY = upperLeftY;
+	}
+
+	/**
+	 * Prints the intermediate values and world file in the format of graticules2wld --debug.
+	 */
+	public void printDebug(PrintStream out) {
+		out.println("theta range = " + Math.toDegrees(thetaRange));
+		out.println("phi range = " + Math.toDegrees(phiRange));
+		out.println("theta = " + Math.toDegrees(theta) + "deg");
+		out.println("phi = " + Math.toDegrees(phi) + "deg");
+		out.println("y range = " + yRange);
+		out.println("x range = " + xRange);
+		out.println("x = " + x);
+		out.println("y = " + y);
+		out.println("Upper Left pixel has coordinates " + upperLeftX + ", " + upperLeftY);
+
+		out.println("A = " + worldFile.A);
+		out.println("D = " + worldFile.D);
+		out.println("B = " + worldFile.B);
+		out.println("E = " + worldFile.E);
+		out.println("C = " + worldFile.C);
+		out.println("F = " + worldFile.F);
+
+		out.println();
+		out.println("World File:");
+		out.print(worldFile);
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.util.Collection;
+
+import org.apache.commons.math.stat.StatUtils;
+import org.apache.commons.math.stat.regression.SimpleRegression;
+
+/**
+ * Finds the world file for a set of graticules.
+ *
+ * A Solver holds only the options it was constructed with and never modifies the graticules given to it, so a
+ * single instance can be shared and called from many threads at once.
+ */
+public final class Solver {
+
+	/**
+	 * Changes whenever a change to the solve changes its results, so ResultCache entries from before it are not
+	 * used.
+	 */
+	public static final int VERSION = 1;
+
+	private final double originEasting;
+	private final double originNorthing;
+	private final double unitsToMeters;
+
+	/**
+	 * @param originEasting x component of projected coordinates of upper left pixel
+	 * @param originNorthing y component of projected coordinates of upper left pixel
+	 * @param unitsToMeters multiplication factor to get source units into meters, use 20.1168 for chains
+	 */
+	public Solver(double originEasting, double originNorthing, double unitsToMeters) {
+		this.originEasting = originEasting;
+		this.originNorthing = originNorthing;
+		this.unitsToMeters = unitsToMeters;
+	}
+
+	public double getOriginEasting() {
+		return originEasting;
+	}
+
+	public double getOriginNorthing() {
+		return originNorthing;
+	}
+
+	public double getUnitsToMeters() {
+		return unitsToMeters;
+	}
+
+	/**
+	 * @param graticules the graticules of a single sheet, in any order
+	 * @return the world file for the sheet, along with the intermediate values used to find it
+	 * @throws IllegalArgumentException if there are less than two LAT or two LON graticules
+	 */
+	public Solution solve(Collection<Graticule> graticules) {
+		PackedGraticules lonGrats = new PackedGraticules(LATLON.LON, graticules.size());
+		PackedGraticules latGrats = new PackedGraticules(LATLON.LAT, graticules.size());
+
+		for (Graticule g : graticules) {
+			if (g.latlon.equals(LATLON.LAT))
+				latGrats.add(g);
+			else
+				lonGrats.add(g);
+		}
+
+		return solve(lonGrats, latGrats);
+	}
+
+	/**
+	 * As for solve(Collection) but with the graticules already packed. The graticules are only read, so the same
+	 * sets can be solved from many threads at once.
+	 */
+	public Solution solve(PackedGraticules lonGrats, PackedGraticules latGrats) {
+		return solve(lonGrats, latGrats, true);
+	}
+
+	/**
+	 * @param instrument whether to record metrics for this solve, false for internal solves such as RobustSolver's
+	 * hypotheses
+	 */
+	Solution solve(PackedGraticules lonGrats, PackedGraticules latGrats, boolean instrument) {
+		// nothing is made for the event unless a flight recording could take it
+		Metrics.SolveEvent event = null;
+		long solveStart = 0;
+		if (instrument && Metrics.isRecording()) {
+			event = new Metrics.SolveEvent();
+			event.begin();
+		}
+		if (instrument)
+			solveStart = Metrics.start();
+
+		if (latGrats.size() < 2 || lonGrats.size() < 2)
+			throw new IllegalArgumentException("You need at least two LAT and two LON graticules for creation of a world file, found "
+					+ latGrats.size() + " LAT and " + lonGrats.size() + " LON.");
+
+		// one scratch array for the per graticule values of each stage
+		double[] scratch = new double[Math.max(latGrats.size(), lonGrats.size())];
+
+		// find theta and phi
+		long start = Metrics.start();
+		latGrats.angles(scratch);
+		double theta = StatUtils.mean(scratch, 0, latGrats.size()); // we use the mean of the lat angles as theta
+		double thetaRange = range(scratch, latGrats.size());
+
+		lonGrats.angles(scratch);
+		double phi = StatUtils.mean(scratch, 0, lonGrats.size()); // ... and the mean of the lon angles for phi
+		double phiRange = range(scratch, lonGrats.size());
+		if (instrument)
+			Metrics.stop(Metrics.Stage.ANGLES, start);
+
+		// find x and y (distance beteen pixels in map units), measured from the graticule with the lowest value
+		start = Metrics.start();
+		int n = latGrats.spacings(latGrats.indexOfMinValue(), scratch);
+		double y = StatUtils.mean(scratch, 0, n);
+		double yRange = range(scratch, n);
+
+		n = lonGrats.spacings(lonGrats.indexOfMinValue(), scratch);
+		double x = StatUtils.mean(scratch, 0, n);
+		double xRange = range(scratch, n);
+		if (instrument)
+			Metrics.stop(Metrics.Stage.SPACINGS, start);
+
+		// C, F are translation terms: x, y map coordinates of the center of the upper-left pixel
+		start = Metrics.start();
+		double F = intercept(latGrats, y, scratch);
+		double C = intercept(lonGrats, x, scratch);
+		if (instrument)
+			Metrics.stop(Metrics.Stage.REGRESSION, start);
+
+		double upperLeftX = C;
+		double upperLeftY = F;
+
+		// convert to meters
+		C *= unitsToMeters;
+		F *= unitsToMeters;
+
+		// C,F store the projected (in map units) coordinates of the upper left pixel.
+		// originNorthing,originEasting is the offset we need to apply to 0,0 to push the offsets into our global coordinate system
+		C = originEasting + C;
+		F = originNorthing + F;
+
+		// calculate the affine transformation matrix elements
+		double D = -1 * x * unitsToMeters * Math.sin(theta);
+		double A = x * unitsToMeters * Math.cos(theta);
+		double B = y * unitsToMeters * Math.sin(phi); // if should be negative, it'll formed by negative sin
+		double E = -1 * y * unitsToMeters * Math.cos(phi);
+
+		if (instrument && (Metrics.isEnabled() || (event != null && event.isEnabled()))) {
+			if (Metrics.isEnabled())
+				Metrics.SOLVE_SECONDS.record((System.nanoTime() - solveStart) / 1e9);
+
+			// the same world file in source units, to measure the graticules against their values
+			WorldFile local = new WorldFile(x * Math.cos(theta), -x * Math.sin(theta),
+					y * Math.sin(phi), -y * Math.cos(phi), upperLeftX, upperLeftY);
+			double rms = residualRms(local, lonGrats, latGrats);
+			if (Metrics.isEnabled())
+				Metrics.RESIDUAL_RMS.record(rms);
+
+			if (event != null && event.isEnabled()) {
+				event.lat = latGrats.size();
+				event.lon = lonGrats.size();
+				event.residualRms = rms;
+				event.commit();
+			}
+		}
+
+		return new Solution(new WorldFile(A, D, B, E, C, F), theta, phi, x, y,
+				thetaRange, phiRange, xRange, yRange, upperLeftX, upperLeftY);
+	}
+
+	/**
+	 * @param wld a world file in source units
+	 * @return the rms of the graticules' residuals against wld
+	 */
+	static double residualRms(WorldFile wld, PackedGraticules lonGrats, PackedGraticules latGrats) {
+		double[] residuals = new double[latGrats.size() + lonGrats.size()];
+		RobustSolver.residuals(wld, latGrats, residuals, 0);
+		RobustSolver.residuals(wld, lonGrats, residuals, latGrats.size());
+		double sum = 0;
+		for (double r : residuals)
+			sum += r * r;
+		return Math.sqrt(sum / residuals.length);
+	}
+
+	/**
+	 * @return max - min of the first n values
+	 */
+	static double range(double[] values, int n) {
+		return StatUtils.max(values, 0, n) - StatUtils.min(values, 0, n);
+	}
+
+	/**
+	 * @param grats graticules all of the one LATLON
+	 * @param spacing map units per pixel perpendicular to these graticules
+	 * @param scratch at least grats.size() long, overwritten
+	 * @return the map coordinate, perpendicular to these graticules, of the center of the upper left pixel
+	 */
+	static double intercept(PackedGraticules grats, double spacing, double[] scratch) {
+		// find perp dist to pixel space 0,0
+		grats.distancesTo(0, 0, scratch);
+
+		SimpleRegression regression = new SimpleRegression();
+		for (int i = 0; i < grats.size(); i++) {
+			// find the map space distance from this graticule to the center of the 0,0 pixel
+			double perpMapDist = scratch[i] * spacing; // perpMapDist / perpPixelDist = spacing
+
+			regression.addData(perpMapDist, grats.getValue(i));
+		}
+
+		return regression.getIntercept();
+	}
+}
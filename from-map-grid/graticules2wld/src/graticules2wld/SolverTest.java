@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+
+import graticules2wld.Graticule.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SolverTest {
+
+	/**
+	 * Builds the graticules a perfect tracing of a sheet with the given world file would have, every 100 units
+	 * from s300 to n300 and w300 to e300. The upper left pixel should be to the north west of all of these.
+	 */
+	static List<Graticule> trace(WorldFile wld) throws Exception {
+		AffineTransform toPixel = wld.getTransform().createInverse();
+		List<Graticule> grats = new ArrayList<Graticule>();
+
+		for (int v = -300; v <= 300; v += 100) {
+			Point2D a = toPixel.transform(new Point2D.Double(-400, v), null);
+			Point2D b = toPixel.transform(new Point2D.Double(400, v), null);
+			grats.add(new Graticule(LATLON.LAT, v < 0 ? DIR.S : DIR.N, Math.abs(v), new Line2D.Double(a, b)));
+
+			a = toPixel.transform(new Point2D.Double(v, 400), null);
+			b = toPixel.transform(new Point2D.Double(v, -400), null);
+			grats.add(new Graticule(LATLON.LON, v < 0 ? DIR.W : DIR.E, Math.abs(v), new Line2D.Double(a, b)));
+		}
+
+		return grats;
+	}
+
+	/**
+	 * A perfectly traced sheet should give back the world file it was traced from.
+	 */
+	@Test
+	public void test_solve() throws Exception {
+		// the graticules only pin down theta and phi independently of x and y when the map is not sheared
+		double x = 0.5, y = 0.5, theta = Math.toRadians(3), phi = Math.toRadians(3);
+		WorldFile expected = new WorldFile(x * Math.cos(theta), -x * Math.sin(theta), y * Math.sin(phi), -y * Math.cos(phi), -450, 420);
+
+		Solution solution = new Solver(0, 0, 1).solve(trace(expected));
+
+		assertEquals(theta, solution.theta, 1e-9);
+		assertEquals(phi, solution.phi, 1e-9);
+		assertEquals(expected.A, solution.worldFile.A, 1e-9);
+		assertEquals(expected.D, solution.worldFile.D, 1e-9);
+		assertEquals(expected.B, solution.worldFile.B, 1e-9);
+		assertEquals(expected.E, solution.worldFile.E, 1e-9);
+		assertEquals(expected.C, solution.worldFile.C, 1e-6);
+		assertEquals(expected.F, solution.worldFile.F, 1e-6);
+	}
+
+	/**
+	 * The origin and tometers options should scale and shift the world file.
+	 */
+	@Test
+	public void test_originAndUnits() throws Exception {
+		WorldFile wld = new WorldFile(0.5, 0, 0, -0.5, -450, 420);
+		List<Graticule> grats = trace(wld);
+
+		WorldFile scaled = new Solver(1000, 2000, 20.1168).solve(grats).worldFile;
+
+		assertEquals(0.5 * 20.1168, scaled.A, 1e-9);
+		assertEquals(-0.5 * 20.1168, scaled.E, 1e-9);
+		assertEquals(1000 + -450 * 20.1168, scaled.C, 1e-6);
+		assertEquals(2000 + 420 * 20.1168, scaled.F, 1e-6);
+	}
+
+	/**
+	 * Solving should leave the callers graticules as they were.
+	 */
+	@Test
+	public void test_noSideEffects() throws Exception {
+		List<Graticule> grats = trace(new WorldFile(0.5, 0, 0, -0.5, -450, 420));
+		List<Graticule> before = new ArrayList<Graticule>(grats);
+
+		new Solver(0, 0, 1).solve(grats);
+
+		assertEquals(before, grats);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_tooFewGraticules() {
+		List<Graticule> grats = new ArrayList<Graticule>();
+		grats.add(new Graticule(LATLON.LAT, DIR.N, 0, new Line2D.Double(0, 0, 1, 0)));
+		grats.add(new Graticule(LATLON.LON, DIR.E, 0, new Line2D.Double(0, 0, 0, 1)));
+		grats.add(new Graticule(LATLON.LON, DIR.E, 100, new Line2D.Double(1, 0, 1, 1)));
+
+		new Solver(0, 0, 1).solve(grats);
+	}
+}
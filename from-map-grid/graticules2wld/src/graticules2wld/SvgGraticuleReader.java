@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.DIR;
+import graticules2wld.Graticule.LATLON;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads graticules straight from a traced SVG, as pmap-svggraticules2csv.pl does, so no intermediate csv is
+ * needed.
+ *
+ * As in the perl script the graticules are the path elements directly under the root svg element, whose id is
+ * the label on the map, eg. "w220" or "s400" (h0 or v0 for the zero lines), and whose d attribute is a single
+ * line segment, "M x1,y1 x2,y2" or relative "m x1,y1 dx,dy" (an explicit L or l before the second point is fine
+ * too). Other paths are skipped with a warning.
+ *
+ * The SVG is read with a streaming StAX parser and each graticule goes to the handler as soon as its path
+ * element is read, so the document is never held in memory. DTDs and external entities are not processed.
+ */
+public final class SvgGraticuleReader {
+
+	static final Pattern ID = Pattern.compile("^([nsewvh])(\\d+)$", Pattern.CASE_INSENSITIVE);
+
+	private SvgGraticuleReader() {
+	}
+
+	/**
+	 * @return whether the file should be read as an SVG rather than a graticules csv, going by its name
+	 */
+	public static boolean isSvg(Path file) {
+		return file.getFileName().toString().toLowerCase().endsWith(".svg");
+	}
+
+	/**
+	 * Reads the graticules of an SVG, calling handler for each.
+	 * @param warnings where to report skipped paths, or null to skip them silently
+	 * @return the number of graticules read
+	 * @throws IOException if the file can't be read or isn't well formed XML
+	 */
+	public static int read(Path svg, GraticuleCsvReader.Handler handler, PrintStream warnings) throws Exception {
+		InputStream in = new BufferedInputStream(Files.newInputStream(svg), 1 << 16);
+		try {
+			return read(in, handler, warnings);
+		}finally{
+			in.close();
+		}
+	}
+
+	public static int read(InputStream in, GraticuleCsvReader.Handler handler, PrintStream warnings) throws Exception {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+
+		double[] line = new double[4];
+		int count = 0;
+		int depth = 0;
+		XMLStreamReader xml = null;
+		try {
+			xml = factory.createXMLStreamReader(in);
+			while (xml.hasNext()) {
+				int event = xml.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+				}else if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					if (depth == 1 && !xml.getLocalName().equals("svg"))
+						throw new IOException("not an SVG, the root element is " + xml.getLocalName());
+					if (depth != 2 || !xml.getLocalName().equals("path"))
+						continue;
+
+					String id = xml.getAttributeValue(null, "id");
+					String d = xml.getAttributeValue(null, "d");
+					Matcher m = ID.matcher(id == null ? "" : id);
+					if (!m.matches()) {
+						warn(warnings, "found a path in svg with id " + id + ".");
+						continue;
+					}
+
+					int value;
+					try {
+						value = Integer.parseInt(m.group(2));
+					}catch( NumberFormatException exp ) {
+						warn(warnings, "path '" + id + "' has a value out of range.");
+						continue;
+					}
+
+					String error = parseSegment(d == null ? "" : d, line);
+					if (error != null) {
+						warn(warnings, "path '" + id + "' " + error);
+						continue;
+					}
+
+					LATLON latlon;
+					DIR dir;
+					switch (Character.toLowerCase(m.group(1).charAt(0))) {
+					case 'n': case 'h': latlon = LATLON.LAT; dir = DIR.N; break;
+					case 's': latlon = LATLON.LAT; dir = DIR.S; break;
+					case 'e': case 'v': latlon = LATLON.LON; dir = DIR.E; break;
+					default: latlon = LATLON.LON; dir = DIR.W; break;
+					}
+
+					handler.graticule(latlon, dir, value, line[0], line[1], line[2], line[3]);
+					count++;
+				}
+			}
+		}catch( XMLStreamException exp ) {
+			throw new IOException(exp.getMessage(), exp);
+		}finally{
+			if (xml != null)
+				xml.close();
+		}
+		return count;
+	}
+
+	private static void warn(PrintStream warnings, String message) {
+		if (warnings != null)
+			warnings.println("WARNING: " + message);
+	}
+
+	/**
+	 * Parses the d attribute of a path which should be a single line segment into x1, y1, x2, y2.
+	 * @return null, or why the path isn't a single line segment
+	 */
+	static String parseSegment(String d, double[] line) {
+		int pos = skipSeparators(d, 0);
+		if (pos == d.length() || (d.charAt(pos) != 'M' && d.charAt(pos) != 'm'))
+			return "should start with M or m, found " + d;
+		boolean relative = d.charAt(pos) == 'm';
+		pos++;
+
+		int points = 0;
+		double[] number = new double[1];
+		while (true) {
+			pos = skipSeparators(d, pos);
+			if (pos == d.length())
+				break;
+
+			char c = d.charAt(pos);
+			if (c == 'L' || c == 'l') {
+				if (points != 1)
+					return "expecting 2 points, but found " + d;
+				relative = c == 'l';
+				pos++;
+				continue;
+			}
+			if (c == 'z' || c == 'Z') {
+				pos++;
+				continue; // closing a two point path doesn't change the segment
+			}
+			if (points == 2)
+				return "expecting 2 points, but found more in " + d;
+
+			for (int i = 0; i < 2; i++) {
+				pos = skipSeparators(d, pos);
+				pos = parseNumber(d, pos, number);
+				if (pos < 0)
+					return "has a coordinate which isn't a number in " + d;
+				line[2 * points + i] = number[0];
+			}
+			points++;
+		}
+
+		if (points != 2)
+			return "expecting 2 points, but found " + points + ".";
+		if (relative) {
+			line[2] += line[0];
+			line[3] += line[1];
+		}
+		return null;
+	}
+
+	private static int skipSeparators(String d, int pos) {
+		while (pos < d.length() && (d.charAt(pos) == ',' || Character.isWhitespace(d.charAt(pos))))
+			pos++;
+		return pos;
+	}
+
+	/**
+	 * Parses an SVG number starting at pos, which runs until the first character which can't continue it (so
+	 * "1-2" is two numbers).
+	 * @return the position after the number, or -1 if there is no number at pos
+	 */
+	private static int parseNumber(String d, int pos, double[] out) {
+		int start = pos;
+		if (pos < d.length() && (d.charAt(pos) == '-' || d.charAt(pos) == '+'))
+			pos++;
+		boolean digits = false, dot = false;
+		while (pos < d.length()) {
+			char c = d.charAt(pos);
+			if (c >= '0' && c <= '9') {
+				digits = true;
+			}else if (c == '.' && !dot) {
+				dot = true;
+			}else{
+				break;
+			}
+			pos++;
+		}
+		if (!digits)
+			return -1;
+		if (pos < d.length() && (d.charAt(pos) == 'e' || d.charAt(pos) == 'E')) {
+			int e = pos + 1;
+			if (e < d.length() && (d.charAt(e) == '-' || d.charAt(e) == '+'))
+				e++;
+			if (e < d.length() && d.charAt(e) >= '0' && d.charAt(e) <= '9') {
+				while (e < d.length() && d.charAt(e) >= '0' && d.charAt(e) <= '9')
+					e++;
+				pos = e;
+			}
+		}
+		out[0] = Double.parseDouble(d.substring(start, pos));
+		return pos;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SvgGraticuleReaderTest {
+
+	static List<Graticule> read(String svg, PrintStream warnings) throws Exception {
+		List<Graticule> lon = new ArrayList<Graticule>();
+		List<Graticule> lat = new ArrayList<Graticule>();
+		SvgGraticuleReader.read(new ByteArrayInputStream(svg.getBytes("UTF-8")), GraticuleCsvReader.listHandler(lon, lat), warnings);
+		lat.addAll(lon);
+		return lat;
+	}
+
+	@Test
+	public void test_read() throws Exception {
+		String svg = "<?xml version=\"1.0\"?>\n<svg xmlns=\"http://www.w3.org/2000/svg\">\n"
+			+ "<path id=\"s600\" d=\"M 3917.0983,5266.9812 1344.5505,5685.9629\" />\n"
+			+ "<path d=\"m 10,20 5,-5\" id=\"W1200\" style=\"fill:none\" />\n"
+			+ "<path id=\"h0\" d=\"M1 2L3 4\" />\n"
+			+ "<path id=\"lat-29_lon141\" d=\"m 1,2 3,4\" />\n"
+			+ "<path id=\"n100\" d=\"m 1,2 3,4 5,6\" />\n"
+			+ "<g><path id=\"e100\" d=\"M 1,2 3,4\" /></g>\n"
+			+ "</svg>\n";
+
+		ByteArrayOutputStream warnings = new ByteArrayOutputStream();
+		List<Graticule> grats = read(svg, new PrintStream(warnings, true));
+
+		assertEquals(3, grats.size());
+		assertEquals("LAT S600 3917.0983,5266.9812,1344.5505,5685.9629\n", grats.get(0).toString());
+		assertEquals("LAT N0 1.0,2.0,3.0,4.0\n", grats.get(1).toString());
+		assertEquals("LON W1200 10.0,20.0,15.0,15.0\n", grats.get(2).toString());
+
+		String w = warnings.toString();
+		assertTrue(w, w.contains("lat-29_lon141"));
+		assertTrue(w, w.contains("n100"));
+		assertFalse(w, w.contains("e100")); // not a direct child of svg, so not looked at
+	}
+
+	@Test
+	public void test_parseSegment() {
+		double[] line = new double[4];
+		assertNull(SvgGraticuleReader.parseSegment("m 1.5e1,-2 -3-4", line));
+		assertArrayEquals(new double[] {15, -2, 12, -6}, line, 0);
+
+		assertNotNull(SvgGraticuleReader.parseSegment("M 1,2", line));
+		assertNotNull(SvgGraticuleReader.parseSegment("C 1,2 3,4", line));
+		assertNotNull(SvgGraticuleReader.parseSegment("M 1,x 3,4", line));
+	}
+
+	@Test(expected = IOException.class)
+	public void test_notXml() throws Exception {
+		read("lonlat,dir,value,x1,y1,x2,y2\n", null);
+	}
+}
@@ -0,0 +1,789 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageReader;
+
+/**
+ * Renders georeferenced sheets into a pyramid of 256 pixel web mercator tiles, named z/x/y.png as slippy maps
+ * (XYZ) expect or, for TMS, with y counted up from the south.
+ *
+ * The deepest zoom is rendered a sheet at a time, the sheet's tiles in parallel, with each pixel taken back
+ * through web mercator, the sheet's projection and its world file to a scan pixel. Where sheets overlap the
+ * first one given wins. Each shallower zoom is then built by a fork-join task per tile which first builds its
+ * four children, so tiles are shrunk from the ones below them, while they are still in memory, as soon as they
+ * are done. Tiles with nothing on them are never written.
+ *
+ * An interrupted run can be resumed by running it again. Sheets already rendered are listed, with their bounds,
+ * in a .done file in the output, and are skipped if neither they nor their world file have changed since. Every
+ * tile which a new or changed sheet touches, where it is now or where it was, is cleared and drawn again from
+ * all the sheets in order, so a sheet which has moved leaves nothing behind and the first sheet still wins. The
+ * .done file is only updated once all of those tiles are drawn, so an interrupted run clears them again. An
+ * overview tile is only rebuilt if it is missing or older than one of the tiles below it.
+ */
+public final class TilePyramid {
+
+	public static final int TILE = 256;
+	static final int REGION_STEP = 32; // tile pixels between the points which find the part of a scan a piece needs
+
+	/**
+	 * A scan with its world file and projection.
+	 */
+	public static final class Sheet {
+		public final File image;
+		public final File wldFile;
+		public final WorldFile wld;
+		public final Projection projection;
+		final int width;
+		final int height;
+		// the web mercator bounds, minX, minY, maxX, maxY
+		final double[] bounds;
+
+		/**
+		 * Reads the world file beside image, eg. sheet.wld for sheet.jpg, and the image's size.
+		 */
+		public Sheet(File image, Projection projection) throws IOException {
+			this.image = image;
+			this.wldFile = Batch.wldFileFor(image);
+			this.wld = WorldFile.read(wldFile);
+			this.projection = projection;
+			ImageReader reader = Warper.open(image);
+			try {
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+			}finally{
+				Warper.close(reader);
+			}
+
+			// the edges aren't straight once projected, so take the bounds of points along them
+			int n = 16;
+			double[] xy = new double[2 * 4 * n];
+			for (int i = 0; i < n; i++) {
+				double t = (double) i / n;
+				double[] edge = {
+					-0.5 + t * width, -0.5,
+					width - 0.5, -0.5 + t * height,
+					width - 0.5 - t * width, height - 0.5,
+					-0.5, height - 0.5 - t * height};
+				for (int e = 0; e < 4; e++) {
+					xy[2 * (e * n + i)] = edge[2 * e];
+					xy[2 * (e * n + i) + 1] = edge[2 * e + 1];
+				}
+			}
+			new PointTransformer(wld, false).transform(xy, 0, 4 * n);
+			toMercator(projection, xy, 4 * n);
+			bounds = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+			for (int i = 0; i < xy.length; i += 2) {
+				bounds[0] = Math.min(bounds[0], xy[i]);
+				bounds[1] = Math.min(bounds[1], xy[i + 1]);
+				bounds[2] = Math.max(bounds[2], xy[i]);
+				bounds[3] = Math.max(bounds[3], xy[i + 1]);
+			}
+		}
+
+		/**
+		 * @return the deepest zoom whose pixels are no bigger than this sheet's
+		 */
+		int zoom() {
+			double resolution = Math.sqrt((bounds[2] - bounds[0]) * (bounds[3] - bounds[1]) / ((double) width * height));
+			int z = (int) Math.ceil(Math.log(2 * WebMercator.HALF_WORLD / (TILE * resolution)) / Math.log(2));
+			return Math.max(0, Math.min(24, z));
+		}
+
+		@Override
+		public String toString() {
+			return image.getPath();
+		}
+	}
+
+	/**
+	 * @return the file itself, or for a directory the images in it which have a world file beside them
+	 */
+	public static List<File> images(File file) {
+		List<File> images = new ArrayList<File>();
+		if (!file.isDirectory()) {
+			images.add(file);
+			return images;
+		}
+		File[] files = file.listFiles();
+		Arrays.sort(files);
+		for (File f : files) {
+			String name = f.getName().toLowerCase();
+			boolean image = name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")
+					|| name.endsWith(".tif") || name.endsWith(".tiff");
+			if (image && f.isFile() && Batch.wldFileFor(f).isFile())
+				images.add(f);
+		}
+		return images;
+	}
+
+	private static void toMercator(Projection projection, double[] xy, int count) {
+		if (projection.getEpsg() == WebMercator.EPSG)
+			return;
+		projection.inverse(xy, 0, count);
+		Projections.WEB_MERCATOR.forward(xy, 0, count);
+	}
+
+	private static void fromMercator(Projection projection, double[] xy, int count) {
+		if (projection.getEpsg() == WebMercator.EPSG)
+			return;
+		Projections.WEB_MERCATOR.inverse(xy, 0, count);
+		projection.forward(xy, 0, count);
+	}
+
+	private final File dir;
+	private final int minZoom;
+	private final int maxZoom;
+	private final boolean tms;
+	private final Warper.Kernel kernel;
+	private final ForkJoinPool pool;
+
+	private final AtomicInteger rendered = new AtomicInteger();
+	private final AtomicInteger overviews = new AtomicInteger();
+	// the tiles at the deepest zoom drawn so far in this run, the only ones a later sheet is drawn under
+	private final Set<Long> drawn = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+	/**
+	 * @param maxZoom the zoom rendered from the sheets, or -1 for the deepest any sheet needs
+	 */
+	public TilePyramid(File dir, int minZoom, int maxZoom, boolean tms, Warper.Kernel kernel, int threads) {
+		this.dir = dir;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.tms = tms;
+		this.kernel = kernel;
+		this.pool = new ForkJoinPool(Math.max(1, threads));
+	}
+
+	/**
+	 * @return the size of a tile at zoom z in web mercator meters
+	 */
+	static double tileSize(int z) {
+		return 2 * WebMercator.HALF_WORLD / (1L << z);
+	}
+
+	/**
+	 * @return the tiles at zoom z which the bounds touch, as x0, y0, x1, y1 inclusive
+	 */
+	static int[] tileRange(double[] bounds, int z) {
+		double size = tileSize(z);
+		int last = (int) ((1L << z) - 1);
+		return new int[] {
+			clamp((int) Math.floor((bounds[0] + WebMercator.HALF_WORLD) / size), last),
+			clamp((int) Math.floor((WebMercator.HALF_WORLD - bounds[3]) / size), last),
+			clamp((int) Math.floor((bounds[2] + WebMercator.HALF_WORLD) / size), last),
+			clamp((int) Math.floor((WebMercator.HALF_WORLD - bounds[1]) / size), last)};
+	}
+
+	private static int clamp(int v, int last) {
+		return Math.max(0, Math.min(last, v));
+	}
+
+	private static long key(int x, int y) {
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	/**
+	 * @return the file of the XYZ tile z, x, y, named for TMS if asked
+	 */
+	File tileFile(int z, int x, int y) {
+		int name = tms ? (int) ((1L << z) - 1 - y) : y;
+		return new File(dir, z + File.separator + x + File.separator + name + ".png");
+	}
+
+	/**
+	 * Renders the sheets into the deepest zoom, then builds the shallower zooms from it.
+	 * @param out where progress is printed
+	 */
+	public void run(List<Sheet> sheets, PrintStream out) throws IOException, InterruptedException {
+		int deepest = maxZoom;
+		if (deepest < 0) {
+			deepest = minZoom;
+			for (Sheet sheet : sheets)
+				deepest = Math.max(deepest, sheet.zoom());
+		}
+		if (deepest < minZoom)
+			throw new IllegalArgumentException("The deepest zoom " + deepest + " is shallower than " + minZoom);
+		long start = System.nanoTime();
+
+		// the tiles touched by the sheets not done by an earlier run, where they are now and where they were
+		File journal = new File(dir, ".done-z" + deepest);
+		Map<String, String> done = readJournal(journal);
+		boolean[] changed = new boolean[sheets.size()];
+		Set<Long> stale = new HashSet<Long>();
+		int skipped = 0;
+		for (int i = 0; i < sheets.size(); i++) {
+			Sheet sheet = sheets.get(i);
+			String entry = journalEntry(sheet);
+			String old = done.get(sheet.image.getAbsolutePath());
+			if (entry.equals(old)) {
+				skipped++;
+				continue;
+			}
+			changed[i] = true;
+			addTiles(stale, sheet.bounds, deepest);
+			double[] oldBounds = old == null ? null : journalBounds(old);
+			if (oldBounds != null)
+				addTiles(stale, oldBounds, deepest);
+		}
+
+		// clear them, then draw them again from every sheet in order
+		clear(stale, deepest);
+		drawn.clear();
+		for (int i = 0; i < sheets.size(); i++)
+			render(sheets.get(i), deepest, changed[i] ? null : stale);
+		if (skipped < sheets.size()) {
+			for (int i = 0; i < sheets.size(); i++) {
+				if (changed[i])
+					done.put(sheets.get(i).image.getAbsolutePath(), journalEntry(sheets.get(i)));
+			}
+			writeJournal(journal, done.values());
+		}
+
+		// the tiles at each zoom which might have something on them
+		List<Set<Long>> levels = new ArrayList<Set<Long>>();
+		Set<Long> level = new HashSet<Long>();
+		for (Sheet sheet : sheets) {
+			int[] r = tileRange(sheet.bounds, deepest);
+			for (int y = r[1]; y <= r[3]; y++)
+				for (int x = r[0]; x <= r[2]; x++)
+					level.add(key(x, y));
+		}
+		for (int z = deepest; z >= minZoom; z--) {
+			levels.add(0, level);
+			Set<Long> up = new HashSet<Long>();
+			for (long k : level)
+				up.add(key((int) (k >>> 32) >> 1, (int) k >> 1));
+			level = up;
+		}
+
+		List<Build> roots = new ArrayList<Build>();
+		for (long k : levels.get(0))
+			roots.add(new Build(levels, minZoom, (int) (k >>> 32), (int) k));
+		for (Build root : roots)
+			pool.execute(root);
+		for (Build root : roots)
+			unwrap(root);
+
+		out.println("Rendered " + rendered + " tiles at zoom " + deepest + " from " + (sheets.size() - skipped)
+				+ " sheets (" + skipped + " already done) and built " + overviews + " tiles at zooms " + minZoom
+				+ "-" + (deepest - 1) + String.format(" in %.3fs.", (System.nanoTime() - start) / 1e9));
+	}
+
+	private static void addTiles(Set<Long> tiles, double[] bounds, int z) {
+		int[] r = tileRange(bounds, z);
+		for (int y = r[1]; y <= r[3]; y++)
+			for (int x = r[0]; x <= r[2]; x++)
+				tiles.add(key(x, y));
+	}
+
+	/**
+	 * Deletes the tiles at zoom z, and the overviews above them so they are built again from what is left.
+	 */
+	private void clear(Set<Long> tiles, int z) throws IOException {
+		Set<Long> level = tiles;
+		for (int d = z; d >= minZoom; d--) {
+			Set<Long> up = new HashSet<Long>();
+			for (long k : level) {
+				int x = (int) (k >>> 32), y = (int) k;
+				Files.deleteIfExists(tileFile(d, x, y).toPath());
+				up.add(key(x >> 1, y >> 1));
+			}
+			level = up;
+		}
+	}
+
+	/**
+	 * @return the sheet's image, its and its world file's modified times, its projection and its web mercator
+	 * bounds, separated by tabs
+	 */
+	private static String journalEntry(Sheet sheet) {
+		return sheet.image.getAbsolutePath() + "\t" + sheet.image.lastModified() + "\t" + sheet.wldFile.lastModified()
+				+ "\t" + sheet.projection.getEpsg() + "\t" + sheet.bounds[0] + "\t" + sheet.bounds[1]
+				+ "\t" + sheet.bounds[2] + "\t" + sheet.bounds[3];
+	}
+
+	/**
+	 * @return the bounds recorded in a journal entry, or null if it has none
+	 */
+	private static double[] journalBounds(String entry) {
+		String[] fields = entry.split("\t");
+		if (fields.length != 8)
+			return null;
+		try {
+			return new double[] {Double.parseDouble(fields[4]), Double.parseDouble(fields[5]),
+				Double.parseDouble(fields[6]), Double.parseDouble(fields[7])};
+		}catch( NumberFormatException exp ) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the last journal entry of each image, by the image's path
+	 */
+	private static Map<String, String> readJournal(File journal) throws IOException {
+		Map<String, String> done = new LinkedHashMap<String, String>();
+		if (!journal.isFile())
+			return done;
+		BufferedReader reader = new BufferedReader(new FileReader(journal));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				int tab = line.indexOf('\t');
+				if (tab > 0)
+					done.put(line.substring(0, tab), line);
+			}
+		}finally{
+			reader.close();
+		}
+		return done;
+	}
+
+	/**
+	 * Replaces the journal with entries, through a temporary file so it is never seen half written.
+	 */
+	private static void writeJournal(File journal, Collection<String> entries) throws IOException {
+		Path parent = journal.getAbsoluteFile().getParentFile().toPath();
+		Files.createDirectories(parent);
+		AtomicFile f = new AtomicFile(journal.toPath());
+		try {
+			Writer w = Files.newBufferedWriter(f.temp(), StandardCharsets.UTF_8);
+			try {
+				for (String entry : entries)
+					w.write(entry + "\n");
+			}finally{
+				w.close();
+			}
+			f.commit();
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * A block of tiles, x0, y0 to x1, y1 inclusive, and once decoded the part of the scan they sample from.
+	 */
+	private static final class Piece {
+		final int x0, y0, x1, y1;
+		Rectangle region; // null if the tiles are outside the scan
+		int[] argb;
+
+		Piece(int x0, int y0, int x1, int y1) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.x1 = x1;
+			this.y1 = y1;
+		}
+	}
+
+	/**
+	 * Renders one sheet into the tiles at zoom z, drawing only where earlier sheets of this run haven't.
+	 * @param only the tiles to draw, or null for all of the sheet's
+	 *
+	 * As with --warp, the tiles are taken in bands of Warper.BAND rows, a band cut across into pieces if the part
+	 * of the scan it covers is too big, and one thread decodes just the part of the scan the next piece needs
+	 * while the pool renders the tiles of the current one. So only two pieces of the scan are ever in memory.
+	 */
+	void render(final Sheet sheet, final int z, final Set<Long> only) throws IOException, InterruptedException {
+		final PointTransformer toPixel = new PointTransformer(sheet.wld, true);
+		List<Piece> pieces = pieces(sheet, toPixel, z, only);
+		if (pieces.isEmpty())
+			return;
+
+		ImageReader reader = Warper.open(sheet.image);
+		ExecutorService decoder = Executors.newSingleThreadExecutor();
+		try {
+			Future<Piece> next = decoder.submit(decode(reader, pieces.get(0)));
+			for (int i = 0; i < pieces.size(); i++) {
+				final Piece piece = Warper.get(next);
+				if (i + 1 < pieces.size())
+					next = decoder.submit(decode(reader, pieces.get(i + 1)));
+				if (piece.region == null)
+					continue; // wholly outside the scan
+
+				final int across = piece.x1 - piece.x0 + 1;
+				int tiles = across * (piece.y1 - piece.y0 + 1);
+
+				class Render extends RecursiveAction {
+					private static final long serialVersionUID = 1L;
+					final int from, to;
+
+					Render(int from, int to) {
+						this.from = from;
+						this.to = to;
+					}
+
+					@Override
+					protected void compute() {
+						if (to - from > 1) {
+							int mid = (from + to) >>> 1;
+							invokeAll(new Render(from, mid), new Render(mid, to));
+							return;
+						}
+						int x = piece.x0 + from % across;
+						int y = piece.y0 + from / across;
+						if (only != null && !only.contains(key(x, y)))
+							return;
+						try {
+							renderTile(sheet, piece, toPixel, z, x, y);
+						}catch( IOException exp ) {
+							throw new RuntimeException(exp);
+						}
+					}
+				}
+				unwrap(pool.submit(new Render(0, tiles)));
+			}
+		}finally{
+			decoder.shutdownNow();
+			decoder.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			Warper.close(reader);
+		}
+	}
+
+	/**
+	 * Cuts the sheet's tiles at zoom z into bands of Warper.BAND rows, and each band across into as few pieces as
+	 * keep the part of the scan each piece needs under Warper.MAX_REGION_PIXELS. With only, each piece is cut down
+	 * to the tiles in it which are wanted, and left out if there are none.
+	 * @return the pieces top to bottom, with their regions set
+	 */
+	private List<Piece> pieces(Sheet sheet, PointTransformer toPixel, int z, Set<Long> only) {
+		int[] r = tileRange(sheet.bounds, z);
+		int tilesAcross = r[2] - r[0] + 1;
+		List<Piece> pieces = new ArrayList<Piece>();
+		for (int y = r[1]; y <= r[3]; y += Warper.BAND) {
+			int y1 = Math.min(r[3], y + Warper.BAND - 1);
+			for (int n = 1; ; n++) {
+				int tilesPerPiece = (tilesAcross + n - 1) / n;
+				List<Piece> band = new ArrayList<Piece>();
+				boolean fits = true;
+				for (int x = r[0]; x <= r[2]; x += tilesPerPiece) {
+					Piece piece = new Piece(x, y, Math.min(r[2], x + tilesPerPiece - 1), y1);
+					if (only != null && (piece = wanted(piece, only)) == null)
+						continue;
+					piece.region = sourceRegion(sheet, toPixel, z, piece);
+					if (piece.region != null && (long) piece.region.width * piece.region.height > Warper.MAX_REGION_PIXELS)
+						fits = false;
+					band.add(piece);
+				}
+				if (fits || tilesPerPiece == 1) {
+					pieces.addAll(band);
+					break;
+				}
+			}
+		}
+		return pieces;
+	}
+
+	/**
+	 * @return the smallest piece holding the tiles of piece which are in only, or null if none are
+	 */
+	private static Piece wanted(Piece piece, Set<Long> only) {
+		int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+		for (int y = piece.y0; y <= piece.y1; y++) {
+			for (int x = piece.x0; x <= piece.x1; x++) {
+				if (only.contains(key(x, y))) {
+					x0 = Math.min(x0, x);
+					y0 = Math.min(y0, y);
+					x1 = Math.max(x1, x);
+					y1 = Math.max(y1, y);
+				}
+			}
+		}
+		return x0 > x1 ? null : new Piece(x0, y0, x1, y1);
+	}
+
+	/**
+	 * @return the part of the scan which the pixels of a piece's tiles sample from, or null if none
+	 */
+	private static Rectangle sourceRegion(Sheet sheet, PointTransformer toPixel, int z, Piece piece) {
+		// the projection bends straight lines, so take points every REGION_STEP tile pixels over the piece, not
+		// just its corners
+		double pixel = tileSize(z) / TILE;
+		double left = -WebMercator.HALF_WORLD + piece.x0 * tileSize(z);
+		double top = WebMercator.HALF_WORLD - piece.y0 * tileSize(z);
+		int cols = (piece.x1 - piece.x0 + 1) * TILE, rows = (piece.y1 - piece.y0 + 1) * TILE;
+		int across = cols / REGION_STEP + 1;
+		double[] xy = new double[2 * across];
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int row = 0; row <= rows; row += REGION_STEP) {
+			int rr = Math.min(row, rows - 1);
+			for (int i = 0; i < across; i++) {
+				int c = Math.min(i * REGION_STEP, cols - 1);
+				xy[2 * i] = left + (c + 0.5) * pixel;
+				xy[2 * i + 1] = top - (rr + 0.5) * pixel;
+			}
+			fromMercator(sheet.projection, xy, across);
+			toPixel.transform(xy, 0, across);
+			for (int i = 0; i < across; i++) {
+				if (Double.isNaN(xy[2 * i]) || Double.isNaN(xy[2 * i + 1]))
+					continue;
+				minX = Math.min(minX, xy[2 * i]);
+				maxX = Math.max(maxX, xy[2 * i]);
+				minY = Math.min(minY, xy[2 * i + 1]);
+				maxY = Math.max(maxY, xy[2 * i + 1]);
+			}
+		}
+		if (minX > maxX || minY > maxY)
+			return null;
+		// one pixel either side for the bilinear neighbours, and one more for any bend between the points
+		int x0 = (int) Math.max(0, Math.floor(minX) - 2);
+		int y0 = (int) Math.max(0, Math.floor(minY) - 2);
+		int x1 = (int) Math.min(sheet.width, Math.ceil(maxX) + 3);
+		int y1 = (int) Math.min(sheet.height, Math.ceil(maxY) + 3);
+		if (x0 >= x1 || y0 >= y1)
+			return null;
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	private static Callable<Piece> decode(final ImageReader reader, final Piece piece) {
+		return new Callable<Piece>() {
+			@Override
+			public Piece call() throws IOException {
+				if (piece.region != null)
+					piece.argb = Warper.read(reader, piece.region);
+				return piece;
+			}
+		};
+	}
+
+	private static void unwrap(ForkJoinTask<?> task) throws IOException {
+		try {
+			task.join();
+		}catch( RuntimeException exp ) {
+			Throwable cause = exp;
+			while (cause.getCause() != null && !(cause instanceof IOException))
+				cause = cause.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw exp;
+		}
+	}
+
+	private void renderTile(Sheet sheet, Piece piece, PointTransformer toPixel, int z, int x, int y) throws IOException {
+		double pixel = tileSize(z) / TILE;
+		double left = -WebMercator.HALF_WORLD + x * tileSize(z);
+		double top = WebMercator.HALF_WORLD - y * tileSize(z);
+
+		int[] tile = new int[TILE * TILE];
+		double[] xy = new double[2 * TILE];
+		boolean any = false;
+		for (int row = 0; row < TILE; row++) {
+			for (int c = 0; c < TILE; c++) {
+				xy[2 * c] = left + (c + 0.5) * pixel;
+				xy[2 * c + 1] = top - (row + 0.5) * pixel;
+			}
+			fromMercator(sheet.projection, xy, TILE);
+			toPixel.transform(xy, 0, TILE);
+			for (int c = 0; c < TILE; c++) {
+				double sx = xy[2 * c], sy = xy[2 * c + 1];
+				if (sx < -0.5 || sx >= sheet.width - 0.5 || sy < -0.5 || sy >= sheet.height - 0.5)
+					continue;
+				tile[row * TILE + c] = Warper.sample(piece.argb, piece.region.width, piece.region.height,
+						sx - piece.region.x, sy - piece.region.y, kernel);
+				any = true;
+			}
+		}
+		if (!any)
+			return;
+
+		// keep what earlier sheets of this run drew, anything older was cleared before the run started drawing
+		File file = tileFile(z, x, y);
+		if (drawn.contains(key(x, y))) {
+			int[] old = PngTile.read(file, TILE, TILE);
+			for (int i = 0; i < old.length; i++) {
+				if ((old[i] >>> 24) != 0)
+					tile[i] = old[i];
+			}
+		}
+		write(file, tile);
+		drawn.add(key(x, y));
+		rendered.incrementAndGet();
+	}
+
+	/**
+	 * Writes a tile as a png, to a temporary file which is then renamed so a tile is never seen half written.
+	 */
+	private static void write(File file, int[] argb) throws IOException {
+		Path parent = file.getParentFile().toPath();
+		Files.createDirectories(parent);
+		AtomicFile f = new AtomicFile(file.toPath());
+		try {
+			OutputStream out = new BufferedOutputStream(Files.newOutputStream(f.temp()));
+			try {
+				PngTile.write(argb, TILE, TILE, out);
+			}finally{
+				out.close();
+			}
+			f.commit();
+		}finally{
+			f.close();
+		}
+	}
+
+	/**
+	 * A built tile, its file's modified time (0 if there is none) and its pixels if they are in memory.
+	 */
+	private static final class Built {
+		final File file;
+		final long modified;
+		final int[] argb;
+
+		Built(File file, long modified, int[] argb) {
+			this.file = file;
+			this.modified = modified;
+			this.argb = argb;
+		}
+
+		int[] pixels() throws IOException {
+			if (argb != null)
+				return argb;
+			return PngTile.read(file, TILE, TILE);
+		}
+	}
+
+	/**
+	 * Builds a tile from the four below it, once they have been built.
+	 */
+	private final class Build extends RecursiveTask<Built> {
+		private static final long serialVersionUID = 1L;
+		final List<Set<Long>> levels;
+		final int z, x, y;
+
+		Build(List<Set<Long>> levels, int z, int x, int y) {
+			this.levels = levels;
+			this.z = z;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		protected Built compute() {
+			File file = tileFile(z, x, y);
+			if (z == maxZoomOf(levels))
+				return new Built(file, file.lastModified(), null);
+
+			Set<Long> below = levels.get(z + 1 - minZoom);
+			Build[] children = new Build[4];
+			for (int i = 0; i < 4; i++) {
+				int cx = 2 * x + (i & 1), cy = 2 * y + (i >> 1);
+				if (below.contains(key(cx, cy))) {
+					children[i] = new Build(levels, z + 1, cx, cy);
+					children[i].fork();
+				}
+			}
+			Built[] built = new Built[4];
+			long newest = 0;
+			for (int i = 3; i >= 0; i--) {
+				if (children[i] != null) {
+					built[i] = children[i].join();
+					newest = Math.max(newest, built[i].modified);
+				}
+			}
+
+			try {
+				if (newest == 0) {
+					Files.deleteIfExists(file.toPath()); // nothing below it any more
+					return new Built(file, 0, null);
+				}
+				long modified = file.lastModified();
+				if (modified >= newest)
+					return new Built(file, modified, null); // up to date
+
+				int[] tile = new int[TILE * TILE];
+				for (int i = 0; i < 4; i++) {
+					if (built[i] != null && built[i].modified != 0)
+						shrink(built[i].pixels(), tile, (i & 1) * TILE / 2, (i >> 1) * TILE / 2);
+				}
+				write(file, tile);
+				overviews.incrementAndGet();
+				return new Built(file, file.lastModified(), tile);
+			}catch( IOException exp ) {
+				throw new RuntimeException(exp);
+			}
+		}
+	}
+
+	private int maxZoomOf(List<Set<Long>> levels) {
+		return minZoom + levels.size() - 1;
+	}
+
+	/**
+	 * Averages each 2 by 2 block of a tile into one pixel of a quarter of out, weighting colour by alpha so
+	 * transparent pixels don't darken the edges.
+	 */
+	static void shrink(int[] child, int[] out, int ox, int oy) {
+		for (int r = 0; r < TILE / 2; r++) {
+			for (int c = 0; c < TILE / 2; c++) {
+				int i = 2 * r * TILE + 2 * c;
+				int a = 0, red = 0, green = 0, blue = 0;
+				for (int j = 0; j < 4; j++) {
+					int q = child[i + (j & 1) + (j >> 1) * TILE];
+					int qa = q >>> 24;
+					a += qa;
+					red += qa * ((q >> 16) & 0xff);
+					green += qa * ((q >> 8) & 0xff);
+					blue += qa * (q & 0xff);
+				}
+				int v = 0;
+				if (a != 0) {
+					v = ((a + 2) / 4) << 24 | ((red + a / 2) / a) << 16 | ((green + a / 2) / a) << 8 | ((blue + a / 2) / a);
+				}
+				out[(oy + r) * TILE + ox + c] = v;
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TilePyramidTest {
+
+	/**
+	 * @return a sheet lined up with the zoom 3 tiles x 4-5, y 2-3, so each of its pixels is a tile pixel
+	 */
+	static File alignedSheet(File dir) throws Exception {
+		BufferedImage img = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 512; y++)
+			for (int x = 0; x < 512; x++)
+				img.setRGB(x, y, (x * 7 + y * 13) * 1031 & 0xffffff);
+		File png = new File(dir, "sheet.png");
+		ImageIO.write(img, "png", png);
+
+		double tile = TilePyramid.tileSize(3);
+		double pixel = tile / 256;
+		WorldFile wld = new WorldFile(pixel, 0, 0, -pixel, -WebMercator.HALF_WORLD + 4 * tile + pixel / 2,
+				WebMercator.HALF_WORLD - 2 * tile - pixel / 2);
+		FileWriter w = new FileWriter(new File(dir, "sheet.wld"));
+		wld.write(w);
+		w.close();
+		return png;
+	}
+
+	@Test
+	public void test_pyramid() throws Exception {
+		File dir = Files.createTempDirectory("tiles").toFile();
+		File png = alignedSheet(dir);
+		File out = new File(dir, "out");
+		List<TilePyramid.Sheet> sheets = Collections.singletonList(new TilePyramid.Sheet(png, Projections.WEB_MERCATOR));
+		assertEquals(3, sheets.get(0).zoom());
+
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		new TilePyramid(out, 1, -1, false, Warper.Kernel.NEAREST, 2).run(sheets, new PrintStream(log, true));
+		assertTrue(log.toString(), log.toString().startsWith("Rendered 4 tiles at zoom 3 from 1 sheets (0 already done) and built 2 tiles"));
+
+		BufferedImage src = ImageIO.read(png);
+		for (int i = 0; i < 4; i++) {
+			BufferedImage tile = ImageIO.read(new File(out, "3/" + (4 + (i & 1)) + "/" + (2 + (i >> 1)) + ".png"));
+			for (int y = 0; y < 256; y += 15)
+				for (int x = 0; x < 256; x += 15)
+					assertEquals(src.getRGB(256 * (i & 1) + x, 256 * (i >> 1) + y), tile.getRGB(x, y));
+		}
+		assertFalse(new File(out, "3/6").exists()); // empty tiles are skipped
+
+		// the sheet is all of zoom 2 tile 2/1, and the lower left quarter of zoom 1 tile 1/0
+		BufferedImage z2 = ImageIO.read(new File(out, "2/2/1.png"));
+		assertEquals(255, z2.getRGB(0, 0) >>> 24);
+		assertEquals(255, z2.getRGB(255, 255) >>> 24);
+		BufferedImage z1 = ImageIO.read(new File(out, "1/1/0.png"));
+		assertEquals(0, z1.getRGB(0, 0) >>> 24);
+		assertEquals(255, z1.getRGB(0, 128) >>> 24);
+		assertEquals(0, z1.getRGB(128, 128) >>> 24);
+
+		// running again finds everything done
+		log.reset();
+		new TilePyramid(out, 1, -1, false, Warper.Kernel.NEAREST, 2).run(sheets, new PrintStream(log, true));
+		assertTrue(log.toString(), log.toString().startsWith("Rendered 0 tiles at zoom 3 from 0 sheets (1 already done) and built 0 tiles"));
+
+		// a missing overview is rebuilt
+		assertTrue(new File(out, "2/2/1.png").delete());
+		log.reset();
+		new TilePyramid(out, 1, -1, false, Warper.Kernel.NEAREST, 2).run(sheets, new PrintStream(log, true));
+		assertTrue(log.toString(), log.toString().contains("built 2 tiles"));
+	}
+
+	/**
+	 * @return a sheet of one colour lined up with the zoom 3 tiles x to x + 1, y 2-3
+	 */
+	static File solidSheet(File dir, String name, int rgb, int x) throws Exception {
+		BufferedImage img = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+		for (int j = 0; j < 512; j++)
+			for (int i = 0; i < 512; i++)
+				img.setRGB(i, j, rgb);
+		File png = new File(dir, name + ".png");
+		ImageIO.write(img, "png", png);
+		moveSheet(png, x);
+		return png;
+	}
+
+	static void moveSheet(File png, int x) throws Exception {
+		double tile = TilePyramid.tileSize(3);
+		double pixel = tile / 256;
+		WorldFile wld = new WorldFile(pixel, 0, 0, -pixel, -WebMercator.HALF_WORLD + x * tile + pixel / 2,
+				WebMercator.HALF_WORLD - 2 * tile - pixel / 2);
+		File wldFile = Batch.wldFileFor(png);
+		long before = wldFile.lastModified();
+		FileWriter w = new FileWriter(wldFile);
+		wld.write(w);
+		w.close();
+		// make sure the change shows even where modified times are only to the second
+		wldFile.setLastModified(Math.max(System.currentTimeMillis(), before + 2000));
+	}
+
+	/**
+	 * A sheet solved again somewhere else shouldn't leave its old pixels behind, in its old tiles or in those it
+	 * shared with a sheet after it, and the overviews above should be built again
+	 */
+	@Test
+	public void test_resolved() throws Exception {
+		File dir = Files.createTempDirectory("tiles").toFile();
+		File out = new File(dir, "out");
+		File red = solidSheet(dir, "red", 0xff0000, 4);
+		File blue = solidSheet(dir, "blue", 0x0000ff, 5);
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		new TilePyramid(out, 2, 3, false, Warper.Kernel.NEAREST, 2).run(Arrays.asList(
+				new TilePyramid.Sheet(red, Projections.WEB_MERCATOR), new TilePyramid.Sheet(blue, Projections.WEB_MERCATOR)),
+				new PrintStream(log, true));
+		// the first sheet wins where they overlap
+		assertEquals(0xffff0000, ImageIO.read(new File(out, "3/5/2.png")).getRGB(10, 10));
+		assertEquals(0xff0000ff, ImageIO.read(new File(out, "3/6/2.png")).getRGB(10, 10));
+
+		moveSheet(red, 0);
+		log.reset();
+		new TilePyramid(out, 2, 3, false, Warper.Kernel.NEAREST, 2).run(Arrays.asList(
+				new TilePyramid.Sheet(red, Projections.WEB_MERCATOR), new TilePyramid.Sheet(blue, Projections.WEB_MERCATOR)),
+				new PrintStream(log, true));
+		assertTrue(log.toString(), log.toString().contains(" tiles at zoom 3 from 1 sheets (1 already done)"));
+		assertEquals(0xffff0000, ImageIO.read(new File(out, "3/0/2.png")).getRGB(10, 10));
+		assertFalse(new File(out, "3/4/2.png").exists());
+		assertFalse(new File(out, "3/4/3.png").exists());
+		BufferedImage shared = ImageIO.read(new File(out, "3/5/2.png"));
+		for (int y = 0; y < 256; y += 15)
+			for (int x = 0; x < 256; x += 15)
+				assertEquals(0xff0000ff, shared.getRGB(x, y));
+		// zoom 2 tile 2/1 is now only blue, down its right half
+		BufferedImage z2 = ImageIO.read(new File(out, "2/2/1.png"));
+		assertEquals(0, z2.getRGB(10, 10) >>> 24);
+		assertEquals(0xff0000ff, z2.getRGB(200, 10));
+
+		// and once done, nothing is drawn again
+		log.reset();
+		new TilePyramid(out, 2, 3, false, Warper.Kernel.NEAREST, 2).run(Arrays.asList(
+				new TilePyramid.Sheet(red, Projections.WEB_MERCATOR), new TilePyramid.Sheet(blue, Projections.WEB_MERCATOR)),
+				new PrintStream(log, true));
+		assertTrue(log.toString(), log.toString().startsWith("Rendered 0 tiles at zoom 3 from 0 sheets (2 already done) and built 0 tiles"));
+	}
+
+	/**
+	 * A scan taller than a band of tiles, in a projection which bends, should render the same from the pieces
+	 * of it decoded a band at a time as from the whole scan
+	 */
+	@Test
+	public void test_bands() throws Exception {
+		File dir = Files.createTempDirectory("tiles").toFile();
+		int w = 700, h = 1900;
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				img.setRGB(x, y, (x * 7 + y * 13) * 1031 & 0xffffff);
+		File png = new File(dir, "sheet.png");
+		ImageIO.write(img, "png", png);
+		WorldFile wld = new WorldFile(1.9, -0.1, -0.1, -1.9, 335100, 6254870);
+		FileWriter writer = new FileWriter(new File(dir, "sheet.wld"));
+		wld.write(writer);
+		writer.close();
+
+		Projection mga = Projections.forEpsg(28356);
+		TilePyramid.Sheet sheet = new TilePyramid.Sheet(png, mga);
+		int z = sheet.zoom();
+		int[] r = TilePyramid.tileRange(sheet.bounds, z);
+		assertTrue(r[3] - r[1] + 1 > Warper.BAND);
+		File out = new File(dir, "out");
+		TilePyramid pyramid = new TilePyramid(out, z, z, false, Warper.Kernel.NEAREST, 2);
+		pyramid.run(Collections.singletonList(sheet), new PrintStream(new ByteArrayOutputStream()));
+
+		int[] argb = img.getRGB(0, 0, w, h, null, 0, w);
+		PointTransformer toPixel = new PointTransformer(wld, true);
+		double size = TilePyramid.tileSize(z), pixel = size / 256;
+		int checked = 0;
+		for (int y = r[1]; y <= r[3]; y++) {
+			for (int x = r[0]; x <= r[2]; x++) {
+				File file = pyramid.tileFile(z, x, y);
+				if (!file.isFile())
+					continue;
+				BufferedImage tile = ImageIO.read(file);
+				for (int row = 3; row < 256; row += 41) {
+					for (int c = 5; c < 256; c += 41) {
+						double[] xy = {-WebMercator.HALF_WORLD + x * size + (c + 0.5) * pixel,
+							WebMercator.HALF_WORLD - y * size - (row + 0.5) * pixel};
+						Projections.WEB_MERCATOR.inverse(xy, 0, 1);
+						mga.forward(xy, 0, 1);
+						toPixel.transform(xy, 0, 1);
+						if (xy[0] < -0.5 || xy[0] >= w - 0.5 || xy[1] < -0.5 || xy[1] >= h - 0.5) {
+							assertEquals(0, tile.getRGB(c, row) >>> 24);
+						}else{
+							assertEquals(Warper.sample(argb, w, h, xy[0], xy[1], Warper.Kernel.NEAREST), tile.getRGB(c, row));
+							checked++;
+						}
+					}
+				}
+			}
+		}
+		assertTrue(checked > 100);
+	}
+
+	@Test
+	public void test_tmsNames() throws Exception {
+		File dir = Files.createTempDirectory("tiles").toFile();
+		List<TilePyramid.Sheet> sheets = Collections.singletonList(new TilePyramid.Sheet(alignedSheet(dir), Projections.WEB_MERCATOR));
+		File out = new File(dir, "out");
+		new TilePyramid(out, 3, 3, true, Warper.Kernel.BILINEAR, 1).run(sheets, new PrintStream(new ByteArrayOutputStream()));
+		// rows counted up from the south, 7 - 2 and 7 - 3
+		assertTrue(new File(out, "3/4/5.png").isFile());
+		assertTrue(new File(out, "3/5/4.png").isFile());
+		assertFalse(new File(out, "3/4/2.png").exists());
+	}
+
+	@Test
+	public void test_webMercator() {
+		double[] xy = {151.2093, -33.8688, -180, 85.0511287798066, 0, 0};
+		Projections.WEB_MERCATOR.forward(xy, 0, 3);
+		assertEquals(16832542.279, xy[0], 1e-3);
+		assertEquals(-4011198.647, xy[1], 1e-3);
+		assertEquals(-WebMercator.HALF_WORLD, xy[2], 1e-6);
+		assertEquals(WebMercator.HALF_WORLD, xy[3], 1e-3);
+		Projections.WEB_MERCATOR.inverse(xy, 0, 3);
+		assertEquals(151.2093, xy[0], 1e-9);
+		assertEquals(-33.8688, xy[1], 1e-9);
+	}
+}
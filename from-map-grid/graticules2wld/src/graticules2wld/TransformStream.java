@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Streams a file of points through a PointTransformer, for pushing the vertices of things traced on a scan into
+ * projected coordinates (or back again).
+ *
+ * Two formats are read,
+ *  - csv, where two of the columns are the x and y of a point and any other columns are passed through as they
+ *    are. A first line which doesn't have a number in the x column is taken as a header and passed through too.
+ *  - binary, a stream of little endian doubles, x0 y0 x1 y1 ...
+ *
+ * The input is read in chunks on the calling thread, each chunk is parsed and transformed on a worker thread,
+ * and the chunks are written back out in their original order. At most two chunks per thread are held at once,
+ * so memory use is bounded no matter how large the input is.
+ */
+public final class TransformStream {
+
+	static final int BINARY_CHUNK_POINTS = 1 << 16; // 1MB of doubles
+	static final int CSV_CHUNK_LINES = 1 << 13;
+
+	private TransformStream() {
+	}
+
+	/**
+	 * Runs the chunk tasks on the pool, handing the results to the sink in order, with at most maxInFlight
+	 * chunks submitted but not yet written.
+	 */
+	private static abstract class Pipeline<T> {
+		private final ExecutorService pool;
+		private final int maxInFlight;
+		private final ArrayDeque<Future<T>> inFlight = new ArrayDeque<Future<T>>();
+
+		Pipeline(ExecutorService pool, int maxInFlight) {
+			this.pool = pool;
+			this.maxInFlight = maxInFlight;
+		}
+
+		abstract void write(T chunk) throws Exception;
+
+		void submit(Callable<T> task) throws Exception {
+			if (inFlight.size() >= maxInFlight)
+				writeOldest();
+			inFlight.add(pool.submit(task));
+		}
+
+		void finish() throws Exception {
+			while (!inFlight.isEmpty())
+				writeOldest();
+		}
+
+		void cancel() {
+			for (Future<T> f : inFlight)
+				f.cancel(true);
+		}
+
+		private void writeOldest() throws Exception {
+			try {
+				write(inFlight.remove().get());
+			}catch( ExecutionException exp ) {
+				if (exp.getCause() instanceof Exception)
+					throw (Exception) exp.getCause();
+				throw exp;
+			}
+		}
+	}
+
+	/**
+	 * Transforms a binary stream of little endian x,y doubles.
+	 * @return the number of points transformed
+	 * @throws IOException if the input isn't a whole number of x,y pairs
+	 */
+	public static long binary(ReadableByteChannel in, final WritableByteChannel out, final PointTransformer transformer,
+			int threads) throws Exception {
+		threads = Math.max(1, threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Pipeline<ByteBuffer> pipeline = new Pipeline<ByteBuffer>(pool, 2 * threads) {
+			@Override
+			void write(ByteBuffer chunk) throws IOException {
+				while (chunk.hasRemaining())
+					out.write(chunk);
+			}
+		};
+
+		long points = 0;
+		try {
+			while (true) {
+				final ByteBuffer chunk = ByteBuffer.allocateDirect(BINARY_CHUNK_POINTS * 16).order(ByteOrder.LITTLE_ENDIAN);
+				while (chunk.hasRemaining() && in.read(chunk) >= 0)
+					;
+				chunk.flip();
+				if (chunk.remaining() % 16 != 0)
+					throw new IOException("input isn't a whole number of x,y pairs of doubles, "
+							+ (chunk.remaining() % 16) + " bytes left over");
+				if (!chunk.hasRemaining())
+					break;
+
+				final int n = chunk.remaining() / 16;
+				points += n;
+				pipeline.submit(new Callable<ByteBuffer>() {
+					public ByteBuffer call() {
+						DoubleBuffer doubles = chunk.asDoubleBuffer();
+						double[] xy = new double[2 * n];
+						doubles.get(xy);
+						transformer.transform(xy, 0, n);
+						doubles.clear();
+						doubles.put(xy);
+						return chunk;
+					}
+				});
+
+				if (n < BINARY_CHUNK_POINTS)
+					break;
+			}
+			pipeline.finish();
+		}catch( Exception exp ) {
+			pipeline.cancel();
+			throw exp;
+		}finally{
+			pool.shutdown();
+		}
+		return points;
+	}
+
+	/**
+	 * Transforms the points of a csv.
+	 * @param xColumn column of the x coordinate, counting from 0
+	 * @param yColumn column of the y coordinate, counting from 0
+	 * @return the number of rows transformed, not counting a header
+	 * @throws IOException if a row has too few columns or a coordinate which isn't a number
+	 * @throws IllegalArgumentException if a column is negative or x and y are the same column
+	 */
+	public static long csv(BufferedReader in, final Writer out, final PointTransformer transformer,
+			final int xColumn, final int yColumn, int threads) throws Exception {
+		if (xColumn < 0 || yColumn < 0 || xColumn == yColumn)
+			throw new IllegalArgumentException("x and y need two different columns, counting from 1, found "
+					+ (xColumn + 1) + "," + (yColumn + 1));
+		threads = Math.max(1, threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Pipeline<CharSequence> pipeline = new Pipeline<CharSequence>(pool, 2 * threads) {
+			@Override
+			void write(CharSequence chunk) throws IOException {
+				out.append(chunk);
+			}
+		};
+
+		long points = 0;
+		long lineNumber = 0;
+		try {
+			String line = in.readLine();
+			if (line != null && isHeader(line, xColumn)) {
+				out.write(line);
+				out.write('\n');
+				line = in.readLine();
+				lineNumber++;
+			}
+
+			while (line != null) {
+				final List<String> lines = new ArrayList<String>(CSV_CHUNK_LINES);
+				for (; line != null && lines.size() < CSV_CHUNK_LINES; line = in.readLine())
+					lines.add(line);
+
+				final long firstLine = lineNumber + 1;
+				lineNumber += lines.size();
+				points += lines.size();
+				pipeline.submit(new Callable<CharSequence>() {
+					public CharSequence call() throws IOException {
+						return transformLines(lines, firstLine, transformer, xColumn, yColumn);
+					}
+				});
+			}
+			pipeline.finish();
+		}catch( Exception exp ) {
+			pipeline.cancel();
+			throw exp;
+		}finally{
+			pool.shutdown();
+		}
+		return points;
+	}
+
+	/**
+	 * Parses, transforms and formats a chunk of csv lines. Blank lines are kept as they are.
+	 */
+	static CharSequence transformLines(List<String> lines, long firstLine, PointTransformer transformer,
+			int xColumn, int yColumn) throws IOException {
+		int n = lines.size();
+		double[] xy = new double[2 * n];
+		for (int i = 0; i < n; i++) {
+			String line = lines.get(i);
+			if (line.trim().isEmpty())
+				continue;
+			try {
+				xy[2 * i] = Double.parseDouble(column(line, xColumn));
+				xy[2 * i + 1] = Double.parseDouble(column(line, yColumn));
+			}catch( NumberFormatException exp ) {
+				throw new IOException("line " + (firstLine + i) + ": expected numbers in columns "
+						+ (xColumn + 1) + " and " + (yColumn + 1) + ", found " + line);
+			}catch( IndexOutOfBoundsException exp ) {
+				throw new IOException("line " + (firstLine + i) + ": expected at least "
+						+ (Math.max(xColumn, yColumn) + 1) + " columns, found " + line);
+			}
+		}
+
+		transformer.transform(xy, 0, n);
+
+		StringBuilder sb = new StringBuilder(n * 48);
+		for (int i = 0; i < n; i++) {
+			String line = lines.get(i);
+			if (line.trim().isEmpty()) {
+				sb.append(line).append('\n');
+				continue;
+			}
+			int column = 0;
+			int start = 0;
+			while (true) {
+				int end = line.indexOf(',', start);
+				if (end < 0)
+					end = line.length();
+				if (column == xColumn)
+					sb.append(xy[2 * i]);
+				else if (column == yColumn)
+					sb.append(xy[2 * i + 1]);
+				else
+					sb.append(line, start, end);
+				if (end == line.length())
+					break;
+				sb.append(',');
+				start = end + 1;
+				column++;
+			}
+			sb.append('\n');
+		}
+		return sb;
+	}
+
+	/**
+	 * @return the given column of a csv line, trimmed
+	 * @throws IndexOutOfBoundsException if the line has too few columns
+	 */
+	static String column(String line, int column) {
+		int start = 0;
+		for (int i = 0; i < column; i++) {
+			start = line.indexOf(',', start) + 1;
+			if (start == 0)
+				throw new IndexOutOfBoundsException();
+		}
+		int end = line.indexOf(',', start);
+		return line.substring(start, end < 0 ? line.length() : end).trim();
+	}
+
+	private static boolean isHeader(String line, int xColumn) {
+		try {
+			Double.parseDouble(column(line, xColumn));
+			return false;
+		}catch( NumberFormatException exp ) {
+			return true;
+		}catch( IndexOutOfBoundsException exp ) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransformStreamTest {
+
+	static final WorldFile WLD = new WorldFile(3.68, -0.61, -0.62, -3.75, -31110.6, 12112.4);
+
+	/**
+	 * The kernel should agree with AffineTransform, and the inverse should undo it
+	 */
+	@Test
+	public void test_pointTransformer() {
+		Random random = new Random(3);
+		int n = 1001;
+		double[] xy = new double[2 * n];
+		for (int i = 0; i < xy.length; i++)
+			xy[i] = random.nextDouble() * 5000;
+		double[] original = xy.clone();
+
+		new PointTransformer(WLD, false).transform(xy, 0, n);
+		AffineTransform at = WLD.getTransform();
+		for (int i = 0; i < n; i++) {
+			Point2D p = at.transform(new Point2D.Double(original[2 * i], original[2 * i + 1]), null);
+			assertEquals(p.getX(), xy[2 * i], 1e-9);
+			assertEquals(p.getY(), xy[2 * i + 1], 1e-9);
+		}
+
+		new PointTransformer(WLD, true).transform(xy, 0, n);
+		for (int i = 0; i < xy.length; i++)
+			assertEquals(original[i], xy[i], 1e-8);
+	}
+
+	@Test
+	public void test_csv() throws Exception {
+		String csv = "id,px,py,name\n1,0,0,a\n\n2,10,20,b\n";
+		StringWriter out = new StringWriter();
+		long rows = TransformStream.csv(new BufferedReader(new StringReader(csv)), out,
+				new PointTransformer(new WorldFile(2, 0, 0, -2, 100, 200), false), 1, 2, 2);
+
+		assertEquals(3, rows);
+		assertEquals("id,px,py,name\n1,100.0,200.0,a\n\n2,120.0,160.0,b\n", out.toString());
+
+		// a thread count below one, eg. from a one cpu machine's halved count, still uses one thread
+		out = new StringWriter();
+		TransformStream.csv(new BufferedReader(new StringReader(csv)), out,
+				new PointTransformer(new WorldFile(2, 0, 0, -2, 100, 200), false), 1, 2, 0);
+		assertEquals("id,px,py,name\n1,100.0,200.0,a\n\n2,120.0,160.0,b\n", out.toString());
+	}
+
+	@Test
+	public void test_csvManyChunks() throws Exception {
+		int n = 3 * TransformStream.CSV_CHUNK_LINES + 7;
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			csv.append(i).append(',').append(-i).append('\n');
+
+		StringWriter out = new StringWriter();
+		TransformStream.csv(new BufferedReader(new StringReader(csv.toString())), out,
+				new PointTransformer(new WorldFile(1, 0, 0, 1, 0, 1), false), 0, 1, 3);
+
+		String[] lines = out.toString().split("\n");
+		assertEquals(n, lines.length);
+		for (int i = 0; i < n; i++)
+			assertEquals((double) i + "," + (double) (1 - i), lines[i]);
+	}
+
+	@Test(expected = java.io.IOException.class)
+	public void test_csvBadRow() throws Exception {
+		TransformStream.csv(new BufferedReader(new StringReader("x,y\n1,2\n3,z\n")), new StringWriter(),
+				new PointTransformer(WLD, false), 0, 1, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_csvSameColumns() throws Exception {
+		TransformStream.csv(new BufferedReader(new StringReader("x,y\n1,2\n")), new StringWriter(),
+				new PointTransformer(WLD, false), 1, 1, 1);
+	}
+
+	@Test
+	public void test_binary() throws Exception {
+		int n = TransformStream.BINARY_CHUNK_POINTS + 5;
+		ByteBuffer in = ByteBuffer.allocate(16 * n).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < n; i++)
+			in.putDouble(i).putDouble(2 * i);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long points = TransformStream.binary(Channels.newChannel(new ByteArrayInputStream(in.array())),
+				Channels.newChannel(out), new PointTransformer(new WorldFile(2, 0, 0, -1, 5, 0), false), 2);
+
+		assertEquals(n, points);
+		ByteBuffer result = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(16 * n, result.remaining());
+		for (int i = 0; i < n; i++) {
+			assertEquals(2 * i + 5, result.getDouble(), 0);
+			assertEquals(-2 * i, result.getDouble(), 0);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+/**
+ * Transverse mercator on an ellipsoid, eg. UTM and MGA, using Kruger's series in the third flattening to sixth
+ * order as given by Karney (2011), "Transverse Mercator with an accuracy of a few nanometers". Within a UTM zone
+ * it is good to well under a millimetre.
+ *
+ * The series coefficients depend only on the ellipsoid and are worked out once when the projection is made.
+ * Each point then costs one sin, cos and exp each way, as the series are summed by Clenshaw's recurrence over
+ * complex numbers.
+ */
+public final class TransverseMercator implements Projection {
+
+	public static final double WGS84_A = 6378137;
+	public static final double WGS84_F = 1 / 298.257223563;
+	public static final double GRS80_A = 6378137;
+	public static final double GRS80_F = 1 / 298.257222101;
+
+	private final int epsg;
+	private final double lon0; // central meridian in radians
+	private final double k0A; // scale factor times the rectifying radius
+	private final double falseEasting;
+	private final double falseNorthing;
+	private final double e; // eccentricity
+	private final double e2m; // 1 - e^2
+	private final double[] alpha = new double[7]; // forward series, from 1
+	private final double[] beta = new double[7]; // inverse series, from 1
+
+	/**
+	 * @param a the semi-major axis
+	 * @param f the flattening
+	 * @param lon0 the central meridian in degrees
+	 * @param k0 the scale factor on the central meridian
+	 */
+	public TransverseMercator(int epsg, double a, double f, double lon0, double k0, double falseEasting,
+			double falseNorthing) {
+		this.epsg = epsg;
+		this.lon0 = Math.toRadians(lon0);
+		this.falseEasting = falseEasting;
+		this.falseNorthing = falseNorthing;
+
+		double e2 = f * (2 - f);
+		e = Math.sqrt(e2);
+		e2m = 1 - e2;
+
+		double n = f / (2 - f);
+		double n2 = n * n, n3 = n2 * n, n4 = n3 * n, n5 = n4 * n, n6 = n5 * n;
+		k0A = k0 * a / (1 + n) * (1 + n2 / 4 + n4 / 64 + n6 / 256);
+
+		alpha[1] = n / 2 - 2 * n2 / 3 + 5 * n3 / 16 + 41 * n4 / 180 - 127 * n5 / 288 + 7891 * n6 / 37800;
+		alpha[2] = 13 * n2 / 48 - 3 * n3 / 5 + 557 * n4 / 1440 + 281 * n5 / 630 - 1983433 * n6 / 1935360;
+		alpha[3] = 61 * n3 / 240 - 103 * n4 / 140 + 15061 * n5 / 26880 + 167603 * n6 / 181440;
+		alpha[4] = 49561 * n4 / 161280 - 179 * n5 / 168 + 6601661 * n6 / 7257600;
+		alpha[5] = 34729 * n5 / 80640 - 3418889 * n6 / 1995840;
+		alpha[6] = 212378941 * n6 / 319334400;
+
+		beta[1] = n / 2 - 2 * n2 / 3 + 37 * n3 / 96 - n4 / 360 - 81 * n5 / 512 + 96199 * n6 / 604800;
+		beta[2] = n2 / 48 + n3 / 15 - 437 * n4 / 1440 + 46 * n5 / 105 - 1118711 * n6 / 3870720;
+		beta[3] = 17 * n3 / 480 - 37 * n4 / 840 - 209 * n5 / 4480 + 5569 * n6 / 90720;
+		beta[4] = 4397 * n4 / 161280 - 11 * n5 / 504 - 830251 * n6 / 7257600;
+		beta[5] = 4583 * n5 / 161280 - 108847 * n6 / 3991680;
+		beta[6] = 20648693 * n6 / 638668800;
+	}
+
+	/**
+	 * @param zone the UTM zone, 1 to 60
+	 * @param south whether to use the southern hemisphere's false northing
+	 */
+	public static TransverseMercator utm(int epsg, double a, double f, int zone, boolean south) {
+		if (zone < 1 || zone > 60)
+			throw new IllegalArgumentException("No UTM zone " + zone);
+		return new TransverseMercator(epsg, a, f, 6 * zone - 183, 0.9996, 500000, south ? 10000000 : 0);
+	}
+
+	@Override
+	public int getEpsg() {
+		return epsg;
+	}
+
+	@Override
+	public void forward(double[] xy, int offset, int count) {
+		double[] s = new double[2];
+		int end = 2 * (offset + count);
+		for (int i = 2 * offset; i < end; i += 2) {
+			double lam = Math.toRadians(xy[i]) - lon0;
+			double phi = Math.toRadians(xy[i + 1]);
+
+			// the tangent of the conformal latitude
+			double sinPhi = Math.sin(phi);
+			double tau = sinPhi / Math.cos(phi);
+			double sigma = sinh(e * atanh(e * sinPhi));
+			double tauP = tau * Math.sqrt(1 + sigma * sigma) - sigma * Math.sqrt(1 + tau * tau);
+
+			double cosLam = Math.cos(lam);
+			double xiP = Math.atan2(tauP, cosLam);
+			double etaP = asinh(Math.sin(lam) / Math.sqrt(tauP * tauP + cosLam * cosLam));
+
+			// xi + i eta = xi' + i eta' + sum alpha_j sin(2j (xi' + i eta'))
+			clenshaw(alpha, xiP, etaP, s);
+			xy[i] = falseEasting + k0A * (etaP + s[1]);
+			xy[i + 1] = falseNorthing + k0A * (xiP + s[0]);
+		}
+	}
+
+	@Override
+	public void inverse(double[] xy, int offset, int count) {
+		double[] s = new double[2];
+		int end = 2 * (offset + count);
+		for (int i = 2 * offset; i < end; i += 2) {
+			double xi = (xy[i + 1] - falseNorthing) / k0A;
+			double eta = (xy[i] - falseEasting) / k0A;
+
+			clenshaw(beta, xi, eta, s);
+			double xiP = xi - s[0];
+			double etaP = eta - s[1];
+
+			double sinhEtaP = sinh(etaP);
+			double cosXiP = Math.cos(xiP);
+			double tauP = Math.sin(xiP) / Math.sqrt(sinhEtaP * sinhEtaP + cosXiP * cosXiP);
+			double lam = Math.atan2(sinhEtaP, cosXiP);
+
+			// Newton's method for the geodetic latitude from the conformal one, a couple of steps
+			double tau = tauP / e2m;
+			for (int j = 0; j < 5; j++) {
+				double tau1 = Math.sqrt(1 + tau * tau);
+				double sigma = sinh(e * atanh(e * tau / tau1));
+				double tauPi = tau * Math.sqrt(1 + sigma * sigma) - sigma * tau1;
+				double dTau = (tauP - tauPi) / Math.sqrt(1 + tauPi * tauPi) * (1 + e2m * tau * tau) / (e2m * tau1);
+				tau += dTau;
+				if (Math.abs(dTau) < 1e-14 * Math.max(1, Math.abs(tau)))
+					break;
+			}
+
+			xy[i] = Math.toDegrees(lam + lon0);
+			xy[i + 1] = Math.toDegrees(Math.atan(tau));
+		}
+	}
+
+	/**
+	 * Sets out to the real and imaginary parts of sum c_j sin(2j (xi + i eta)) for j from 1 to 6.
+	 */
+	private static void clenshaw(double[] c, double xi, double eta, double[] out) {
+		double sin2Xi = Math.sin(2 * xi), cos2Xi = Math.cos(2 * xi);
+		double exp2Eta = Math.exp(2 * eta), expM2Eta = 1 / exp2Eta;
+		double sinh2Eta = (exp2Eta - expM2Eta) / 2, cosh2Eta = (exp2Eta + expM2Eta) / 2;
+
+		// a = 2 cos(2 zeta), and y_k = c_k + a y_k+1 - y_k+2 in complex numbers
+		double ar = 2 * cos2Xi * cosh2Eta, ai = -2 * sin2Xi * sinh2Eta;
+		double y1r = 0, y1i = 0, y2r = 0, y2i = 0;
+		for (int k = 6; k >= 1; k--) {
+			double yr = c[k] + ar * y1r - ai * y1i - y2r;
+			double yi = ar * y1i + ai * y1r - y2i;
+			y2r = y1r;
+			y2i = y1i;
+			y1r = yr;
+			y1i = yi;
+		}
+		// the sum is y_1 sin(2 zeta)
+		double sr = sin2Xi * cosh2Eta, si = cos2Xi * sinh2Eta;
+		out[0] = y1r * sr - y1i * si;
+		out[1] = y1r * si + y1i * sr;
+	}
+
+	// Math.exp is an intrinsic where Math.sinh isn't
+	private static double sinh(double x) {
+		double ex = Math.exp(x);
+		return (ex - 1 / ex) / 2;
+	}
+
+	private static double atanh(double x) {
+		return 0.5 * Math.log((1 + x) / (1 - x));
+	}
+
+	private static double asinh(double x) {
+		return Math.log(x + Math.sqrt(x * x + 1));
+	}
+}
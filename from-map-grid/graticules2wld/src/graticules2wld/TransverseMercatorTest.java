@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransverseMercatorTest {
+
+	/**
+	 * Flinders Peak, the worked example in the GDA94 technical manual
+	 */
+	@Test
+	public void test_flindersPeak() {
+		double[] xy = {144 + 25 / 60.0 + 29.5244 / 3600, -(37 + 57 / 60.0 + 3.7203 / 3600)};
+		Projection mga55 = Projections.forEpsg(28355);
+		mga55.forward(xy, 0, 1);
+		assertEquals(273741.297, xy[0], 0.001);
+		assertEquals(5796489.777, xy[1], 0.001);
+
+		mga55.inverse(xy, 0, 1);
+		assertEquals(144 + 25 / 60.0 + 29.5244 / 3600, xy[0], 1e-10);
+		assertEquals(-(37 + 57 / 60.0 + 3.7203 / 3600), xy[1], 1e-10);
+	}
+
+	/**
+	 * Points across and beyond a zone should come back where they started
+	 */
+	@Test
+	public void test_roundTrip() {
+		Random random = new Random(5);
+		int n = 10000;
+		double[] xy = new double[2 * n];
+		for (int i = 0; i < n; i++) {
+			xy[2 * i] = 153 + (random.nextDouble() - 0.5) * 12; // zone 56 is 150 to 156
+			xy[2 * i + 1] = (random.nextDouble() - 0.5) * 160;
+		}
+		double[] lonLat = xy.clone();
+		Projection utm = Projections.forCode("EPSG:32756");
+		assertSame(utm, Projections.forEpsg(32756));
+		utm.forward(xy, 0, n);
+		utm.inverse(xy, 0, n);
+		for (int i = 0; i < xy.length; i++)
+			assertEquals(lonLat[i], xy[i], 1e-9);
+	}
+
+	@Test
+	public void test_centralMeridian() {
+		double[] xy = {153, 0, 153, -30};
+		Projections.forEpsg(32756).forward(xy, 0, 2);
+		assertEquals(500000, xy[0], 1e-6);
+		assertEquals(10000000, xy[1], 1e-6);
+		assertEquals(500000, xy[2], 1e-6);
+		// 0.9996 of the meridian arc to 30 degrees on WGS84
+		assertEquals(10000000 - 0.9996 * 3320113.398, xy[3], 0.01);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_unknown() {
+		Projections.forEpsg(27700);
+	}
+}
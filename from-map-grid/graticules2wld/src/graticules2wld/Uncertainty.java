@@ -0,0 +1,468 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Estimates how far a sheet's world file can be trusted, by solving it again from resampled graticules.
+ *
+ * Two resamplings are made. The jackknife leaves out each graticule in turn, showing how much any one graticule
+ * moves the result. The bootstrap draws the LAT and LON graticules again with replacement, many times. Each gives
+ * a standard error for the six world file terms and the expected positional error, in meters, at the corners of
+ * the area the graticules cover. The image size isn't known to the solve, so those corners stand in for the
+ * image's.
+ *
+ * Resampling doesn't re-solve from scratch. The angle, distance from the origin and spacings of each graticule
+ * are found once, and every Solver step is a mean or a least squares fit over them, so a resample only needs
+ * weighted sums. Leaving one graticule out subtracts its terms from the full sums. The bootstrap's resamples are
+ * spread over fork join tasks, in the pool of the calling thread if it is a fork join worker (as in batch mode)
+ * or else the common pool, each seeded from its own number so the result doesn't depend on how the work was
+ * split up.
+ */
+public final class Uncertainty {
+
+	public static final int DEFAULT_RESAMPLES = 1000;
+
+	public static final String TABLE_HEADER = "sheet,method,samples,A,D,B,E,C,F,upper_left,upper_right,lower_right,lower_left";
+
+	// resamples made by each leaf task
+	static final int LEAF = 32;
+
+	// per sample values, the six terms then x,y of the four corners
+	private static final int VALUES = 14;
+
+	/**
+	 * The standard errors from one way of resampling.
+	 */
+	public static final class Estimate {
+		public final String method;
+		public final int samples; // the number of resamples which could be solved
+		public final double[] terms; // standard errors of A, D, B, E, C, F
+		public final double[] corners; // positional errors in meters at the upper left, upper right, lower right and lower left
+
+		Estimate(String method, int samples, double[] terms, double[] corners) {
+			this.method = method;
+			this.samples = samples;
+			this.terms = terms;
+			this.corners = corners;
+		}
+
+		/**
+		 * @return the largest of the corner errors
+		 */
+		public double maxCornerError() {
+			double max = 0;
+			for (double c : corners)
+				max = Math.max(max, c);
+			return max;
+		}
+
+		/**
+		 * Writes the estimate as a row of the TABLE_HEADER table.
+		 */
+		public void write(String sheet, Writer out) throws IOException {
+			StringBuilder row = new StringBuilder(sheet).append(',').append(method).append(',').append(samples);
+			for (double t : terms)
+				row.append(',').append(t);
+			for (double c : corners)
+				row.append(',').append(c);
+			out.write(row.append('\n').toString());
+		}
+	}
+
+	public final Estimate jackknife;
+	public final Estimate bootstrap;
+
+	private Uncertainty(Estimate jackknife, Estimate bootstrap) {
+		this.jackknife = jackknife;
+		this.bootstrap = bootstrap;
+	}
+
+	/**
+	 * The values of one family of graticules that Solver takes its means and fits over.
+	 */
+	static final class Family {
+		final int n;
+		final double[] angle;
+		final int[] value;
+		final double[] distance; // from the origin, in pixels
+		private final PackedGraticules grats;
+		private final double[][] spacings; // spacings[ref], found when first needed
+
+		// the full sums, centered on the means for the sake of the regression's precision
+		final double d0, v0;
+		final double sumAngle;
+		final double sumD, sumV, sumDD, sumDV;
+
+		Family(PackedGraticules grats) {
+			this.grats = grats;
+			n = grats.size();
+			angle = new double[n];
+			grats.angles(angle);
+			value = new int[n];
+			distance = new double[n];
+			grats.distancesTo(0, 0, distance);
+			spacings = new double[n][];
+
+			double a = 0, d = 0, v = 0;
+			for (int i = 0; i < n; i++) {
+				value[i] = grats.getValue(i);
+				a += angle[i];
+				d += distance[i];
+				v += value[i];
+			}
+			sumAngle = a;
+			d0 = d / n;
+			v0 = v / n;
+			double sd = 0, sv = 0, sdd = 0, sdv = 0;
+			for (int i = 0; i < n; i++) {
+				double dc = distance[i] - d0, vc = value[i] - v0;
+				sd += dc;
+				sv += vc;
+				sdd += dc * dc;
+				sdv += dc * vc;
+			}
+			sumD = sd;
+			sumV = sv;
+			sumDD = sdd;
+			sumDV = sdv;
+		}
+
+		/**
+		 * @return the spacing of each graticule measured from graticule ref, as PackedGraticules.spacings() finds
+		 * them, with ref's own left as 0
+		 */
+		synchronized double[] spacings(int ref) {
+			if (spacings[ref] == null) {
+				double[] packed = new double[n];
+				grats.spacings(ref, packed);
+				double[] s = new double[n];
+				for (int i = 0, j = 0; i < n; i++)
+					s[i] = i == ref ? 0 : packed[j++];
+				spacings[ref] = s;
+			}
+			return spacings[ref];
+		}
+
+		/**
+		 * @return the graticule with the lowest value of those with a weight, the first if there is a tie
+		 */
+		int ref(int[] weights, int skip) {
+			int ref = -1;
+			for (int i = 0; i < n; i++) {
+				if (i != skip && (weights == null || weights[i] > 0) && (ref < 0 || value[i] < value[ref]))
+					ref = i;
+			}
+			return ref;
+		}
+
+		/**
+		 * Fits the family with each graticule weighted by how many times it was drawn.
+		 * @param out filled with the mean angle, the mean spacing and the intercept
+		 * @return false if the resample can't be solved
+		 */
+		boolean fit(int[] weights, double[] out) {
+			int ref = ref(weights, -1);
+			double[] s = spacings(ref);
+			double w = 0, a = 0, spacing = 0, spacingWeight = 0, sd = 0, sv = 0, sdd = 0, sdv = 0;
+			for (int i = 0; i < n; i++) {
+				int wi = weights[i];
+				if (wi == 0)
+					continue;
+				w += wi;
+				a += wi * angle[i];
+				if (i != ref) {
+					spacing += wi * s[i];
+					spacingWeight += wi;
+				}
+				double dc = distance[i] - d0, vc = value[i] - v0;
+				sd += wi * dc;
+				sv += wi * vc;
+				sdd += wi * dc * dc;
+				sdv += wi * dc * vc;
+			}
+			if (spacingWeight == 0)
+				return false;
+			out[0] = a / w;
+			out[1] = spacing / spacingWeight;
+			out[2] = intercept(w, sd, sv, sdd, sdv);
+			return true;
+		}
+
+		/**
+		 * Fits the family without graticule i, by taking its terms out of the full sums.
+		 * @return false if the rest can't be solved
+		 */
+		boolean fitWithout(int i, double[] out) {
+			if (n < 3)
+				return false;
+			int ref = ref(null, -1);
+			double spacing = 0;
+			if (i == ref) {
+				// the spacings are measured from another graticule
+				ref = ref(null, i);
+				double[] s = spacings(ref);
+				for (int j = 0; j < n; j++) {
+					if (j != i)
+						spacing += s[j];
+				}
+			}else{
+				double[] s = spacings(ref);
+				for (int j = 0; j < n; j++)
+					spacing += s[j];
+				spacing -= s[i];
+			}
+			double dc = distance[i] - d0, vc = value[i] - v0;
+			out[0] = (sumAngle - angle[i]) / (n - 1);
+			out[1] = spacing / (n - 2);
+			out[2] = intercept(n - 1, sumD - dc, sumV - vc, sumDD - dc * dc, sumDV - dc * vc);
+			return true;
+		}
+
+		/**
+		 * @return the value at distance 0 of the least squares line through the centered sums
+		 */
+		private double intercept(double w, double sd, double sv, double sdd, double sdv) {
+			double slope = (w * sdv - sd * sv) / (w * sdd - sd * sd);
+			return v0 + (sv - slope * sd) / w - slope * d0;
+		}
+	}
+
+	/**
+	 * Resamples the graticules a sheet was solved from.
+	 * @param solver the solver the sheet was solved with, which gives the origin and tometers
+	 * @param resamples the number of bootstrap resamples
+	 * @param seed for the bootstrap's draws
+	 * @throws IllegalArgumentException if there are less than two LAT or two LON graticules
+	 */
+	public static Uncertainty estimate(Solver solver, PackedGraticules lonGrats, PackedGraticules latGrats,
+			int resamples, long seed) {
+		if (latGrats.size() < 2 || lonGrats.size() < 2)
+			throw new IllegalArgumentException("You need at least two LAT and two LON graticules for creation of a world file, found "
+					+ latGrats.size() + " LAT and " + lonGrats.size() + " LON.");
+
+		Family lat = new Family(latGrats);
+		Family lon = new Family(lonGrats);
+		double[] corners = corners(lonGrats, latGrats);
+
+		// leave one out, the variance of each family's estimates added together
+		double[] latFit = new double[3], lonFit = new double[3];
+		lat.fit(ones(lat.n), latFit);
+		lon.fit(ones(lon.n), lonFit);
+		double[] jackknife = new double[VALUES];
+		double[] values = new double[VALUES * Math.max(lat.n, lon.n)];
+		int solved = 0;
+		for (int f = 0; f < 2; f++) {
+			Family family = f == 0 ? lat : lon;
+			double[] fit = new double[3];
+			int m = 0;
+			for (int i = 0; i < family.n; i++) {
+				if (!family.fitWithout(i, fit))
+					continue;
+				if (f == 0)
+					terms(solver, fit, lonFit, corners, values, VALUES * m);
+				else
+					terms(solver, latFit, fit, corners, values, VALUES * m);
+				if (!isFinite(values, VALUES * m))
+					continue;
+				m++;
+			}
+			if (m < 2)
+				continue;
+			double[] variance = variance(values, m);
+			for (int k = 0; k < VALUES; k++)
+				jackknife[k] += variance[k] * (m - 1) * (m - 1) / m;
+			solved += m;
+		}
+
+		double[] samples = new double[VALUES * resamples];
+		new Resamples(solver, lat, lon, corners, samples, seed, 0, resamples).invoke();
+		int m = 0;
+		for (int r = 0; r < resamples; r++) {
+			if (isFinite(samples, VALUES * r)) {
+				System.arraycopy(samples, VALUES * r, samples, VALUES * m, VALUES);
+				m++;
+			}
+		}
+		double[] bootstrap = m > 1 ? variance(samples, m) : new double[VALUES];
+		if (m <= 1)
+			Arrays.fill(bootstrap, Double.NaN);
+
+		return new Uncertainty(estimate("jackknife", solved, jackknife), estimate("bootstrap", m, bootstrap));
+	}
+
+	private static Estimate estimate(String method, int samples, double[] variance) {
+		double[] terms = new double[6];
+		for (int k = 0; k < 6; k++)
+			terms[k] = Math.sqrt(variance[k]);
+		double[] corners = new double[4];
+		for (int c = 0; c < 4; c++)
+			corners[c] = Math.sqrt(variance[6 + 2 * c] + variance[7 + 2 * c]);
+		return new Estimate(method, samples, terms, corners);
+	}
+
+	private static int[] ones(int n) {
+		int[] w = new int[n];
+		Arrays.fill(w, 1);
+		return w;
+	}
+
+	private static boolean isFinite(double[] values, int offset) {
+		for (int k = 0; k < VALUES; k++) {
+			if (Double.isNaN(values[offset + k]) || Double.isInfinite(values[offset + k]))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the variance of each value over the first m samples
+	 */
+	private static double[] variance(double[] values, int m) {
+		double[] mean = new double[VALUES];
+		for (int r = 0; r < m; r++) {
+			for (int k = 0; k < VALUES; k++)
+				mean[k] += values[VALUES * r + k];
+		}
+		for (int k = 0; k < VALUES; k++)
+			mean[k] /= m;
+		double[] variance = new double[VALUES];
+		for (int r = 0; r < m; r++) {
+			for (int k = 0; k < VALUES; k++) {
+				double d = values[VALUES * r + k] - mean[k];
+				variance[k] += d * d;
+			}
+		}
+		for (int k = 0; k < VALUES; k++)
+			variance[k] /= m - 1;
+		return variance;
+	}
+
+	/**
+	 * @return the corners of the box around every graticule's end points, in pixels, interleaved
+	 */
+	static double[] corners(PackedGraticules lonGrats, PackedGraticules latGrats) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (PackedGraticules g : new PackedGraticules[] {lonGrats, latGrats}) {
+			for (int i = 0; i < g.size(); i++) {
+				minX = Math.min(minX, Math.min(g.x1[i], g.x2[i]));
+				maxX = Math.max(maxX, Math.max(g.x1[i], g.x2[i]));
+				minY = Math.min(minY, Math.min(g.y1[i], g.y2[i]));
+				maxY = Math.max(maxY, Math.max(g.y1[i], g.y2[i]));
+			}
+		}
+		return new double[] {minX, minY, maxX, minY, maxX, maxY, minX, maxY};
+	}
+
+	/**
+	 * Puts the world file terms and corner positions for a pair of family fits into out, the same way
+	 * Solver.solve() builds the world file.
+	 */
+	static void terms(Solver solver, double[] lat, double[] lon, double[] corners, double[] out, int offset) {
+		double u = solver.getUnitsToMeters();
+		double theta = lat[0], y = lat[1], phi = lon[0], x = lon[1];
+		double A = x * u * Math.cos(theta);
+		double D = -1 * x * u * Math.sin(theta);
+		double B = y * u * Math.sin(phi);
+		double E = -1 * y * u * Math.cos(phi);
+		double C = solver.getOriginEasting() + lon[2] * u;
+		double F = solver.getOriginNorthing() + lat[2] * u;
+		out[offset] = A;
+		out[offset + 1] = D;
+		out[offset + 2] = B;
+		out[offset + 3] = E;
+		out[offset + 4] = C;
+		out[offset + 5] = F;
+		for (int c = 0; c < 4; c++) {
+			double px = corners[2 * c], py = corners[2 * c + 1];
+			out[offset + 6 + 2 * c] = A * px + B * py + C;
+			out[offset + 7 + 2 * c] = D * px + E * py + F;
+		}
+	}
+
+	/**
+	 * Makes bootstrap resamples from to to, writing each one's values into samples.
+	 */
+	static final class Resamples extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Solver solver;
+		private final Family lat;
+		private final Family lon;
+		private final double[] corners;
+		private final double[] samples;
+		private final long seed;
+		private final int from;
+		private final int to;
+
+		Resamples(Solver solver, Family lat, Family lon, double[] corners, double[] samples, long seed, int from, int to) {
+			this.solver = solver;
+			this.lat = lat;
+			this.lon = lon;
+			this.corners = corners;
+			this.samples = samples;
+			this.seed = seed;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > LEAF) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Resamples(solver, lat, lon, corners, samples, seed, from, mid),
+						new Resamples(solver, lat, lon, corners, samples, seed, mid, to));
+				return;
+			}
+
+			int[] latWeights = new int[lat.n], lonWeights = new int[lon.n];
+			double[] latFit = new double[3], lonFit = new double[3];
+			for (int r = from; r < to; r++) {
+				SplittableRandom random = new SplittableRandom(RobustSolver.mix(seed + r * 0x9e3779b97f4a7c15L));
+				draw(random, latWeights);
+				draw(random, lonWeights);
+				if (lat.fit(latWeights, latFit) && lon.fit(lonWeights, lonFit)) {
+					terms(solver, latFit, lonFit, corners, samples, VALUES * r);
+				}else{
+					samples[VALUES * r] = Double.NaN;
+				}
+			}
+		}
+
+		/**
+		 * Draws weights.length graticules with replacement, counting how many times each was drawn.
+		 */
+		private static void draw(SplittableRandom random, int[] weights) {
+			Arrays.fill(weights, 0);
+			for (int i = 0; i < weights.length; i++)
+				weights[random.nextInt(weights.length)]++;
+		}
+	}
+}
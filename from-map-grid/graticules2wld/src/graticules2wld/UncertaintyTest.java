@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UncertaintyTest {
+
+	static final double S = 0.5, ANGLE = Math.toRadians(3);
+	static final WorldFile TRUTH = new WorldFile(S * Math.cos(ANGLE), -S * Math.sin(ANGLE), S * Math.sin(ANGLE), -S * Math.cos(ANGLE), -450, 420);
+
+	/**
+	 * A tracing of TRUTH with its end points moved by up to noise pixels
+	 */
+	private static void trace(double noise, PackedGraticules lon, PackedGraticules lat) throws Exception {
+		List<Graticule> grats = SolverTest.trace(TRUTH);
+		RobustSolverTest.pack(grats, lon, lat);
+		Random random = new Random(17);
+		for (PackedGraticules g : new PackedGraticules[] {lon, lat}) {
+			for (int i = 0; i < g.size(); i++) {
+				g.x1[i] += noise * (random.nextDouble() - 0.5);
+				g.y1[i] += noise * (random.nextDouble() - 0.5);
+				g.x2[i] += noise * (random.nextDouble() - 0.5);
+				g.y2[i] += noise * (random.nextDouble() - 0.5);
+			}
+		}
+	}
+
+	private static double[] terms(Solver solver, double[] lat, double[] lon) {
+		double[] out = new double[14];
+		Uncertainty.terms(solver, lat, lon, new double[8], out, 0);
+		return out;
+	}
+
+	private static void assertTerms(WorldFile expected, double[] terms) {
+		assertEquals(expected.A, terms[0], 1e-9);
+		assertEquals(expected.D, terms[1], 1e-9);
+		assertEquals(expected.B, terms[2], 1e-9);
+		assertEquals(expected.E, terms[3], 1e-9);
+		assertEquals(expected.C, terms[4], 1e-6);
+		assertEquals(expected.F, terms[5], 1e-6);
+	}
+
+	/**
+	 * Fitting the full sums, and taking each graticule out of them, should give the same world file as the Solver
+	 * does for the same graticules
+	 */
+	@Test
+	public void test_downdatingMatchesSolver() throws Exception {
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		trace(4, lon, lat);
+		Solver solver = new Solver(1000, 2000, 20.1168);
+
+		Uncertainty.Family latFamily = new Uncertainty.Family(lat);
+		Uncertainty.Family lonFamily = new Uncertainty.Family(lon);
+		double[] latFit = new double[3], lonFit = new double[3];
+		int[] ones = new int[lat.size()];
+		java.util.Arrays.fill(ones, 1);
+		assertTrue(latFamily.fit(ones, latFit));
+		assertTrue(lonFamily.fit(ones, lonFit));
+		assertTerms(solver.solve(lon, lat).worldFile, terms(solver, latFit, lonFit));
+
+		double[] fit = new double[3];
+		for (int i = 0; i < lat.size(); i++) {
+			PackedGraticules without = new PackedGraticules(LATLON.LAT);
+			for (int j = 0; j < lat.size(); j++) {
+				if (j != i)
+					without.add(lat.value[j], lat.x1[j], lat.y1[j], lat.x2[j], lat.y2[j]);
+			}
+			assertTrue(latFamily.fitWithout(i, fit));
+			assertTerms(solver.solve(lon, without).worldFile, terms(solver, fit, lonFit));
+		}
+	}
+
+	/**
+	 * A perfect tracing can't be moved by resampling, a rough one should have errors which grow with the noise
+	 */
+	@Test
+	public void test_estimate() throws Exception {
+		Solver solver = new Solver(1000, 2000, 20.1168);
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		trace(0, lon, lat);
+		Uncertainty perfect = Uncertainty.estimate(solver, lon, lat, 200, 1);
+		assertEquals(14, perfect.jackknife.samples);
+		assertEquals(200, perfect.bootstrap.samples);
+		assertEquals(0, perfect.jackknife.maxCornerError(), 1e-6);
+		assertEquals(0, perfect.bootstrap.maxCornerError(), 1e-6);
+
+		double previous = 0;
+		for (double noise : new double[] {2, 20}) {
+			lon = new PackedGraticules(LATLON.LON);
+			lat = new PackedGraticules(LATLON.LAT);
+			trace(noise, lon, lat);
+			Uncertainty rough = Uncertainty.estimate(solver, lon, lat, 500, 1);
+			double jackknife = rough.jackknife.maxCornerError(), bootstrap = rough.bootstrap.maxCornerError();
+			assertTrue(jackknife > previous && bootstrap > previous);
+			// the two ways of resampling should roughly agree
+			assertTrue(jackknife + " vs " + bootstrap, jackknife < 3 * bootstrap && bootstrap < 3 * jackknife);
+			previous = Math.min(jackknife, bootstrap);
+		}
+	}
+
+	/**
+	 * The bootstrap shouldn't depend on how the resamples were split between tasks
+	 */
+	@Test
+	public void test_repeatable() throws Exception {
+		final Solver solver = new Solver(0, 0, 1);
+		final PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		final PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		trace(5, lon, lat);
+		Uncertainty a = Uncertainty.estimate(solver, lon, lat, 300, 7);
+		Uncertainty b = new ForkJoinPool(3).submit(new Callable<Uncertainty>() {
+			@Override
+			public Uncertainty call() {
+				return Uncertainty.estimate(solver, lon, lat, 300, 7);
+			}
+		}).get();
+		assertArrayEquals(a.bootstrap.terms, b.bootstrap.terms, 0);
+		assertArrayEquals(a.bootstrap.corners, b.bootstrap.corners, 0);
+		assertFalse(a.bootstrap.terms[0] == Uncertainty.estimate(solver, lon, lat, 300, 8).bootstrap.terms[0]);
+	}
+}
@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.DecompositionSolver;
+import org.apache.commons.math.linear.InvalidMatrixException;
+import org.apache.commons.math.linear.LUDecompositionImpl;
+import org.apache.commons.math.linear.QRDecompositionImpl;
+
+/**
+ * A coarse lookup grid from scan pixels to map coordinates, for sheets which aren't truly affine.
+ *
+ * A 2nd or 3rd order polynomial, or a thin plate spline, is fitted to the crossings of the LAT and LON
+ * graticules and evaluated only at the grid's nodes, every step pixels across and down the scan. Between the
+ * nodes the grid is interpolated bilinearly, which costs a handful of multiplies a pixel however many crossings
+ * the model was fitted to. The step is halved until the interpolation is within an error budget of the model,
+ * checked at the middle of each cell and of its edges. The grid is written as a csv of its nodes, row by row,
+ *
+pixelX,pixelY,mapX,mapY
+0,0,335100.5,6254870.2
+64,0,335336.1,6254831.0
+
+ * which Warper reads in place of a world file.
+ */
+public final class WarpGrid {
+
+	public static final String HEADER = "pixelX,pixelY,mapX,mapY";
+
+	static final int MAX_STEP = 512;
+	static final int MIN_STEP = 2;
+
+	// rows of nodes evaluated per task
+	static final int LEAF = 4;
+
+	/**
+	 * A smooth mapping from scan pixels to map coordinates.
+	 */
+	public abstract static class Model {
+		// pixels are centred and scaled to about -1 to 1, and map coordinates centred, for well conditioned fits
+		final double cx, cy, scale;
+		final double mx, my;
+		final int points;
+		double rms;
+
+		Model(double[] pixels, double[] map, int n) {
+			double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+			double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+			double sx = 0, sy = 0;
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, pixels[2 * i]);
+				maxX = Math.max(maxX, pixels[2 * i]);
+				minY = Math.min(minY, pixels[2 * i + 1]);
+				maxY = Math.max(maxY, pixels[2 * i + 1]);
+				sx += map[2 * i];
+				sy += map[2 * i + 1];
+			}
+			cx = (minX + maxX) / 2;
+			cy = (minY + maxY) / 2;
+			scale = Math.max(1, Math.max(maxX - minX, maxY - minY) / 2);
+			mx = sx / n;
+			my = sy / n;
+			points = n;
+		}
+
+		/**
+		 * Sets out[off], out[off + 1] to the map coordinates of pixel x, y.
+		 */
+		public abstract void transform(double x, double y, double[] out, int off);
+
+		/**
+		 * @return the number of points fitted to
+		 */
+		public int getPoints() {
+			return points;
+		}
+
+		/**
+		 * @return the rms distance in map units between the points fitted to and the model
+		 */
+		public double getRms() {
+			return rms;
+		}
+
+		void residuals(double[] pixels, double[] map, int n) {
+			double[] p = new double[2];
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				transform(pixels[2 * i], pixels[2 * i + 1], p, 0);
+				double dx = p[0] - map[2 * i], dy = p[1] - map[2 * i + 1];
+				sum += dx * dx + dy * dy;
+			}
+			rms = Math.sqrt(sum / n);
+		}
+	}
+
+	/**
+	 * A polynomial in x and y of the given order, fitted by least squares.
+	 */
+	static final class Polynomial extends Model {
+		final int order;
+		// the coefficients of each term for map x and y
+		final double[] ax;
+		final double[] ay;
+
+		Polynomial(double[] pixels, double[] map, int n, int order) {
+			super(pixels, map, n);
+			this.order = order;
+			int terms = terms(order);
+			if (n < terms)
+				throw new IllegalArgumentException("An order " + order + " polynomial needs at least " + terms
+						+ " graticule crossings, found " + n + ".");
+			double[][] design = new double[n][];
+			double[] xs = new double[n];
+			double[] ys = new double[n];
+			for (int i = 0; i < n; i++) {
+				design[i] = new double[terms];
+				powers((pixels[2 * i] - cx) / scale, (pixels[2 * i + 1] - cy) / scale, design[i]);
+				xs[i] = map[2 * i] - mx;
+				ys[i] = map[2 * i + 1] - my;
+			}
+			try {
+				DecompositionSolver solver = new QRDecompositionImpl(new Array2DRowRealMatrix(design, false)).getSolver();
+				ax = solver.solve(xs);
+				ay = solver.solve(ys);
+			}catch( InvalidMatrixException exp ) {
+				throw new IllegalArgumentException("The graticule crossings are too few or too bunched up for an order "
+						+ order + " polynomial.");
+			}
+			residuals(pixels, map, n);
+		}
+
+		static int terms(int order) {
+			return (order + 1) * (order + 2) / 2;
+		}
+
+		/**
+		 * Fills out with the terms u^i v^j, i + j <= order, in order of increasing i + j.
+		 */
+		void powers(double u, double v, double[] out) {
+			int k = 0;
+			for (int d = 0; d <= order; d++) {
+				for (int j = 0; j <= d; j++) {
+					double t = 1;
+					for (int e = 0; e < d - j; e++)
+						t *= u;
+					for (int e = 0; e < j; e++)
+						t *= v;
+					out[k++] = t;
+				}
+			}
+		}
+
+		@Override
+		public void transform(double x, double y, double[] out, int off) {
+			double[] t = new double[ax.length];
+			powers((x - cx) / scale, (y - cy) / scale, t);
+			double X = mx, Y = my;
+			for (int k = 0; k < t.length; k++) {
+				X += ax[k] * t[k];
+				Y += ay[k] * t[k];
+			}
+			out[off] = X;
+			out[off + 1] = Y;
+		}
+
+		@Override
+		public String toString() {
+			return "polynomial of order " + order;
+		}
+	}
+
+	/**
+	 * A thin plate spline, which passes through every point fitted to and bends as little as it can between.
+	 */
+	static final class ThinPlateSpline extends Model {
+		final double[] u;
+		final double[] v;
+		final double[] wx, wy; // the weights of each point, then of 1, u and v
+
+		ThinPlateSpline(double[] pixels, double[] map, int n) {
+			super(pixels, map, n);
+			if (n < 3)
+				throw new IllegalArgumentException("A thin plate spline needs at least 3 graticule crossings, found " + n + ".");
+			u = new double[n];
+			v = new double[n];
+			for (int i = 0; i < n; i++) {
+				u[i] = (pixels[2 * i] - cx) / scale;
+				v[i] = (pixels[2 * i + 1] - cy) / scale;
+			}
+
+			double[][] l = new double[n + 3][n + 3];
+			double[] xs = new double[n + 3];
+			double[] ys = new double[n + 3];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < i; j++)
+					l[i][j] = l[j][i] = kernel(u[i] - u[j], v[i] - v[j]);
+				l[i][n] = l[n][i] = 1;
+				l[i][n + 1] = l[n + 1][i] = u[i];
+				l[i][n + 2] = l[n + 2][i] = v[i];
+				xs[i] = map[2 * i] - mx;
+				ys[i] = map[2 * i + 1] - my;
+			}
+			try {
+				DecompositionSolver solver = new LUDecompositionImpl(new Array2DRowRealMatrix(l, false)).getSolver();
+				wx = solver.solve(xs);
+				wy = solver.solve(ys);
+			}catch( InvalidMatrixException exp ) {
+				throw new IllegalArgumentException("The graticule crossings repeat or all lie on a line, so can't fix a thin plate spline.");
+			}
+			residuals(pixels, map, n);
+		}
+
+		/**
+		 * @return r^2 log r for r the length of du, dv
+		 */
+		static double kernel(double du, double dv) {
+			double r2 = du * du + dv * dv;
+			return r2 == 0 ? 0 : r2 * Math.log(r2) / 2;
+		}
+
+		@Override
+		public void transform(double x, double y, double[] out, int off) {
+			double pu = (x - cx) / scale, pv = (y - cy) / scale;
+			int n = u.length;
+			double X = mx + wx[n] + wx[n + 1] * pu + wx[n + 2] * pv;
+			double Y = my + wy[n] + wy[n + 1] * pu + wy[n + 2] * pv;
+			for (int i = 0; i < n; i++) {
+				double k = kernel(pu - u[i], pv - v[i]);
+				X += wx[i] * k;
+				Y += wy[i] * k;
+			}
+			out[off] = X;
+			out[off + 1] = Y;
+		}
+
+		@Override
+		public String toString() {
+			return "thin plate spline";
+		}
+	}
+
+	/**
+	 * Fits a model to the crossings of a sheet's graticules.
+	 * @param kind 2 or 3 for a polynomial of that order, or tps for a thin plate spline
+	 * @param originEasting x component of projected coordinates of the graticules' zero
+	 * @param originNorthing y component of projected coordinates of the graticules' zero
+	 * @param unitsToMeters multiplication factor to get source units into meters
+	 * @throws IllegalArgumentException if kind is unknown or the crossings can't fix the model
+	 */
+	public static Model fit(String kind, PackedGraticules lonGrats, PackedGraticules latGrats,
+			double originEasting, double originNorthing, double unitsToMeters) {
+		int most = lonGrats.size() * latGrats.size();
+		double[] pixels = new double[2 * most];
+		double[] map = new double[2 * most];
+		double[] p = new double[2];
+		int n = 0;
+		for (int i = 0; i < latGrats.size(); i++) {
+			for (int j = 0; j < lonGrats.size(); j++) {
+				if (!GcpGenerator.intersection(latGrats.x1[i], latGrats.y1[i], latGrats.x2[i], latGrats.y2[i],
+						lonGrats.x1[j], lonGrats.y1[j], lonGrats.x2[j], lonGrats.y2[j], p))
+					continue;
+				pixels[2 * n] = p[0];
+				pixels[2 * n + 1] = p[1];
+				map[2 * n] = originEasting + lonGrats.getValue(j) * unitsToMeters;
+				map[2 * n + 1] = originNorthing + latGrats.getValue(i) * unitsToMeters;
+				n++;
+			}
+		}
+		return fit(kind, pixels, map, n);
+	}
+
+	/**
+	 * Fits a model to n points, pixel x, y and map x, y pairs.
+	 */
+	public static Model fit(String kind, double[] pixels, double[] map, int n) {
+		if (n == 0)
+			throw new IllegalArgumentException("None of the LAT and LON graticules cross.");
+		if (kind.equalsIgnoreCase("tps"))
+			return new ThinPlateSpline(pixels, map, n);
+		if (kind.equals("1") || kind.equals("2") || kind.equals("3"))
+			return new Polynomial(pixels, map, n, Integer.parseInt(kind));
+		throw new IllegalArgumentException("Unknown model " + kind + ", use 1, 2, 3 or tps.");
+	}
+
+	public final int step;
+	public final int columns;
+	public final int rows;
+	// x, y of node i, j, at pixel i * step, j * step, at 2 * (j * columns + i)
+	final double[] values;
+	double error = Double.NaN;
+
+	WarpGrid(int step, int columns, int rows) {
+		this(step, columns, rows, new double[2 * columns * rows]);
+	}
+
+	private WarpGrid(int step, int columns, int rows, double[] values) {
+		this.step = step;
+		this.columns = columns;
+		this.rows = rows;
+		this.values = values;
+	}
+
+	/**
+	 * @return the largest distance found between the grid's interpolation and the model it was made from, or NaN
+	 * if not known
+	 */
+	public double getError() {
+		return error;
+	}
+
+	/**
+	 * Makes the grid with the largest step, down to MIN_STEP, which is within tolerance of the model over a
+	 * width by height scan.
+	 * @param tolerance the largest error the interpolation may add, in map units
+	 */
+	public static WarpGrid fit(Model model, int width, int height, double tolerance, int threads) {
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			int step = MAX_STEP;
+			while (step > MIN_STEP && step >= 2 * Math.max(width, height))
+				step /= 2;
+			for (;; step /= 2) {
+				WarpGrid grid = evaluate(model, width, height, step, pool);
+				grid.error = grid.maxError(model, pool);
+				if (grid.error <= tolerance || step <= MIN_STEP)
+					return grid;
+			}
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return the model at every step pixels across and down a width by height scan, enough nodes to reach the
+	 * last pixel
+	 */
+	static WarpGrid evaluate(final Model model, int width, int height, int step, ForkJoinPool pool) {
+		final WarpGrid grid = new WarpGrid(step, nodes(width, step), nodes(height, step));
+		pool.invoke(grid.new Rows(0, grid.rows) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			double row(int j) {
+				for (int i = 0; i < grid.columns; i++)
+					model.transform(i * grid.step, j * grid.step, grid.values, 2 * (j * grid.columns + i));
+				return 0;
+			}
+		});
+		return grid;
+	}
+
+	private static int nodes(int pixels, int step) {
+		return Math.max(2, (pixels - 1 + step - 1) / step + 1);
+	}
+
+	/**
+	 * @return the largest distance between the model and the grid, at the middle of each cell and its edges
+	 */
+	double maxError(final Model model, ForkJoinPool pool) {
+		return pool.invoke(new Rows(0, rows - 1) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			double row(int j) {
+				double[] p = new double[4];
+				double max = 0;
+				for (int i = 0; i < columns - 1; i++) {
+					for (int k = 0; k < 5; k++) {
+						// the middle, top, left, right and bottom, the last two only at the grid's edges
+						if ((k == 3 && i < columns - 2) || (k == 4 && j < rows - 2))
+							continue;
+						double x = (i + (k == 2 ? 0 : k == 3 ? 1 : 0.5)) * step;
+						double y = (j + (k == 1 ? 0 : k == 4 ? 1 : 0.5)) * step;
+						model.transform(x, y, p, 0);
+						interpolate(x, y, p, 2);
+						max = Math.max(max, Math.hypot(p[0] - p[2], p[1] - p[3]));
+					}
+				}
+				return max;
+			}
+		});
+	}
+
+	/**
+	 * Sets out[off], out[off + 1] to the grid bilinearly interpolated at pixel x, y. Outside the grid the edge
+	 * cells are carried on linearly.
+	 */
+	public void interpolate(double x, double y, double[] out, int off) {
+		double fx = x / step, fy = y / step;
+		int i = Math.min(columns - 2, Math.max(0, (int) Math.floor(fx)));
+		int j = Math.min(rows - 2, Math.max(0, (int) Math.floor(fy)));
+		double tx = fx - i, ty = fy - j;
+		int a = 2 * (j * columns + i), c = a + 2 * columns;
+		double top = values[a] + tx * (values[a + 2] - values[a]);
+		double bottom = values[c] + tx * (values[c + 2] - values[c]);
+		out[off] = top + ty * (bottom - top);
+		top = values[a + 1] + tx * (values[a + 3] - values[a + 1]);
+		bottom = values[c + 1] + tx * (values[c + 3] - values[c + 1]);
+		out[off + 1] = top + ty * (bottom - top);
+	}
+
+	/**
+	 * Inverts the grid onto a raster, for warping: the nodes of the result, every step pixels of the raster whose
+	 * world file is target, hold the pixel of this grid which lands on them.
+	 */
+	WarpGrid invert(final WorldFile target, int width, int height, int step, int threads) {
+		final WarpGrid inverse = new WarpGrid(step, nodes(width, step), nodes(height, step));
+
+		// an affine guess to start from, through three corners of this grid
+		int last = columns - 1, bottom = rows - 1;
+		double ax = (value(last, 0, 0) - value(0, 0, 0)) / (last * step), ay = (value(last, 0, 1) - value(0, 0, 1)) / (last * step);
+		double bx = (value(0, bottom, 0) - value(0, 0, 0)) / (bottom * step), by = (value(0, bottom, 1) - value(0, 0, 1)) / (bottom * step);
+		final double det = ax * by - bx * ay;
+		final double ia = by / det, ib = -bx / det, ic = -ay / det, id = ax / det;
+		final double x0 = value(0, 0, 0), y0 = value(0, 0, 1);
+
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(inverse.new Rows(0, inverse.rows) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				double row(int j) {
+					double[] p = new double[2];
+					for (int i = 0; i < inverse.columns; i++) {
+						double col = i * inverse.step, r = j * inverse.step;
+						double X = target.A * col + target.B * r + target.C;
+						double Y = target.D * col + target.E * r + target.F;
+						double x = ia * (X - x0) + ib * (Y - y0), y = ic * (X - x0) + id * (Y - y0);
+						for (int k = 0; k < 20; k++) {
+							interpolate(x, y, p, 0);
+							double ex = X - p[0], ey = Y - p[1];
+							// the derivatives of the bilinear cell x, y is in
+							double fx = x / step, fy = y / step;
+							int ci = Math.min(columns - 2, Math.max(0, (int) Math.floor(fx)));
+							int cj = Math.min(rows - 2, Math.max(0, (int) Math.floor(fy)));
+							double tx = fx - ci, ty = fy - cj;
+							int a = 2 * (cj * columns + ci), c = a + 2 * columns;
+							double dxx = ((1 - ty) * (values[a + 2] - values[a]) + ty * (values[c + 2] - values[c])) / step;
+							double dyx = ((1 - ty) * (values[a + 3] - values[a + 1]) + ty * (values[c + 3] - values[c + 1])) / step;
+							double dxy = ((1 - tx) * (values[c] - values[a]) + tx * (values[c + 2] - values[a + 2])) / step;
+							double dyy = ((1 - tx) * (values[c + 1] - values[a + 1]) + tx * (values[c + 3] - values[a + 3])) / step;
+							double d = dxx * dyy - dxy * dyx;
+							double sx = (dyy * ex - dxy * ey) / d, sy = (dxx * ey - dyx * ex) / d;
+							x += sx;
+							y += sy;
+							if (Math.abs(sx) + Math.abs(sy) < 1e-9)
+								break;
+						}
+						inverse.values[2 * (j * inverse.columns + i)] = x;
+						inverse.values[2 * (j * inverse.columns + i) + 1] = y;
+					}
+					return 0;
+				}
+			});
+		}finally{
+			pool.shutdown();
+		}
+		return inverse;
+	}
+
+	double value(int i, int j, int axis) {
+		return values[2 * (j * columns + i) + axis];
+	}
+
+	/**
+	 * Runs row(j) for rows [from, to) as fork join tasks, and gives the largest value it returned.
+	 */
+	private abstract class Rows extends RecursiveTask<Double> {
+		private static final long serialVersionUID = 1L;
+
+		final int from;
+		final int to;
+
+		Rows(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract double row(int j);
+
+		@Override
+		protected Double compute() {
+			if (to - from <= LEAF) {
+				double max = 0;
+				for (int j = from; j < to; j++)
+					max = Math.max(max, row(j));
+				return max;
+			}
+			final int mid = (from + to) >>> 1;
+			final Rows outer = this;
+			Rows left = new Rows(from, mid) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				double row(int j) {
+					return outer.row(j);
+				}
+			};
+			Rows right = new Rows(mid, to) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				double row(int j) {
+					return outer.row(j);
+				}
+			};
+			right.fork();
+			double max = left.compute();
+			return Math.max(max, right.join());
+		}
+	}
+
+	/**
+	 * Writes the header and a row for each node.
+	 */
+	public void write(Writer out) throws IOException {
+		out.write(HEADER);
+		out.write('\n');
+		for (int j = 0; j < rows; j++) {
+			for (int i = 0; i < columns; i++) {
+				int o = 2 * (j * columns + i);
+				out.write((i * step) + "," + (j * step) + "," + values[o] + "," + values[o + 1] + "\n");
+			}
+		}
+	}
+
+	/**
+	 * @return true if file starts with a grid's header
+	 */
+	public static boolean isGrid(File file) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String first = reader.readLine();
+			return first != null && first.trim().equals(HEADER);
+		}finally{
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads a grid written by write.
+	 * @throws IOException if the file can't be read or isn't a whole grid
+	 */
+	public static WarpGrid read(File file) throws IOException {
+		double[] values = new double[1024];
+		int nodes = 0;
+		int columns = 0;
+		int step = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			if (line == null || !line.trim().equals(HEADER))
+				throw new IOException(file + ": expected a header of " + HEADER);
+			int lineNumber = 1;
+			double firstY = 0;
+			for (line = reader.readLine(); line != null; line = reader.readLine()) {
+				lineNumber++;
+				if (line.trim().isEmpty())
+					continue;
+				String[] l = line.split(",");
+				if (l.length != 4)
+					throw new IOException(file + ":" + lineNumber + ": expected " + HEADER + " but found " + l.length + " columns.");
+				double x, y;
+				try {
+					x = Double.parseDouble(l[0].trim());
+					y = Double.parseDouble(l[1].trim());
+					if (2 * nodes + 2 > values.length)
+						values = Arrays.copyOf(values, 2 * values.length);
+					values[2 * nodes] = Double.parseDouble(l[2].trim());
+					values[2 * nodes + 1] = Double.parseDouble(l[3].trim());
+				}catch( NumberFormatException exp ) {
+					throw new IOException(file + ":" + lineNumber + ": " + exp.getMessage());
+				}
+				if (nodes == 0)
+					firstY = y;
+				else if (nodes == 1)
+					step = (int) x;
+				if (y == firstY)
+					columns++;
+				nodes++;
+			}
+		}finally{
+			reader.close();
+		}
+		if (columns < 2 || step < 1 || nodes % columns != 0 || nodes / columns < 2)
+			throw new IOException(file + ": not a whole grid of at least 2 by 2 nodes.");
+		return new WarpGrid(step, columns, nodes / columns, Arrays.copyOf(values, 2 * nodes));
+	}
+}
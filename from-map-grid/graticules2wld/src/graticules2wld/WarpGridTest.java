@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import graticules2wld.Graticule.LATLON;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WarpGridTest {
+
+	/**
+	 * A scan stretched unevenly, map x and y as cubics of pixel x and y
+	 */
+	static void stretched(double x, double y, double[] out, int off) {
+		double u = x / 1000, v = y / 1000;
+		out[off] = 335000 + 2 * x + 0.1 * y + 30 * u * u - 12 * u * v + 5 * u * u * v;
+		out[off + 1] = 6254000 - 0.05 * x - 2 * y + 20 * v * v + 8 * u * u * u;
+	}
+
+	static final WarpGrid.Model STRETCHED = new WarpGrid.Model(new double[] {0, 0, 2000, 1500}, new double[] {0, 0, 0, 0}, 2) {
+		@Override
+		public void transform(double x, double y, double[] out, int off) {
+			stretched(x, y, out, off);
+		}
+	};
+
+	/**
+	 * Points every 200 pixels over a 2000 by 1500 scan, as graticule crossings would be
+	 */
+	static int crossings(double[] pixels, double[] map) {
+		int n = 0;
+		for (int y = 0; y <= 1500; y += 250) {
+			for (int x = 0; x <= 2000; x += 200) {
+				pixels[2 * n] = x;
+				pixels[2 * n + 1] = y;
+				stretched(x, y, map, 2 * n);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * A cubic is fitted exactly by a 3rd order polynomial and passed through exactly by a thin plate spline, but
+	 * not fitted by a 2nd order polynomial
+	 */
+	@Test
+	public void test_models() {
+		double[] pixels = new double[200], map = new double[200];
+		int n = crossings(pixels, map);
+
+		WarpGrid.Model cubic = WarpGrid.fit("3", pixels, map, n);
+		assertEquals(77, cubic.getPoints());
+		assertEquals(0, cubic.getRms(), 1e-6);
+		double[] p = new double[4];
+		cubic.transform(1234.5, 678.9, p, 0);
+		stretched(1234.5, 678.9, p, 2);
+		assertEquals(p[2], p[0], 1e-6);
+		assertEquals(p[3], p[1], 1e-6);
+
+		assertTrue(WarpGrid.fit("2", pixels, map, n).getRms() > 0.1);
+
+		WarpGrid.Model tps = WarpGrid.fit("tps", pixels, map, n);
+		assertEquals(0, tps.getRms(), 1e-6);
+		tps.transform(1234.5, 678.9, p, 0);
+		assertEquals(p[2], p[0], 0.05);
+		assertEquals(p[3], p[1], 0.05);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void test_tooFewPoints() {
+		WarpGrid.fit("3", new double[] {0, 0, 1, 0, 0, 1}, new double[] {0, 0, 1, 0, 0, 1}, 3);
+	}
+
+	/**
+	 * The grid's step is halved until interpolating it is within the error budget everywhere, and is the same
+	 * however many threads evaluate it
+	 */
+	@Test
+	public void test_tolerance() {
+		WarpGrid coarse = WarpGrid.fit(STRETCHED, 2000, 1500, 0.5, 1);
+		WarpGrid fine = WarpGrid.fit(STRETCHED, 2000, 1500, 0.001, 3);
+		assertTrue(fine.step < coarse.step);
+		assertTrue(coarse.getError() <= 0.5);
+		assertTrue(fine.getError() <= 0.001);
+		// the last node reaches the last pixel
+		assertTrue((fine.columns - 1) * fine.step >= 1999);
+		assertTrue((fine.rows - 1) * fine.step >= 1499);
+
+		Random random = new Random(3);
+		double[] p = new double[4];
+		for (int k = 0; k < 10000; k++) {
+			double x = random.nextDouble() * 1999, y = random.nextDouble() * 1499;
+			stretched(x, y, p, 0);
+			coarse.interpolate(x, y, p, 2);
+			assertTrue(x + "," + y, Math.hypot(p[0] - p[2], p[1] - p[3]) <= 0.5);
+		}
+
+		WarpGrid again = WarpGrid.evaluate(STRETCHED, 2000, 1500, fine.step, new ForkJoinPool(1));
+		assertArrayEquals(again.values, fine.values, 0);
+	}
+
+	/**
+	 * The graticules of an affine sheet give a grid which agrees with its world file
+	 */
+	@Test
+	public void test_fromGraticules() throws Exception {
+		double s = 0.5, a = Math.toRadians(3);
+		WorldFile wld = new WorldFile(s * Math.cos(a), -s * Math.sin(a), s * Math.sin(a), -s * Math.cos(a), -450, 420);
+		PackedGraticules lon = new PackedGraticules(LATLON.LON);
+		PackedGraticules lat = new PackedGraticules(LATLON.LAT);
+		RobustSolverTest.pack(SolverTest.trace(wld), lon, lat);
+
+		WarpGrid.Model model = WarpGrid.fit("2", lon, lat, 1000, 2000, 1);
+		assertEquals(49, model.getPoints());
+		WarpGrid grid = WarpGrid.fit(model, 1600, 1600, 1e-6, 2);
+		assertEquals(WarpGrid.MAX_STEP, grid.step);
+		double[] p = new double[2];
+		grid.interpolate(700, 300, p, 0);
+		assertEquals(1000 + wld.A * 700 + wld.B * 300 + wld.C, p[0], 1e-6);
+		assertEquals(2000 + wld.D * 700 + wld.E * 300 + wld.F, p[1], 1e-6);
+	}
+
+	/**
+	 * Inverting onto an output raster gives the scan pixel which lands on each output node
+	 */
+	@Test
+	public void test_invert() {
+		WarpGrid grid = WarpGrid.fit(STRETCHED, 2000, 1500, 0.01, 2);
+		WorldFile target = new WorldFile(2, 0, 0, -2, 335000, 6254000);
+		WarpGrid inverse = grid.invert(target, 2000, 1500, 16, 2);
+		double[] p = new double[2];
+		for (int j = 0; j < inverse.rows; j += 7) {
+			for (int i = 0; i < inverse.columns; i += 5) {
+				grid.interpolate(inverse.value(i, j, 0), inverse.value(i, j, 1), p, 0);
+				assertEquals(target.C + target.A * i * 16, p[0], 1e-6);
+				assertEquals(target.F + target.E * j * 16, p[1], 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void test_writeRead() throws Exception {
+		WarpGrid grid = WarpGrid.fit(STRETCHED, 300, 200, 0.01, 1);
+		File file = File.createTempFile("grid", ".csv");
+		file.deleteOnExit();
+		Writer out = new FileWriter(file);
+		grid.write(out);
+		out.close();
+
+		assertTrue(WarpGrid.isGrid(file));
+		WarpGrid read = WarpGrid.read(file);
+		assertEquals(grid.step, read.step);
+		assertEquals(grid.columns, read.columns);
+		assertEquals(grid.rows, read.rows);
+		assertArrayEquals(grid.values, read.values, 0);
+	}
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Resamples a scanned sheet into a north up GeoTIFF using its solved world file, in place of gdalwarp.
+ *
+ * The output is cut into bands of BAND rows of tiles, and a band into pieces if the part of the scan it covers is
+ * too big. One thread decodes just the part of the scan the next piece covers while the worker threads resample
+ * the tiles of the current piece and write them straight to their place in the output, so however big the scan
+ * only two pieces are ever in memory. Tiles which fall wholly outside the scan are skipped and read back as
+ * transparent.
+ *
+ * Formats which can't seek (JPEG, PNG) are decoded from the top down to each piece, so for the very biggest scans
+ * a tiled TIFF source is quicker.
+ *
+ * A WarpGrid can stand in for the world file of a sheet which isn't truly affine.
+ */
+public final class Warper {
+
+	public enum Kernel {NEAREST, BILINEAR}
+
+	public static final int TILE = 256;
+	static final int BAND = 4; // tile rows decoded at once
+	static final long MAX_REGION_PIXELS = 1 << 24; // most of the scan decoded at once, 64MB
+
+	private final int sourceWidth;
+	private final int sourceHeight;
+	private final Kernel kernel;
+	private final WorldFile target;
+	private final int width;
+	private final int height;
+
+	// source pixel = (m00 col + m01 row + m02, m10 col + m11 row + m12) for output pixel col, row
+	private final double m00, m10, m01, m11, m02, m12;
+	// or when warping with a WarpGrid, the source pixel at every few output pixels
+	private final WarpGrid inverse;
+
+	/**
+	 * @param source the world file of the scan
+	 * @param resolution the output pixel size in map units, or 0 for pixels the same area as the scan's
+	 * @throws IllegalArgumentException if the world file can't be inverted
+	 */
+	public Warper(WorldFile source, int sourceWidth, int sourceHeight, double resolution, Kernel kernel) {
+		this(source, null, sourceWidth, sourceHeight, resolution, kernel, 1);
+	}
+
+	/**
+	 * Warps with a lookup grid from scan pixels to map coordinates in place of a world file. The grid is inverted
+	 * onto a coarse grid over the output, which is interpolated for each output pixel.
+	 * @param resolution the output pixel size in map units, or 0 for pixels the same area as the scan's
+	 * @param threads the number of threads to invert the grid with
+	 */
+	public Warper(WarpGrid grid, int sourceWidth, int sourceHeight, double resolution, Kernel kernel, int threads) {
+		this(null, grid, sourceWidth, sourceHeight, resolution, kernel, threads);
+	}
+
+	private Warper(WorldFile source, WarpGrid grid, int sourceWidth, int sourceHeight, double resolution, Kernel kernel,
+			int threads) {
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.kernel = kernel;
+
+		// the scan's outside edge in map coordinates, its corners or for a grid a point each grid step along it
+		double[] outline;
+		double scanPixel = 0;
+		if (grid == null) {
+			if (resolution <= 0)
+				resolution = Math.sqrt(Math.abs(source.A * source.E - source.B * source.D));
+			outline = new double[] {-0.5, -0.5, sourceWidth - 0.5, -0.5, -0.5, sourceHeight - 0.5, sourceWidth - 0.5, sourceHeight - 0.5};
+			new PointTransformer(source, false).transform(outline, 0, 4);
+		}else{
+			int across = (sourceWidth + grid.step - 1) / grid.step + 1, down = (sourceHeight + grid.step - 1) / grid.step + 1;
+			outline = new double[4 * (across + down)];
+			int o = 0;
+			for (int i = 0; i < across; i++, o += 4) {
+				double x = Math.min(i * grid.step, sourceWidth) - 0.5;
+				grid.interpolate(x, -0.5, outline, o);
+				grid.interpolate(x, sourceHeight - 0.5, outline, o + 2);
+			}
+			for (int j = 0; j < down; j++, o += 4) {
+				double y = Math.min(j * grid.step, sourceHeight) - 0.5;
+				grid.interpolate(-0.5, y, outline, o);
+				grid.interpolate(sourceWidth - 0.5, y, outline, o + 2);
+			}
+			// the scan's pixel size on average
+			double[] c = new double[6];
+			grid.interpolate(0, 0, c, 0);
+			grid.interpolate(sourceWidth, 0, c, 2);
+			grid.interpolate(0, sourceHeight, c, 4);
+			double area = Math.abs((c[2] - c[0]) * (c[5] - c[1]) - (c[4] - c[0]) * (c[3] - c[1]));
+			scanPixel = Math.sqrt(area / ((double) sourceWidth * sourceHeight));
+			if (resolution <= 0)
+				resolution = scanPixel;
+		}
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < outline.length; i += 2) {
+			minX = Math.min(minX, outline[i]);
+			maxX = Math.max(maxX, outline[i]);
+			minY = Math.min(minY, outline[i + 1]);
+			maxY = Math.max(maxY, outline[i + 1]);
+		}
+		width = Math.max(1, (int) Math.ceil((maxX - minX) / resolution - 1e-9));
+		height = Math.max(1, (int) Math.ceil((maxY - minY) / resolution - 1e-9));
+		target = new WorldFile(resolution, 0, 0, -resolution, minX + resolution / 2, maxY - resolution / 2);
+
+		if (grid != null) {
+			// about as many output pixels between the inverse's nodes as there are scan pixels between the grid's
+			int step = 1;
+			while (2 * step <= grid.step * scanPixel / resolution)
+				step *= 2;
+			inverse = grid.invert(target, width, height, step, threads);
+			m00 = m10 = m01 = m11 = m02 = m12 = 0;
+			return;
+		}
+		inverse = null;
+
+		// compose output pixel -> map -> source pixel by sending the origin and unit steps through both
+		double[] p = {0, 0, 1, 0, 0, 1};
+		new PointTransformer(target, false).transform(p, 0, 3);
+		new PointTransformer(source, true).transform(p, 0, 3);
+		m02 = p[0];
+		m12 = p[1];
+		m00 = p[2] - p[0];
+		m10 = p[3] - p[1];
+		m01 = p[4] - p[0];
+		m11 = p[5] - p[1];
+	}
+
+	/**
+	 * @return the world file of the output
+	 */
+	public WorldFile getTarget() {
+		return target;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return an ImageReader with its input set to image
+	 * @throws IOException if the image can't be read
+	 */
+	static ImageReader open(File image) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(image);
+		if (in == null)
+			throw new IOException("Could not open " + image);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			in.close();
+			throw new IOException("Unknown image format: " + image);
+		}
+		ImageReader reader = readers.next();
+		reader.setInput(in, true, true);
+		return reader;
+	}
+
+	static void close(ImageReader reader) {
+		try {
+			((ImageInputStream) reader.getInput()).close();
+		}catch( IOException exp ) {
+			// only reading
+		}
+		reader.dispose();
+	}
+
+	/**
+	 * @return the width and height of an image
+	 */
+	static int[] size(File image) throws IOException {
+		ImageReader reader = open(image);
+		try {
+			return new int[] {reader.getWidth(0), reader.getHeight(0)};
+		}finally{
+			close(reader);
+		}
+	}
+
+	/**
+	 * Warps a scan whose world file is source into a GeoTIFF, and writes the output's world file beside it.
+	 * @param epsg the EPSG code of the map coordinates, or 0 if not known
+	 */
+	public static Warper warp(WorldFile source, File image, File tiff, double resolution, Kernel kernel, int epsg,
+			int threads) throws IOException, InterruptedException {
+		int[] size = size(image);
+		return new Warper(source, size[0], size[1], resolution, kernel).warpWithTfw(image, tiff, epsg, threads);
+	}
+
+	/**
+	 * As for warp(WorldFile, ...) but with a lookup grid from scan pixels to map coordinates.
+	 */
+	public static Warper warp(WarpGrid grid, File image, File tiff, double resolution, Kernel kernel, int epsg,
+			int threads) throws IOException, InterruptedException {
+		int[] size = size(image);
+		return new Warper(grid, size[0], size[1], resolution, kernel, threads).warpWithTfw(image, tiff, epsg, threads);
+	}
+
+	private Warper warpWithTfw(File image, File tiff, int epsg, int threads) throws IOException, InterruptedException {
+		warp(image, tiff, epsg, threads);
+
+		String name = tiff.getName();
+		int dot = name.lastIndexOf('.');
+		File tfwFile = new File(tiff.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".tfw");
+		Writer tfw = new BufferedWriter(new FileWriter(tfwFile));
+		try {
+			target.write(tfw);
+		}finally{
+			tfw.close();
+		}
+		return this;
+	}
+
+	/**
+	 * Warps image, which must be sourceWidth by sourceHeight, into a GeoTIFF.
+	 */
+	public void warp(File image, File tiff, int epsg, int threads) throws IOException, InterruptedException {
+		final ImageReader reader = open(image);
+		final GeoTiffWriter writer = new GeoTiffWriter(tiff.toPath(), width, height, TILE, target, epsg);
+		// the scan is decoded by one thread, a band ahead of the workers resampling it
+		ExecutorService decoder = Executors.newSingleThreadExecutor();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Rectangle> pieces = pieces();
+			Future<Band> next = decoder.submit(readBand(reader, pieces.get(0)));
+			for (int i = 0; i < pieces.size(); i++) {
+				final Band band = get(next);
+				if (i + 1 < pieces.size())
+					next = decoder.submit(readBand(reader, pieces.get(i + 1)));
+				if (band.region == null)
+					continue; // wholly outside the scan
+
+				Rectangle piece = pieces.get(i);
+				List<Future<Void>> tiles = new ArrayList<Future<Void>>();
+				for (int ty = piece.y; ty < piece.y + piece.height; ty += TILE) {
+					for (int tx = piece.x; tx < piece.x + piece.width; tx += TILE) {
+						final int x0 = tx, y0 = ty;
+						tiles.add(pool.submit(new Callable<Void>() {
+							@Override
+							public Void call() throws IOException {
+								ByteBuffer tile = buffers.get();
+								tile.clear();
+								if (resample(band.argb, band.region, x0, y0, tile.array()))
+									writer.writeTile(x0 / TILE, y0 / TILE, tile);
+								return null;
+							}
+						}));
+					}
+				}
+				for (Future<Void> f : tiles)
+					get(f);
+			}
+		}finally{
+			decoder.shutdownNow();
+			pool.shutdownNow();
+			decoder.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			close(reader);
+			writer.close();
+		}
+	}
+
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(4 * TILE * TILE);
+		}
+	};
+
+	static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		}catch( ExecutionException exp ) {
+			if (exp.getCause() instanceof IOException)
+				throw (IOException) exp.getCause();
+			throw new IOException(exp.getCause());
+		}
+	}
+
+	/**
+	 * The scan pixels which a band of output rows samples from.
+	 */
+	private static final class Band {
+		final Rectangle region; // null if the band is outside the scan
+		final int[] argb;
+
+		Band(Rectangle region, int[] argb) {
+			this.region = region;
+			this.argb = argb;
+		}
+	}
+
+	/**
+	 * Cuts the output into bands of BAND tile rows, and each band across into as few pieces as keep the part of
+	 * the scan each piece needs under MAX_REGION_PIXELS.
+	 * @return the pieces in the order they are warped, top to bottom
+	 */
+	List<Rectangle> pieces() {
+		List<Rectangle> pieces = new ArrayList<Rectangle>();
+		int tilesAcross = (width + TILE - 1) / TILE;
+		for (int y = 0; y < height; y += TILE * BAND) {
+			int h = Math.min(TILE * BAND, height - y);
+			for (int n = 1; ; n++) {
+				int tilesPerPiece = (tilesAcross + n - 1) / n;
+				List<Rectangle> band = new ArrayList<Rectangle>();
+				boolean fits = true;
+				for (int tx = 0; tx < tilesAcross; tx += tilesPerPiece) {
+					int x = tx * TILE;
+					Rectangle piece = new Rectangle(x, y, Math.min(tilesPerPiece * TILE, width - x), h);
+					Rectangle region = sourceRegion(piece);
+					if (region != null && (long) region.width * region.height > MAX_REGION_PIXELS)
+						fits = false;
+					band.add(piece);
+				}
+				if (fits || tilesPerPiece == 1) {
+					pieces.addAll(band);
+					break;
+				}
+			}
+		}
+		return pieces;
+	}
+
+	private Callable<Band> readBand(final ImageReader reader, final Rectangle piece) {
+		return new Callable<Band>() {
+			@Override
+			public Band call() throws IOException {
+				Rectangle region = sourceRegion(piece);
+				if (region == null)
+					return new Band(null, null);
+				int[] argb = read(reader, region);
+				return new Band(region, argb);
+			}
+		};
+	}
+
+	/**
+	 * Decodes part of an image as ARGB pixels in rows, straight into packed ints where the reader can rather than
+	 * copying.
+	 */
+	static int[] read(ImageReader reader, Rectangle region) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceRegion(region);
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+		while (types.hasNext()) {
+			ImageTypeSpecifier type = types.next();
+			int t = type.getBufferedImageType();
+			if (t == BufferedImage.TYPE_INT_RGB || t == BufferedImage.TYPE_INT_ARGB) {
+				param.setDestinationType(type);
+				break;
+			}
+		}
+		BufferedImage src = reader.read(0, param);
+		int[] argb;
+		if (src.getType() == BufferedImage.TYPE_INT_ARGB) {
+			argb = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+		}else if (src.getType() == BufferedImage.TYPE_INT_RGB) {
+			argb = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+			for (int i = 0; i < argb.length; i++)
+				argb[i] |= 0xff000000;
+		}else if (src.getType() == BufferedImage.TYPE_3BYTE_BGR || src.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+			// getRGB goes through the colour model a pixel at a time, so unpack the usual byte layouts here
+			byte[] bytes = ((DataBufferByte) src.getRaster().getDataBuffer()).getData();
+			argb = new int[region.width * region.height];
+			if (src.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+				for (int i = 0, j = 0; i < argb.length; i++, j += 3)
+					argb[i] = 0xff000000 | (bytes[j + 2] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | (bytes[j] & 0xff);
+			}else{
+				for (int i = 0, j = 0; i < argb.length; i++, j += 4)
+					argb[i] = (bytes[j] & 0xff) << 24 | (bytes[j + 3] & 0xff) << 16 | (bytes[j + 2] & 0xff) << 8 | (bytes[j + 1] & 0xff);
+			}
+		}else{
+			argb = src.getRGB(0, 0, region.width, region.height, null, 0, region.width);
+		}
+		return argb;
+	}
+
+	/**
+	 * @return the part of the scan which output pixels in block sample from, or null if none
+	 */
+	Rectangle sourceRegion(Rectangle block) {
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		if (inverse != null) {
+			// bilinear interpolation stays within its cell's nodes, so the nodes of the cells the block touches
+			// bound it
+			int i0 = Math.min(inverse.columns - 2, block.x / inverse.step);
+			int j0 = Math.min(inverse.rows - 2, block.y / inverse.step);
+			int i1 = Math.min(inverse.columns - 1, (block.x + block.width - 1 + inverse.step - 1) / inverse.step);
+			int j1 = Math.min(inverse.rows - 1, (block.y + block.height - 1 + inverse.step - 1) / inverse.step);
+			for (int j = j0; j <= Math.max(j1, j0 + 1); j++) {
+				for (int i = i0; i <= Math.max(i1, i0 + 1); i++) {
+					minX = Math.min(minX, inverse.value(i, j, 0));
+					maxX = Math.max(maxX, inverse.value(i, j, 0));
+					minY = Math.min(minY, inverse.value(i, j, 1));
+					maxY = Math.max(maxY, inverse.value(i, j, 1));
+				}
+			}
+		}
+		for (int c = 0; inverse == null && c < 4; c++) {
+			double col = (c & 1) == 0 ? block.x : block.x + block.width - 1;
+			double row = (c & 2) == 0 ? block.y : block.y + block.height - 1;
+			double sx = m00 * col + m01 * row + m02;
+			double sy = m10 * col + m11 * row + m12;
+			minX = Math.min(minX, sx);
+			maxX = Math.max(maxX, sx);
+			minY = Math.min(minY, sy);
+			maxY = Math.max(maxY, sy);
+		}
+		// one pixel either side for the bilinear neighbours
+		int x0 = Math.max(0, (int) Math.floor(minX) - 1);
+		int y0 = Math.max(0, (int) Math.floor(minY) - 1);
+		int x1 = Math.min(sourceWidth, (int) Math.ceil(maxX) + 2);
+		int y1 = Math.min(sourceHeight, (int) Math.ceil(maxY) + 2);
+		if (x0 >= x1 || y0 >= y1)
+			return null;
+		return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+	}
+
+	/**
+	 * Fills a TILE by TILE block of RGBA output pixels from the upper left output pixel tx, ty, with pixels
+	 * outside the scan left transparent.
+	 * @param argb the source pixels in region, as from BufferedImage.getRGB
+	 * @return false if every pixel was outside the scan
+	 */
+	boolean resample(int[] argb, Rectangle region, int tx, int ty, byte[] out) {
+		int rw = region.width;
+		int rh = region.height;
+		// source limits in region coordinates, the outside edges of the scan's edge pixels
+		double xMin = -0.5 - region.x, xMax = sourceWidth - 0.5 - region.x;
+		double yMin = -0.5 - region.y, yMax = sourceHeight - 0.5 - region.y;
+
+		Arrays.fill(out, (byte) 0);
+		boolean any = false;
+		int rows = Math.min(TILE, height - ty);
+		int cols = Math.min(TILE, width - tx);
+		if (inverse != null) {
+			double[] s = new double[2];
+			for (int r = 0; r < rows; r++) {
+				int o = 4 * TILE * r;
+				for (int c = 0; c < cols; c++, o += 4) {
+					inverse.interpolate(tx + c, ty + r, s, 0);
+					double sx = s[0] - region.x, sy = s[1] - region.y;
+					if (sx < xMin || sx >= xMax || sy < yMin || sy >= yMax)
+						continue;
+					any = true;
+					int p = sample(argb, rw, rh, sx, sy, kernel);
+					out[o] = (byte) (p >> 16);
+					out[o + 1] = (byte) (p >> 8);
+					out[o + 2] = (byte) p;
+					out[o + 3] = (byte) (p >>> 24);
+				}
+			}
+			return any;
+		}
+		for (int r = 0; r < rows; r++) {
+			double sx = m00 * tx + m01 * (ty + r) + m02 - region.x;
+			double sy = m10 * tx + m11 * (ty + r) + m12 - region.y;
+			int o = 4 * TILE * r;
+			for (int c = 0; c < cols; c++, sx += m00, sy += m10, o += 4) {
+				if (sx < xMin || sx >= xMax || sy < yMin || sy >= yMax)
+					continue;
+				any = true;
+				int p = sample(argb, rw, rh, sx, sy, kernel);
+				out[o] = (byte) (p >> 16);
+				out[o + 1] = (byte) (p >> 8);
+				out[o + 2] = (byte) p;
+				out[o + 3] = (byte) (p >>> 24);
+			}
+		}
+		return any;
+	}
+
+	/**
+	 * @return the ARGB pixel at sx, sy of a rw by rh image, whose pixel centers are at whole numbers. At the
+	 * image's edges the edge pixel stands in for the missing neighbours.
+	 */
+	static int sample(int[] argb, int rw, int rh, double sx, double sy, Kernel kernel) {
+		// sx, sy are at least -1, so truncating sx + 1 rounds down
+		if (kernel == Kernel.NEAREST) {
+			int ix = Math.min(rw - 1, Math.max(0, (int) (sx + 1.5) - 1));
+			int iy = Math.min(rh - 1, Math.max(0, (int) (sy + 1.5) - 1));
+			return argb[iy * rw + ix];
+		}
+		int ix = (int) (sx + 1) - 1;
+		int iy = (int) (sy + 1) - 1;
+		int fx = (int) ((sx - ix) * 256);
+		int fy = (int) ((sy - iy) * 256);
+		int x0 = Math.min(rw - 1, Math.max(0, ix)), x1 = Math.min(rw - 1, Math.max(0, ix + 1));
+		int y0 = Math.min(rh - 1, Math.max(0, iy)), y1 = Math.min(rh - 1, Math.max(0, iy + 1));
+		return bilinear(argb[y0 * rw + x0], argb[y0 * rw + x1], argb[y1 * rw + x0], argb[y1 * rw + x1], fx, fy);
+	}
+
+	/**
+	 * Interpolates four ARGB pixels with weights in 256ths, two channels at a time in the halves of an int.
+	 */
+	static int bilinear(int p00, int p10, int p01, int p11, int fx, int fy) {
+		int gx = 256 - fx, gy = 256 - fy;
+		int rb0 = ((p00 & 0xff00ff) * gx + (p10 & 0xff00ff) * fx + 0x800080) >>> 8 & 0xff00ff;
+		int rb1 = ((p01 & 0xff00ff) * gx + (p11 & 0xff00ff) * fx + 0x800080) >>> 8 & 0xff00ff;
+		int ag0 = (((p00 >>> 8) & 0xff00ff) * gx + ((p10 >>> 8) & 0xff00ff) * fx + 0x800080) >>> 8 & 0xff00ff;
+		int ag1 = (((p01 >>> 8) & 0xff00ff) * gx + ((p11 >>> 8) & 0xff00ff) * fx + 0x800080) >>> 8 & 0xff00ff;
+		int rb = (rb0 * gy + rb1 * fy + 0x800080) >>> 8 & 0xff00ff;
+		int ag = (ag0 * gy + ag1 * fy + 0x800080) >>> 8 & 0xff00ff;
+		return ag << 8 | rb;
+	}
+}
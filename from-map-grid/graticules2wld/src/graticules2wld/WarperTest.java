@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WarperTest {
+
+	static File image(int w, int h, long seed) throws Exception {
+		Random random = new Random(seed);
+		BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < h; y++)
+			for (int x = 0; x < w; x++)
+				img.setRGB(x, y, random.nextInt(0x1000000));
+		File f = File.createTempFile("scan", ".png");
+		ImageIO.write(img, "png", f);
+		return f;
+	}
+
+	/**
+	 * A scan which is north up with the output's pixel size should come back pixel for pixel, across tiles
+	 */
+	@Test
+	public void test_northUp() throws Exception {
+		File png = image(600, 300, 1);
+		File tif = File.createTempFile("warped", ".tif");
+		WorldFile wld = new WorldFile(2, 0, 0, -2, 1001, 5999);
+		Warper warper = Warper.warp(wld, png, tif, 0, Warper.Kernel.BILINEAR, 28356, 2);
+
+		assertEquals(600, warper.getWidth());
+		assertEquals(300, warper.getHeight());
+		assertEquals(wld.toString(), warper.getTarget().toString());
+
+		BufferedImage src = ImageIO.read(png);
+		BufferedImage out = ImageIO.read(tif);
+		assertEquals(600, out.getWidth());
+		for (int y = 0; y < 300; y++)
+			for (int x = 0; x < 600; x++)
+				assertEquals(x + "," + y, src.getRGB(x, y), out.getRGB(x, y));
+
+		File tfw = new File(tif.getParentFile(), tif.getName().replace(".tif", ".tfw"));
+		assertEquals(wld.toString(), WorldFile.read(tfw).toString());
+	}
+
+	/**
+	 * A scan turned a quarter turn should be turned back, with nothing outside it
+	 */
+	@Test
+	public void test_quarterTurn() throws Exception {
+		File png = image(300, 520, 2);
+		File tif = File.createTempFile("warped", ".tif");
+		// columns run south and rows run west, so north up the scan's right edge is at the top
+		Warper warper = Warper.warp(new WorldFile(0, -1, -1, 0, 100, 100), png, tif, 0, Warper.Kernel.NEAREST, 0, 1);
+		assertEquals(520, warper.getWidth());
+		assertEquals(300, warper.getHeight());
+
+		BufferedImage src = ImageIO.read(png);
+		BufferedImage out = ImageIO.read(tif);
+		for (int y = 0; y < 300; y++) {
+			for (int x = 0; x < 520; x++) {
+				int expected = src.getRGB(y, 519 - x);
+				assertEquals(x + "," + y, expected, out.getRGB(x, y));
+			}
+		}
+		Files.delete(tif.toPath());
+	}
+
+	/**
+	 * A lookup grid made from a world file should warp the same as the world file, and a stretched one should put
+	 * each scan pixel where the grid says
+	 */
+	@Test
+	public void test_grid() throws Exception {
+		File png = image(700, 500, 3);
+		WorldFile wld = new WorldFile(2, 0, 0, -2, 1001, 5999);
+		WarpGrid.Model affine = new WarpGrid.Model(new double[] {0, 0, 700, 500}, new double[] {0, 0, 0, 0}, 2) {
+			@Override
+			public void transform(double x, double y, double[] out, int off) {
+				out[off] = wld.A * x + wld.B * y + wld.C;
+				out[off + 1] = wld.D * x + wld.E * y + wld.F;
+			}
+		};
+		File tif = File.createTempFile("warped", ".tif");
+		Warper warper = Warper.warp(WarpGrid.fit(affine, 700, 500, 1e-6, 2), png, tif, 0, Warper.Kernel.NEAREST, 0, 2);
+		assertEquals(wld.toString(), warper.getTarget().toString());
+		BufferedImage src = ImageIO.read(png);
+		BufferedImage out = ImageIO.read(tif);
+		for (int y = 0; y < 500; y++)
+			for (int x = 0; x < 700; x++)
+				assertEquals(x + "," + y, src.getRGB(x, y), out.getRGB(x, y));
+
+		WarpGrid stretched = WarpGrid.fit(new WarpGrid.Model(new double[] {0, 0, 700, 500}, new double[] {0, 0, 0, 0}, 2) {
+			@Override
+			public void transform(double x, double y, double[] out, int off) {
+				out[off] = 1000 + x + 0.0004 * x * x;
+				out[off + 1] = 6000 - y - 0.0002 * x * y;
+			}
+		}, 700, 500, 0.01, 1);
+		warper = Warper.warp(stretched, png, tif, 1, Warper.Kernel.NEAREST, 0, 3);
+		out = ImageIO.read(tif);
+		double[] p = new double[2];
+		WorldFile target = warper.getTarget();
+		for (int y = 0; y < 500; y += 37) {
+			for (int x = 0; x < 700; x += 41) {
+				stretched.interpolate(x, y, p, 0);
+				double col = (p[0] - target.C) / target.A, row = (p[1] - target.F) / target.E;
+				// a scan pixel is more than an output pixel across, so an output pixel well inside it samples it
+				if (Math.abs(col - Math.round(col)) > 0.3 || Math.abs(row - Math.round(row)) > 0.3)
+					continue;
+				assertEquals(x + "," + y, src.getRGB(x, y), out.getRGB((int) Math.round(col), (int) Math.round(row)));
+			}
+		}
+		Files.delete(tif.toPath());
+	}
+
+	/**
+	 * Bilinear halfway between two pixels should be their average, and outside the scan transparent
+	 */
+	@Test
+	public void test_bilinear() throws Exception {
+		BufferedImage img = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+		img.setRGB(0, 0, 0x000000);
+		img.setRGB(1, 0, 0xc8c8c8);
+		File png = File.createTempFile("scan", ".png");
+		ImageIO.write(img, "png", png);
+		File tif = File.createTempFile("warped", ".tif");
+		// half sized output pixels, centered a quarter pixel either side of the scan's pixel centers
+		Warper warper = Warper.warp(new WorldFile(1, 0, 0, -1, 0, 0), png, tif, 0.5, Warper.Kernel.BILINEAR, 0, 1);
+		assertEquals(4, warper.getWidth());
+
+		BufferedImage out = ImageIO.read(tif);
+		assertEquals(0xff000000, out.getRGB(0, 0));
+		assertEquals(0xff323232, out.getRGB(1, 0)); // a quarter of the way
+		assertEquals(0xff969696, out.getRGB(2, 0));
+		assertEquals(0xffc8c8c8, out.getRGB(3, 0));
+	}
+
+	/**
+	 * The pieces of a big rotated scan should cover the output once, each needing no more than the budget
+	 */
+	@Test
+	public void test_pieces() {
+		Warper warper = new Warper(new WorldFile(3.68, -0.61, -0.62, -3.75, 0, 0), 30000, 20000, 0, Warper.Kernel.BILINEAR);
+		long area = 0;
+		for (Rectangle piece : warper.pieces()) {
+			area += (long) piece.width * piece.height;
+			Rectangle region = warper.sourceRegion(piece);
+			assertTrue(piece + " " + region, region == null || (long) region.width * region.height <= Warper.MAX_REGION_PIXELS);
+		}
+		assertEquals((long) warper.getWidth() * warper.getHeight(), area);
+	}
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Watches a directory of traced sheets and keeps a world file next to each one up to date.
+ *
+ * A file is solved once no change to it has been seen for the debounce time, so an editor which saves in
+ * several writes only causes one solve. Every sheet which goes quiet at the same time is solved together on the
+ * worker threads. A sheet whose contents are the same as when it was last solved (eg. it was saved without
+ * changes) is skipped. World files are written to a temporary file and renamed over the old one, so a reader
+ * never sees a half written world file, and a failed solve leaves the old one alone. A .csv and a .svg of the same
+ * name would share a world file, so as with a batch only the .svg is solved and the .csv is ignored.
+ */
+public class Watcher {
+
+	public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+
+	private final Path dir;
+	private final double originEasting;
+	private final double originNorthing;
+	private final double unitsToMeters;
+	private final long debounceNanos;
+	private final PrintStream out;
+	private final PrintStream err;
+
+	private final WatchService watchService;
+	private final ExecutorService pool;
+
+	// inputs which have changed, with when they last changed
+	private final Map<Path, Long> dirty = new HashMap<Path, Long>();
+	// inputs being solved right now, which aren't started again until they finish
+	private final Set<Path> running = new HashSet<Path>();
+	// the checksum of each input when it was last solved
+	private final Map<Path, Long> solvedChecksums = new HashMap<Path, Long>();
+
+	public Watcher(Path dir, double originEasting, double originNorthing, double unitsToMeters,
+			long debounceMillis, int threads, PrintStream out, PrintStream err) throws IOException {
+		this.dir = dir;
+		this.originEasting = originEasting;
+		this.originNorthing = originNorthing;
+		this.unitsToMeters = unitsToMeters;
+		this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+		this.out = out;
+		this.err = err;
+		this.watchService = dir.getFileSystem().newWatchService();
+		dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+		this.pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	}
+
+	/**
+	 * @return true for the files which are traced sheets, .csv or .svg
+	 */
+	static boolean isInput(Path file) {
+		String name = file.getFileName().toString().toLowerCase();
+		return !name.startsWith(".") && (name.endsWith(".csv") || name.endsWith(".svg"));
+	}
+
+	/**
+	 * @return true for a .csv with a .svg of the same name beside it, as both would make the same world file
+	 */
+	static boolean isShadowed(Path file) {
+		String name = file.getFileName().toString();
+		if (!name.toLowerCase().endsWith(".csv"))
+			return false;
+		String base = name.substring(0, name.length() - ".csv".length());
+		return Files.exists(file.resolveSibling(base + ".svg")) || Files.exists(file.resolveSibling(base + ".SVG"));
+	}
+
+	/**
+	 * Solves any sheets whose world file is missing or older than the sheet, then keeps solving sheets as they
+	 * change until close is called.
+	 */
+	public void run() throws IOException, InterruptedException {
+		scan(true);
+		try {
+			while (true) {
+				WatchKey key;
+				long wait = millisUntilQuiet();
+				if (wait < 0)
+					key = watchService.take();
+				else
+					key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+
+				if (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == OVERFLOW) {
+							// we missed some changes, so look at everything again
+							scan(false);
+						}else{
+							Path file = dir.resolve((Path) event.context());
+							if (isInput(file))
+								changed(file);
+						}
+					}
+					key.reset();
+				}
+
+				solveQuiet();
+			}
+		}catch( ClosedWatchServiceException exp ) {
+			// closed
+		}
+	}
+
+	/**
+	 * Stops watching, and waits for any solves which have started to finish.
+	 */
+	public void close() throws IOException, InterruptedException {
+		watchService.close();
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Marks every input as changed, or with onlyStale just those whose world file is missing or older.
+	 */
+	private void scan(boolean onlyStale) throws IOException {
+		DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+		try {
+			for (Path file : stream) {
+				if (!isInput(file) || !Files.isRegularFile(file))
+					continue;
+				if (onlyStale) {
+					Path wld = Batch.wldFileFor(file.toFile()).toPath();
+					if (Files.exists(wld) && Files.getLastModifiedTime(wld).compareTo(Files.getLastModifiedTime(file)) >= 0)
+						continue;
+				}
+				synchronized (this) {
+					// already quiet, so it is solved straight away
+					dirty.put(file, System.nanoTime() - debounceNanos);
+				}
+			}
+		}finally{
+			stream.close();
+		}
+	}
+
+	private synchronized void changed(Path file) {
+		dirty.put(file, System.nanoTime());
+	}
+
+	/**
+	 * @return how long until the next input is quiet, 0 if one already is or -1 if nothing has changed
+	 */
+	private synchronized long millisUntilQuiet() {
+		long now = System.nanoTime();
+		long wait = -1;
+		for (Map.Entry<Path, Long> e : dirty.entrySet()) {
+			// one which changed while it was being solved is checked again once the solve has had time to finish
+			long quietIn = running.contains(e.getKey()) ? debounceNanos : e.getValue() + debounceNanos - now;
+			long millis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(quietIn) + 1);
+			if (wait < 0 || millis < wait)
+				wait = millis;
+		}
+		return wait;
+	}
+
+	/**
+	 * Starts solving every input which hasn't changed for the debounce time.
+	 */
+	private synchronized void solveQuiet() {
+		long now = System.nanoTime();
+		List<Path> quiet = new ArrayList<Path>();
+		for (Map.Entry<Path, Long> e : dirty.entrySet()) {
+			if (now - e.getValue() >= debounceNanos && !running.contains(e.getKey()))
+				quiet.add(e.getKey());
+		}
+		for (final Path file : quiet) {
+			dirty.remove(file);
+			running.add(file);
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						solve(file);
+					}finally{
+						synchronized (Watcher.this) {
+							running.remove(file);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void solve(Path file) {
+		Path wld = Batch.wldFileFor(file.toFile()).toPath();
+		AtomicFile tmp = null;
+		try {
+			if (isShadowed(file))
+				return;
+			long checksum = checksum(file);
+			synchronized (this) {
+				Long last = solvedChecksums.get(file);
+				if (last != null && last == checksum && Files.exists(wld))
+					return;
+			}
+
+			long start = System.nanoTime();
+			tmp = new AtomicFile(wld);
+			BufferedWriter wldWriter = Files.newBufferedWriter(tmp.temp());
+			try {
+				Main.solve(file.toFile(), wldWriter, originEasting, originNorthing, unitsToMeters);
+			}finally{
+				wldWriter.close();
+			}
+			tmp.commit();
+
+			synchronized (this) {
+				solvedChecksums.put(file, checksum);
+			}
+			Metrics.SHEETS_SOLVED.add(1);
+			out.println(file.getFileName() + " -> " + wld.getFileName()
+					+ String.format(" in %.3fs", (System.nanoTime() - start) / 1e9));
+		}catch( Exception exp ) {
+			Metrics.SHEETS_FAILED.add(1);
+			err.println(file.getFileName() + ": " + (exp.getMessage() != null ? exp.getMessage() : exp.toString()));
+		}finally{
+			if (tmp != null) {
+				try {
+					tmp.close();
+				}catch( IOException exp ) {
+					// nothing more we can do
+				}
+			}
+		}
+	}
+
+	private static long checksum(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(file));
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WatcherTest {
+
+	static void waitFor(Path file, FileTime newerThan) throws InterruptedException, java.io.IOException {
+		for (int i = 0; i < 200; i++) {
+			if (Files.exists(file) && (newerThan == null || Files.getLastModifiedTime(file).compareTo(newerThan) > 0))
+				return;
+			Thread.sleep(50);
+		}
+		fail("no " + file);
+	}
+
+	/**
+	 * A stale sheet should be solved on start, a changed one when it goes quiet, and an unchanged save skipped
+	 */
+	@Test
+	public void test_watch() throws Exception {
+		Path dir = Files.createTempDirectory("watch");
+		byte[] sheet = ServerTest.CSV.getBytes("UTF-8");
+		Files.write(dir.resolve("a.csv"), sheet);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Watcher watcher = new Watcher(dir, 1000, 2000, 20.1168, 100, 2, new PrintStream(out, true), System.err);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					watcher.run();
+				}catch( Exception exp ) {
+					throw new RuntimeException(exp);
+				}
+			}
+		};
+		thread.start();
+		try {
+			waitFor(dir.resolve("a.wld"), null);
+			String first = new String(Files.readAllBytes(dir.resolve("a.wld")));
+			assertEquals(6, first.split("\n").length);
+
+			// a new sheet written in bursts is solved once it settles
+			Files.write(dir.resolve("b.csv"), java.util.Arrays.copyOf(sheet, sheet.length / 2));
+			Thread.sleep(20);
+			Files.write(dir.resolve("b.csv"), sheet);
+			waitFor(dir.resolve("b.wld"), null);
+			assertEquals(first, new String(Files.readAllBytes(dir.resolve("b.wld"))));
+			Thread.sleep(300);
+			assertEquals(out.toString(), 2, out.toString().split("\n").length);
+
+			// saving without changes doesn't solve again
+			Files.write(dir.resolve("a.csv"), sheet);
+			Thread.sleep(500);
+			assertEquals(out.toString(), 2, out.toString().split("\n").length);
+
+			// no temporary files are left behind
+			assertEquals(4, dir.toFile().list().length);
+			// and the world files are readable like any other new file
+			Path other = Files.createFile(dir.resolve("other"));
+			assertEquals(Files.getPosixFilePermissions(other), Files.getPosixFilePermissions(dir.resolve("a.wld")));
+		}finally{
+			watcher.close();
+			thread.join();
+		}
+	}
+
+	/**
+	 * A .csv with a .svg of the same name beside it shouldn't be solved, as both make the same world file
+	 */
+	@Test
+	public void test_isShadowed() throws Exception {
+		Path dir = Files.createTempDirectory("watch");
+		Files.write(dir.resolve("a.csv"), new byte[0]);
+		Files.write(dir.resolve("b.csv"), new byte[0]);
+		Files.write(dir.resolve("b.svg"), new byte[0]);
+		assertFalse(Watcher.isShadowed(dir.resolve("a.csv")));
+		assertTrue(Watcher.isShadowed(dir.resolve("b.csv")));
+		assertFalse(Watcher.isShadowed(dir.resolve("b.svg")));
+	}
+}
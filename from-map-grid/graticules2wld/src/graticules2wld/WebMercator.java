@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package graticules2wld;
+
+/**
+ * Spherical ("web") mercator, EPSG:3857, the projection of slippy map tiles.
+ */
+public final class WebMercator implements Projection {
+
+	public static final int EPSG = 3857;
+
+	/** the radius of the sphere, the WGS84 semi-major axis */
+	public static final double RADIUS = 6378137;
+
+	/** half the width of the world, the x at longitude 180 */
+	public static final double HALF_WORLD = Math.PI * RADIUS;
+
+	/** the latitude where the world is square, beyond which points are clamped */
+	public static final double MAX_LATITUDE = 85.0511287798066;
+
+	@Override
+	public void forward(double[] xy, int offset, int count) {
+		double toRadians = Math.PI / 180;
+		int end = 2 * (offset + count);
+		for (int i = 2 * offset; i < end; i += 2) {
+			double lat = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, xy[i + 1]));
+			xy[i] = RADIUS * toRadians * xy[i];
+			xy[i + 1] = RADIUS * Math.log(Math.tan(Math.PI / 4 + toRadians * lat / 2));
+		}
+	}
+
+	@Override
+	public void inverse(double[] xy, int offset, int count) {
+		double toDegrees = 180 / Math.PI;
+		int end = 2 * (offset + count);
+		for (int i = 2 * offset; i < end; i += 2) {
+			xy[i] = toDegrees * xy[i] / RADIUS;
+			xy[i + 1] = toDegrees * (2 * Math.atan(Math.exp(xy[i + 1] / RADIUS)) - Math.PI / 2);
+		}
+	}
+
+	@Override
+	public int getEpsg() {
+		return EPSG;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 by Andrew Harvey <andrew.harvey4@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package graticules2wld;
+
+import java.awt.geom.AffineTransform;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The six terms of a world file, an affine transformation from the pixel space of an image into projected
+ * coordinates. Instances are immutable.
+ *
+ * <pre>
+ * Line 1: A: pixel size in the x-direction in map units/pixel
+ * Line 2: D: rotation about y-axis
+ * Line 3: B: rotation about x-axis
+ * Line 4: E: pixel size in the y-direction in map units, almost always negative
+ * Line 5: C: x-coordinate of the center of the upper left pixel
+ * Line 6: F: y-coordinate of the center of the upper left pixel
+ * </pre>
+ */
+public final class WorldFile {
+	public final double A;
+	public final double D;
+	public final double B;
+	public final double E;
+	public final double C;
+	public final double F;
+
+	/**
+	 * Terms are given in the order they appear in the world file.
+	 */
+	public WorldFile(double A, double D, double B, double E, double C, double F) {
+		this.A = A;
+		this.D = D;
+		this.B = B;
+		this.E = E;
+		this.C = C;
+		this.F = F;
+	}
+
+	public WorldFile(AffineTransform transform) {
+		this(transform.getScaleX(), transform.getShearY(), transform.getShearX(), transform.getScaleY(),
+				transform.getTranslateX(), transform.getTranslateY());
+	}
+
+	/**
+	 * Reads a world file, six numbers one per line in world file order. Blank lines are ignored.
+	 * @throws IOException if the file can't be read or doesn't hold six numbers
+	 */
+	public static WorldFile read(File wld) throws IOException {
+		double[] terms = new double[6];
+		int n = 0;
+		BufferedReader reader = new BufferedReader(new FileReader(wld));
+		try {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				if (n == 6)
+					throw new IOException(wld + ": more than six terms in world file");
+				try {
+					terms[n++] = Double.parseDouble(line);
+				}catch( NumberFormatException exp ) {
+					throw new IOException(wld + ": term " + n + " of world file isn't a number: " + line);
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		if (n != 6)
+			throw new IOException(wld + ": expected six terms in world file, found " + n);
+		return new WorldFile(terms[0], terms[1], terms[2], terms[3], terms[4], terms[5]);
+	}
+
+	/**
+	 * @return the world file in text, six terms separated by white space, as toString gives
+	 * @throws IllegalArgumentException if there aren't six numbers
+	 */
+	static WorldFile parse(String text) {
+		String[] terms = text.trim().split("\\s+");
+		if (terms.length != 6)
+			throw new IllegalArgumentException("expected six terms in world file, found " + terms.length);
+		return new WorldFile(Double.parseDouble(terms[0]), Double.parseDouble(terms[1]), Double.parseDouble(terms[2]),
+				Double.parseDouble(terms[3]), Double.parseDouble(terms[4]), Double.parseDouble(terms[5]));
+	}
+
+	/**
+	 * @return A new AffineTransform which takes pixel coordinates to projected coordinates. The world file term
+	 * order is the same as the flat matrix order AffineTransform uses, {m00 m10 m01 m11 m02 m12}.
+	 */
+	public AffineTransform getTransform() {
+		return new AffineTransform(A, D, B, E, C, F);
+	}
+
+	/**
+	 * Writes the six terms, one per line, in world file order.
+	 */
+	public void write(Writer wldWriter) throws IOException {
+		wldWriter.write(A + "\n");
+		wldWriter.write(D + "\n");
+		wldWriter.write(B + "\n");
+		wldWriter.write(E + "\n");
+		wldWriter.write(C + "\n");
+		wldWriter.write(F + "\n");
+	}
+
+	@Override
+	public String toString() {
+		return A + "\n" + D + "\n" + B + "\n" + E + "\n" + C + "\n" + F + "\n";
+	}
+}